@@ -0,0 +1,45 @@
+package peergos.shared.util;
+
+import java.util.*;
+
+/** The single threaded version of LRUCache used in the GWT build.
+ *
+ */
+public class LRUCache<K, V> extends LinkedHashMap<K, V> {
+    private final int cacheSize;
+    private long hits, misses, evictions;
+
+    public LRUCache(int cacheSize) {
+        super(16, 0.75f, true);
+        this.cacheSize = cacheSize;
+    }
+
+    public long hitCount() {
+        return hits;
+    }
+
+    public long missCount() {
+        return misses;
+    }
+
+    public long evictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public V get(Object key) {
+        V res = super.get(key);
+        if (res == null)
+            misses++;
+        else
+            hits++;
+        return res;
+    }
+
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        boolean evict = size() > cacheSize;
+        if (evict)
+            evictions++;
+        return evict;
+    }
+}
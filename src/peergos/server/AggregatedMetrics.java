@@ -1,11 +1,19 @@
 package peergos.server;
 
+import io.prometheus.client.Collector;
 import io.prometheus.client.Counter;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.GaugeMetricFamily;
 import io.prometheus.client.Histogram;
 import io.prometheus.client.exporter.HTTPServer;
+import peergos.server.storage.*;
 import peergos.server.util.*;
+import peergos.shared.util.*;
 
 import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * A wrapper around the prometheus metrics and HTTP exporter.
@@ -26,6 +34,7 @@ public class AggregatedMetrics {
     public static final Counter DHT_BLOCK_PUT  = build("dht_block_put", "Total DHT block puts.");
     public static final Counter DHT_BLOCK_GET  = build("dht_block_get", "Total DHT block gets.");
     public static final Counter DHT_BLOCK_STAT  = build("dht_block_stat", "Total DHT block stats.");
+    public static final Counter DHT_BLOCK_SIZES  = build("dht_block_sizes", "Total DHT bulk block stats.");
     public static final Counter DHT_BLOCK_REFS  = build("dht_block_refs", "Total DHT block refs.");
     public static final Counter DHT_TRANSACTION_START  = build("dht_transaction_start", "Total DHT transaction starts.");
     public static final Counter DHT_TRANSACTION_CLOSE  = build("dht_transaction_close", "Total DHT transaction closes.");
@@ -48,6 +57,9 @@ public class AggregatedMetrics {
     public static final Counter SIGNUP  = build("core_node_signup", "Total signup calls.");
     public static final Counter MIGRATE_USER  = build("core_node_migrate_user", "Total migrate-user calls.");
 
+    public static final Counter USAGE_SCAN_COMPLETED  = build("usage_scan_completed", "Total users whose space usage has been calculated since startup.");
+    public static final Counter USAGE_SCAN_FAILED  = build("usage_scan_failed", "Total users whose space usage calculation failed since startup.");
+
     public static final Histogram IPFS_PRE_GC_DURATION = Histogram.build()
             .name("ipfs_pre_gc")
             .exponentialBuckets(1, 2, 20)
@@ -60,6 +72,81 @@ public class AggregatedMetrics {
             .register();
 
 
+    public static final Histogram STORAGE_REQUEST_DURATION = Histogram.build()
+            .labelNames("backend", "op")
+            .name("storage_request_seconds")
+            .help("Time to complete a block storage request")
+            .exponentialBuckets(0.001, 2, 16)
+            .register();
+    public static final Counter STORAGE_REQUEST_ERRORS = Counter.build()
+            .labelNames("backend", "op")
+            .name("storage_request_errors")
+            .help("Total block storage requests which failed.")
+            .register();
+    public static final Gauge STORAGE_REQUESTS_IN_FLIGHT = Gauge.build()
+            .labelNames("backend", "op")
+            .name("storage_requests_in_flight")
+            .help("Block storage requests which haven't completed yet.")
+            .register();
+    public static final Counter STORAGE_BYTES_READ = Counter.build()
+            .labelNames("backend")
+            .name("storage_bytes_read")
+            .help("Total bytes of blocks read from block storage.")
+            .register();
+    public static final Counter STORAGE_BYTES_WRITTEN = Counter.build()
+            .labelNames("backend")
+            .name("storage_bytes_written")
+            .help("Total bytes of blocks written to block storage.")
+            .register();
+
+    public static final Counter SINGLE_FLIGHT_COALESCED = Counter.build()
+            .labelNames("name")
+            .name("single_flight_coalesced")
+            .help("Total requests which joined an identical request already in flight.")
+            .register();
+    public static final Counter SINGLE_FLIGHT_BYPASSED = Counter.build()
+            .labelNames("name")
+            .name("single_flight_bypassed")
+            .help("Total requests which weren't coalesced because too many requests were in flight.")
+            .register();
+
+    private static final Map<String, LRUCache<?, ?>> CACHES = new ConcurrentHashMap<>();
+    private static final Map<String, OffHeapBlockCache> BLOCK_CACHES = new ConcurrentHashMap<>();
+
+    private static final Collector CACHE_COLLECTOR = new Collector() {
+        @Override
+        public List<MetricFamilySamples> collect() {
+            List<String> label = Collections.singletonList("cache");
+            CounterMetricFamily hits = new CounterMetricFamily("cache_hits", "Total cache hits.", label);
+            CounterMetricFamily misses = new CounterMetricFamily("cache_misses", "Total cache misses.", label);
+            CounterMetricFamily evictions = new CounterMetricFamily("cache_evictions", "Total cache evictions.", label);
+            for (Map.Entry<String, LRUCache<?, ?>> e : CACHES.entrySet()) {
+                List<String> name = Collections.singletonList(e.getKey());
+                hits.addMetric(name, e.getValue().hitCount());
+                misses.addMetric(name, e.getValue().missCount());
+                evictions.addMetric(name, e.getValue().evictionCount());
+            }
+            GaugeMetricFamily bytes = new GaugeMetricFamily("cache_bytes", "Bytes currently cached.", label);
+            for (Map.Entry<String, OffHeapBlockCache> e : BLOCK_CACHES.entrySet()) {
+                List<String> name = Collections.singletonList(e.getKey());
+                hits.addMetric(name, e.getValue().hitCount());
+                misses.addMetric(name, e.getValue().missCount());
+                evictions.addMetric(name, e.getValue().evictionCount());
+                bytes.addMetric(name, e.getValue().size());
+            }
+            return Arrays.asList(hits, misses, evictions, bytes);
+        }
+    }.register();
+
+    /** Export the hit, miss and eviction counts of a cache, replacing any previous cache with the same name.
+     */
+    public static void registerCache(String name, LRUCache<?, ?> cache) {
+        CACHES.put(name, cache);
+    }
+
+    public static void registerCache(String name, OffHeapBlockCache cache) {
+        BLOCK_CACHES.put(name, cache);
+    }
 
     public static void startExporter(String address, int port) throws IOException {
         Logging.LOG().info("Starting metrics server at " + address + ":" + port);
@@ -24,6 +24,7 @@ import peergos.shared.crypto.asymmetric.curve25519.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.password.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -33,12 +34,14 @@ import peergos.shared.storage.auth.*;
 import peergos.shared.user.*;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.net.*;
 import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class Builder {
 
@@ -152,6 +155,24 @@ public class Builder {
         return args.fromPeergosDir("blockstore_dir", "blockstore");
     }
 
+    /**
+     * Create path to the local packed blockstore directory from Args. This is separate from the file per block
+     * blockstore, and we refuse to start if that has blocks, rather than silently losing them.
+     */
+    public static Path packedBlockstorePath(Args args) {
+        Path looseBlocks = blockstorePath(args);
+        if (Files.isDirectory(looseBlocks)) {
+            try (Stream<Path> files = Files.list(looseBlocks)) {
+                if (files.findAny().isPresent())
+                    throw new IllegalStateException("Refusing to use a packed blockstore while " + looseBlocks
+                            + " has blocks. Migrate them, or start without -packed-blockstore");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return args.fromPeergosDir("packed-blockstore_dir", "packed-blockstore");
+    }
+
     public static DeletableContentAddressedStorage buildLocalStorage(Args a,
                                                                      TransactionStore transactions,
                                                                      BlockRequestAuthoriser authoriser,
@@ -181,7 +202,11 @@ public class Builder {
                 Optional<String> authedUrl = Optional.of("https://" + config.getHost() + "/");
                 BlockStoreProperties props = new BlockStoreProperties(directWrites, publicReads, authedReads, publicReadUrl, authedUrl);
 
-                return new S3BlockStorage(config, ourId, props, transactions, authoriser, hasher, p2pBlockRetriever);
+                return new S3BlockStorage(config, ourId, props, transactions, authoriser, hasher, p2pBlockRetriever, S3Transport.build(a));
+            } else if (a.getBoolean("packed-blockstore", false)) {
+                return new PackFileBlockStorage(packedBlockstorePath(a),
+                        a.getLong("packed-blockstore.segment-size", PackFileBlockStorage.DEFAULT_MAX_SEGMENT_SIZE),
+                        PackFileBlockStorage.DEFAULT_COMPACTION_THRESHOLD, transactions, authoriser, hasher);
             } else {
                 return new FileContentAddressedStorage(blockstorePath(a), transactions, authoriser, hasher);
             }
@@ -189,6 +214,20 @@ public class Builder {
     }
 
 
+    /**
+     *
+     * @return the kind of block store buildLocalStorage will build, to label its metrics with
+     */
+    public static String storageBackendName(Args a) {
+        if (a.getBoolean("useIPFS"))
+            return "ipfs";
+        if (S3Config.useS3(a))
+            return "s3";
+        if (a.getBoolean("packed-blockstore", false))
+            return "pack";
+        return "file";
+    }
+
     private static CompletableFuture<Boolean> ALLOW = Futures.of(true);
     private static CompletableFuture<Boolean> BLOCK = Futures.of(false);
     public static BlockRequestAuthoriser blockAuthoriser(Args a,
@@ -252,7 +291,17 @@ public class Builder {
     }
 
     public static TransactionStore buildTransactionStore(Args a, Supplier<Connection> transactionsDb) {
-        return JdbcTransactionStore.build(transactionsDb, getSqlCommands(a));
+        long maxIdleHours = a.getLong("transactions.max-idle-hours", 24);
+        if (a.getBoolean("transactions.use-log", false)) {
+            LogTransactionStore transactions = LogTransactionStore.build(a.fromPeergosDir("transactions-log-file", "transactions.log"));
+            if (maxIdleHours > 0)
+                transactions.startReaper(maxIdleHours * 3600_000L, 3600_000L);
+            return transactions;
+        }
+        JdbcTransactionStore transactions = JdbcTransactionStore.build(transactionsDb, getSqlCommands(a));
+        if (maxIdleHours > 0)
+            transactions.startReaper(maxIdleHours * 3600_000L, 3600_000L);
+        return transactions;
     }
 
     public static QuotaAdmin buildSpaceQuotas(Args a,
@@ -283,8 +332,15 @@ public class Builder {
         return new HttpQuotaAdmin(poster);
     }
 
-    public static CoreNode buildPkiCorenode(MutablePointers mutable, Account account, BatCave batCave, ContentAddressedStorage dht, Args a) {
+    private static ChampNodeCache buildChampNodeCache(Args a) {
+        ChampNodeCache champCache = new ChampNodeCache(a.getInt("champ-cache.size", ChampNodeCache.DEFAULT_SIZE));
+        AggregatedMetrics.registerCache("champ_nodes", champCache.nodes());
+        return champCache;
+    }
+
+    public static CoreNode buildPkiCorenode(MutablePointers mutable, Account account, BatCave batCave, ContentAddressedStorage storage, Args a) {
         try {
+            ContentAddressedStorage dht = new ChampCachingStorage(storage, buildChampNodeCache(a));
             Crypto crypto = initCrypto();
             PublicKeyHash peergosIdentity = PublicKeyHash.fromString(a.getArg("peergos.identity.hash"));
 
@@ -344,7 +400,7 @@ public class Builder {
                 buildPkiCorenode(localPointers, account, bats, localStorage, a) :
                 new MirrorCoreNode(new HTTPCoreNode(buildP2pHttpProxy(a), pkiServerId), rawAccount, bats, account, proxingMutable,
                         localStorage, rawPointers, transactions, localSocial, usageStore, peergosId,
-                        a.fromPeergosDir("pki-mirror-state-path","pki-state.cbor"), hasher);
+                        a.fromPeergosDir("pki-mirror-state-path","pki-state.cbor"), buildChampNodeCache(a), hasher);
     }
 
     public static JdbcIpnsAndSocial buildRawPointers(Args a, Supplier<Connection> dbConnectionPool) {
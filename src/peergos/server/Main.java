@@ -19,6 +19,7 @@ import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.password.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
@@ -162,14 +163,25 @@ public class Main extends Builder {
                     new Command.Arg("account-sql-file", "The filename for the login datastore", true, "login.sql"),
                     new Command.Arg("quotas-sql-file", "The filename for the quotas datastore", true, "quotas.sql"),
                     new Command.Arg("space-usage-sql-file", "The filename for the space usage datastore", true, "space-usage.sql"),
+                    new Command.Arg("space-usage.cache-size", "The number of subtree sizes to cache when calculating changes in space usage", false, Integer.toString(IncrementalUsage.DEFAULT_CACHE_SIZE)),
+                    new Command.Arg("space-usage.workers", "The number of threads processing changes in space usage", false, "4"),
+                    new Command.Arg("space-usage.scan-threads", "The number of users to calculate space usage for at once on startup", false, "8"),
+                    new Command.Arg("space-usage.scan-rate", "The maximum number of users per second to start calculating space usage for on startup (0 for no limit)", false, "0"),
                     new Command.Arg("server-messages-sql-file", "The filename for the server messages datastore", true, "server-messages.sql"),
+                    new Command.Arg("gc-sql-file", "The filename for the incremental garbage collector's reference counts", false, "gc.sql"),
                     ARG_TRANSACTIONS_SQL_FILE,
+                    new Command.Arg("transactions.use-log", "Keep open transactions in memory, backed by a local log file, rather than in the database", false, "false"),
+                    new Command.Arg("transactions-log-file", "The filename for the open transactions log", false, "transactions.log"),
+                    new Command.Arg("transactions.max-idle-hours", "Remove open transactions which haven't been written to for this many hours (0 to disable)", false, "24"),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
+                    new Command.Arg("block-cache.size", "The maximum number of bytes of blocks to cache in memory, outside the heap", false, Long.toString(OffHeapBlockCache.DEFAULT_SIZE)),
+                    new Command.Arg("champ-cache.size", "The number of pki champ nodes to cache in memory", false, Integer.toString(ChampNodeCache.DEFAULT_SIZE)),
                     new Command.Arg("default-quota", "default maximum storage per user", false, Long.toString(1024L * 1024 * 1024)),
                     new Command.Arg("admin-usernames", "A comma separated list of usernames who can approve local space requests", false),
                     new Command.Arg("mirror.node.id", "Mirror a server's data locally", false),
                     new Command.Arg("mirror.username", "Mirror a user's data locally", false),
                     new Command.Arg("mirror.bat", "BatWithId to enable mirroring a user's private data", false),
+                    new Command.Arg("mirror.checkpoint-dir", "Directory to record mirror progress in, so an interrupted mirror can resume", false, "mirror-checkpoints"),
                     new Command.Arg("login-keypair", "The keypair used to mirror the login data for a user (use with 'mirror.username' arg)", false),
                     new Command.Arg("public-server", "Are we a public server? (allow http GETs to API)", false, "false"),
                     new Command.Arg("run-gateway", "Run a local Peergos gateway", false, "true"),
@@ -362,7 +374,8 @@ public class Main extends Builder {
                             S3Config.useS3(args) ?
                                     new S3BlockStorage(S3Config.build(args), Cid.decode(args.getArg("ipfs.id")),
                                             BlockStoreProperties.empty(), transactions, authoriser,
-                                            crypto.hasher, new DeletableContentAddressedStorage.HTTP(Builder.buildIpfsApi(args), false, crypto.hasher)) :
+                                            crypto.hasher, new DeletableContentAddressedStorage.HTTP(Builder.buildIpfsApi(args), false, crypto.hasher),
+                                            S3Transport.build(args)) :
                                     new FileContentAddressedStorage(blockstorePath(args),
                                             transactions, authoriser, crypto.hasher);
                     Multihash pkiIpfsNodeId = storage.id().get();
@@ -528,12 +541,23 @@ public class Main extends Builder {
             SqlSupplier sqlCommands = getSqlCommands(a);
 
             Supplier<Connection> dbConnectionPool = getDBConnector(a, "transactions-sql-file");
-            TransactionStore transactions = buildTransactionStore(a, dbConnectionPool);
+            boolean enableGC = a.getBoolean("enable-gc", false);
+            Optional<JdbcReferenceCounts> gcRefs = enableGC && a.getBoolean("gc.incremental", false) ?
+                    Optional.of(JdbcReferenceCounts.build(getDBConnector(a, "gc-sql-file", dbConnectionPool), sqlCommands)) :
+                    Optional.empty();
+            // the incremental gc finds new garbage from the blocks written since its last run
+            TransactionStore openTransactions = buildTransactionStore(a, dbConnectionPool);
+            TransactionStore transactions = gcRefs.isPresent() ?
+                    new WriteTrackingTransactionStore(openTransactions, gcRefs.get()) :
+                    openTransactions;
 
             BatCave batStore = new JdbcBatCave(getDBConnector(a, "bat-store", dbConnectionPool), sqlCommands);
             BlockRequestAuthoriser blockRequestAuthoriser = Builder.blockAuthoriser(a, batStore, hasher);
-            DeletableContentAddressedStorage localStorage = buildLocalStorage(a, transactions, blockRequestAuthoriser,
+            DeletableContentAddressedStorage backendStorage = buildLocalStorage(a, transactions, blockRequestAuthoriser,
                     crypto.hasher);
+            DeletableContentAddressedStorage localStorage = doExportAggregatedMetrics ?
+                    new DeletableMetricsStorage(backendStorage, Builder.storageBackendName(a)) :
+                    backendStorage;
             JdbcIpnsAndSocial rawPointers = buildRawPointers(a,
                     getDBConnector(a, "mutable-pointers-file", dbConnectionPool));
 
@@ -544,13 +568,14 @@ public class Main extends Builder {
             MutablePointersProxy proxingMutable = new HttpMutablePointers(p2pHttpProxy, pkiServerNodeId);
 
             Supplier<Connection> usageDb = getDBConnector(a, "space-usage-sql-file", dbConnectionPool);
-            UsageStore usageStore = new JdbcUsageStore(usageDb, sqlCommands);
-            boolean enableGC = a.getBoolean("enable-gc", false);
+            UsageStore usageStore = new CachingUsageStore(new JdbcUsageStore(usageDb, sqlCommands),
+                    CachingUsageStore.DEFAULT_FLUSH_PERIOD_MILLIS);
             GarbageCollector gc = null;
             if (enableGC) {
                 if (S3Config.useS3(a))
                     throw new IllegalStateException("GC should be run separately when using S3!");
-                gc = new GarbageCollector(localStorage, rawPointers, usageStore);
+                gc = new GarbageCollector(localStorage, rawPointers, usageStore, a.getBoolean("gc.streaming", false),
+                        a.getLong("gc.expected-blocks", GarbageCollector.DEFAULT_EXPECTED_REACHABLE_BLOCKS), gcRefs);
                 gc.start(a.getInt("gc.period.millis", 60 * 60 * 1000), s -> Futures.of(true));
             }
 
@@ -573,9 +598,9 @@ public class Main extends Builder {
                     getDBConnector(a, "quotas-sql-file", dbConnectionPool));
             CoreNode signupFilter = new SignUpFilter(core, userQuotas, nodeId, httpSpaceUsage);
 
-            SpaceCheckingKeyFilter.update(usageStore, userQuotas, core, localPointers, localStorage, hasher);
+            IncrementalUsage usage = new IncrementalUsage(localStorage, a.getInt("space-usage.cache-size", IncrementalUsage.DEFAULT_CACHE_SIZE));
             SpaceCheckingKeyFilter spaceChecker = new SpaceCheckingKeyFilter(core, localPointers, localStorage,
-                    hasher, userQuotas, usageStore);
+                    hasher, userQuotas, usageStore, usage, a.getInt("space-usage.workers", 4));
             CorenodeEventPropagator corePropagator = new CorenodeEventPropagator(signupFilter);
             corePropagator.addListener(spaceChecker::accept);
             MutableEventPropagator localMutable = new MutableEventPropagator(localPointers);
@@ -583,8 +608,10 @@ public class Main extends Builder {
 
             int blockCacheSize = a.getInt("max-cached-blocks", 1000);
             int maxCachedBlockSize = a.getInt("max-cached-block-size", 10 * 1024);
+            OffHeapBlockCache blockCache = new OffHeapBlockCache(a.getLong("block-cache.size", OffHeapBlockCache.DEFAULT_SIZE));
+            AggregatedMetrics.registerCache("blocks", blockCache);
             ContentAddressedStorage filteringDht = new WriteFilter(new AuthedCachingStorage(localStorage,
-                    blockRequestAuthoriser, hasher, blockCacheSize, maxCachedBlockSize), spaceChecker::allowWrite);
+                    blockRequestAuthoriser, hasher, blockCache, blockCacheSize, maxCachedBlockSize), spaceChecker::allowWrite);
             ContentAddressedStorageProxy proxingDht = new ContentAddressedStorageProxy.HTTP(p2pHttpProxy);
             ContentAddressedStorage p2pDht = new ContentAddressedStorage.Proxying(filteringDht, proxingDht, nodeId, core);
 
@@ -608,14 +635,22 @@ public class Main extends Builder {
 
             Account p2pAccount = new ProxyingAccount(nodeId, core, account, accountProxy);
             VerifyingAccount verifyingAccount = new VerifyingAccount(p2pAccount, core, localStorage);
-            ContentAddressedStorage cachingStorage = new AuthedCachingStorage(p2pDht, blockRequestAuthoriser, hasher, 1000, 50 * 1024);
-            ContentAddressedStorage incomingP2PStorage = new GetBlockingStorage(cachingStorage);
+            ContentAddressedStorage authedCachingStorage = new AuthedCachingStorage(p2pDht, blockRequestAuthoriser, hasher, blockCache, 1000, 50 * 1024);
+            ContentAddressedStorage cachingStorage = doExportAggregatedMetrics ?
+                    new MetricsStorage(authedCachingStorage, "api") :
+                    authedCachingStorage;
+            ContentAddressedStorage incomingP2PStorage = doExportAggregatedMetrics ?
+                    new MetricsStorage(new GetBlockingStorage(authedCachingStorage), "p2p") :
+                    new GetBlockingStorage(authedCachingStorage);
 
             ProxyingBatCave p2pBats = new ProxyingBatCave(nodeId, core, batStore, new HttpBatCave(p2pHttpProxy, p2pHttpProxy));
             ServerMessageStore serverMessages = new ServerMessageStore(getDBConnector(a, "server-messages-sql-file", dbConnectionPool),
                     sqlCommands, core, p2pDht);
+            Optional<FileRegionStorage> localBlocks = backendStorage instanceof FileRegionStorage ?
+                    Optional.of((FileRegionStorage) backendStorage) :
+                    Optional.empty();
             UserService localAPI = new UserService(cachingStorage, p2pBats, crypto, corePropagator, verifyingAccount,
-                    p2pSocial, p2mMutable, storageAdmin, p2pSpaceUsage, serverMessages, gc);
+                    p2pSocial, p2mMutable, storageAdmin, p2pSpaceUsage, serverMessages, gc, localBlocks);
             UserService p2pAPI = new UserService(incomingP2PStorage, p2pBats, crypto, corePropagator, verifyingAccount,
                     p2pSocial, p2mMutable, storageAdmin, p2pSpaceUsage, serverMessages, gc);
             InetSocketAddress localAPIAddress = new InetSocketAddress("localhost", userAPIAddress.getPort());
@@ -650,15 +685,17 @@ public class Main extends Builder {
 //                ipfsWrapper.connectToNode(new InetSocketAddress(pkiNodeIpAddress, pkiNodeSwarmPort), pkiServerNodeId);
                 ((MirrorCoreNode) core).start();
             }
-            spaceChecker.calculateUsage();
+            spaceChecker.calculateUsage(a.getInt("space-usage.scan-threads", 8), a.getInt("space-usage.scan-rate", 0));
 
+            Optional<Path> mirrorCheckpoints = Optional.of(a.fromPeergosDir("mirror.checkpoint-dir", "mirror-checkpoints"));
             if (a.hasArg("mirror.node.id")) {
                 Multihash nodeToMirrorId = Cid.decode(a.getArg("mirror.node.id"));
                 new Thread(() -> {
                     while (true) {
                         try {
                             BatWithId mirrorBat = BatWithId.decode(a.getArg("mirror.bat"));
-                            Mirror.mirrorNode(nodeToMirrorId, mirrorBat, core, p2mMutable, localStorage, rawPointers, transactions, hasher);
+                            Mirror.mirrorNode(nodeToMirrorId, mirrorBat, core, p2mMutable, localStorage, rawPointers, transactions,
+                                    mirrorCheckpoints, hasher);
                             try {
                                 Thread.sleep(60_000);
                             } catch (InterruptedException f) {}
@@ -684,7 +721,7 @@ public class Main extends Builder {
                             if (mirrorBat.isEmpty())
                                 System.out.println("WARNING: Mirroring users public blocks only, see option 'mirror.bat'");
                             Mirror.mirrorUser(username, mirrorLoginDataPair, mirrorBat, core, p2mMutable, p2pAccount, localStorage,
-                                    rawPointers, rawAccount, transactions, hasher);
+                                    rawPointers, rawAccount, transactions, mirrorCheckpoints, hasher);
                             try {
                                 Thread.sleep(60_000);
                             } catch (InterruptedException f) {}
@@ -16,11 +16,15 @@ import peergos.shared.storage.auth.*;
 import peergos.shared.user.*;
 import peergos.shared.util.*;
 
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 public class Mirror {
 
+    private static final int USER_PARALLELISM = 4;
+
     public static void mirrorNode(Multihash nodeId,
                                   BatWithId mirrorBat,
                                   CoreNode core,
@@ -28,23 +32,30 @@ public class Mirror {
                                   DeletableContentAddressedStorage storage,
                                   JdbcIpnsAndSocial targetPointers,
                                   TransactionStore transactions,
+                                  Optional<Path> checkpoints,
                                   Hasher hasher) {
         Logging.LOG().log(Level.INFO, "Mirroring data for node " + nodeId);
         List<String> allUsers = core.getUsernames("").join();
-        int userCount = 0;
-        for (String username : allUsers) {
-            List<UserPublicKeyLink> chain = core.getChain(username).join();
-            if (chain.get(chain.size() - 1).claim.storageProviders.contains(nodeId)) {
-                try {
-                    mirrorUser(username, Optional.empty(), Optional.of(mirrorBat), core, p2pPointers, null,
-                            storage, targetPointers, null, transactions, hasher);
-                    userCount++;
-                } catch (Exception e) {
-                    Logging.LOG().log(Level.WARNING, "Couldn't mirror user: " + username, e);
-                }
-            }
+        ForkJoinPool pool = new ForkJoinPool(USER_PARALLELISM);
+        try {
+            long userCount = pool.submit(() -> allUsers.parallelStream()
+                    .filter(username -> {
+                        List<UserPublicKeyLink> chain = core.getChain(username).join();
+                        if (! chain.get(chain.size() - 1).claim.storageProviders.contains(nodeId))
+                            return false;
+                        try {
+                            mirrorUser(username, Optional.empty(), Optional.of(mirrorBat), core, p2pPointers, null,
+                                    storage, targetPointers, null, transactions, checkpoints, hasher);
+                            return true;
+                        } catch (Exception e) {
+                            Logging.LOG().log(Level.WARNING, "Couldn't mirror user: " + username, e);
+                            return false;
+                        }
+                    }).count()).join();
+            Logging.LOG().log(Level.INFO, "Finished mirroring data for node " + nodeId + ", with " + userCount + " users.");
+        } finally {
+            pool.shutdown();
         }
-        Logging.LOG().log(Level.INFO, "Finished mirroring data for node " + nodeId + ", with " + userCount + " users.");
     }
 
     /**
@@ -68,6 +79,7 @@ public class Mirror {
                                                         JdbcIpnsAndSocial targetPointers,
                                                         JdbcAccount targetAccount,
                                                         TransactionStore transactions,
+                                                        Optional<Path> checkpoints,
                                                         Hasher hasher) {
         Logging.LOG().log(Level.INFO, "Mirroring data for " + username);
         Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).join();
@@ -78,7 +90,7 @@ public class Mirror {
         Set<PublicKeyHash> ownedKeys = WriterData.getOwnedKeysRecursive(owner, owner, p2pPointers, storage, hasher).join();
         for (PublicKeyHash ownedKey : ownedKeys) {
             Optional<byte[]> version = mirrorMutableSubspace(owner, ownedKey, mirrorBat, p2pPointers, storage,
-                    targetPointers, transactions, hasher);
+                    targetPointers, transactions, checkpoints, hasher);
             if (version.isPresent())
                 versions.put(ownedKey, version.get());
         }
@@ -107,6 +119,7 @@ public class Mirror {
                                                          DeletableContentAddressedStorage storage,
                                                          JdbcIpnsAndSocial targetPointers,
                                                          TransactionStore transactions,
+                                                         Optional<Path> checkpoints,
                                                          Hasher hasher) {
         Optional<byte[]> updated = p2pPointers.getPointer(owner, writer).join();
         if (! updated.isPresent()) {
@@ -114,7 +127,7 @@ public class Mirror {
             return updated;
         }
 
-        mirrorMerkleTree(owner, writer, updated.get(), mirrorBat, storage, targetPointers, transactions, hasher);
+        mirrorMerkleTree(owner, writer, updated.get(), mirrorBat, storage, targetPointers, transactions, checkpoints, hasher);
         return updated;
     }
 
@@ -125,6 +138,7 @@ public class Mirror {
                                         DeletableContentAddressedStorage storage,
                                         JdbcIpnsAndSocial targetPointers,
                                         TransactionStore transactions,
+                                        Optional<Path> checkpoints,
                                         Hasher hasher) {
         Optional<byte[]> existing = targetPointers.getPointer(writer).join();
         // First pin the new root, then commit updated pointer
@@ -135,9 +149,12 @@ public class Mirror {
         // use a mirror call to distinguish from normal pin calls
         TransactionId tid = transactions.startTransaction(owner);
         try {
-            storage.mirror(owner, existingTarget.toOptional().map(c -> (Cid)c),
-                    updatedTarget.toOptional().map(c -> (Cid)c),
-                    mirrorBat, storage.id().join(), tid, hasher);
+            // a checkpoint per writer lets an interrupted mirror resume, even if the writer has since moved on
+            Optional<Path> checkpoint = checkpoints.map(dir -> dir.resolve(writer + ".cbor"));
+            new MirrorEngine(storage, MirrorEngine.DEFAULT_PARALLELISM, checkpoint)
+                    .mirror(owner, existingTarget.toOptional().map(c -> (Cid)c),
+                            updatedTarget.toOptional().map(c -> (Cid)c),
+                            mirrorBat, storage.id().join(), tid, hasher);
             targetPointers.setPointer(writer, existing, newPointer).join();
         } finally {
             transactions.closeTransaction(owner, tid);
@@ -90,6 +90,7 @@ public class UserService {
     public final SpaceUsage usage;
     public final ServerMessageStore serverMessages;
     public final GarbageCollector gc; // not exposed
+    public final Optional<FileRegionStorage> localBlocks;
 
     public UserService(ContentAddressedStorage storage,
                        BatCave bats,
@@ -101,7 +102,8 @@ public class UserService {
                        InstanceAdmin controller,
                        SpaceUsage usage,
                        ServerMessageStore serverMessages,
-                       GarbageCollector gc) {
+                       GarbageCollector gc,
+                       Optional<FileRegionStorage> localBlocks) {
         this.storage = storage;
         this.bats = bats;
         this.crypto = crypto;
@@ -113,6 +115,21 @@ public class UserService {
         this.usage = usage;
         this.serverMessages = serverMessages;
         this.gc = gc;
+        this.localBlocks = localBlocks;
+    }
+
+    public UserService(ContentAddressedStorage storage,
+                       BatCave bats,
+                       Crypto crypto,
+                       CoreNode coreNode,
+                       Account account,
+                       SocialNetwork social,
+                       MutablePointers mutable,
+                       InstanceAdmin controller,
+                       SpaceUsage usage,
+                       ServerMessageStore serverMessages,
+                       GarbageCollector gc) {
+        this(storage, bats, crypto, coreNode, account, social, mutable, controller, usage, serverMessages, gc, Optional.empty());
     }
 
     public static class TlsProperties {
@@ -232,7 +249,7 @@ public class UserService {
         }
 
         addHandler(localhostServer, tlsServer, Constants.DHT_URL,
-                new DHTHandler(storage, crypto.hasher, (h, i) -> true, isPublicServer),
+                new DHTHandler(storage, localBlocks, crypto.hasher, (h, i) -> true, isPublicServer),
                 basicAuth, local, host, nodeId, false);
         addHandler(localhostServer, tlsServer, "/" + Constants.BATS_URL,
                 new BatCaveHandler(this.bats, isPublicServer), basicAuth, local, host, nodeId, false);
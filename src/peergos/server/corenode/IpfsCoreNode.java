@@ -96,7 +96,7 @@ public class IpfsCoreNode implements CoreNode {
             MaybeMultihash updatedTree = getTreeRoot(newChampRoot, ipfs);
             Consumer<Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> consumer =
                     t -> updateMapping(t.left, t.middle, t.right, ipfs, chains, reverseLookup, usernames);
-            Function<Cborable, CborObject.CborMerkleLink> fromCbor = c -> (CborObject.CborMerkleLink)c;
+            Function<Cborable, CborObject.CborMerkleLink> fromCbor = CborObject.CborMerkleLink.FROM_CBOR;
             Champ.applyToDiff(currentTree, updatedTree, 0, IpfsCoreNode::keyHash,
                     Collections.emptyList(), Collections.emptyList(),
                     consumer, ChampWrapper.BIT_WIDTH, ipfs, fromCbor).get();
@@ -224,9 +224,9 @@ public class IpfsCoreNode implements CoreNode {
             MaybeMultihash currentTree = current.props.tree.map(MaybeMultihash::of).orElseGet(MaybeMultihash::empty);
 
             ChampWrapper<CborObject.CborMerkleLink> champ = currentTree.isPresent() ?
-                    ChampWrapper.create((Cid)currentTree.get(), IpfsCoreNode::keyHash, ipfs, hasher, c -> (CborObject.CborMerkleLink)c).get() :
+                    ChampWrapper.create((Cid)currentTree.get(), IpfsCoreNode::keyHash, ipfs, hasher, CborObject.CborMerkleLink.FROM_CBOR).get() :
                     IpfsTransaction.call(peergosIdentity,
-                            tid -> ChampWrapper.create(signer.publicKeyHash, signer, IpfsCoreNode::keyHash, tid, ipfs, hasher, c -> (CborObject.CborMerkleLink)c),
+                            tid -> ChampWrapper.create(signer.publicKeyHash, signer, IpfsCoreNode::keyHash, tid, ipfs, hasher, CborObject.CborMerkleLink.FROM_CBOR),
                             ipfs).get();
             Optional<CborObject.CborMerkleLink> existing = champ.get(username.getBytes()).get();
             Optional<CborObject> cborOpt = existing.isPresent() ?
@@ -39,6 +39,8 @@ public class MirrorCoreNode implements CoreNode {
     private final Account account;
     private final MutablePointers p2pMutable;
     private final DeletableContentAddressedStorage ipfs;
+    // caches the pki champ nodes between updates
+    private final ContentAddressedStorage champStorage;
     private final JdbcIpnsAndSocial localPointers;
     private final TransactionStore transactions;
     private final JdbcIpnsAndSocial localSocial;
@@ -63,6 +65,7 @@ public class MirrorCoreNode implements CoreNode {
                           UsageStore usageStore,
                           PublicKeyHash pkiOwnerIdentity,
                           Path statePath,
+                          ChampNodeCache champCache,
                           Hasher hasher) {
         this.writeTarget = writeTarget;
         this.rawAccount = rawAccount;
@@ -70,6 +73,7 @@ public class MirrorCoreNode implements CoreNode {
         this.account = account;
         this.p2pMutable = p2pMutable;
         this.ipfs = ipfs;
+        this.champStorage = new ChampCachingStorage(ipfs, champCache);
         this.localPointers = localPointers;
         this.transactions = transactions;
         this.localSocial = localSocial;
@@ -259,22 +263,26 @@ public class MirrorCoreNode implements CoreNode {
 
             // first retrieve all new blocks to be local
             TransactionId tid = transactions.startTransaction(peergosKey);
-            MaybeMultihash currentTree = IpfsCoreNode.getTreeRoot(current.pkiKeyTarget, ipfs);
-            MaybeMultihash updatedTree = IpfsCoreNode.getTreeRoot(currentPkiRoot, ipfs);
+            MaybeMultihash currentTree = IpfsCoreNode.getTreeRoot(current.pkiKeyTarget, champStorage);
+            MaybeMultihash updatedTree = IpfsCoreNode.getTreeRoot(currentPkiRoot, champStorage);
+            Queue<Cid> newValues = new ConcurrentLinkedQueue<>();
             Consumer<Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> consumer =
                     t -> {
                         Optional<CborObject.CborMerkleLink> newVal = t.right;
                         if (newVal.isPresent()) {
                             transactions.addBlock(newVal.get().target, tid, peergosKey);
-                            ipfs.get((Cid) newVal.get().target, Optional.empty()).join();
+                            newValues.add((Cid) newVal.get().target);
                         }
                     };
             Champ.applyToDiff(currentTree, updatedTree, 0, IpfsCoreNode::keyHash,
                     Collections.emptyList(), Collections.emptyList(),
-                    consumer, ChampWrapper.BIT_WIDTH, ipfs, c -> (CborObject.CborMerkleLink)c).get();
+                    consumer, ChampWrapper.BIT_WIDTH, champStorage, CborObject.CborMerkleLink.FROM_CBOR).get();
+            // fetch the new values outside the diff, so we don't block the threads completing it
+            Futures.mapWithConcurrency(new ArrayList<>(newValues), Champ.DEFAULT_TRAVERSAL_PARALLELISM,
+                    c -> ipfs.get(c, Optional.empty())).join();
 
             // now update the mappings
-            IpfsCoreNode.updateAllMappings(pkiKey, current.pkiKeyTarget, currentPkiRoot, ipfs, updated.chains,
+            IpfsCoreNode.updateAllMappings(pkiKey, current.pkiKeyTarget, currentPkiRoot, champStorage, updated.chains,
                     updated.reverseLookup, updated.usernames);
 
             // 'pin' the new pki version
@@ -385,9 +393,9 @@ public class MirrorCoreNode implements CoreNode {
                     batCave.addBat(username, bat.id(), bat.bat, new byte[0]);
             }
             // Mirror all the data locally
-            Mirror.mirrorUser(username, Optional.empty(), mirrorBat, this, p2pMutable, null, ipfs, localPointers, rawAccount, transactions, hasher);
+            Mirror.mirrorUser(username, Optional.empty(), mirrorBat, this, p2pMutable, null, ipfs, localPointers, rawAccount, transactions, Optional.empty(), hasher);
             Map<PublicKeyHash, byte[]> mirrored = Mirror.mirrorUser(username, Optional.empty(), mirrorBat, this, p2pMutable,
-                    null, ipfs, localPointers, rawAccount, transactions, hasher);
+                    null, ipfs, localPointers, rawAccount, transactions, Optional.empty(), hasher);
 
             // Proxy call to their current storage server
             UserSnapshot res = writeTarget.migrateUser(username, newChain, currentStorageId, mirrorBat).join();
@@ -403,7 +411,7 @@ public class MirrorCoreNode implements CoreNode {
             for (Map.Entry<PublicKeyHash, byte[]> e : res.pointerState.entrySet()) {
                 byte[] existingVal = mirrored.get(e.getKey());
                 if (! Arrays.equals(existingVal, e.getValue())) {
-                    Mirror.mirrorMerkleTree(owner, e.getKey(), e.getValue(), mirrorBat, ipfs, localPointers, transactions, hasher);
+                    Mirror.mirrorMerkleTree(owner, e.getKey(), e.getValue(), mirrorBat, ipfs, localPointers, transactions, Optional.empty(), hasher);
                 }
             }
 
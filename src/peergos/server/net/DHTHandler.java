@@ -2,6 +2,7 @@ package peergos.server.net;
 import java.util.logging.*;
 
 import peergos.server.AggregatedMetrics;
+import peergos.server.storage.*;
 import peergos.server.util.*;
 
 import peergos.shared.cbor.*;
@@ -18,6 +19,7 @@ import peergos.shared.util.*;
 import static peergos.shared.storage.ContentAddressedStorage.HTTP.*;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.function.*;
 import java.util.stream.*;
@@ -27,17 +29,20 @@ public class DHTHandler implements HttpHandler {
 
     private static final boolean LOGGING = true;
     private final ContentAddressedStorage dht;
+    private final Optional<FileRegionStorage> localBlocks;
     private final Hasher hasher;
     private final BiFunction<PublicKeyHash, Integer, Boolean> keyFilter;
     private final String apiPrefix;
     private final boolean isPublicServer;
 
     public DHTHandler(ContentAddressedStorage dht,
+                      Optional<FileRegionStorage> localBlocks,
                       Hasher hasher,
                       BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
                       String apiPrefix,
                       boolean isPublicServer) {
         this.dht = dht;
+        this.localBlocks = localBlocks;
         this.hasher = hasher;
         this.keyFilter = keyFilter;
         this.apiPrefix = apiPrefix;
@@ -48,7 +53,15 @@ public class DHTHandler implements HttpHandler {
                       Hasher hasher,
                       BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
                       boolean isPublicServer) {
-        this(dht, hasher, keyFilter, "/api/v0/", isPublicServer);
+        this(dht, Optional.empty(), hasher, keyFilter, "/api/v0/", isPublicServer);
+    }
+
+    public DHTHandler(ContentAddressedStorage dht,
+                      Optional<FileRegionStorage> localBlocks,
+                      Hasher hasher,
+                      BiFunction<PublicKeyHash, Integer, Boolean> keyFilter,
+                      boolean isPublicServer) {
+        this(dht, localBlocks, hasher, keyFilter, "/api/v0/", isPublicServer);
     }
 
     @Override
@@ -206,6 +219,14 @@ public class DHTHandler implements HttpHandler {
                     Optional<BatWithId> bat = params.containsKey("bat") ?
                             Optional.of(BatWithId.decode(last.apply("bat"))) :
                             Optional.empty();
+                    if (hash.codec == Cid.Codec.Raw && localBlocks.isPresent()) {
+                        // send raw blocks stored locally straight from disk
+                        Optional<FileRegionStorage.FileRegion> region = localBlocks.get().getRawRegion(hash, bat).get();
+                        if (region.isPresent()) {
+                            replyRegion(httpExchange, region.get(), hash);
+                            break;
+                        }
+                    }
                     (hash.codec == Cid.Codec.Raw ?
                             dht.getRaw(hash, bat) :
                             dht.get(hash, bat).thenApply(opt -> opt.map(CborObject::toByteArray)))
@@ -225,6 +246,20 @@ public class DHTHandler implements HttpHandler {
                     }).exceptionally(Futures::logAndThrow).get();
                     break;
                 }
+                case BLOCK_SIZES: {
+                    AggregatedMetrics.DHT_BLOCK_SIZES.inc();
+                    CborObject cbor = CborObject.fromByteArray(Serialize.readFully(httpExchange.getRequestBody()));
+                    List<Cid> blocks = ((CborObject.CborList) cbor).map(c -> (Cid) ((CborObject.CborMerkleLink) c).target);
+                    if (blocks.size() > MAX_BLOCK_SIZES)
+                        throw new IllegalStateException("Too many blocks to stat!");
+                    dht.getSizes(blocks).thenAccept(sizes -> {
+                        // -1 means the block isn't present
+                        replyBytes(httpExchange, new CborObject.CborList(sizes.stream()
+                                .map(s -> new CborObject.CborLong(s.orElse(-1)))
+                                .collect(Collectors.toList())).serialize(), Optional.empty());
+                    }).exceptionally(Futures::logAndThrow).get();
+                    break;
+                }
                 case ID: {
                     AggregatedMetrics.DHT_ID.inc();
                     dht.id().thenAccept(id -> {
@@ -282,6 +317,21 @@ public class DHTHandler implements HttpHandler {
         }
     }
 
+    private static void replyRegion(HttpExchange exchange, FileRegionStorage.FileRegion region, Multihash key) {
+        try (FileRegionStorage.FileRegion toSend = region) {
+            exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
+            exchange.getResponseHeaders().set("ETag", "\"" + key.toString() + "\"");
+            exchange.sendResponseHeaders(200, toSend.length);
+            OutputStream out = exchange.getResponseBody();
+            toSend.transferTo(Channels.newChannel(out));
+            out.flush();
+            out.close();
+        } catch (IOException e)
+        {
+            LOG.log(Level.WARNING, e.getMessage(), e);
+        }
+    }
+
     private static void replyBytes(HttpExchange exchange, byte[] body, Optional<Multihash> key) {
         try {
             if (key.isPresent()) {
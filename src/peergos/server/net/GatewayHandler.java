@@ -1,6 +1,7 @@
 package peergos.server.net;
 
 import com.sun.net.httpserver.*;
+import peergos.server.*;
 import peergos.server.util.Logging;
 import peergos.server.util.*;
 import peergos.shared.*;
@@ -31,6 +32,8 @@ public class GatewayHandler implements HttpHandler {
         this.network = network;
         this.webRootCache = new LRUCache<>(1000);
         this.assetCache = new LRUCache<>(1000);
+        AggregatedMetrics.registerCache("gateway_web_roots", webRootCache);
+        AggregatedMetrics.registerCache("gateway_assets", assetCache);
     }
 
     private final class WebRootEntry {
@@ -55,23 +58,23 @@ public class GatewayHandler implements HttpHandler {
         }
     }
 
-    private synchronized WebRootEntry lookupRoot(String owner) {
+    private WebRootEntry lookupRoot(String owner) {
         return webRootCache.get(owner);
     }
 
-    private synchronized void cacheRoot(String owner, WebRootEntry webRoot) {
+    private void cacheRoot(String owner, WebRootEntry webRoot) {
         webRootCache.put(owner, webRoot);
     }
 
-    private synchronized Asset lookupAsset(String owner, String path) {
+    private Asset lookupAsset(String owner, String path) {
         return assetCache.get(owner + "/" + path);
     }
 
-    private synchronized void cacheAsset(String owner, String path, Asset asset) {
+    private void cacheAsset(String owner, String path, Asset asset) {
         assetCache.put(owner + "/" + path, asset);
     }
 
-    private synchronized void invalidateAssets(String owner) {
+    private void invalidateAssets(String owner) {
         assetCache.entrySet().removeIf(entry -> entry.getKey().startsWith(owner + "/"));
     }
 
@@ -0,0 +1,166 @@
+package peergos.server.space;
+
+import peergos.server.util.Logging;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/** Keeps space usage in memory, so that checking and recording a write doesn't touch the database.
+ *
+ *  Confirmed usage, writers and owned keys are written through to the target store before the call returns, so they
+ *  survive a crash. Pending usage is only written back periodically, in a batch. Pending usage is an estimate of
+ *  writes which haven't been committed to a writer's root yet, and is reset when the root is updated, so a crash
+ *  can only lose the pending usage from the last flush period.
+ *
+ *  This must be the only writer to the target store.
+ */
+public class CachingUsageStore implements UsageStore {
+	private static final Logger LOG = Logging.LOG();
+    public static final long DEFAULT_FLUSH_PERIOD_MILLIS = 1_000;
+
+    private final UsageStore target;
+    private final Map<String, UserUsage> users = new ConcurrentHashMap<>();
+    private final Map<PublicKeyHash, WriterUsage> writers = new ConcurrentHashMap<>();
+    private final Set<PublicKeyHash> knownWriters = ConcurrentHashMap.newKeySet();
+    // pending usage which hasn't been written to the target yet
+    private final Map<PublicKeyHash, Long> unflushed = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+    private volatile boolean isClosed;
+
+    public CachingUsageStore(UsageStore target, long flushPeriodMillis) {
+        this.target = target;
+        Thread flusher = new Thread(() -> {
+            while (! isClosed) {
+                try {
+                    Thread.sleep(flushPeriodMillis);
+                    flush();
+                } catch (InterruptedException e) {
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, e, e::getMessage);
+                }
+            }
+        }, "Usage flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public void flush() {
+        synchronized (flushLock) {
+            Map<PublicKeyHash, Long> batch = new HashMap<>();
+            for (PublicKeyHash writer : new ArrayList<>(unflushed.keySet())) {
+                Long delta = unflushed.remove(writer);
+                if (delta != null && delta != 0)
+                    batch.put(writer, delta);
+            }
+            if (batch.isEmpty())
+                return;
+            try {
+                target.addPendingUsage(batch);
+            } catch (RuntimeException e) {
+                batch.forEach((writer, delta) -> unflushed.merge(writer, delta, Long::sum));
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void initialized() {
+        target.initialized();
+    }
+
+    @Override
+    public void addUserIfAbsent(String username) {
+        if (users.containsKey(username))
+            return;
+        target.addUserIfAbsent(username);
+    }
+
+    @Override
+    public UserUsage getUsage(String username) {
+        UserUsage cached = users.get(username);
+        if (cached != null)
+            return cached;
+        UserUsage stored = target.getUsage(username);
+        // a user without any writers doesn't have a usage record yet
+        if (stored == null || stored.totalUsage() < 0)
+            return stored;
+        UserUsage loaded = stored.copy();
+        UserUsage existing = users.putIfAbsent(username, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    @Override
+    public void confirmUsage(String username, PublicKeyHash writer, long usageDelta, boolean errored) {
+        synchronized (flushLock) {
+            // confirming resets the writer's pending usage, including any we haven't flushed
+            unflushed.remove(writer);
+            target.confirmUsage(username, writer, usageDelta, errored);
+            UserUsage cached = users.get(username);
+            if (cached != null) {
+                cached.confirmUsage(writer, usageDelta);
+                cached.setErrored(errored);
+            }
+        }
+    }
+
+    @Override
+    public void addPendingUsage(String username, PublicKeyHash writer, int size) {
+        getUsage(username).addPending(writer, size);
+        unflushed.merge(writer, (long) size, Long::sum);
+    }
+
+    @Override
+    public void addWriter(String owner, PublicKeyHash writer) {
+        if (knownWriters.contains(writer))
+            return;
+        target.addWriter(owner, writer);
+        knownWriters.add(writer);
+    }
+
+    @Override
+    public Set<PublicKeyHash> getAllWriters() {
+        return target.getAllWriters();
+    }
+
+    @Override
+    public WriterUsage getUsage(PublicKeyHash writer) {
+        WriterUsage usage = writers.computeIfAbsent(writer, target::getUsage);
+        if (usage != null)
+            knownWriters.add(writer);
+        return usage;
+    }
+
+    @Override
+    public void updateWriterUsage(PublicKeyHash writer,
+                                  MaybeMultihash root,
+                                  Set<PublicKeyHash> removedOwnedKeys,
+                                  Set<PublicKeyHash> addedOwnedKeys,
+                                  long retainedStorage) {
+        target.updateWriterUsage(writer, root, removedOwnedKeys, addedOwnedKeys, retainedStorage);
+        WriterUsage cached = writers.get(writer);
+        if (cached != null)
+            cached.update(root, removedOwnedKeys, addedOwnedKeys, retainedStorage);
+    }
+
+    @Override
+    public List<Multihash> getAllTargets() {
+        return target.getAllTargets();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (isClosed)
+            return;
+        isClosed = true;
+        try {
+            flush();
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "Couldn't flush pending usage on close", e);
+        }
+        target.close();
+    }
+}
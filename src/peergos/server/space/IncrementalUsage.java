@@ -0,0 +1,161 @@
+package peergos.server.space;
+
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Calculates the storage used by merkle trees, and the change in storage between two versions of a tree, without
+ *  walking the whole tree each time.
+ *
+ *  A change is calculated by comparing the links of the old and new versions of each block, and only descending into
+ *  links which differ, so subtrees shared between the versions are never visited. The recursive size of every
+ *  non-raw block visited is cached by cid, which is valid forever as blocks are immutable. In particular, the size
+ *  of each new root is cached, so the next change to a writer only needs to visit the blocks that changed.
+ *
+ *  A block which isn't present locally is an error, rather than counted as empty, so callers can fall back to a full
+ *  calculation if an old version has been garbage collected.
+ */
+public class IncrementalUsage {
+    public static final int DEFAULT_CACHE_SIZE = 100_000;
+
+    private final DeletableContentAddressedStorage dht;
+    private final LRUCache<Cid, Long> subtreeSizes;
+
+    public IncrementalUsage(DeletableContentAddressedStorage dht, int cacheSize) {
+        this.dht = dht;
+        this.subtreeSizes = new LRUCache<>(cacheSize);
+    }
+
+    private static final class Block {
+        public final int size;
+        public final List<Cid> links;
+
+        public Block(int size, List<Cid> links) {
+            this.size = size;
+            this.links = links;
+        }
+    }
+
+    private CompletableFuture<Block> getBlock(Cid cid) {
+        if (cid.isRaw())
+            return dht.getSize(cid).thenApply(size -> {
+                if (size.isEmpty())
+                    throw new IllegalStateException("Block not present locally: " + cid);
+                return new Block(size.get(), Collections.emptyList());
+            });
+        // a single request on stores like S3, and an absent block has size 0, which no cbor block has
+        return dht.getLinksAndSize(cid, "").thenApply(sizeAndLinks -> {
+            if (sizeAndLinks.left == 0)
+                throw new IllegalStateException("Block not present locally: " + cid);
+            return new Block(sizeAndLinks.left, sizeAndLinks.right.stream()
+                    .filter(c -> ! c.isIdentity())
+                    .collect(Collectors.toList()));
+        });
+    }
+
+    private void cache(Cid cid, long size) {
+        if (! cid.isRaw())
+            subtreeSizes.put(cid, size);
+    }
+
+    private static CompletableFuture<Long> sum(List<CompletableFuture<Long>> parts) {
+        return Futures.reduceAll(parts, 0L, (t, fut) -> fut.thenApply(x -> x + t), (a, b) -> a + b);
+    }
+
+    /**
+     *
+     * @return the total size of all the blocks in the tree under root, counting a block once for each link to it
+     */
+    public CompletableFuture<Long> getRecursiveSize(Cid root) {
+        if (root.isIdentity())
+            return CompletableFuture.completedFuture(0L);
+        Long cached = subtreeSizes.get(root);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+        return getBlock(root).thenCompose(block -> sum(block.links.stream()
+                        .map(this::getRecursiveSize)
+                        .collect(Collectors.toList()))
+                .thenApply(children -> {
+                    long total = children + block.size;
+                    cache(root, total);
+                    return total;
+                }));
+    }
+
+    public CompletableFuture<Long> getChangeInSize(Optional<Cid> original, Cid updated) {
+        if (original.isEmpty())
+            return getRecursiveSize(updated);
+        return getChangeInSize(original.get(), updated);
+    }
+
+    /**
+     *
+     * @return the recursive size of updated minus the recursive size of original
+     */
+    public CompletableFuture<Long> getChangeInSize(Cid original, Cid updated) {
+        if (original.equals(updated))
+            return CompletableFuture.completedFuture(0L);
+        Long before = subtreeSizes.get(original);
+        Long after = subtreeSizes.get(updated);
+        if (before != null && after != null)
+            return CompletableFuture.completedFuture(after - before);
+        if (original.isRaw() || updated.isRaw() || original.isIdentity() || updated.isIdentity())
+            return getRecursiveSize(updated).thenCompose(post -> getRecursiveSize(original).thenApply(pre -> post - pre));
+
+        return getBlock(original).thenCompose(pre -> getBlock(updated).thenCompose(post -> {
+            // a multiset difference, so a block linked twice is counted twice, as in getRecursiveSize
+            Map<Cid, Integer> shared = new HashMap<>();
+            for (Cid link : pre.links)
+                shared.merge(link, 1, Integer::sum);
+            List<Cid> onlyAfter = new ArrayList<>();
+            for (Cid link : post.links) {
+                Integer count = shared.get(link);
+                if (count == null)
+                    onlyAfter.add(link);
+                else if (count == 1)
+                    shared.remove(link);
+                else
+                    shared.put(link, count - 1);
+            }
+            List<Cid> onlyBefore = new ArrayList<>();
+            for (Cid link : pre.links) {
+                Integer count = shared.get(link);
+                if (count == null)
+                    continue;
+                onlyBefore.add(link);
+                if (count == 1)
+                    shared.remove(link);
+                else
+                    shared.put(link, count - 1);
+            }
+
+            // links are in the same order in both versions, so pairing by position pairs a changed child with its
+            // previous version, whose diff is usually much smaller than either tree
+            int nPairs = Math.min(onlyBefore.size(), onlyAfter.size());
+            List<CompletableFuture<Long>> changes = new ArrayList<>();
+            for (int i = 0; i < nPairs; i++)
+                changes.add(getChangeInSize(onlyBefore.get(i), onlyAfter.get(i)));
+            for (Cid removed : onlyBefore.subList(nPairs, onlyBefore.size()))
+                changes.add(getRecursiveSize(removed).thenApply(s -> -s));
+            for (Cid added : onlyAfter.subList(nPairs, onlyAfter.size()))
+                changes.add(getRecursiveSize(added));
+            return sum(changes).thenApply(childChange -> {
+                long change = childChange + post.size - pre.size;
+                Long originalSize = subtreeSizes.get(original);
+                if (originalSize != null)
+                    cache(updated, originalSize + change);
+                return change;
+            });
+        }));
+    }
+
+    /** Record the recursive size of a tree calculated elsewhere, e.g. the size of a writer's current root on startup.
+     */
+    public void setRecursiveSize(Cid root, long size) {
+        cache(root, size);
+    }
+}
@@ -127,6 +127,37 @@ public class JdbcUsageStore implements UsageStore {
         }
     }
 
+    @Override
+    public void addPendingUsage(Map<PublicKeyHash, Long> pendingByWriter) {
+        List<Map.Entry<PublicKeyHash, Long>> updates = new ArrayList<>(pendingByWriter.entrySet());
+        try (Connection conn = getConnection(false, false);
+             PreparedStatement insert = conn.prepareStatement("UPDATE pendingusage SET pending_bytes = pending_bytes + ? " +
+                     "WHERE writer_id = (SELECT id FROM writers WHERE key_hash = ?);")) {
+            // apply all or none, so a failed batch can be retried
+            conn.setAutoCommit(false);
+            try {
+                for (Map.Entry<PublicKeyHash, Long> e : updates) {
+                    insert.setLong(1, e.getValue());
+                    insert.setBytes(2, e.getKey().toBytes());
+                    insert.addBatch();
+                }
+                int[] counts = insert.executeBatch();
+                for (int i = 0; i < counts.length; i++)
+                    if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO)
+                        throw new IllegalStateException("Didn't update one record for writer " + updates.get(i).getKey());
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new RuntimeException(sqe);
+        }
+    }
+
     @Override
     public UserUsage getUsage(String username) {
         int userId = getUserId(username);
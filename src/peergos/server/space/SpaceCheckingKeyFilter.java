@@ -19,10 +19,8 @@ import peergos.shared.storage.*;
 import peergos.shared.user.*;
 import peergos.shared.util.*;
 
-import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.stream.Collectors;
 
 /** This class checks whether a given user is using more storage space than their quota
  *
@@ -36,32 +34,44 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     private final Hasher hasher;
     private final QuotaAdmin quotaAdmin;
     private final UsageStore usageStore;
+    private final IncrementalUsage usage;
+    private volatile UsageScanner scanner;
     private final AtomicBoolean isRunning = new AtomicBoolean(true);
-    private final BlockingQueue<MutableEvent> mutableQueue = new ArrayBlockingQueue<>(1000);
+    // events for an owner always go to the same queue, so they are processed in order
+    private final List<BlockingQueue<MutableEvent>> mutableQueues = new ArrayList<>();
 
     public SpaceCheckingKeyFilter(CoreNode core,
                                   MutablePointers mutable,
                                   DeletableContentAddressedStorage dht,
                                   Hasher hasher,
                                   QuotaAdmin quotaAdmin,
-                                  UsageStore usageStore) {
+                                  UsageStore usageStore,
+                                  IncrementalUsage usage,
+                                  int workers) {
         this.core = core;
         this.mutable = mutable;
         this.dht = dht;
         this.hasher = hasher;
         this.quotaAdmin = quotaAdmin;
         this.usageStore = usageStore;
-        new Thread(() -> {
-            while (isRunning.get()) {
-                try {
-                    MutableEvent event = mutableQueue.take();
-                    processMutablePointerEvent(event);
-                } catch (InterruptedException e) {}
-                catch (Exception e) {
-                    e.printStackTrace();
+        this.usage = usage;
+        for (int i = 0; i < workers; i++) {
+            BlockingQueue<MutableEvent> mutableQueue = new ArrayBlockingQueue<>(1000);
+            mutableQueues.add(mutableQueue);
+            Thread worker = new Thread(() -> {
+                while (isRunning.get()) {
+                    try {
+                        MutableEvent event = mutableQueue.take();
+                        processMutablePointerEvent(event);
+                    } catch (InterruptedException e) {}
+                    catch (Exception e) {
+                        e.printStackTrace();
+                    }
                 }
-            }
-        }, "SpaceCheckingKeyFilter").start();
+            }, "SpaceCheckingKeyFilter-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
         //add shutdown-hook to call close
         Runtime.getRuntime().addShutdownHook(new Thread(this::close, "SpaceChecker shutdown"));
     }
@@ -75,88 +85,46 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     }
 
     /**
-     * Walk the virtual file-system to calculate space used by each owner not already checked
+     * Walk the virtual file-system of every local user, in parallel, to update their space usage. Writes by a user
+     * whose usage hasn't been calculated yet wait for it, and move them to the front of the queue.
+     *
+     * @param threads the number of users to calculate at once
+     * @param maxUsersPerSecond the maximum rate to start calculating users at, or 0 for no limit
+     * @return a future which completes when every user has been calculated
      */
-    public void calculateUsage() {
+    public CompletableFuture<Boolean> calculateUsage(int threads, int maxUsersPerSecond) {
         try {
             List<String> usernames = quotaAdmin.getLocalUsernames();
             Logging.LOG().info("Calculating space usage for " + usernames.size() + " local users...");
-            long done = 0;
-            for (String username : usernames) {
-                Logging.LOG().info("Calculating space usage of " + username + " (" + done++ + "/" + usernames.size() + ")");
-                try {
-                    Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).get();
-                    if (identity.isPresent()) {
-                        long prior = usageStore.getUsage(username).totalUsage();
-                        processCorenodeEvent(username, identity.get());
-                        long after = usageStore.getUsage(username).totalUsage();
-                        if (after != prior)
-                            LOG.info("Updated space usage of user: " + username + " to " + after);
-                    } else
-                        LOG.info("Identity key absent in pki for user: " + username);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    LOG.log(Level.WARNING, "ERROR calculating usage for user: " + username + "\n" + e.getMessage(), e);
-                }
-            }
-            usageStore.initialized();
-            Logging.LOG().info("Finished calculating space usage for " + usernames.size() + " local users...");
+            UsageScanner scanner = new UsageScanner(usernames, this::calculateUsage, threads, maxUsersPerSecond);
+            this.scanner = scanner;
+            return scanner.completion().thenApply(success -> {
+                usageStore.initialized();
+                return success;
+            });
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
+            return Futures.errored(e);
         }
     }
 
-    public static void update(UsageStore store,
-                              QuotaAdmin quotas,
-                              CoreNode core,
-                              MutablePointers mutable,
-                              DeletableContentAddressedStorage dht,
-                              Hasher hasher) {
-        Logging.LOG().info("Checking for updated usage for users...");
-        List<String> localUsernames = quotas.getLocalUsernames();
-        for (String username : localUsernames) {
-            store.addUserIfAbsent(username);
-            Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).join();
-            if (identity.isPresent())
-                store.addWriter(username, identity.get());
-        }
-
-        Logging.LOG().info("Checking for updated mutable pointers...");
-        long t1 = System.currentTimeMillis();
-        Set<PublicKeyHash> writers = store.getAllWriters();
-        for (PublicKeyHash writerKey : writers) {
-            WriterUsage writerUsage = store.getUsage(writerKey);
-            Logging.LOG().info("Checking for updates from user: " + writerUsage.owner + ", writer key: " + writerKey);
-
-            try {
-                PublicKeyHash owner = writerKey; //NB: owner is a dummy value
-                MaybeMultihash rootHash = mutable.getPointerTarget(owner, writerKey, dht).join();
-                boolean isChanged = ! writerUsage.target().equals(rootHash);
-                if (isChanged) {
-                    Logging.LOG().info("Root hash changed from " + writerUsage.target() + " to " + rootHash);
-                    long updatedSize = dht.getRecursiveBlockSize((Cid)rootHash.get()).get();
-                    long deltaUsage = updatedSize - writerUsage.directRetainedStorage();
-                    store.confirmUsage(writerUsage.owner, writerKey, deltaUsage, false);
-                    Set<PublicKeyHash> directOwnedKeys = WriterData.getDirectOwnedKeys(owner, writerKey, mutable, dht, hasher).join();
-                    List<PublicKeyHash> newOwnedKeys = directOwnedKeys.stream()
-                            .filter(key -> !writerUsage.ownedKeys().contains(key))
-                            .collect(Collectors.toList());
-                    for (PublicKeyHash newOwnedKey : newOwnedKeys) {
-                        store.addWriter(writerUsage.owner, newOwnedKey);
-                        processMutablePointerEvent(store, owner, newOwnedKey, MaybeMultihash.empty(),
-                                mutable.getPointerTarget(owner, newOwnedKey, dht).get(), mutable, dht, hasher);
-                    }
-                    HashSet<PublicKeyHash> removedOwnedKeys = new HashSet<>(writerUsage.ownedKeys());
-                    removedOwnedKeys.removeAll(directOwnedKeys);
-                    store.updateWriterUsage(writerKey, rootHash, removedOwnedKeys, new HashSet<>(newOwnedKeys), updatedSize);
-                    Logging.LOG().info("Updated space used by " + writerKey + " to " + updatedSize);
-                }
-            } catch (Throwable t) {
-                Logging.LOG().log(Level.WARNING, "Failed calculating usage for " + writerUsage.owner, t);
-            }
+    private boolean calculateUsage(String username) {
+        try {
+            Optional<PublicKeyHash> identity = core.getPublicKeyHash(username).get();
+            if (identity.isPresent()) {
+                long prior = usageStore.getUsage(username).totalUsage();
+                if (! processCorenodeEvent(username, identity.get()))
+                    return false;
+                long after = usageStore.getUsage(username).totalUsage();
+                if (after != prior)
+                    LOG.info("Updated space usage of user: " + username + " to " + after);
+            } else
+                LOG.info("Identity key absent in pki for user: " + username);
+            return true;
+        } catch (Exception e) {
+            LOG.log(Level.WARNING, "ERROR calculating usage for user: " + username + "\n" + e.getMessage(), e);
+            return false;
         }
-        long t2 = System.currentTimeMillis();
-        Logging.LOG().info(LocalDateTime.now() + " Finished updating space usage for all usernames in " + (t2 - t1)/1000 + " s");
     }
 
     public CompletableFuture<Boolean> accept(CorenodeEvent event) {
@@ -172,7 +140,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
      */
     private boolean processCorenodeEvent(String username, PublicKeyHash writer) {
         try {
-            processCorenodeEvent(username, writer, usageStore, dht, mutable, hasher);
+            processCorenodeEvent(username, writer, usageStore, dht, usage, mutable, hasher);
             return true;
         } catch (Throwable e) {
             LOG.severe("Error loading storage for user: " + username);
@@ -182,7 +150,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
     }
 
     public void accept(MutableEvent event) {
-        mutableQueue.add(event);
+        mutableQueues.get(Math.floorMod(event.owner.hashCode(), mutableQueues.size())).add(event);
         try {
             prepareMutablePointerChange(event, dht, usageStore, hasher);
         } catch (Exception e) {
@@ -196,6 +164,17 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                                             DeletableContentAddressedStorage dht,
                                             MutablePointers mutable,
                                             Hasher hasher) {
+        processCorenodeEvent(username, owner, usageStore, dht, new IncrementalUsage(dht, IncrementalUsage.DEFAULT_CACHE_SIZE),
+                mutable, hasher);
+    }
+
+    public static void processCorenodeEvent(String username,
+                                            PublicKeyHash owner,
+                                            UsageStore usageStore,
+                                            DeletableContentAddressedStorage dht,
+                                            IncrementalUsage usage,
+                                            MutablePointers mutable,
+                                            Hasher hasher) {
         usageStore.addUserIfAbsent(username);
         Set<PublicKeyHash> allUserKeys = WriterData.getOwnedKeysRecursive(owner, owner, mutable, dht, hasher).join();
 
@@ -203,7 +182,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
             usageStore.addWriter(username, writerKey);
             WriterUsage current = usageStore.getUsage(writerKey);
             MaybeMultihash updatedRoot = mutable.getPointerTarget(owner, writerKey, dht).join();
-            processMutablePointerEvent(usageStore, owner, writerKey, current.target(), updatedRoot, mutable, dht, hasher);
+            processMutablePointerEvent(usageStore, owner, writerKey, current.target(), updatedRoot, mutable, dht, usage, hasher);
         }
     }
 
@@ -228,7 +207,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                     .thenApply(signer -> HashCasPair.fromCbor(CborObject.fromByteArray(signer.get()
                             .unsignMessage(event.writerSignedBtreeRootHash)))).join();
             processMutablePointerEvent(usageStore, event.owner, event.writer, hashCasPair.original, hashCasPair.updated,
-                    mutable, dht, hasher);
+                    mutable, dht, usage, hasher);
         } catch (Exception e) {
             LOG.log(Level.WARNING, e.getMessage(), e);
         }
@@ -241,6 +220,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                                                    MaybeMultihash newRoot,
                                                    MutablePointers mutable,
                                                    DeletableContentAddressedStorage dht,
+                                                   IncrementalUsage usage,
                                                    Hasher hasher) {
         if (existingRoot.equals(newRoot))
             return;
@@ -254,7 +234,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
                     // subtract data size from orphaned child keys (this assumes the keys form a tree without dupes)
                     Set<PublicKeyHash> updatedOwned =
                             WriterData.getDirectOwnedKeys(writer, newRoot, dht, hasher).join();
-                    processRemovedOwnedKeys(state, owner, updatedOwned, mutable, dht, hasher);
+                    processRemovedOwnedKeys(state, owner, updatedOwned, mutable, dht, usage, hasher);
                 } catch (Exception e) {
                     LOG.log(Level.WARNING, e.getMessage(), e);
                 }
@@ -264,7 +244,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
 
         try {
             synchronized (current) {
-                long changeInStorage = dht.getChangeInContainedSize(current.target().toOptional().map(c -> (Cid) c), (Cid) newRoot.get()).get();
+                long changeInStorage = getChangeInSize(current, (Cid) newRoot.get(), dht, usage);
                 Set<PublicKeyHash> updatedOwned =
                         WriterData.getDirectOwnedKeys(writer, newRoot, dht, hasher).join();
                 for (PublicKeyHash owned : updatedOwned) {
@@ -274,7 +254,7 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
 
                 HashSet<PublicKeyHash> removedChildren = new HashSet<>(current.ownedKeys());
                 removedChildren.removeAll(updatedOwned);
-                processRemovedOwnedKeys(state, owner, removedChildren, mutable, dht, hasher);
+                processRemovedOwnedKeys(state, owner, removedChildren, mutable, dht, usage, hasher);
                 HashSet<PublicKeyHash> addedOwnedKeys = new HashSet<>(updatedOwned);
                 addedOwnedKeys.removeAll(current.ownedKeys());
                 state.updateWriterUsage(writer, newRoot, removedChildren, addedOwnedKeys, current.directRetainedStorage() + changeInStorage);
@@ -284,16 +264,34 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         }
     }
 
+    /** Calculate the change in a writer's usage by diffing its old and new roots, falling back to the full size of
+     *  the new root if part of either tree isn't stored locally, e.g. because the old root has been garbage collected.
+     */
+    private static long getChangeInSize(WriterUsage current,
+                                        Cid newRoot,
+                                        DeletableContentAddressedStorage dht,
+                                        IncrementalUsage usage) {
+        Optional<Cid> existing = current.target().toOptional().map(c -> (Cid) c);
+        existing.ifPresent(root -> usage.setRecursiveSize(root, current.directRetainedStorage()));
+        try {
+            return usage.getChangeInSize(existing, newRoot).join();
+        } catch (Exception e) {
+            LOG.log(Level.INFO, "Couldn't calculate usage change of " + newRoot + " incrementally, calculating full size", e);
+            return dht.getRecursiveBlockSize(newRoot).join() - current.directRetainedStorage();
+        }
+    }
+
     private static void processRemovedOwnedKeys(UsageStore state,
                                                 PublicKeyHash owner,
                                                 Set<PublicKeyHash> removed,
                                                 MutablePointers mutable,
                                                 DeletableContentAddressedStorage dht,
+                                                IncrementalUsage usage,
                                                 Hasher hasher) {
         for (PublicKeyHash ownedKey : removed) {
             try {
                 MaybeMultihash currentTarget = mutable.getPointerTarget(owner, ownedKey, dht).get();
-                processMutablePointerEvent(state, owner, ownedKey, currentTarget, MaybeMultihash.empty(), mutable, dht, hasher);
+                processMutablePointerEvent(state, owner, ownedKey, currentTarget, MaybeMultihash.empty(), mutable, dht, usage, hasher);
             } catch (Exception e) {
                 LOG.log(Level.WARNING, e.getMessage(), e);
             }
@@ -335,6 +333,9 @@ public class SpaceCheckingKeyFilter implements SpaceUsage {
         if (writerUsage == null)
             throw new IllegalStateException("Unknown writing key hash: " + writer);
 
+        UsageScanner scanner = this.scanner;
+        if (scanner != null && ! scanner.isScanned(writerUsage.owner))
+            scanner.prioritise(writerUsage.owner).join();
         UserUsage usage = usageStore.getUsage(writerUsage.owner);
         long quota = quotaAdmin.getQuota(writerUsage.owner);
         long expectedUsage = usage.expectedUsage();
@@ -0,0 +1,141 @@
+package peergos.server.space;
+
+import peergos.server.*;
+import peergos.server.util.Logging;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+/** Recalculates the space usage of many users in parallel, starting at most maxUsersPerSecond scans per second.
+ *
+ *  Users are scanned in the order given, except that a user can be moved to the front of the queue, e.g. because they
+ *  are trying to write. The result of each user's scan is available as soon as it completes, so callers can wait for
+ *  a single user rather than the whole scan.
+ */
+public class UsageScanner {
+	private static final Logger LOG = Logging.LOG();
+    private static final long PROGRESS_PERIOD_MILLIS = 30_000;
+
+    private final Predicate<String> scanUser;
+    private final int maxUsersPerSecond;
+    private final LinkedBlockingDeque<String> queue = new LinkedBlockingDeque<>();
+    private final Map<String, CompletableFuture<Boolean>> results = new ConcurrentHashMap<>();
+    private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+    private final AtomicInteger remaining;
+    private final AtomicLong completed = new AtomicLong(), failed = new AtomicLong();
+    private final int total;
+    private final long start = System.currentTimeMillis();
+    private volatile long lastReport = start;
+    private long nextStart = start;
+
+    /**
+     *
+     * @param usernames the users to scan
+     * @param scanUser recalculates a user's usage, returning whether it succeeded
+     * @param threads the number of users to scan at once
+     * @param maxUsersPerSecond the maximum rate to start scans at, or 0 for no limit
+     */
+    public UsageScanner(List<String> usernames, Predicate<String> scanUser, int threads, int maxUsersPerSecond) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Threads must be positive");
+        this.scanUser = scanUser;
+        this.maxUsersPerSecond = maxUsersPerSecond;
+        for (String username : usernames) {
+            if (results.putIfAbsent(username, new CompletableFuture<>()) == null)
+                queue.add(username);
+        }
+        this.total = results.size();
+        this.remaining = new AtomicInteger(total);
+        if (total == 0)
+            done.complete(true);
+        for (int i = 0; i < Math.min(threads, total); i++) {
+            Thread worker = new Thread(this::run, "Usage scanner-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     *
+     * @return a future which completes when every user has been scanned
+     */
+    public CompletableFuture<Boolean> completion() {
+        return done;
+    }
+
+    /** Move a user to the front of the queue, if they haven't been scanned yet.
+     *
+     * @return a future which completes when the user's scan does
+     */
+    public CompletableFuture<Boolean> prioritise(String username) {
+        CompletableFuture<Boolean> result = results.get(username);
+        if (result == null)
+            return CompletableFuture.completedFuture(true); // not part of this scan
+        if (! result.isDone() && queue.remove(username))
+            queue.addFirst(username);
+        return result;
+    }
+
+    public boolean isScanned(String username) {
+        CompletableFuture<Boolean> result = results.get(username);
+        return result == null || result.isDone();
+    }
+
+    private void run() {
+        String username;
+        while ((username = queue.pollFirst()) != null) {
+            waitForRateLimit();
+            boolean success = false;
+            try {
+                success = scanUser.test(username);
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Error calculating usage for user: " + username, t);
+            }
+            if (success) {
+                completed.incrementAndGet();
+                AggregatedMetrics.USAGE_SCAN_COMPLETED.inc();
+            } else {
+                failed.incrementAndGet();
+                AggregatedMetrics.USAGE_SCAN_FAILED.inc();
+            }
+            results.get(username).complete(success);
+            reportProgress();
+            if (remaining.decrementAndGet() == 0) {
+                LOG.info("Finished calculating space usage for " + total + " users in "
+                        + (System.currentTimeMillis() - start) / 1000 + "s, " + failed.get() + " failed");
+                done.complete(failed.get() == 0);
+            }
+        }
+    }
+
+    private void waitForRateLimit() {
+        if (maxUsersPerSecond <= 0)
+            return;
+        long startAt;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            startAt = Math.max(now, nextStart);
+            nextStart = startAt + 1000 / maxUsersPerSecond;
+        }
+        long wait = startAt - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {}
+        }
+    }
+
+    private void reportProgress() {
+        long now = System.currentTimeMillis();
+        if (now - lastReport < PROGRESS_PERIOD_MILLIS)
+            return;
+        lastReport = now;
+        long seconds = Math.max(1, (now - start) / 1000);
+        long scanned = completed.get() + failed.get();
+        LOG.info("Calculated space usage of " + scanned + "/" + total + " users (" + failed.get() + " failed), "
+                + String.format("%.1f", (double) scanned / seconds) + " users/s");
+    }
+}
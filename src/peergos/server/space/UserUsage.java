@@ -44,10 +44,14 @@ public class UserUsage implements Cborable {
         return pending.getOrDefault(writer, 0L);
     }
 
-    protected synchronized long expectedUsage() {
+    public synchronized long expectedUsage() {
         return totalBytes + pending.values().stream().mapToLong(x -> x).sum();
     }
 
+    protected synchronized UserUsage copy() {
+        return new UserUsage(totalBytes, errored, new HashMap<>(pending));
+    }
+
     protected synchronized void setErrored(boolean errored) {
         this.errored = errored;
     }
@@ -2,6 +2,8 @@ package peergos.server.space;
 
 import peergos.shared.crypto.hash.*;
 
+import java.util.*;
+
 public interface UserUsageStore extends WriterUsageStore {
 
     void addUserIfAbsent(String username);
@@ -12,4 +14,8 @@ public interface UserUsageStore extends WriterUsageStore {
 
     void addPendingUsage(String username, PublicKeyHash writer, int size);
 
+    default void addPendingUsage(Map<PublicKeyHash, Long> pendingByWriter) {
+        pendingByWriter.forEach((writer, size) -> addPendingUsage(getUsage(writer).owner, writer, Math.toIntExact(size)));
+    }
+
 }
@@ -32,7 +32,7 @@ public class WriterUsage implements Cborable {
         this.directRetainedStorage = retainedStorage;
     }
 
-    public MaybeMultihash target() {
+    public synchronized MaybeMultihash target() {
         return target;
     }
 
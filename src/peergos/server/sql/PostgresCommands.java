@@ -19,11 +19,6 @@ public class PostgresCommands implements SqlSupplier {
                 "name text not null, followrequest text not null);";
     }
 
-    @Override
-    public String insertTransactionCommand() {
-        return "INSERT INTO transactions (tid, owner, hash) VALUES(?, ?, ?) ON CONFLICT DO NOTHING;";
-    }
-
     @Override
     public String insertOrIgnoreCommand(String prefix, String suffix) {
         return prefix + suffix + " ON CONFLICT DO NOTHING;";
@@ -43,4 +38,9 @@ public class PostgresCommands implements SqlSupplier {
     public String sqlInteger() {
         return "BIGINT";
     }
+
+    @Override
+    public boolean cursorsNeedTransaction() {
+        return true;
+    }
 }
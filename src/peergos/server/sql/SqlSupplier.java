@@ -10,14 +10,20 @@ public interface SqlSupplier {
 
     String createFollowRequestsTableCommand();
 
-    String insertTransactionCommand();
-
     String getByteArrayType();
 
     String getSerialIdType();
 
     String sqlInteger();
 
+    /**
+     *
+     * @return whether a result set is only streamed, rather than fetched in full, inside a transaction
+     */
+    default boolean cursorsNeedTransaction() {
+        return false;
+    }
+
     default String createMutablePointersTableCommand() {
         return "CREATE TABLE IF NOT EXISTS metadatablobs (writingkey text primary key not null, hash text not null); " +
                 "CREATE UNIQUE INDEX IF NOT EXISTS index_name ON metadatablobs (writingkey);";
@@ -44,7 +50,34 @@ public interface SqlSupplier {
 
     default String createTransactionsTableCommand() {
         return "CREATE TABLE IF NOT EXISTS transactions (" +
-                "tid varchar(64) not null, owner varchar(64) not null, hash varchar(64) not null);";
+                "tid varchar(64) not null, owner varchar(64) not null, hash varchar(64) not null, created BIGINT not null default 0);";
+    }
+
+    default String addTransactionsCreatedColumnCommand() {
+        return "ALTER TABLE transactions ADD COLUMN created BIGINT not null default 0;";
+    }
+
+    default String createTransactionsIndexCommand() {
+        return "CREATE INDEX IF NOT EXISTS transactions_tid_owner ON transactions (tid, owner);";
+    }
+
+    /**
+     *
+     * @param rows
+     * @return An insert of the given number of (tid, owner, hash, created) rows which ignores existing rows
+     */
+    default String insertTransactionsCommand(int rows) {
+        StringBuilder values = new StringBuilder("INTO transactions (tid, owner, hash, created) VALUES ");
+        for (int i = 0; i < rows; i++)
+            values.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+        return insertOrIgnoreCommand("INSERT ", values.toString());
+    }
+
+    default String createGcReferencesTableCommand() {
+        return "CREATE TABLE IF NOT EXISTS gcroots (name text primary key not null, root text not null);" +
+                "CREATE TABLE IF NOT EXISTS gcrefs (hash text primary key not null, refs BIGINT not null);" +
+                "CREATE INDEX IF NOT EXISTS gcrefs_unreferenced ON gcrefs (refs);" +
+                "CREATE TABLE IF NOT EXISTS gcwritten (hash text primary key not null, written BIGINT not null);";
     }
 
     default String createServerMessageTableCommand() {
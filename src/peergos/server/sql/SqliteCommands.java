@@ -18,11 +18,6 @@ public class SqliteCommands implements SqlSupplier {
                 "name text not null, followrequest text not null);";
     }
 
-    @Override
-    public String insertTransactionCommand() {
-        return "INSERT OR IGNORE INTO transactions (tid, owner, hash) VALUES (?, ?, ?);";
-    }
-
     @Override
     public String insertOrIgnoreCommand(String prefix, String suffix) {
         return prefix + "OR IGNORE " + suffix + ";";
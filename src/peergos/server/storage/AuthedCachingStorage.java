@@ -1,6 +1,7 @@
 package peergos.server.storage;
 
 import peergos.server.storage.auth.*;
+import peergos.server.util.*;
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.cid.*;
@@ -13,19 +14,30 @@ import java.util.*;
 import java.util.concurrent.*;
 
 public class AuthedCachingStorage extends DelegatingStorage {
+    private static final int MAX_IN_FLIGHT = 10_000;
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
+    private final OffHeapBlockCache cache;
     private final LRUCache<Multihash, Boolean> legacyBlocks;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
+    private final SingleFlight<Cid, Optional<CborObject>> pending;
+    private final SingleFlight<Cid, Optional<byte[]>> pendingRaw;
     private final BlockRequestAuthoriser authoriser;
     private final Hasher h;
     private final Cid ourNodeId;
     private final int maxValueSize, cacheSize;
 
+    /**
+     *
+     * @param target
+     * @param authoriser
+     * @param h
+     * @param cache a block cache which may be shared with other storage instances
+     * @param cacheSize the number of legacy block results to cache
+     * @param maxValueSize
+     */
     public AuthedCachingStorage(ContentAddressedStorage target,
                                 BlockRequestAuthoriser authoriser,
                                 Hasher h,
+                                OffHeapBlockCache cache,
                                 int cacheSize,
                                 int maxValueSize) {
         super(target);
@@ -33,16 +45,20 @@ public class AuthedCachingStorage extends DelegatingStorage {
         this.ourNodeId = target.id().join();
         this.authoriser = authoriser;
         this.h = h;
-        this.cache = new LRUCache<>(cacheSize);
+        this.cache = cache;
         this.legacyBlocks = new LRUCache<>(cacheSize);
         this.maxValueSize = maxValueSize;
         this.cacheSize = cacheSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+        this.pending = new SingleFlight<>("get", MAX_IN_FLIGHT);
+        this.pendingRaw = new SingleFlight<>("get_raw", MAX_IN_FLIGHT);
     }
 
-    public Collection<byte[]> getCached() {
-        return cache.values();
+    public AuthedCachingStorage(ContentAddressedStorage target,
+                                BlockRequestAuthoriser authoriser,
+                                Hasher h,
+                                int cacheSize,
+                                int maxValueSize) {
+        this(target, authoriser, h, new OffHeapBlockCache((long) cacheSize * maxValueSize), cacheSize, maxValueSize);
     }
 
     @Override
@@ -52,7 +68,7 @@ public class AuthedCachingStorage extends DelegatingStorage {
 
     @Override
     public ContentAddressedStorage directToOrigin() {
-        return new AuthedCachingStorage(target.directToOrigin(), authoriser, h, cacheSize, maxValueSize);
+        return new AuthedCachingStorage(target.directToOrigin(), authoriser, h, cache, cacheSize, maxValueSize);
     }
 
     @Override
@@ -89,37 +105,26 @@ public class AuthedCachingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Cid key, Optional<BatWithId> bat) {
-        if (cache.containsKey(key))
-            return authoriseGet(key, cache.get(key), bat)
+        Optional<byte[]> cached = cache.get(key);
+        if (cached.isPresent())
+            return authoriseGet(key, cached.get(), bat)
                     .thenApply(res -> Optional.of(CborObject.fromByteArray(res)));
 
-        if (pending.containsKey(key))
-            return pending.get(key)
-                    .thenCompose(copt -> copt.isEmpty() ?
-                            Futures.of(Optional.empty()) :
-                            authoriseGet(key, copt.get().serialize(), bat)
-                                    .thenApply(b -> copt));
-
-        CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
-
-        CompletableFuture<Optional<CborObject>> result = new CompletableFuture<>();
-        target.get(key, bat).thenAccept(cborOpt -> {
+        // Only one request per block goes to the target. Others wait for it, then check their own auth. If it fails,
+        // which could be due to the original caller's auth, they make their own request.
+        return pending.get(key, () -> target.get(key, bat).thenApply(cborOpt -> {
             if (cborOpt.isPresent()) {
                 byte[] value = cborOpt.get().toByteArray();
                 if (value.length > 0 && value.length < maxValueSize)
                     cache.put(key, value);
             }
-            pending.remove(key);
-            pipe.complete(cborOpt);
-            result.complete(cborOpt);
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            result.completeExceptionally(t);
-            return null;
-        });
-        return result;
+            return cborOpt;
+        }), (copt, t) -> t != null ?
+                target.get(key, bat) :
+                copt.isEmpty() ?
+                        Futures.of(Optional.empty()) :
+                        authoriseGet(key, copt.get().toByteArray(), bat)
+                                .thenApply(b -> copt));
     }
 
     @Override
@@ -142,20 +147,12 @@ public class AuthedCachingStorage extends DelegatingStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Cid key, Optional<BatWithId> bat) {
-        if (cache.containsKey(key))
-            return authoriseGet(key, cache.get(key), bat)
+        Optional<byte[]> cached = cache.get(key);
+        if (cached.isPresent())
+            return authoriseGet(key, cached.get(), bat)
                     .thenApply(res -> Optional.of(res));
 
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key)
-                    .thenCompose(opt -> opt.isEmpty() ?
-                            Futures.of(Optional.empty()) :
-                            authoriseGet(key, opt.get(), bat)
-                                    .thenApply(b -> opt));
-
-        CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
-        return target.getRaw(key, bat).thenApply(rawOpt -> {
+        return pendingRaw.get(key, () -> target.getRaw(key, bat).thenApply(rawOpt -> {
             if (rawOpt.isPresent()) {
                 byte[] value = rawOpt.get();
                 if (value.length > 0 && value.length < maxValueSize) {
@@ -164,13 +161,13 @@ public class AuthedCachingStorage extends DelegatingStorage {
                         legacyBlocks.put(key, true);
                 }
             }
-            pendingRaw.remove(key);
-            pipe.complete(rawOpt);
             return rawOpt;
-        }).exceptionally(t -> {
-            pending.remove(key);
-            pipe.completeExceptionally(t);
-            return Optional.empty();
-        });
+        }), (opt, t) -> t != null ?
+                target.getRaw(key, bat) :
+                opt.isEmpty() ?
+                        Futures.of(Optional.empty()) :
+                        authoriseGet(key, opt.get(), bat)
+                                .thenApply(b -> opt))
+                .exceptionally(t -> Optional.empty());
     }
 }
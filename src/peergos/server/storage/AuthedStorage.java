@@ -11,6 +11,7 @@ import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 public class AuthedStorage extends DelegatingStorage implements DeletableContentAddressedStorage {
@@ -70,6 +71,11 @@ public class AuthedStorage extends DelegatingStorage implements DeletableContent
         return target.hasBlock(hash);
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasBlocks(List<Cid> hashes) {
+        return target.hasBlocks(hashes);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> getLinks(Cid root, String auth) {
         if (root.codec == Cid.Codec.Raw)
@@ -99,6 +105,11 @@ public class AuthedStorage extends DelegatingStorage implements DeletableContent
         return target.getOpenTransactionBlocks();
     }
 
+    @Override
+    public void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        target.getOpenTransactionBlocks(receiver);
+    }
+
     @Override
     public void delete(Multihash hash) {
         target.delete(hash);
@@ -25,8 +25,24 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
 
     List<Multihash> getOpenTransactionBlocks();
 
+    default void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        getOpenTransactionBlocks().forEach(receiver);
+    }
+
     boolean hasBlock(Cid hash);
 
+    /**
+     *
+     * @param hashes
+     * @return whether each block is stored locally, in the same order as hashes
+     */
+    @Override
+    default CompletableFuture<List<Boolean>> hasBlocks(List<Cid> hashes) {
+        return Futures.of(hashes.stream()
+                .map(this::hasBlock)
+                .collect(Collectors.toList()));
+    }
+
     void delete(Multihash hash);
 
     default void bulkDelete(List<Multihash> blocks) {
@@ -79,33 +95,21 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
                                                 Cid ourNodeId,
                                                 TransactionId tid,
                                                 Hasher hasher) {
-        if (updated.isEmpty())
-            return Futures.of(Collections.emptyList());
-        Cid newRoot = updated.get();
-        if (existing.equals(updated))
-            return Futures.of(Collections.singletonList(newRoot));
-        boolean isRaw = newRoot.isRaw();
-
-        Optional<CborObject> newVal = get(newRoot, mirrorBat, ourNodeId, hasher).join();
-        if (newVal.isEmpty())
-            throw new IllegalStateException("Couldn't retrieve block: " + newRoot);
-        if (isRaw)
-            return Futures.of(Collections.singletonList(newRoot));
-
-        CborObject newBlock = newVal.get();
-        List<Multihash> newLinks = newBlock.links();
-        List<Multihash> existingLinks = existing.map(h -> get(h, mirrorBat, ourNodeId, hasher).join())
-                .flatMap(copt -> copt.map(CborObject::links))
-                .orElse(Collections.emptyList());
-
-        for (int i=0; i < newLinks.size(); i++) {
-            Optional<Cid> existingLink = i < existingLinks.size() ?
-                    Optional.of((Cid)existingLinks.get(i)) :
-                    Optional.empty();
-            Optional<Cid> updatedLink = Optional.of((Cid)newLinks.get(i));
-            mirror(owner, existingLink, updatedLink, mirrorBat, ourNodeId, tid, hasher).join();
-        }
-        return Futures.of(Collections.singletonList(newRoot));
+        return Futures.of(new MirrorEngine(this, MirrorEngine.DEFAULT_PARALLELISM, Optional.empty())
+                .mirror(owner, existing, updated, mirrorBat, ourNodeId, tid, hasher));
+    }
+
+    /** Retrieve a block, from another node if necessary, and make sure it is stored locally.
+     *
+     * @return the block, or empty if it couldn't be found
+     */
+    default CompletableFuture<Optional<byte[]>> mirrorBlock(PublicKeyHash owner,
+                                                            Cid hash,
+                                                            Optional<BatWithId> mirrorBat,
+                                                            Cid ourNodeId,
+                                                            TransactionId tid,
+                                                            Hasher hasher) {
+        return getRaw(hash, mirrorBat, ourNodeId, hasher);
     }
 
     /**
@@ -206,8 +210,20 @@ public interface DeletableContentAddressedStorage extends ContentAddressedStorag
 
         @Override
         public boolean hasBlock(Cid hash) {
+            return hasBlockAsync(hash).join();
+        }
+
+        private CompletableFuture<Boolean> hasBlockAsync(Cid hash) {
             return poster.get(apiPrefix + BLOCK_PRESENT + "?stream-channels=true&arg=" + hash.toString())
-                    .thenApply(raw -> new String(raw).equals("true")).join();
+                    .thenApply(raw -> new String(raw).equals("true"));
+        }
+
+        @Override
+        public CompletableFuture<List<Boolean>> hasBlocks(List<Cid> hashes) {
+            // ipfs has no bulk call, so send the requests concurrently
+            return Futures.combineAllInOrder(hashes.stream()
+                    .map(this::hasBlockAsync)
+                    .collect(Collectors.toList()));
         }
 
         @Override
@@ -0,0 +1,134 @@
+package peergos.server.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Records metrics for a local block store, including the operations only used locally, like GC and mirroring.
+ */
+public class DeletableMetricsStorage extends MetricsStorage implements DeletableContentAddressedStorage {
+
+    private final DeletableContentAddressedStorage target;
+
+    public DeletableMetricsStorage(DeletableContentAddressedStorage target, String backend) {
+        super(target, backend);
+        this.target = target;
+    }
+
+    @Override
+    public Stream<Cid> getAllBlockHashes() {
+        return target.getAllBlockHashes();
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        return target.getOpenTransactionBlocks();
+    }
+
+    @Override
+    public void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        target.getOpenTransactionBlocks(receiver);
+    }
+
+    @Override
+    public boolean hasBlock(Cid hash) {
+        return timeSync("has", () -> target.hasBlock(hash));
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasBlocks(List<Cid> hashes) {
+        return time("has_many", () -> target.hasBlocks(hashes));
+    }
+
+    @Override
+    public void delete(Multihash hash) {
+        timeSync("delete", () -> {
+            target.delete(hash);
+            return true;
+        });
+    }
+
+    @Override
+    public void bulkDelete(List<Multihash> blocks) {
+        timeSync("bulk_delete", () -> {
+            target.bulkDelete(blocks);
+            return true;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Cid hash, String auth) {
+        return time("get", () -> target.get(hash, auth));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat, Cid ourId, Hasher h) {
+        return time("get", () -> target.get(hash, bat, ourId, h));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, String auth) {
+        return time("get_raw", () -> target.getRaw(hash, auth)).thenApply(this::read);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, Optional<BatWithId> bat, Cid ourId, Hasher h) {
+        return time("get_raw", () -> target.getRaw(hash, bat, ourId, h)).thenApply(this::read);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> mirror(PublicKeyHash owner,
+                                               Optional<Cid> existing,
+                                               Optional<Cid> updated,
+                                               Optional<BatWithId> mirrorBat,
+                                               Cid ourNodeId,
+                                               TransactionId tid,
+                                               Hasher hasher) {
+        return time("mirror", () -> target.mirror(owner, existing, updated, mirrorBat, ourNodeId, tid, hasher));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> mirrorBlock(PublicKeyHash owner,
+                                                           Cid hash,
+                                                           Optional<BatWithId> mirrorBat,
+                                                           Cid ourNodeId,
+                                                           TransactionId tid,
+                                                           Hasher hasher) {
+        return time("mirror_block", () -> target.mirrorBlock(owner, hash, mirrorBat, ourNodeId, tid, hasher))
+                .thenApply(this::read);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> getLinks(Cid root, String auth) {
+        return time("links", () -> target.getLinks(root, auth));
+    }
+
+    @Override
+    public CompletableFuture<Pair<Integer, List<Cid>>> getLinksAndSize(Cid block, String auth) {
+        return time("links_and_size", () -> target.getLinksAndSize(block, auth));
+    }
+
+    @Override
+    public CompletableFuture<Long> getRecursiveBlockSize(Cid block) {
+        return time("recursive_size", () -> target.getRecursiveBlockSize(block));
+    }
+
+    @Override
+    public CompletableFuture<Long> getChangeInContainedSize(Optional<Cid> original, Cid updated) {
+        return time("size_change", () -> target.getChangeInContainedSize(original, updated));
+    }
+
+    @Override
+    public CompletableFuture<Long> getChangeInContainedSize(Cid original, Cid updated) {
+        return time("size_change", () -> target.getChangeInContainedSize(original, updated));
+    }
+}
@@ -23,7 +23,7 @@ import java.util.stream.*;
 /** A local directory implementation of ContentAddressedStorage. Only used for testing.
  *
  */
-public class FileContentAddressedStorage implements DeletableContentAddressedStorage {
+public class FileContentAddressedStorage implements DeletableContentAddressedStorage, FileRegionStorage {
     private static final Logger LOG = Logging.LOG();
     private static final int CID_V1 = 1;
     private static final int DIRECTORY_DEPTH = 5;
@@ -80,6 +80,11 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
         return transactions.getOpenTransactionBlocks();
     }
 
+    @Override
+    public void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        transactions.getOpenTransactionBlocks(receiver);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
                                             PublicKeyHash writer,
@@ -171,6 +176,26 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
         }
     }
 
+    @Override
+    public CompletableFuture<Optional<FileRegion>> getRawRegion(Cid hash, Optional<BatWithId> bat) {
+        return getRawRegion(hash, bat, id().join(), hasher);
+    }
+
+    @Override
+    public CompletableFuture<Optional<FileRegion>> getRawRegion(Cid hash, String auth) {
+        if (hash.codec != Cid.Codec.Raw || hash.isIdentity())
+            return Futures.of(Optional.empty());
+        try {
+            FileChannel channel = FileChannel.open(root.resolve(getFilePath(hash)), StandardOpenOption.READ);
+            FileRegion region = new FileRegion(channel, 0, (int) channel.size());
+            return Futures.of(Optional.of(FileRegionStorage.authorise(hash, region, auth, id().join(), authoriser)));
+        } catch (NoSuchFileException e) {
+            return Futures.of(Optional.empty());
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
     @Override
     public boolean hasBlock(Cid hash) {
         Path path = getFilePath(hash);
@@ -230,6 +255,21 @@ public class FileContentAddressedStorage implements DeletableContentAddressedSto
         return CompletableFuture.completedFuture(file.exists() ? Optional.of((int) file.length()) : Optional.empty());
     }
 
+    @Override
+    public CompletableFuture<List<Optional<Integer>>> getSizes(List<Cid> blocks) {
+        // stat the files in parallel
+        return Futures.of(blocks.parallelStream()
+                .map(b -> getSize(b).join())
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<List<Boolean>> hasBlocks(List<Cid> hashes) {
+        return Futures.of(hashes.parallelStream()
+                .map(this::hasBlock)
+                .collect(Collectors.toList()));
+    }
+
     @Override
     public Stream<Cid> getAllBlockHashes() {
         return getFiles().stream();
@@ -0,0 +1,148 @@
+package peergos.server.storage;
+
+import peergos.server.storage.auth.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A block store which keeps blocks in local files, and can return the region of a file holding a raw block. This
+ *  lets a block be sent from disk without first reading the whole of it onto the heap.
+ *
+ */
+public interface FileRegionStorage {
+
+    CompletableFuture<Optional<FileRegion>> getRawRegion(Cid hash, Optional<BatWithId> bat);
+
+    /**
+     *
+     * @param hash
+     * @param auth
+     * @return The region of a local file containing the raw block, after authorising the read, or empty if the block
+     * is not stored locally, or is not a raw block
+     */
+    CompletableFuture<Optional<FileRegion>> getRawRegion(Cid hash, String auth);
+
+    default CompletableFuture<Optional<FileRegion>> getRawRegion(Cid hash, Optional<BatWithId> bat, Cid ourId, Hasher h) {
+        if (bat.isEmpty())
+            return getRawRegion(hash, "");
+        return bat.get().bat.generateAuth(hash, ourId, 300, S3Request.currentDatetime(), bat.get().id, h)
+                .thenApply(BlockAuth::encode)
+                .thenCompose(auth -> getRawRegion(hash, auth));
+    }
+
+    /** Return the region if the read is authorised, otherwise close it and throw.
+     *
+     */
+    static FileRegion authorise(Cid hash,
+                                FileRegion region,
+                                String auth,
+                                Cid ourId,
+                                BlockRequestAuthoriser authoriser) {
+        boolean allowed = false;
+        try {
+            allowed = allowRead(hash, region, auth, ourId, authoriser);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            if (! allowed)
+                region.closeQuietly();
+        }
+        if (! allowed)
+            throw new IllegalStateException("Unauthorised!");
+        return region;
+    }
+
+    /** Authorise a read of a raw block using only the bats prefix of the block, unless the prefix is longer than
+     *  Bat.MAX_RAW_BLOCK_PREFIX_SIZE, in which case the whole block is read.
+     *
+     */
+    static boolean allowRead(Cid hash,
+                             FileRegion region,
+                             String auth,
+                             Cid ourId,
+                             BlockRequestAuthoriser authoriser) throws IOException {
+        byte[] prefix = region.read(Bat.MAX_RAW_BLOCK_PREFIX_SIZE);
+        if (prefix.length < region.length && ! isCompleteBatPrefix(prefix))
+            prefix = region.read(region.length);
+        return authoriser.allowRead(hash, prefix, ourId, auth).join();
+    }
+
+    private static boolean isCompleteBatPrefix(byte[] prefix) {
+        int magicLength = Bat.RAW_BLOCK_MAGIC_PREFIX.length;
+        if (prefix.length < magicLength ||
+                ! ArrayOps.equalArrays(prefix, 0, magicLength, Bat.RAW_BLOCK_MAGIC_PREFIX, 0, magicLength))
+            return true; // legacy raw block without bats
+        try {
+            ByteArrayInputStream bin = new ByteArrayInputStream(prefix);
+            bin.skip(magicLength);
+            CborObject.read(bin, prefix.length);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /** A region of a file which owns its channel.
+     *
+     */
+    class FileRegion implements Closeable {
+        public final FileChannel channel;
+        public final long offset;
+        public final int length;
+
+        public FileRegion(FileChannel channel, long offset, int length) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         *
+         * @param maxBytes
+         * @return The first min(maxBytes, length) bytes of this region
+         * @throws IOException
+         */
+        public byte[] read(int maxBytes) throws IOException {
+            byte[] res = new byte[Math.min(maxBytes, length)];
+            ByteBuffer buf = ByteBuffer.wrap(res);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, offset + buf.position()) < 0)
+                    throw new EOFException("File region truncated");
+            }
+            return res;
+        }
+
+        /** Write the whole region to the target, letting the OS copy the bytes directly where it can.
+         *
+         */
+        public void transferTo(WritableByteChannel target) throws IOException {
+            long done = 0;
+            while (done < length) {
+                long sent = channel.transferTo(offset + done, length - done, target);
+                if (sent <= 0 && channel.size() < offset + length)
+                    throw new EOFException("File region truncated");
+                done += sent;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        public void closeQuietly() {
+            try {
+                channel.close();
+            } catch (IOException e) {}
+        }
+    }
+}
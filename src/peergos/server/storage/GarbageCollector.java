@@ -3,6 +3,7 @@ package peergos.server.storage;
 import peergos.server.corenode.*;
 import peergos.server.space.*;
 import peergos.server.storage.auth.*;
+import peergos.server.util.*;
 import peergos.shared.*;
 import peergos.shared.cbor.*;
 import peergos.shared.crypto.asymmetric.*;
@@ -23,20 +24,54 @@ import java.util.stream.*;
 public class GarbageCollector {
     private static final Logger LOG = Logger.getGlobal();
 
+    public static final long DEFAULT_EXPECTED_REACHABLE_BLOCKS = 10_000_000;
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+    private static final int MAX_DELETE_BATCH = 1000;
+    private static final int MAX_PENDING_DELETE_CANDIDATES = 100_000;
+    private static final int MAX_VISITED_BLOCKS = 10_000_000;
+
     private final DeletableContentAddressedStorage storage;
     private final JdbcIpnsAndSocial pointers;
     private final UsageStore usage;
+    private final boolean streaming;
+    private final long expectedReachableBlocks;
+    private final Optional<JdbcReferenceCounts> incremental;
 
     public GarbageCollector(DeletableContentAddressedStorage storage,
                             JdbcIpnsAndSocial pointers,
-                            UsageStore usage) {
+                            UsageStore usage,
+                            boolean streaming,
+                            long expectedReachableBlocks,
+                            Optional<JdbcReferenceCounts> incremental) {
         this.storage = storage;
         this.pointers = pointers;
         this.usage = usage;
+        this.streaming = streaming;
+        this.expectedReachableBlocks = expectedReachableBlocks;
+        this.incremental = incremental;
+    }
+
+    public GarbageCollector(DeletableContentAddressedStorage storage,
+                            JdbcIpnsAndSocial pointers,
+                            UsageStore usage,
+                            boolean streaming,
+                            long expectedReachableBlocks) {
+        this(storage, pointers, usage, streaming, expectedReachableBlocks, Optional.empty());
+    }
+
+    public GarbageCollector(DeletableContentAddressedStorage storage,
+                            JdbcIpnsAndSocial pointers,
+                            UsageStore usage) {
+        this(storage, pointers, usage, false, DEFAULT_EXPECTED_REACHABLE_BLOCKS);
     }
 
     public synchronized void collect(Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
-        collect(storage, pointers, usage, snapshotSaver);
+        if (incremental.isPresent())
+            IncrementalGarbageCollector.collect(storage, pointers, usage, incremental.get(), snapshotSaver);
+        else if (streaming)
+            collectStreaming(storage, pointers, usage, expectedReachableBlocks, snapshotSaver);
+        else
+            collect(storage, pointers, usage, snapshotSaver);
     }
 
     public void start(long periodMillis, Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
@@ -87,18 +122,20 @@ public class GarbageCollector {
         Map<Multihash, Integer> toIndex = new HashMap<>();
         for (int i=0; i < present.size(); i++)
             toIndex.put(present.get(i), i);
-        BitSet reachable = new BitSet(present.size());
+        AtomicBitSet reachable = new AtomicBitSet(present.size());
+        // Blocks written after the listing have no index, but their children might
+        Set<Multihash> unlisted = ConcurrentHashMap.newKeySet();
+        AtomicLong linkRequests = new AtomicLong(0);
 
         int markParallelism = 10;
         ForkJoinPool markPool = new ForkJoinPool(markParallelism);
-        List<ForkJoinTask<Boolean>> usageMarked = usageRoots.stream()
-                .map(r -> markPool.submit(() -> markReachable(storage, (Cid)r, toIndex, reachable)))
-                .collect(Collectors.toList());
-        usageMarked.forEach(f -> f.join());
-        List<ForkJoinTask<Boolean>> marked = allPointers.entrySet().stream()
-                .map(e -> markPool.submit(() -> markReachable(e.getKey(), e.getValue(), reachable, toIndex, storage)))
+        List<ForkJoinTask<Void>> marked = Stream.concat(
+                usageRoots.stream()
+                        .map(r -> markPool.submit(new MarkReachable((Cid) r, toIndex, reachable, unlisted, linkRequests, storage))),
+                allPointers.entrySet().stream()
+                        .map(e -> markPool.submit(new MarkPointer(e.getKey(), e.getValue(), toIndex, reachable, unlisted, linkRequests, storage))))
                 .collect(Collectors.toList());
-        marked.forEach(f -> f.join());
+        marked.forEach(ForkJoinTask::join);
 
         for (Multihash additional : pending) {
             int index = toIndex.getOrDefault(additional, -1);
@@ -106,7 +143,7 @@ public class GarbageCollector {
                 reachable.set(index);
         }
         long t4 = System.nanoTime();
-        System.out.println("Marking reachable took " + (t4-t3)/1_000_000_000 + "s");
+        System.out.println("Marking reachable took " + (t4-t3)/1_000_000_000 + "s and " + linkRequests.get() + " link requests");
 
         // Save pointers snapshot
         snapshotSaver.apply(allPointers.entrySet().stream()).join();
@@ -129,23 +166,130 @@ public class GarbageCollector {
         System.out.println("GC complete. Freed " + deletedBlocks + " blocks totalling " + deletedSize + " bytes in " + (t5-t0)/1_000_000_000 + "s");
     }
 
-    private static boolean markReachable(PublicKeyHash writerHash,
-                                         byte[] signedRawCas,
-                                         BitSet reachable,
-                                         Map<Multihash, Integer> toIndex,
-                                         DeletableContentAddressedStorage storage) {
+    /** A variant of collect whose memory use doesn't grow with the number of blocks in the store, beyond a bounded set
+     * of visited interior blocks. Reachable blocks are marked in a bloom filter, then the block listing is streamed once and unmarked blocks are deleted in parallel
+     * batches. A false positive only means that a garbage block survives until a later collection.
+     *
+     * Before each round of deletes the open transactions and any changed pointers are marked again, because blocks
+     * written after the initial marking can appear in the listing.
+     */
+    public static void collectStreaming(DeletableContentAddressedStorage storage,
+                                        JdbcIpnsAndSocial pointers,
+                                        UsageStore usage,
+                                        long expectedReachableBlocks,
+                                        Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
+        System.out.println("Starting streaming blockstore garbage collection on node " + storage.id().join() + "...");
+        long t0 = System.nanoTime();
+        BloomFilter reachable = new BloomFilter(expectedReachableBlocks, BLOOM_FALSE_POSITIVE_RATE);
+        System.out.println("Using bloom filter of " + reachable.sizeInBytes() / 1024 / 1024 + " MiB for "
+                + expectedReachableBlocks + " expected reachable blocks");
+
+        int markParallelism = 10;
+        ForkJoinPool markPool = new ForkJoinPool(markParallelism);
+        Set<Multihash> markedUsageRoots = new HashSet<>();
+        Set<Cid> visited = ConcurrentHashMap.newKeySet();
+        // The open transactions must be listed BEFORE the pointers for correctness
+        Map<PublicKeyHash, byte[]> allPointers = markChanges(storage, pointers, usage, Collections.emptyMap(),
+                markedUsageRoots, reachable, visited, markPool);
+        long t1 = System.nanoTime();
+        System.out.println("Marking reachable from " + allPointers.size() + " pointers took " + (t1-t0)/1_000_000_000 + "s");
+
+        int deleteParallelism = 4;
+        ForkJoinPool deletePool = new ForkJoinPool(deleteParallelism);
+        long listed = 0, deletedBlocks = 0, deletedSize = 0;
+        List<Multihash> candidates = new ArrayList<>();
+        // close the listing even if we fail part way, to stop any listing threads
+        try (Stream<Cid> all = storage.getAllBlockHashes()) {
+            Iterator<Cid> blocks = all.iterator();
+            while (blocks.hasNext()) {
+                Cid block = blocks.next();
+                listed++;
+                if (! reachable.mightContain(block))
+                    candidates.add(block);
+                if (candidates.size() >= MAX_PENDING_DELETE_CANDIDATES || ! blocks.hasNext()) {
+                    allPointers = markChanges(storage, pointers, usage, allPointers, markedUsageRoots, reachable, visited, markPool);
+                    Pair<Long, Long> deleted = deleteUnmarked(candidates, reachable, deletePool, storage);
+                    deletedBlocks += deleted.left;
+                    deletedSize += deleted.right;
+                    candidates = new ArrayList<>();
+                    System.out.println("Listed " + listed + " blocks, deleted " + deletedBlocks + " so far");
+                }
+            }
+        }
+        long t2 = System.nanoTime();
+        System.out.println("Listing and deleting " + listed + " blocks took " + (t2-t1)/1_000_000_000 + "s");
+
+        // Save a pointers snapshot which is consistent with the remaining blocks
+        snapshotSaver.apply(allPointers.entrySet().stream()).join();
+        System.out.println("GC complete. Freed " + deletedBlocks + " blocks totalling " + deletedSize + " bytes in " + (t2-t0)/1_000_000_000 + "s");
+    }
+
+    /** Mark everything referenced by an open transaction, a pointer which has changed since previous, or a new usage
+     *  root. The walk stops at blocks which have already been visited in this collection, so a changed pointer only
+     *  costs the blocks which have changed since its last root.
+     *
+     * @return the current pointers
+     */
+    private static Map<PublicKeyHash, byte[]> markChanges(DeletableContentAddressedStorage storage,
+                                                          JdbcIpnsAndSocial pointers,
+                                                          UsageStore usage,
+                                                          Map<PublicKeyHash, byte[]> previous,
+                                                          Set<Multihash> markedUsageRoots,
+                                                          BloomFilter reachable,
+                                                          Set<Cid> visited,
+                                                          ForkJoinPool markPool) {
+        storage.getOpenTransactionBlocks(reachable::add);
+        Map<PublicKeyHash, byte[]> current = pointers.getAllEntries();
+        List<Multihash> newUsageRoots = usage.getAllTargets().stream()
+                .filter(r -> ! markedUsageRoots.contains(r))
+                .collect(Collectors.toList());
+        List<ForkJoinTask<?>> marked = Stream.<ForkJoinTask<?>>concat(
+                newUsageRoots.stream()
+                        .map(r -> markPool.submit(new MarkInBloom((Cid) r, reachable, visited, storage))),
+                current.entrySet().stream()
+                        .filter(e -> ! Arrays.equals(e.getValue(), previous.get(e.getKey())))
+                        .map(e -> markPool.submit(ForkJoinTask.adapt(() -> getRoot(e.getKey(), e.getValue(), storage)
+                                .ifPresent(r -> new MarkInBloom((Cid) r, reachable, visited, storage).invoke())))))
+                .collect(Collectors.toList());
+        marked.forEach(ForkJoinTask::join);
+        markedUsageRoots.addAll(newUsageRoots);
+        return current;
+    }
+
+    private static Pair<Long, Long> deleteUnmarked(List<Multihash> candidates,
+                                                   BloomFilter reachable,
+                                                   ForkJoinPool deletePool,
+                                                   DeletableContentAddressedStorage storage) {
+        List<Multihash> toDelete = candidates.stream()
+                .filter(h -> ! reachable.mightContain(h))
+                .collect(Collectors.toList());
+        List<ForkJoinTask<Pair<Long, Long>>> futures = ArrayOps.group(toDelete, MAX_DELETE_BATCH).stream()
+                .map(batch -> deletePool.submit(() -> {
+                    long size = 0;
+                    for (Multihash hash : batch)
+                        size += getWithBackoff(() -> storage.getSize(hash).join()).orElse(0);
+                    getWithBackoff(() -> {storage.bulkDelete(batch); return true;});
+                    return new Pair<>((long) batch.size(), size);
+                }))
+                .collect(Collectors.toList());
+        return futures.stream()
+                .map(ForkJoinTask::join)
+                .reduce(new Pair<>(0L, 0L), (a, b) -> new Pair<>(a.left + b.left, a.right + b.right));
+    }
+
+    static Optional<Multihash> getRoot(PublicKeyHash writerHash,
+                                               byte[] signedRawCas,
+                                               DeletableContentAddressedStorage storage) {
         PublicSigningKey writer = getWithBackoff(() -> storage.getSigningKey(writerHash).join().get());
         byte[] bothHashes = writer.unsignMessage(signedRawCas);
         HashCasPair cas = HashCasPair.fromCbor(CborObject.fromByteArray(bothHashes));
         MaybeMultihash updated = cas.updated;
-        if (updated.isPresent())
-            markReachable(storage, (Cid) updated.get(), toIndex, reachable);
-        return true;
+        return updated.isPresent() ? Optional.of(updated.get()) : Optional.empty();
     }
 
     private static Pair<Long, Long> deleteUnreachableBlocks(int startIndex,
                                                             int endIndex,
-                                                            BitSet reachable,
+                                                            AtomicBitSet reachable,
                                                             List<Multihash> present,
                                                             AtomicLong progress,
                                                             DeletableContentAddressedStorage storage) {
@@ -194,24 +338,118 @@ public class GarbageCollector {
         return new Pair<>(deletedBlocks, deletedSize);
     }
 
-    private static boolean markReachable(DeletableContentAddressedStorage storage,
-                                         Cid root,
-                                         Map<Multihash, Integer> toIndex,
-                                         BitSet reachable) {
-        int index = toIndex.getOrDefault(root, -1);
-        if (index >= 0) {
-            synchronized (reachable) {
-                reachable.set(index);
-            }
+    /** Mark a block and everything reachable from it, skipping any subtree whose root is already marked. Children
+     *  are forked as separate tasks, so idle threads steal work from wide trees.
+     */
+    private static class MarkReachable extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Cid block;
+        private final Map<Multihash, Integer> toIndex;
+        private final AtomicBitSet reachable;
+        private final Set<Multihash> unlisted;
+        private final AtomicLong linkRequests;
+        private final DeletableContentAddressedStorage storage;
+
+        MarkReachable(Cid block,
+                      Map<Multihash, Integer> toIndex,
+                      AtomicBitSet reachable,
+                      Set<Multihash> unlisted,
+                      AtomicLong linkRequests,
+                      DeletableContentAddressedStorage storage) {
+            this.block = block;
+            this.toIndex = toIndex;
+            this.reachable = reachable;
+            this.unlisted = unlisted;
+            this.linkRequests = linkRequests;
+            this.storage = storage;
         }
-        List<Cid> links = getWithBackoff(() -> storage.getLinks(root, "").join());
-        for (Cid link : links) {
-            markReachable(storage, link, toIndex, reachable);
+
+        @Override
+        protected void compute() {
+            int index = toIndex.getOrDefault(block, -1);
+            boolean firstVisit = index >= 0 ? reachable.set(index) : unlisted.add(block);
+            if (! firstVisit)
+                return;
+            linkRequests.incrementAndGet();
+            List<Cid> links = getWithBackoff(() -> storage.getLinks(block, "").join());
+            invokeAll(links.stream()
+                    .map(link -> new MarkReachable(link, toIndex, reachable, unlisted, linkRequests, storage))
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    private static class MarkPointer extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final PublicKeyHash writerHash;
+        private final byte[] signedRawCas;
+        private final Map<Multihash, Integer> toIndex;
+        private final AtomicBitSet reachable;
+        private final Set<Multihash> unlisted;
+        private final AtomicLong linkRequests;
+        private final DeletableContentAddressedStorage storage;
+
+        MarkPointer(PublicKeyHash writerHash,
+                    byte[] signedRawCas,
+                    Map<Multihash, Integer> toIndex,
+                    AtomicBitSet reachable,
+                    Set<Multihash> unlisted,
+                    AtomicLong linkRequests,
+                    DeletableContentAddressedStorage storage) {
+            this.writerHash = writerHash;
+            this.signedRawCas = signedRawCas;
+            this.toIndex = toIndex;
+            this.reachable = reachable;
+            this.unlisted = unlisted;
+            this.linkRequests = linkRequests;
+            this.storage = storage;
+        }
+
+        @Override
+        protected void compute() {
+            Optional<Multihash> root = getRoot(writerHash, signedRawCas, storage);
+            if (root.isPresent())
+                new MarkReachable((Cid) root.get(), toIndex, reachable, unlisted, linkRequests, storage).invoke();
+        }
+    }
+
+    /** Mark a block and its sub-tree in a bloom filter, unless the block has already been visited. The bloom filter
+     *  can't be used to check this, because a false positive would leave a reachable sub-tree unmarked. Every walk is
+     *  joined before anything is deleted, so a visited block's sub-tree is always completely marked by then. Only a
+     *  bounded number of interior blocks are remembered, beyond that sub-trees are just walked again. Children are
+     *  forked as separate tasks, like MarkReachable.
+     */
+    private static class MarkInBloom extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Cid block;
+        private final BloomFilter reachable;
+        private final Set<Cid> visited;
+        private final DeletableContentAddressedStorage storage;
+
+        MarkInBloom(Cid block,
+                    BloomFilter reachable,
+                    Set<Cid> visited,
+                    DeletableContentAddressedStorage storage) {
+            this.block = block;
+            this.reachable = reachable;
+            this.visited = visited;
+            this.storage = storage;
+        }
+
+        @Override
+        protected void compute() {
+            reachable.add(block);
+            if (block.isRaw())
+                return;
+            if (visited.size() < MAX_VISITED_BLOCKS ? ! visited.add(block) : visited.contains(block))
+                return;
+            List<Cid> links = getWithBackoff(() -> storage.getLinks(block, "").join());
+            invokeAll(links.stream()
+                    .map(link -> new MarkInBloom(link, reachable, visited, storage))
+                    .collect(Collectors.toList()));
         }
-        return true;
     }
 
-    private static <V> V getWithBackoff(Supplier<V> req) {
+    static <V> V getWithBackoff(Supplier<V> req) {
         long sleep = 1000;
         for (int i=0; i < 20; i++) {
             try {
@@ -0,0 +1,284 @@
+package peergos.server.storage;
+
+import peergos.server.corenode.*;
+import peergos.server.space.*;
+import peergos.server.util.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** A garbage collector whose work is proportional to what has changed since the last run, rather than to the size of
+ *  the block store. It keeps a persistent reference count for every block reachable from the roots of the last run.
+ *  Each run diffs the current mutable pointer targets and usage roots against the previous ones, and only walks the
+ *  new and old trees as far as the point where they merge with still referenced blocks. Blocks whose count drops to
+ *  zero are deleted.
+ *
+ *  Blocks which were never reachable from the roots of a run, like blocks written and then replaced between runs, never
+ *  get a count. Every block written is recorded, see WriteTrackingTransactionStore, and each run deletes the recorded
+ *  blocks which are still uncounted, then forgets the recorded blocks which aren't in use.
+ *
+ *  The first run has no previous roots, so it is a full walk of everything reachable. It also lists the store to
+ *  delete garbage from before the first run. Its counts are committed a level at a time, and the roots last, so an
+ *  interrupted first run is restarted from scratch.
+ */
+public class IncrementalGarbageCollector {
+    private static final Logger LOG = Logging.LOG();
+
+    private static final int MAX_DELETE_BATCH = 1000;
+    private static final int COUNT_BATCH = 10_000;
+
+    public static void collect(DeletableContentAddressedStorage storage,
+                               JdbcIpnsAndSocial pointers,
+                               UsageStore usage,
+                               JdbcReferenceCounts refs,
+                               Function<Stream<Map.Entry<PublicKeyHash, byte[]>>, CompletableFuture<Boolean>> snapshotSaver) {
+        System.out.println("Starting incremental blockstore garbage collection on node " + storage.id().join() + "...");
+        long t0 = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(10);
+
+        Map<String, Cid> previousRoots = refs.getRoots();
+        boolean firstRun = previousRoots.isEmpty();
+        if (firstRun)
+            refs.clear();
+        Map<PublicKeyHash, byte[]> allPointers = pointers.getAllEntries();
+        Map<String, Cid> currentRoots = getRoots(allPointers, usage.getAllTargets(), storage, pool);
+
+        List<Cid> added = currentRoots.entrySet().stream()
+                .filter(e -> ! e.getValue().equals(previousRoots.get(e.getKey())))
+                .map(Map.Entry::getValue)
+                .collect(Collectors.toList());
+        List<Cid> removed = previousRoots.entrySet().stream()
+                .filter(e -> ! e.getValue().equals(currentRoots.get(e.getKey())))
+                .map(Map.Entry::getValue)
+                .collect(Collectors.toList());
+        long t1 = System.nanoTime();
+        System.out.println("Found " + added.size() + " new roots and " + removed.size() + " removed roots from "
+                + allPointers.size() + " pointers in " + (t1-t0)/1_000_000_000 + "s");
+
+        // Increment before decrementing so subtrees shared between an old and new root are never walked
+        Map<Cid, Long> counts = new HashMap<>();
+        long incremented = updateCounts(added, 1, counts, firstRun, refs, storage, pool);
+        long decremented = updateCounts(removed, -1, counts, firstRun, refs, storage, pool);
+        refs.commit(currentRoots, counts);
+        long t2 = System.nanoTime();
+        System.out.println("Updating reference counts (" + incremented + " increments, "
+                + decremented + " decrements) took " + (t2-t1)/1_000_000_000 + "s");
+
+        // The blocks must be listed BEFORE the open transactions, which must be listed BEFORE the pointers for correctness
+        long writtenBefore = System.currentTimeMillis();
+        List<Cid> written = refs.getWritten();
+        List<Cid> uncounted = withoutCounts(written.stream(), refs);
+        if (firstRun) {
+            try (Stream<Cid> all = storage.getAllBlockHashes()) {
+                uncounted.addAll(withoutCounts(all, refs));
+            }
+        }
+        Set<Multihash> protectedBlocks = new HashSet<>(storage.getOpenTransactionBlocks());
+        Map<PublicKeyHash, byte[]> latestPointers = pointers.getAllEntries();
+        List<Cid> newerRoots = latestPointers.entrySet().stream()
+                .filter(e -> ! Arrays.equals(e.getValue(), allPointers.get(e.getKey())))
+                .flatMap(e -> GarbageCollector.getRoot(e.getKey(), e.getValue(), storage).stream())
+                .map(r -> (Cid) r)
+                .collect(Collectors.toList());
+        protectedBlocks.addAll(getUncounted(newerRoots, refs, storage, pool));
+
+        Pair<Long, Long> unreferenced = deleteUnreferenced(protectedBlocks, refs, storage);
+        Pair<Long, Long> neverReferenced = deleteBlocks(uncounted.stream()
+                .filter(b -> ! protectedBlocks.contains(b))
+                .distinct()
+                .collect(Collectors.toList()), storage);
+        // Blocks in use might still become garbage without ever being counted, so keep their records
+        refs.removeWritten(written.stream()
+                .filter(b -> ! protectedBlocks.contains(b))
+                .collect(Collectors.toList()), writtenBefore);
+        Pair<Long, Long> deleted = new Pair<>(unreferenced.left + neverReferenced.left, unreferenced.right + neverReferenced.right);
+        long t3 = System.nanoTime();
+        System.out.println("Deleting blocks took " + (t3-t2)/1_000_000_000 + "s");
+
+        // Save a pointers snapshot which is consistent with the remaining blocks
+        snapshotSaver.apply(allPointers.entrySet().stream()).join();
+        System.out.println("GC complete. Freed " + deleted.left + " blocks totalling " + deleted.right + " bytes in " + (t3-t0)/1_000_000_000 + "s");
+    }
+
+    private static Map<String, Cid> getRoots(Map<PublicKeyHash, byte[]> allPointers,
+                                             List<Multihash> usageRoots,
+                                             DeletableContentAddressedStorage storage,
+                                             ForkJoinPool pool) {
+        Map<String, Cid> roots = new HashMap<>();
+        for (Multihash usageRoot : usageRoots)
+            roots.put("u:" + usageRoot, (Cid) usageRoot);
+        List<ForkJoinTask<Optional<Pair<String, Cid>>>> pointerRoots = allPointers.entrySet().stream()
+                .map(e -> pool.submit(() -> GarbageCollector.getRoot(e.getKey(), e.getValue(), storage)
+                        .map(r -> new Pair<>("p:" + e.getKey(), (Cid) r))))
+                .collect(Collectors.toList());
+        for (ForkJoinTask<Optional<Pair<String, Cid>>> root : pointerRoots)
+            root.join().ifPresent(p -> roots.put(p.left, p.right));
+        return roots;
+    }
+
+    /** Apply delta to the count of every root, then breadth first to the children of any block whose count moves
+     *  between zero and non zero.
+     *
+     * @param flushEachLevel Whether to write the counts after each level, rather than leave them in counts
+     * @return the number of count updates
+     */
+    private static long updateCounts(List<Cid> roots,
+                                     long delta,
+                                     Map<Cid, Long> counts,
+                                     boolean flushEachLevel,
+                                     JdbcReferenceCounts refs,
+                                     DeletableContentAddressedStorage storage,
+                                     ForkJoinPool pool) {
+        long updates = 0;
+        List<Cid> frontier = roots;
+        while (! frontier.isEmpty()) {
+            loadCounts(frontier, counts, refs);
+            List<Cid> toExpand = new ArrayList<>();
+            for (Cid block : frontier) {
+                long before = counts.getOrDefault(block, 0L);
+                long after = before + delta;
+                if (after < 0) {
+                    LOG.warning("GC: negative reference count for " + block);
+                    after = 0;
+                }
+                counts.put(block, after);
+                updates++;
+                if ((before == 0) != (after == 0))
+                    toExpand.add(block);
+            }
+            if (flushEachLevel) {
+                refs.setCounts(counts);
+                counts.clear();
+            }
+            frontier = getLinks(toExpand, storage, pool);
+        }
+        return updates;
+    }
+
+    private static void loadCounts(List<Cid> blocks, Map<Cid, Long> counts, JdbcReferenceCounts refs) {
+        List<Cid> toLoad = blocks.stream()
+                .filter(b -> ! counts.containsKey(b))
+                .distinct()
+                .collect(Collectors.toList());
+        for (List<Cid> batch : ArrayOps.group(toLoad, COUNT_BATCH)) {
+            Map<Cid, Long> loaded = refs.getCounts(batch);
+            for (Cid block : batch)
+                counts.put(block, loaded.getOrDefault(block, 0L));
+        }
+    }
+
+    private static List<Cid> getLinks(List<Cid> blocks, DeletableContentAddressedStorage storage, ForkJoinPool pool) {
+        List<ForkJoinTask<List<Cid>>> links = blocks.stream()
+                .filter(b -> ! b.isIdentity())
+                .map(b -> pool.submit(() -> GarbageCollector.getWithBackoff(() -> storage.getLinks(b, "").join())))
+                .collect(Collectors.toList());
+        return links.stream()
+                .flatMap(f -> f.join().stream())
+                .collect(Collectors.toList());
+    }
+
+    /** Blocks reachable from pointers written after the reference counts were updated must not be deleted. Every
+     *  block with a non zero count already has counted children, so the walk can stop at those.
+     *
+     * @return all blocks reachable from roots without passing through a counted block
+     */
+    private static Set<Cid> getUncounted(List<Cid> roots,
+                                         JdbcReferenceCounts refs,
+                                         DeletableContentAddressedStorage storage,
+                                         ForkJoinPool pool) {
+        Set<Cid> res = new HashSet<>();
+        List<Cid> frontier = roots;
+        while (! frontier.isEmpty()) {
+            List<Cid> unseen = frontier.stream()
+                    .filter(b -> ! res.contains(b))
+                    .distinct()
+                    .collect(Collectors.toList());
+            Map<Cid, Long> counts = new HashMap<>();
+            loadCounts(unseen, counts, refs);
+            List<Cid> uncounted = unseen.stream()
+                    .filter(b -> counts.get(b) == 0)
+                    .collect(Collectors.toList());
+            res.addAll(uncounted);
+            frontier = getLinks(uncounted, storage, pool);
+        }
+        return res;
+    }
+
+    /**
+     *
+     * @return the blocks without a reference count
+     */
+    private static List<Cid> withoutCounts(Stream<Cid> blocks, JdbcReferenceCounts refs) {
+        List<Cid> res = new ArrayList<>();
+        Iterator<Cid> iter = blocks.iterator();
+        List<Cid> batch = new ArrayList<>();
+        while (iter.hasNext()) {
+            batch.add(iter.next());
+            if (batch.size() == COUNT_BATCH || ! iter.hasNext()) {
+                Map<Cid, Long> counts = refs.getCounts(batch);
+                for (Cid block : batch)
+                    if (! counts.containsKey(block))
+                        res.add(block);
+                batch = new ArrayList<>();
+            }
+        }
+        return res;
+    }
+
+    private static Pair<Long, Long> deleteUnreferenced(Set<Multihash> protectedBlocks,
+                                                       JdbcReferenceCounts refs,
+                                                       DeletableContentAddressedStorage storage) {
+        long deletedBlocks = 0, deletedSize = 0, skipped = 0;
+        String after = "";
+        while (true) {
+            List<Cid> unreferenced = refs.getUnreferenced(after, MAX_DELETE_BATCH);
+            if (unreferenced.isEmpty())
+                break;
+            after = unreferenced.get(unreferenced.size() - 1).toString();
+            List<Cid> toRemove = new ArrayList<>();
+            for (Cid block : unreferenced) {
+                // Keep the zero count for blocks in an open transaction so they are reconsidered next time
+                if (protectedBlocks.contains(block)) {
+                    skipped++;
+                    continue;
+                }
+                toRemove.add(block);
+            }
+            Pair<Long, Long> deleted = deleteBlocks(toRemove, storage);
+            refs.remove(toRemove);
+            deletedBlocks += deleted.left;
+            deletedSize += deleted.right;
+        }
+        if (skipped > 0)
+            System.out.println("Deferred deleting " + skipped + " unreferenced blocks which are in use");
+        return new Pair<>(deletedBlocks, deletedSize);
+    }
+
+    /**
+     *
+     * @return the number and total size of the blocks deleted
+     */
+    private static Pair<Long, Long> deleteBlocks(List<Cid> blocks, DeletableContentAddressedStorage storage) {
+        long deletedBlocks = 0, deletedSize = 0;
+        for (List<Cid> batch : ArrayOps.group(blocks, MAX_DELETE_BATCH)) {
+            List<Multihash> toDelete = new ArrayList<>();
+            for (Cid block : batch) {
+                if (block.isIdentity())
+                    continue;
+                deletedSize += GarbageCollector.getWithBackoff(() -> storage.getSize(block).join()).orElse(0);
+                toDelete.add(block);
+            }
+            if (! toDelete.isEmpty())
+                GarbageCollector.getWithBackoff(() -> {storage.bulkDelete(toDelete); return true;});
+            deletedBlocks += toDelete.size();
+        }
+        return new Pair<>(deletedBlocks, deletedSize);
+    }
+}
@@ -0,0 +1,309 @@
+package peergos.server.storage;
+
+import peergos.server.sql.*;
+import peergos.server.util.Logging;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** The persistent state of the incremental garbage collector. This is the set of roots that were marked in the last
+ *  run, and the number of references to every block reachable from them. A block with zero references is garbage
+ *  unless it is part of an open transaction.
+ *
+ *  It also records every block written since the last run, see WriteTrackingTransactionStore, so a run can find new
+ *  blocks which never got a reference count without listing the block store.
+ */
+public class JdbcReferenceCounts {
+    private static final Logger LOG = Logging.LOG();
+    private static final int MAX_QUERY_PARAMS = 500;
+    private static final int COMMIT_BATCH = 10_000;
+
+    private static final String SELECT_ROOTS = "SELECT name, root FROM gcroots;";
+    private static final String DELETE_ROOTS = "DELETE FROM gcroots;";
+    private static final String DELETE_COUNTS = "DELETE FROM gcrefs;";
+    private static final String INSERT_ROOT = "INSERT INTO gcroots (name, root) VALUES(?, ?);";
+    private static final String UPDATE_COUNT = "UPDATE gcrefs SET refs = ? WHERE hash = ?;";
+    private static final String SELECT_UNREFERENCED = "SELECT hash FROM gcrefs WHERE refs <= 0 AND hash > ? ORDER BY hash LIMIT ?;";
+    private static final String DELETE_COUNT = "DELETE FROM gcrefs WHERE hash = ?;";
+    private static final String UPDATE_WRITTEN = "UPDATE gcwritten SET written = ? WHERE hash = ?;";
+    private static final String SELECT_WRITTEN = "SELECT hash FROM gcwritten;";
+    private static final String DELETE_WRITTEN = "DELETE FROM gcwritten WHERE hash = ? AND written <= ?;";
+
+    private Supplier<Connection> conn;
+    private final SqlSupplier commands;
+    private volatile boolean isClosed;
+
+    public JdbcReferenceCounts(Supplier<Connection> conn, SqlSupplier commands) {
+        this.conn = conn;
+        this.commands = commands;
+        init(commands);
+    }
+
+    private Connection getConnection() {
+        Connection connection = conn.get();
+        try {
+            connection.setAutoCommit(true);
+            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void init(SqlSupplier commands) {
+        if (isClosed)
+            return;
+
+        try (Connection conn = getConnection()) {
+            commands.createTable(commands.createGcReferencesTableCommand(), conn);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     *
+     * @return The roots marked in the last run, keyed by a name which is stable between runs
+     */
+    public Map<String, Cid> getRoots() {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(SELECT_ROOTS)) {
+            ResultSet rs = select.executeQuery();
+            Map<String, Cid> res = new HashMap<>();
+            while (rs.next())
+                res.put(rs.getString("name"), Cid.decode(rs.getString("root")));
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /**
+     *
+     * @return The current reference count of each of the given blocks which has one
+     */
+    public Map<Cid, Long> getCounts(List<Cid> blocks) {
+        Map<Cid, Long> res = new HashMap<>();
+        try (Connection conn = getConnection()) {
+            for (int start = 0; start < blocks.size(); start += MAX_QUERY_PARAMS) {
+                List<Cid> batch = blocks.subList(start, Math.min(blocks.size(), start + MAX_QUERY_PARAMS));
+                String params = batch.stream().map(c -> "?").collect(Collectors.joining(","));
+                try (PreparedStatement select = conn.prepareStatement("SELECT hash, refs FROM gcrefs WHERE hash IN (" + params + ");")) {
+                    for (int i = 0; i < batch.size(); i++)
+                        select.setString(i + 1, batch.get(i).toString());
+                    ResultSet rs = select.executeQuery();
+                    while (rs.next())
+                        res.put(Cid.decode(rs.getString("hash")), rs.getLong("refs"));
+                }
+            }
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Atomically replace the marked roots and update the given reference counts.
+     *
+     * @param roots
+     * @param counts
+     */
+    public void commit(Map<String, Cid> roots, Map<Cid, Long> counts) {
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement deleteRoots = conn.prepareStatement(DELETE_ROOTS);
+                 PreparedStatement insertRoot = conn.prepareStatement(INSERT_ROOT)) {
+                deleteRoots.executeUpdate();
+                for (Map.Entry<String, Cid> root : roots.entrySet()) {
+                    insertRoot.setString(1, root.getKey());
+                    insertRoot.setString(2, root.getValue().toString());
+                    insertRoot.addBatch();
+                }
+                insertRoot.executeBatch();
+                writeCounts(counts.entrySet(), conn);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Update the given reference counts, committing in batches. The counts are only consistent with the roots after
+     *  a later commit.
+     *
+     * @param counts
+     */
+    public void setCounts(Map<Cid, Long> counts) {
+        List<Map.Entry<Cid, Long>> all = new ArrayList<>(counts.entrySet());
+        try (Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for (int start = 0; start < all.size(); start += COMMIT_BATCH) {
+                    writeCounts(all.subList(start, Math.min(all.size(), start + COMMIT_BATCH)), conn);
+                    conn.commit();
+                }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    private void writeCounts(Collection<Map.Entry<Cid, Long>> counts, Connection conn) throws SQLException {
+        try (PreparedStatement insertCount = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO gcrefs (hash, refs) VALUES(?, ?)"));
+             PreparedStatement updateCount = conn.prepareStatement(UPDATE_COUNT)) {
+            for (Map.Entry<Cid, Long> count : counts) {
+                String hash = count.getKey().toString();
+                insertCount.setString(1, hash);
+                insertCount.setLong(2, count.getValue());
+                insertCount.addBatch();
+                updateCount.setLong(1, count.getValue());
+                updateCount.setString(2, hash);
+                updateCount.addBatch();
+            }
+            insertCount.executeBatch();
+            updateCount.executeBatch();
+        }
+    }
+
+    /** Remove all the roots and reference counts, e.g. those left by an interrupted first run.
+     */
+    public void clear() {
+        try (Connection conn = getConnection();
+             PreparedStatement deleteRoots = conn.prepareStatement(DELETE_ROOTS);
+             PreparedStatement deleteCounts = conn.prepareStatement(DELETE_COUNTS)) {
+            deleteRoots.executeUpdate();
+            deleteCounts.executeUpdate();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /**
+     *
+     * @param after Only return blocks whose hash string sorts after this
+     * @param maxResults
+     * @return Blocks with no references, in order
+     */
+    public List<Cid> getUnreferenced(String after, int maxResults) {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(SELECT_UNREFERENCED)) {
+            select.setString(1, after);
+            select.setInt(2, maxResults);
+            ResultSet rs = select.executeQuery();
+            List<Cid> res = new ArrayList<>();
+            while (rs.next())
+                res.add(Cid.decode(rs.getString("hash")));
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    public void remove(List<Cid> blocks) {
+        try (Connection conn = getConnection();
+             PreparedStatement delete = conn.prepareStatement(DELETE_COUNT)) {
+            for (Cid block : blocks) {
+                delete.setString(1, block.toString());
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Record that blocks are about to be written.
+     *
+     * @param blocks
+     */
+    public void addWritten(List<? extends Multihash> blocks) {
+        long now = System.currentTimeMillis();
+        try (Connection conn = getConnection();
+             PreparedStatement insert = conn.prepareStatement(commands.insertOrIgnoreCommand("INSERT ", "INTO gcwritten (hash, written) VALUES(?, ?)"));
+             PreparedStatement update = conn.prepareStatement(UPDATE_WRITTEN)) {
+            for (Multihash block : blocks) {
+                String hash = block.toString();
+                insert.setString(1, hash);
+                insert.setLong(2, now);
+                insert.addBatch();
+                update.setLong(1, now);
+                update.setString(2, hash);
+                update.addBatch();
+            }
+            insert.executeBatch();
+            update.executeBatch();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /**
+     *
+     * @return Every block recorded as written, and not since removed
+     */
+    public List<Cid> getWritten() {
+        try (Connection conn = getConnection();
+             PreparedStatement select = conn.prepareStatement(SELECT_WRITTEN)) {
+            ResultSet rs = select.executeQuery();
+            List<Cid> res = new ArrayList<>();
+            while (rs.next())
+                res.add(Cid.decode(rs.getString("hash")));
+            return res;
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Remove the records of blocks written, unless they have been written again since.
+     *
+     * @param blocks
+     * @param writtenBefore Only remove records of writes at or before this time in millis
+     */
+    public void removeWritten(List<Cid> blocks, long writtenBefore) {
+        try (Connection conn = getConnection();
+             PreparedStatement delete = conn.prepareStatement(DELETE_WRITTEN)) {
+            for (Cid block : blocks) {
+                delete.setString(1, block.toString());
+                delete.setLong(2, writtenBefore);
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    public synchronized void close() {
+        if (isClosed)
+            return;
+        isClosed = true;
+    }
+
+    public static JdbcReferenceCounts build(Supplier<Connection> conn, SqlSupplier commands) {
+        return new JdbcReferenceCounts(conn, commands);
+    }
+}
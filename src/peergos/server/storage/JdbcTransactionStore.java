@@ -15,8 +15,15 @@ import java.util.logging.*;
 public class JdbcTransactionStore implements TransactionStore {
 	private static final Logger LOG = Logging.LOG();
 
-    private static final String SELECT_TRANSACTIONS_BLOCKS = "SELECT tid, owner, hash FROM transactions;";
+    private static final String SELECT_TRANSACTIONS_BLOCKS = "SELECT hash FROM transactions;";
     private static final String DELETE_TRANSACTION = "DELETE FROM transactions WHERE tid = ? AND owner = ?;";
+    private static final String SELECT_IDLE_TRANSACTIONS = "SELECT tid, owner FROM transactions GROUP BY tid, owner HAVING MAX(created) < ?;";
+    private static final String DELETE_IDLE_TRANSACTION = "DELETE FROM transactions WHERE tid = ? AND owner = ? " +
+            "AND NOT EXISTS (SELECT 1 FROM transactions WHERE tid = ? AND owner = ? AND created >= ?);";
+    private static final String SET_CREATED = "UPDATE transactions SET created = ? WHERE created = 0;";
+    // 4 parameters per row keeps us under sqlite's limit of 999 parameters per statement
+    private static final int MAX_ROWS_PER_INSERT = 200;
+    private static final int CURSOR_FETCH_SIZE = 1_000;
 
     private Supplier<Connection> conn;
     private final SqlSupplier commands;
@@ -31,8 +38,8 @@ public class JdbcTransactionStore implements TransactionStore {
     private Connection getConnection() {
         Connection connection = conn.get();
         try {
+            // Every write is either a single statement or idempotent, so the default isolation is sufficient
             connection.setAutoCommit(true);
-            connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
             return connection;
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -45,11 +52,30 @@ public class JdbcTransactionStore implements TransactionStore {
 
         try (Connection conn = getConnection()) {
             commands.createTable(commands.createTransactionsTableCommand(), conn);
+            if (! hasCreatedColumn(conn)) {
+                commands.createTable(commands.addTransactionsCreatedColumnCommand(), conn);
+                // rows from before the column existed count as created now, rather than long ago
+                try (PreparedStatement update = conn.prepareStatement(SET_CREATED)) {
+                    update.setLong(1, System.currentTimeMillis());
+                    update.executeUpdate();
+                }
+            }
+            commands.createTable(commands.createTransactionsIndexCommand(), conn);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static boolean hasCreatedColumn(Connection conn) throws SQLException {
+        try (ResultSet columns = conn.getMetaData().getColumns(null, null, "transactions", null)) {
+            while (columns.next()) {
+                if ("created".equalsIgnoreCase(columns.getString("COLUMN_NAME")))
+                    return true;
+            }
+            return false;
+        }
+    }
+
     @Override
     public TransactionId startTransaction(PublicKeyHash owner) {
         return new TransactionId(UUID.randomUUID().toString());
@@ -57,15 +83,32 @@ public class JdbcTransactionStore implements TransactionStore {
 
     @Override
     public void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner) {
-        try (Connection conn = getConnection();
-             PreparedStatement insert = conn.prepareStatement(commands.insertTransactionCommand())) {
-            insert.clearParameters();
-            insert.setString(1, tid.toString());
-            insert.setString(2, owner.toString());
-            insert.setString(3, hash.toString());
-            insert.executeUpdate();
+        addBlocks(Collections.singletonList(hash), tid, owner);
+    }
+
+    @Override
+    public void addBlocks(List<? extends Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        if (hashes.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        // Each multi row insert is atomic on its own, and rows are idempotent, so we don't need a transaction
+        try (Connection conn = getConnection()) {
+            for (int start = 0; start < hashes.size(); start += MAX_ROWS_PER_INSERT) {
+                List<? extends Multihash> rows = hashes.subList(start, Math.min(hashes.size(), start + MAX_ROWS_PER_INSERT));
+                try (PreparedStatement insert = conn.prepareStatement(commands.insertTransactionsCommand(rows.size()))) {
+                    int param = 1;
+                    for (Multihash hash : rows) {
+                        insert.setString(param++, tid.toString());
+                        insert.setString(param++, owner.toString());
+                        insert.setString(param++, hash.toString());
+                        insert.setLong(param++, now);
+                    }
+                    insert.executeUpdate();
+                }
+            }
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
         }
     }
 
@@ -83,24 +126,90 @@ public class JdbcTransactionStore implements TransactionStore {
 
     @Override
     public List<Multihash> getOpenTransactionBlocks() {
+        List<Multihash> results = new ArrayList<>();
+        getOpenTransactionBlocks(results::add);
+        return results;
+    }
+
+    /** Stream the open blocks through a cursor, rather than loading them all into memory first.
+     *
+     * @param receiver
+     */
+    @Override
+    public void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        try (Connection conn = getConnection()) {
+            boolean inTransaction = commands.cursorsNeedTransaction();
+            if (inTransaction)
+                conn.setAutoCommit(false);
+            try (PreparedStatement select = conn.prepareStatement(SELECT_TRANSACTIONS_BLOCKS)) {
+                select.setFetchSize(CURSOR_FETCH_SIZE);
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next())
+                        receiver.accept(Cid.decode(rs.getString("hash")));
+                }
+            } finally {
+                if (inTransaction)
+                    conn.commit();
+            }
+        } catch (SQLException sqe) {
+            LOG.log(Level.WARNING, sqe.getMessage(), sqe);
+            throw new IllegalStateException(sqe);
+        }
+    }
+
+    /** Remove transactions which haven't had a block added for maxIdleMillis, e.g. because the client disappeared
+     *  mid upload. This lets GC reclaim their blocks.
+     *
+     * @param maxIdleMillis
+     * @return the number of transactions removed
+     */
+    @Override
+    public int removeIdleTransactions(long maxIdleMillis) {
+        long cutoff = System.currentTimeMillis() - maxIdleMillis;
         try (Connection conn = getConnection();
-             PreparedStatement select = conn.prepareStatement(SELECT_TRANSACTIONS_BLOCKS)) {
-            ResultSet rs = select.executeQuery();
-            List<Multihash> results = new ArrayList<>();
-            while (rs.next())
-            {
-                String tid = rs.getString("tid");
-                String owner = rs.getString("owner");
-                String hash = rs.getString("hash");
-                results.add(Cid.decode(hash));
+             PreparedStatement select = conn.prepareStatement(SELECT_IDLE_TRANSACTIONS);
+             PreparedStatement delete = conn.prepareStatement(DELETE_IDLE_TRANSACTION)) {
+            select.setLong(1, cutoff);
+            List<String[]> idle = new ArrayList<>();
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next())
+                    idle.add(new String[]{rs.getString("tid"), rs.getString("owner")});
+            }
+            int removed = 0;
+            for (String[] transaction : idle) {
+                // skip any transaction which has been written to since we selected it
+                delete.setString(1, transaction[0]);
+                delete.setString(2, transaction[1]);
+                delete.setString(3, transaction[0]);
+                delete.setString(4, transaction[1]);
+                delete.setLong(5, cutoff);
+                if (delete.executeUpdate() > 0)
+                    removed++;
             }
-            return results;
+            return removed;
         } catch (SQLException sqe) {
             LOG.log(Level.WARNING, sqe.getMessage(), sqe);
             throw new IllegalStateException(sqe);
         }
     }
 
+    public void startReaper(long maxIdleMillis, long periodMillis) {
+        Thread reaper = new Thread(() -> {
+            while (! isClosed) {
+                try {
+                    Thread.sleep(periodMillis);
+                    int removed = removeIdleTransactions(maxIdleMillis);
+                    if (removed > 0)
+                        LOG.info("Removed " + removed + " abandoned transactions");
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, e, e::getMessage);
+                }
+            }
+        }, "Transaction reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
     public synchronized void close() {
         if (isClosed)
             return;
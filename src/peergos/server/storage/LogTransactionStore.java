@@ -0,0 +1,419 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.zip.*;
+
+/** A transaction store which keeps open transactions in memory, so the upload path never touches a database.
+ *
+ *  Every change is also appended to a log file, which is replayed on startup. Each record is
+ *  the payload length, a CRC32 of the payload, and then the payload, so a torn write at the end of the log is
+ *  truncated. Adding blocks waits for its record to be synced to disk, but concurrent writers share a single fsync.
+ *  Records for a transaction are appended holding its lock, so the log order matches the in memory order, and a
+ *  close can't be written before an add it raced with.
+ *  Closing a transaction doesn't wait for a sync, as losing a close record only means the transaction is reaped
+ *  later. Once the log is large it is rewritten to contain only the open transactions.
+ */
+public class LogTransactionStore implements TransactionStore {
+	private static final Logger LOG = Logging.LOG();
+    private static final byte ADD = 1;
+    private static final byte CLOSE = 2;
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_MIN_COMPACTION_SIZE = 16 * 1024 * 1024;
+
+    private static final class Transaction {
+        public final TransactionId tid;
+        public final PublicKeyHash owner;
+        public final Set<Multihash> blocks = ConcurrentHashMap.newKeySet();
+        public volatile long lastModified;
+
+        public Transaction(TransactionId tid, PublicKeyHash owner, long lastModified) {
+            this.tid = tid;
+            this.owner = owner;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final Path logFile;
+    private final long minCompactionSize;
+    private final Map<String, Transaction> open = new ConcurrentHashMap<>();
+    // lock order is transaction, then syncLock, then appendLock
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+    private FileChannel log; // guarded by appendLock
+    private long logSize, appendedRecords, sizeAfterCompaction; // guarded by appendLock
+    private volatile long syncedRecords;
+    private volatile boolean isClosed;
+
+    public LogTransactionStore(Path logFile, long minCompactionSize) {
+        this.logFile = logFile;
+        this.minCompactionSize = minCompactionSize;
+        try {
+            Path dir = logFile.toAbsolutePath().getParent();
+            if (dir != null)
+                Files.createDirectories(dir);
+            log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long validSize = replay(log);
+            if (validSize < log.size()) {
+                LOG.warning("Truncating incomplete write at " + validSize + " in " + logFile);
+                log.truncate(validSize);
+            }
+            logSize = validSize;
+            synchronized (syncLock) {
+                synchronized (appendLock) {
+                    compact();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static String key(PublicKeyHash owner, TransactionId tid) {
+        return owner + "/" + tid;
+    }
+
+    /** Apply the records in the log to the open transactions.
+     *
+     * @return The size of the valid prefix of the log
+     */
+    private long replay(FileChannel channel) throws IOException {
+        long pos = 0, size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (pos < size) {
+            header.clear();
+            if (readFully(channel, header, pos) < 8)
+                return pos;
+            int length = header.getInt(0);
+            int crc = header.getInt(4);
+            if (length <= 0 || length > MAX_RECORD_SIZE || pos + 8 + length > size)
+                return pos;
+            byte[] payload = new byte[length];
+            readFully(channel, ByteBuffer.wrap(payload), pos + 8);
+            if (crc(payload) != crc)
+                return pos;
+            try {
+                apply(payload);
+            } catch (IOException | RuntimeException e) {
+                return pos;
+            }
+            pos += 8 + length;
+        }
+        return pos;
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream din = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = din.readByte();
+        TransactionId tid = new TransactionId(din.readUTF());
+        PublicKeyHash owner = PublicKeyHash.decode(readBytes(din));
+        String key = key(owner, tid);
+        if (type == CLOSE) {
+            open.remove(key);
+            return;
+        }
+        if (type != ADD)
+            throw new IllegalStateException("Unknown transaction log record type: " + type);
+        long time = din.readLong();
+        int count = din.readInt();
+        Transaction transaction = open.computeIfAbsent(key, k -> new Transaction(tid, owner, time));
+        for (int i = 0; i < count; i++)
+            transaction.blocks.add(Cid.cast(readBytes(din)));
+        transaction.lastModified = Math.max(transaction.lastModified, time);
+    }
+
+    private static byte[] readBytes(DataInputStream din) throws IOException {
+        byte[] res = new byte[din.readUnsignedShort()];
+        din.readFully(res);
+        return res;
+    }
+
+    private static void writeBytes(DataOutputStream dout, byte[] data) throws IOException {
+        dout.writeShort(data.length);
+        dout.write(data);
+    }
+
+    private static byte[] serialize(byte type,
+                                    TransactionId tid,
+                                    PublicKeyHash owner,
+                                    long time,
+                                    Collection<? extends Multihash> blocks) {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            DataOutputStream dout = new DataOutputStream(bout);
+            dout.writeByte(type);
+            dout.writeUTF(tid.toString());
+            writeBytes(dout, owner.toBytes());
+            if (type == ADD) {
+                dout.writeLong(time);
+                dout.writeInt(blocks.size());
+                for (Multihash block : blocks)
+                    writeBytes(dout, block.toBytes());
+            }
+            dout.flush();
+            return bout.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(8 + payload.length);
+        record.putInt(payload.length);
+        record.putInt(crc(payload));
+        record.put(payload);
+        record.flip();
+        return record;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position + total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /** Append a record to the log.
+     *
+     * @return The sequence number of the record, to pass to sync
+     */
+    private long append(byte[] payload) {
+        ByteBuffer record = frame(payload);
+        synchronized (appendLock) {
+            if (isClosed)
+                throw new IllegalStateException("Transaction store is closed");
+            try {
+                while (record.hasRemaining())
+                    logSize += log.write(record, logSize);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            return ++appendedRecords;
+        }
+    }
+
+    /** Wait until the given record is durable. Whichever waiting thread gets the sync lock first syncs every record
+     *  appended so far, so concurrent writers are covered by a single fsync.
+     *
+     */
+    private void sync(long record) {
+        if (syncedRecords >= record)
+            return;
+        synchronized (syncLock) {
+            if (syncedRecords >= record)
+                return;
+            long target;
+            FileChannel channel;
+            synchronized (appendLock) {
+                target = appendedRecords;
+                channel = log;
+            }
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            syncedRecords = target;
+        }
+    }
+
+    /** Rewrite the log to contain only the open transactions. Must be called holding the sync and append locks.
+     *
+     */
+    private void compact() throws IOException {
+        Path tmp = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        long size = 0;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            for (Transaction t : open.values()) {
+                ByteBuffer record = frame(serialize(ADD, t.tid, t.owner, t.lastModified, new ArrayList<>(t.blocks)));
+                while (record.hasRemaining())
+                    size += out.write(record, size);
+            }
+            out.force(false);
+        }
+        Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(logFile.toAbsolutePath().getParent());
+        log.close();
+        log = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logSize = size;
+        sizeAfterCompaction = size;
+        syncedRecords = appendedRecords;
+    }
+
+    /** Make a rename in the directory durable. Not every platform can open a directory, e.g. Windows, in which case
+     *  this is a no-op.
+     */
+    private static void syncDirectory(Path dir) {
+        if (dir == null)
+            return;
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Couldn't sync directory " + dir + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void compactIfNeeded() {
+        synchronized (appendLock) {
+            if (logSize < Math.max(minCompactionSize, 2 * sizeAfterCompaction))
+                return;
+        }
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                if (isClosed || logSize < Math.max(minCompactionSize, 2 * sizeAfterCompaction))
+                    return;
+                try {
+                    compact();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "Error compacting transaction log: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public TransactionId startTransaction(PublicKeyHash owner) {
+        return new TransactionId(UUID.randomUUID().toString());
+    }
+
+    @Override
+    public void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner) {
+        addBlocks(Collections.singletonList(hash), tid, owner);
+    }
+
+    @Override
+    public void addBlocks(List<? extends Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        if (hashes.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        String key = key(owner, tid);
+        byte[] record = serialize(ADD, tid, owner, now, hashes);
+        long appended;
+        while (true) {
+            Transaction transaction = open.computeIfAbsent(key, k -> new Transaction(tid, owner, now));
+            synchronized (transaction) {
+                // retry if the transaction was closed or reaped after we looked it up
+                if (open.get(key) != transaction)
+                    continue;
+                transaction.blocks.addAll(hashes);
+                transaction.lastModified = now;
+                appended = append(record);
+                break;
+            }
+        }
+        sync(appended);
+    }
+
+    @Override
+    public void closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        String key = key(owner, tid);
+        Transaction transaction = open.get(key);
+        if (transaction == null)
+            return;
+        synchronized (transaction) {
+            if (! open.remove(key, transaction))
+                return;
+            append(serialize(CLOSE, tid, owner, 0, Collections.emptyList()));
+        }
+        compactIfNeeded();
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        List<Multihash> results = new ArrayList<>();
+        getOpenTransactionBlocks(results::add);
+        return results;
+    }
+
+    /** Blocks added before this call are always included, as they are added to the in memory transaction before
+     *  addBlocks returns.
+     *
+     */
+    @Override
+    public void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        for (Transaction t : open.values())
+            t.blocks.forEach(receiver);
+    }
+
+    /** Remove transactions which haven't had a block added for maxIdleMillis, e.g. because the client disappeared
+     *  mid upload. This lets GC reclaim their blocks.
+     *
+     * @param maxIdleMillis
+     * @return the number of transactions removed
+     */
+    @Override
+    public int removeIdleTransactions(long maxIdleMillis) {
+        long cutoff = System.currentTimeMillis() - maxIdleMillis;
+        int removed = 0;
+        for (Transaction t : new ArrayList<>(open.values())) {
+            synchronized (t) {
+                if (t.lastModified >= cutoff || ! open.remove(key(t.owner, t.tid), t))
+                    continue;
+                append(serialize(CLOSE, t.tid, t.owner, 0, Collections.emptyList()));
+            }
+            removed++;
+        }
+        compactIfNeeded();
+        return removed;
+    }
+
+    public void startReaper(long maxIdleMillis, long periodMillis) {
+        Thread reaper = new Thread(() -> {
+            while (! isClosed) {
+                try {
+                    Thread.sleep(periodMillis);
+                    int removed = removeIdleTransactions(maxIdleMillis);
+                    if (removed > 0)
+                        LOG.info("Removed " + removed + " abandoned transactions");
+                } catch (Exception e) {
+                    LOG.log(Level.WARNING, e, e::getMessage);
+                }
+            }
+        }, "Transaction reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    public void close() {
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                if (isClosed)
+                    return;
+                isClosed = true;
+                try {
+                    log.force(false);
+                    log.close();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    public static LogTransactionStore build(Path logFile) {
+        return new LogTransactionStore(logFile, DEFAULT_MIN_COMPACTION_SIZE);
+    }
+}
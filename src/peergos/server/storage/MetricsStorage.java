@@ -0,0 +1,172 @@
+package peergos.server.storage;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import peergos.server.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Records the latency, errors, in flight requests and bytes transferred of each operation on a block store, labelled
+ *  with the name of the store, in the metrics exported by AggregatedMetrics.
+ *
+ *  Bytes read are only counted where the raw block is returned, to avoid serializing cbor objects again.
+ */
+public class MetricsStorage extends DelegatingStorage {
+
+    private final ContentAddressedStorage target;
+    protected final String backend;
+
+    public MetricsStorage(ContentAddressedStorage target, String backend) {
+        super(target);
+        this.target = target;
+        this.backend = backend;
+    }
+
+    protected <T> CompletableFuture<T> time(String op, Supplier<CompletableFuture<T>> call) {
+        Gauge.Child inFlight = AggregatedMetrics.STORAGE_REQUESTS_IN_FLIGHT.labels(backend, op);
+        Histogram.Timer timer = AggregatedMetrics.STORAGE_REQUEST_DURATION.labels(backend, op).startTimer();
+        inFlight.inc();
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = Futures.errored(e);
+        }
+        return result.whenComplete((res, t) -> {
+            inFlight.dec();
+            timer.observeDuration();
+            if (t != null)
+                AggregatedMetrics.STORAGE_REQUEST_ERRORS.labels(backend, op).inc();
+        });
+    }
+
+    protected <T> T timeSync(String op, Supplier<T> call) {
+        Gauge.Child inFlight = AggregatedMetrics.STORAGE_REQUESTS_IN_FLIGHT.labels(backend, op);
+        Histogram.Timer timer = AggregatedMetrics.STORAGE_REQUEST_DURATION.labels(backend, op).startTimer();
+        inFlight.inc();
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            AggregatedMetrics.STORAGE_REQUEST_ERRORS.labels(backend, op).inc();
+            throw e;
+        } finally {
+            inFlight.dec();
+            timer.observeDuration();
+        }
+    }
+
+    protected void written(List<byte[]> blocks) {
+        AggregatedMetrics.STORAGE_BYTES_WRITTEN.labels(backend).inc(blocks.stream().mapToLong(b -> b.length).sum());
+    }
+
+    protected Optional<byte[]> read(Optional<byte[]> block) {
+        block.ifPresent(b -> AggregatedMetrics.STORAGE_BYTES_READ.labels(backend).inc(b.length));
+        return block;
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return new MetricsStorage(target.directToOrigin(), backend);
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return time("start_transaction", () -> target.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        return time("close_transaction", () -> target.closeTransaction(owner, tid));
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
+                                            PublicKeyHash writer,
+                                            List<byte[]> signedHashes,
+                                            List<byte[]> blocks,
+                                            TransactionId tid) {
+        return time("put", () -> target.put(owner, writer, signedHashes, blocks, tid))
+                .thenApply(res -> {
+                    written(blocks);
+                    return res;
+                });
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putRaw(PublicKeyHash owner,
+                                               PublicKeyHash writer,
+                                               List<byte[]> signatures,
+                                               List<byte[]> blocks,
+                                               TransactionId tid,
+                                               ProgressConsumer<Long> progressCounter) {
+        return time("put_raw", () -> target.putRaw(owner, writer, signatures, blocks, tid, progressCounter))
+                .thenApply(res -> {
+                    written(blocks);
+                    return res;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat) {
+        return time("get", () -> target.get(hash, bat));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, Optional<BatWithId> bat) {
+        return time("get_raw", () -> target.getRaw(hash, bat)).thenApply(this::read);
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, byte[] champKey, Optional<BatWithId> bat) {
+        return time("champ_lookup", () -> target.getChampLookup(owner, root, champKey, bat))
+                .thenApply(blocks -> {
+                    AggregatedMetrics.STORAGE_BYTES_READ.labels(backend).inc(blocks.stream().mapToLong(b -> b.length).sum());
+                    return blocks;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        return time("size", () -> target.getSize(block));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<Integer>>> getSizes(List<Cid> blocks) {
+        return time("sizes", () -> target.getSizes(blocks));
+    }
+
+    @Override
+    public CompletableFuture<List<FragmentWithHash>> downloadFragments(PublicKeyHash owner,
+                                                                       List<Cid> hashes,
+                                                                       List<BatWithId> bats,
+                                                                       Hasher h,
+                                                                       ProgressConsumer<Long> monitor,
+                                                                       double spaceIncreaseFactor) {
+        return time("download_fragments", () -> target.downloadFragments(owner, hashes, bats, h, monitor, spaceIncreaseFactor));
+    }
+
+    @Override
+    public CompletableFuture<List<PresignedUrl>> authReads(List<MirrorCap> blocks) {
+        return time("auth_reads", () -> target.authReads(blocks));
+    }
+
+    @Override
+    public CompletableFuture<List<PresignedUrl>> authWrites(PublicKeyHash owner,
+                                                            PublicKeyHash writer,
+                                                            List<byte[]> signedHashes,
+                                                            List<Integer> blockSizes,
+                                                            boolean isRaw,
+                                                            TransactionId tid) {
+        return time("auth_writes", () -> target.authWrites(owner, writer, signedHashes, blockSizes, isRaw, tid));
+    }
+}
@@ -0,0 +1,279 @@
+package peergos.server.storage;
+
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.stream.*;
+
+/** Copies a merkle tree into a local block store, fetching many blocks in parallel.
+ *
+ *  Blocks waiting to be fetched form a frontier. Blocks are taken off the frontier in batches, and checked for local
+ *  presence with a single bulk existence check per batch. Up to parallelism blocks are fetched, or read locally if
+ *  present, at once, and the links of each are added to the frontier.
+ *
+ *  The existing root must be one whose mirror completed, so its whole tree is present. Each block is paired with the
+ *  block at the same position in the existing tree, and links which are also links of the paired block are skipped,
+ *  so a small change only reads the changed paths. A present block which isn't in the existing tree, e.g. from an
+ *  interrupted mirror of an uncommitted root, might be missing part of its sub-tree, so it is descended into.
+ *
+ *  If a checkpoint file is given, the frontier and the blocks being fetched are periodically written to it. A mirror
+ *  which is interrupted then resumes with the checkpointed blocks as well as the new root, which finishes a mirror of
+ *  an earlier root.
+ */
+public class MirrorEngine {
+	private static final Logger LOG = Logging.LOG();
+    public static final int DEFAULT_PARALLELISM = 32;
+    private static final int EXISTENCE_BATCH_SIZE = 128;
+    private static final long CHECKPOINT_PERIOD_MILLIS = 10_000;
+    private static final long PROGRESS_PERIOD_MILLIS = 30_000;
+
+    private final DeletableContentAddressedStorage storage;
+    private final int parallelism;
+    private final Optional<Path> checkpoint;
+
+    public MirrorEngine(DeletableContentAddressedStorage storage, int parallelism, Optional<Path> checkpoint) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive");
+        this.storage = storage;
+        this.parallelism = parallelism;
+        this.checkpoint = checkpoint;
+    }
+
+    /** A block to mirror, and the block at the same position in the existing tree, if any.
+     */
+    private static final class Pending {
+        public final Cid cid;
+        public final Optional<Cid> existing;
+
+        public Pending(Cid cid, Optional<Cid> existing) {
+            this.cid = cid;
+            this.existing = existing;
+        }
+    }
+
+    private static final class Fetched {
+        public final Cid cid;
+        public final int size;
+        public final List<Cid> links;
+        public final List<Cid> existingLinks;
+        public final boolean local;
+
+        public Fetched(Cid cid, int size, List<Cid> links, List<Cid> existingLinks, boolean local) {
+            this.cid = cid;
+            this.size = size;
+            this.links = links;
+            this.existingLinks = existingLinks;
+            this.local = local;
+        }
+
+        /**
+         *
+         * @return the links which aren't in the existing tree, paired with the existing link at the same position
+         */
+        public List<Pending> children() {
+            Set<Cid> complete = new HashSet<>(existingLinks);
+            List<Pending> res = new ArrayList<>();
+            for (int i = 0; i < links.size(); i++) {
+                Cid link = links.get(i);
+                if (! complete.contains(link))
+                    res.add(new Pending(link, i < existingLinks.size() ? Optional.of(existingLinks.get(i)) : Optional.empty()));
+            }
+            return res;
+        }
+    }
+
+    private static final class Progress {
+        private final long start = System.currentTimeMillis();
+        private long lastReport = start;
+        public long blocks, bytes, present;
+
+        public void report(Cid root, int frontier, boolean force) {
+            long now = System.currentTimeMillis();
+            if (! force && now - lastReport < PROGRESS_PERIOD_MILLIS)
+                return;
+            lastReport = now;
+            long seconds = Math.max(1, (now - start) / 1000);
+            LOG.info("Mirroring " + root + ": fetched " + blocks + " blocks (" + bytes / (1024 * 1024) + " MiB), read "
+                    + present + " present, " + frontier + " queued, " + blocks / seconds + " blocks/s, "
+                    + bytes / 1024 / seconds + " KiB/s");
+        }
+    }
+
+    /** Ensure that every block in the merkle tree under updated is present locally.
+     *
+     * @param existing the last root mirrored completely, whose sub-tree is therefore present
+     * @return the root mirrored
+     */
+    public List<Cid> mirror(PublicKeyHash owner,
+                            Optional<Cid> existing,
+                            Optional<Cid> updated,
+                            Optional<BatWithId> mirrorBat,
+                            Cid ourNodeId,
+                            TransactionId tid,
+                            Hasher hasher) {
+        if (updated.isEmpty())
+            return Collections.emptyList();
+        Cid root = updated.get();
+        if (existing.equals(updated))
+            return Collections.singletonList(root);
+
+        Deque<Pending> frontier = readCheckpoint().stream()
+                .map(c -> new Pending(c, Optional.<Cid>empty()))
+                .collect(Collectors.toCollection(ArrayDeque::new));
+        if (! frontier.isEmpty())
+            LOG.info("Resuming mirror of " + root + " from a checkpoint of " + frontier.size() + " blocks");
+        // a checkpoint from an interrupted mirror of an earlier root still needs finishing
+        frontier.addFirst(new Pending(root, existing));
+
+        ExecutorService fetchers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "Mirror fetcher");
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<Fetched> completed = new ExecutorCompletionService<>(fetchers);
+        Set<Cid> visited = new HashSet<>();
+        Set<Cid> inFlight = new HashSet<>();
+        Progress progress = new Progress();
+        long lastCheckpoint = System.currentTimeMillis();
+        try {
+            while (! frontier.isEmpty() || ! inFlight.isEmpty()) {
+                if (! frontier.isEmpty() && inFlight.size() < parallelism) {
+                    List<Pending> batch = new ArrayList<>();
+                    while (! frontier.isEmpty() && batch.size() < EXISTENCE_BATCH_SIZE) {
+                        Pending next = frontier.poll();
+                        if (visited.add(next.cid))
+                            batch.add(next);
+                    }
+                    if (batch.isEmpty())
+                        continue;
+                    List<Boolean> present;
+                    try {
+                        present = storage.hasBlocks(batch.stream()
+                                .map(b -> b.cid)
+                                .collect(Collectors.toList())).join();
+                    } catch (RuntimeException e) {
+                        frontier.addAll(batch); // so they are included in the checkpoint
+                        throw e;
+                    }
+                    for (int i = 0; i < batch.size(); i++) {
+                        Pending block = batch.get(i);
+                        inFlight.add(block.cid);
+                        if (present.get(i))
+                            completed.submit(() -> readLocal(block));
+                        else
+                            completed.submit(() -> fetch(owner, block, mirrorBat, ourNodeId, tid, hasher));
+                    }
+                    continue;
+                }
+                Fetched done = completed.take().get();
+                inFlight.remove(done.cid);
+                frontier.addAll(done.children());
+                if (done.local)
+                    progress.present++;
+                else {
+                    progress.blocks++;
+                    progress.bytes += done.size;
+                }
+                progress.report(root, frontier.size(), false);
+
+                if (System.currentTimeMillis() - lastCheckpoint > CHECKPOINT_PERIOD_MILLIS) {
+                    writeCheckpoint(frontier, inFlight);
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+            }
+            deleteCheckpoint();
+            progress.report(root, 0, true);
+            return Collections.singletonList(root);
+        } catch (InterruptedException | ExecutionException e) {
+            writeCheckpoint(frontier, inFlight);
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            throw new RuntimeException(cause.getMessage(), cause);
+        } catch (RuntimeException e) {
+            writeCheckpoint(frontier, inFlight);
+            throw e;
+        } finally {
+            fetchers.shutdownNow();
+        }
+    }
+
+    private Fetched fetch(PublicKeyHash owner,
+                          Pending pending,
+                          Optional<BatWithId> mirrorBat,
+                          Cid ourNodeId,
+                          TransactionId tid,
+                          Hasher hasher) {
+        Cid block = pending.cid;
+        Optional<byte[]> data = storage.mirrorBlock(owner, block, mirrorBat, ourNodeId, tid, hasher).join();
+        if (data.isEmpty())
+            throw new IllegalStateException("Couldn't retrieve block: " + block);
+        List<Cid> links = block.isRaw() ?
+                Collections.emptyList() :
+                CborObject.fromByteArray(data.get()).links().stream()
+                        .map(h -> (Cid) h)
+                        .collect(Collectors.toList());
+        return new Fetched(block, data.get().length, links, existingLinks(pending, links), false);
+    }
+
+    private Fetched readLocal(Pending pending) {
+        List<Cid> links = storage.getLinks(pending.cid, "").join();
+        return new Fetched(pending.cid, 0, links, existingLinks(pending, links), true);
+    }
+
+    /** The existing tree is complete, so reading the paired block's links is a local read.
+     */
+    private List<Cid> existingLinks(Pending pending, List<Cid> links) {
+        if (links.isEmpty() || pending.existing.isEmpty())
+            return Collections.emptyList();
+        return storage.getLinks(pending.existing.get(), "").join();
+    }
+
+    private List<Cid> readCheckpoint() {
+        if (checkpoint.isEmpty() || ! Files.exists(checkpoint.get()))
+            return Collections.emptyList();
+        try {
+            CborObject.CborList saved = (CborObject.CborList) CborObject.fromByteArray(Files.readAllBytes(checkpoint.get()));
+            return saved.value.stream()
+                    .map(c -> (Cid) ((CborObject.CborMerkleLink) c).target)
+                    .collect(Collectors.toList());
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Ignoring unreadable mirror checkpoint " + checkpoint.get(), e);
+            return Collections.emptyList();
+        }
+    }
+
+    private void writeCheckpoint(Collection<Pending> frontier, Collection<Cid> inFlight) {
+        if (checkpoint.isEmpty())
+            return;
+        List<CborObject.CborMerkleLink> pending = Stream.concat(inFlight.stream(), frontier.stream().map(p -> p.cid))
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList());
+        Path target = checkpoint.get();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(target.toAbsolutePath().getParent());
+            Files.write(tmp, new CborObject.CborList(pending).serialize());
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't write mirror checkpoint " + target, e);
+        }
+    }
+
+    private void deleteCheckpoint() {
+        if (checkpoint.isEmpty())
+            return;
+        try {
+            Files.deleteIfExists(checkpoint.get());
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Couldn't delete mirror checkpoint " + checkpoint.get(), e);
+        }
+    }
+}
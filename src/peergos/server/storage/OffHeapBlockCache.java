@@ -0,0 +1,281 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** A process wide block cache which is bounded in bytes and stores block data outside the java heap.
+ *
+ *  Blocks are stored in fixed size chunks carved out of large direct buffers, so a cached block costs a small index
+ *  entry on the heap rather than a byte[], and evicting a block returns its chunks to a free list rather than
+ *  creating garbage. The cache is split into independently locked shards by key. Each shard uses a segmented LRU
+ *  policy: new blocks go into a probationary segment and are only promoted to the protected segment on a second
+ *  access, so a scan of blocks which are read once can't flush out the frequently read ones.
+ */
+public class OffHeapBlockCache {
+    public static final long DEFAULT_SIZE = 64 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 512;
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private final Shard[] shards;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+    public OffHeapBlockCache(long maxBytes, int nShards) {
+        if (nShards < 1)
+            throw new IllegalArgumentException("Need at least one shard");
+        long chunksPerShard = maxBytes / CHUNK_SIZE / nShards;
+        if (chunksPerShard > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Cache shards are too large: " + maxBytes);
+        this.shards = new Shard[nShards];
+        for (int i = 0; i < nShards; i++)
+            shards[i] = new Shard((int) chunksPerShard, evictions);
+    }
+
+    public OffHeapBlockCache(long maxBytes) {
+        this(maxBytes, Math.max(1, Math.min(16, (int) (maxBytes / SLAB_SIZE))));
+    }
+
+    private Shard shard(Multihash key) {
+        return shards[Math.floorMod(key.hashCode(), shards.length)];
+    }
+
+    /**
+     *
+     * @param key
+     * @return a copy of the cached block, or empty if it isn't cached
+     */
+    public Optional<byte[]> get(Multihash key) {
+        byte[] block = shard(key).get(key);
+        if (block == null)
+            misses.increment();
+        else
+            hits.increment();
+        return Optional.ofNullable(block);
+    }
+
+    public boolean containsKey(Multihash key) {
+        return shard(key).contains(key);
+    }
+
+    /** Cache a block, evicting others if needed. Blocks too big to fit in a shard are ignored.
+     *
+     */
+    public void put(Multihash key, byte[] value) {
+        shard(key).put(key, value);
+    }
+
+    public void remove(Multihash key) {
+        shard(key).remove(key);
+    }
+
+    public void clear() {
+        for (Shard shard : shards)
+            shard.clear();
+    }
+
+    /**
+     *
+     * @return the number of bytes of block data currently cached
+     */
+    public long size() {
+        long res = 0;
+        for (Shard shard : shards)
+            res += shard.size();
+        return res;
+    }
+
+    public long count() {
+        long res = 0;
+        for (Shard shard : shards)
+            res += shard.count();
+        return res;
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    private static final class Entry {
+        public final int length;
+        public final int[] chunks;
+
+        public Entry(int length, int[] chunks) {
+            this.length = length;
+            this.chunks = chunks;
+        }
+    }
+
+    private static final class Shard {
+        private final int maxChunks;
+        private final int maxProtectedChunks;
+        private final LongAdder evictions;
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private int allocatedChunks = 0;
+        private int[] freeChunks = new int[0];
+        private int nFree = 0;
+        private long bytes = 0;
+        private int protectedChunks = 0;
+        // both in least recently used first order
+        private final LinkedHashMap<Multihash, Entry> probation = new LinkedHashMap<>(16, 0.75f, false);
+        private final LinkedHashMap<Multihash, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+        public Shard(int maxChunks, LongAdder evictions) {
+            this.maxChunks = maxChunks;
+            this.evictions = evictions;
+            this.maxProtectedChunks = (int) (maxChunks * PROTECTED_FRACTION);
+        }
+
+        public synchronized byte[] get(Multihash key) {
+            Entry e = protectedSegment.get(key);
+            if (e == null) {
+                e = probation.remove(key);
+                if (e == null)
+                    return null;
+                promote(key, e);
+            }
+            return read(e);
+        }
+
+        public synchronized boolean contains(Multihash key) {
+            return probation.containsKey(key) || protectedSegment.containsKey(key);
+        }
+
+        public synchronized void put(Multihash key, byte[] value) {
+            if (contains(key))
+                return; // blocks are immutable
+            int nChunks = chunksFor(value.length);
+            if (nChunks > maxChunks)
+                return;
+            int[] chunks = new int[nChunks];
+            for (int i = 0; i < nChunks; i++)
+                chunks[i] = allocate();
+            Entry e = new Entry(value.length, chunks);
+            write(e, value);
+            probation.put(key, e);
+            bytes += value.length;
+        }
+
+        public synchronized void remove(Multihash key) {
+            Entry e = probation.remove(key);
+            if (e == null) {
+                e = protectedSegment.remove(key);
+                if (e == null)
+                    return;
+                protectedChunks -= e.chunks.length;
+            }
+            release(e);
+        }
+
+        public synchronized void clear() {
+            for (Entry e : probation.values())
+                release(e);
+            for (Entry e : protectedSegment.values())
+                release(e);
+            probation.clear();
+            protectedSegment.clear();
+            protectedChunks = 0;
+        }
+
+        public synchronized long size() {
+            return bytes;
+        }
+
+        public synchronized int count() {
+            return probation.size() + protectedSegment.size();
+        }
+
+        private void promote(Multihash key, Entry e) {
+            protectedSegment.put(key, e);
+            protectedChunks += e.chunks.length;
+            while (protectedChunks > maxProtectedChunks) {
+                Iterator<Map.Entry<Multihash, Entry>> lru = protectedSegment.entrySet().iterator();
+                Map.Entry<Multihash, Entry> demoted = lru.next();
+                lru.remove();
+                protectedChunks -= demoted.getValue().chunks.length;
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        }
+
+        private int allocate() {
+            while (true) {
+                if (nFree > 0)
+                    return freeChunks[--nFree];
+                if (allocatedChunks < maxChunks) {
+                    addSlab();
+                    continue;
+                }
+                evict();
+            }
+        }
+
+        private void addSlab() {
+            int chunksPerSlab = SLAB_SIZE / CHUNK_SIZE;
+            int nChunks = Math.min(chunksPerSlab, maxChunks - allocatedChunks);
+            slabs.add(ByteBuffer.allocateDirect(nChunks * CHUNK_SIZE));
+            if (freeChunks.length < allocatedChunks + nChunks)
+                freeChunks = Arrays.copyOf(freeChunks, Math.min(maxChunks, Math.max(allocatedChunks + nChunks, freeChunks.length * 2)));
+            for (int i = nChunks - 1; i >= 0; i--)
+                freeChunks[nFree++] = allocatedChunks + i;
+            allocatedChunks += nChunks;
+        }
+
+        private void evict() {
+            Map<Multihash, Entry> victims = probation.isEmpty() ? protectedSegment : probation;
+            Iterator<Map.Entry<Multihash, Entry>> lru = victims.entrySet().iterator();
+            if (! lru.hasNext())
+                throw new IllegalStateException("Block cache has no free space and nothing to evict");
+            Entry e = lru.next().getValue();
+            lru.remove();
+            if (victims == protectedSegment)
+                protectedChunks -= e.chunks.length;
+            release(e);
+            evictions.increment();
+        }
+
+        private void release(Entry e) {
+            for (int chunk : e.chunks)
+                freeChunks[nFree++] = chunk;
+            bytes -= e.length;
+        }
+
+        private ByteBuffer chunk(int index) {
+            int chunksPerSlab = SLAB_SIZE / CHUNK_SIZE;
+            ByteBuffer slab = slabs.get(index / chunksPerSlab).duplicate();
+            int start = (index % chunksPerSlab) * CHUNK_SIZE;
+            slab.position(start);
+            slab.limit(start + CHUNK_SIZE);
+            return slab;
+        }
+
+        private void write(Entry e, byte[] value) {
+            for (int i = 0; i < e.chunks.length; i++) {
+                int offset = i * CHUNK_SIZE;
+                chunk(e.chunks[i]).put(value, offset, Math.min(CHUNK_SIZE, value.length - offset));
+            }
+        }
+
+        private byte[] read(Entry e) {
+            byte[] res = new byte[e.length];
+            for (int i = 0; i < e.chunks.length; i++) {
+                int offset = i * CHUNK_SIZE;
+                chunk(e.chunks[i]).get(res, offset, Math.min(CHUNK_SIZE, e.length - offset));
+            }
+            return res;
+        }
+
+        private static int chunksFor(int length) {
+            return Math.max(1, (length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package peergos.server.storage;
+
+import peergos.server.storage.auth.*;
+import peergos.server.util.Logging;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+import java.util.regex.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/** A local block store which appends blocks to large segment files, rather than using a file per block.
+ *
+ *  Each segment is a sequence of records: the cid length, the cid, the data length (or -1 for a deletion), a CRC32 of
+ *  the cid and data, and then the data. An in memory index from cid to location is rebuilt on startup by replaying the
+ *  segments in order, and a torn write at the end of the last segment is truncated. Full segments are memory mapped
+ *  for reads. Deletes only append a tombstone, so segments with enough dead space are compacted by copying their live
+ *  records to the current segment.
+ */
+public class PackFileBlockStorage implements DeletableContentAddressedStorage, FileRegionStorage {
+    private static final Logger LOG = Logging.LOG();
+    private static final int CID_V1 = 1;
+    private static final int TOMBSTONE = -1;
+    private static final int MAX_CID_SIZE = 1024;
+    private static final int MAX_RECORD_SIZE = 4 + MAX_CID_SIZE + 8 + ContentAddressedStorage.MAX_BLOCK_SIZE;
+    // a segment is only rotated once it is full, so it can overshoot by a record
+    public static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE - MAX_RECORD_SIZE;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.pack");
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final class Location {
+        public final int segment;
+        public final long recordStart, dataStart;
+        public final int length;
+
+        public Location(int segment, long recordStart, long dataStart, int length) {
+            this.segment = segment;
+            this.recordStart = recordStart;
+            this.dataStart = dataStart;
+            this.length = length;
+        }
+
+        public long recordSize() {
+            return dataStart - recordStart + length;
+        }
+    }
+
+    private static final class Segment {
+        public final int id;
+        public final Path path;
+        public final FileChannel channel;
+        public final AtomicLong deadBytes = new AtomicLong(0);
+        public volatile long size;
+        private volatile MappedByteBuffer mapped;
+
+        public Segment(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+
+        public synchronized MappedByteBuffer map() throws IOException {
+            if (mapped == null)
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return mapped;
+        }
+    }
+
+    private final Path root;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+    private final TransactionStore transactions;
+    private final BlockRequestAuthoriser authoriser;
+    private final Hasher hasher;
+    private final Map<Cid, Location> index = new ConcurrentHashMap<>();
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private volatile Segment active;
+
+    public PackFileBlockStorage(Path root,
+                                long maxSegmentSize,
+                                double compactionThreshold,
+                                TransactionStore transactions,
+                                BlockRequestAuthoriser authoriser,
+                                Hasher hasher) {
+        if (maxSegmentSize <= 0 || maxSegmentSize > MAX_SEGMENT_SIZE)
+            throw new IllegalArgumentException("Segment size must be between 1 and " + MAX_SEGMENT_SIZE
+                    + " bytes to be memory mapped: " + maxSegmentSize);
+        this.root = root;
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.transactions = transactions;
+        this.authoriser = authoriser;
+        this.hasher = hasher;
+        File rootDir = root.toFile();
+        if (! rootDir.exists() && ! rootDir.mkdirs())
+            throw new IllegalStateException("Unable to create directory " + root);
+        if (! rootDir.isDirectory())
+            throw new IllegalStateException("Pack store path must be a directory! " + root);
+        try {
+            loadSegments();
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    public PackFileBlockStorage(Path root, TransactionStore transactions, BlockRequestAuthoriser authoriser, Hasher hasher) {
+        this(root, DEFAULT_MAX_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD, transactions, authoriser, hasher);
+    }
+
+    private void loadSegments() throws IOException {
+        List<Integer> ids;
+        try (Stream<Path> files = Files.list(root)) {
+            ids = files.map(p -> SEGMENT_NAME.matcher(p.getFileName().toString()))
+                    .filter(Matcher::matches)
+                    .map(m -> Integer.parseInt(m.group(1)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        long t0 = System.currentTimeMillis();
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            Path path = segmentPath(id);
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Segment segment = new Segment(id, path, channel, channel.size());
+            segments.put(id, segment);
+            boolean isLast = i == ids.size() - 1;
+            long validSize = replay(segment, isLast);
+            if (validSize < segment.size) {
+                LOG.warning("Truncating incomplete write at " + validSize + " in " + path);
+                channel.truncate(validSize);
+                segment.size = validSize;
+            }
+        }
+        if (ids.isEmpty())
+            active = createSegment(0);
+        else
+            active = segments.get(ids.get(ids.size() - 1));
+        if (! ids.isEmpty())
+            LOG.info("Loaded index of " + index.size() + " blocks from " + ids.size() + " segments in "
+                    + (System.currentTimeMillis() - t0) + "mS");
+    }
+
+    /** Add the records in a segment to the index.
+     *
+     * @param verify Whether to check the CRC of each record
+     * @return The size of the valid prefix of the segment
+     */
+    private long replay(Segment segment, boolean verify) throws IOException {
+        long pos = 0;
+        ByteBuffer intBuf = ByteBuffer.allocate(4);
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (pos < segment.size) {
+            long recordStart = pos;
+            intBuf.clear();
+            if (readFully(segment.channel, intBuf, pos) < 4)
+                return recordStart;
+            int cidLength = intBuf.getInt(0);
+            if (cidLength <= 0 || cidLength > MAX_CID_SIZE)
+                return recordStart;
+            ByteBuffer cidBuf = ByteBuffer.allocate(cidLength);
+            if (readFully(segment.channel, cidBuf, pos + 4) < cidLength)
+                return recordStart;
+            header.clear();
+            if (readFully(segment.channel, header, pos + 4 + cidLength) < 8)
+                return recordStart;
+            int length = header.getInt(0);
+            int crc = header.getInt(4);
+            long dataStart = pos + 4 + cidLength + 8;
+            int dataLength = Math.max(0, length);
+            if (dataStart + dataLength > segment.size)
+                return recordStart;
+            Cid cid;
+            try {
+                cid = Cid.cast(cidBuf.array());
+            } catch (Exception e) {
+                return recordStart;
+            }
+            if (verify) {
+                byte[] data = new byte[dataLength];
+                readFully(segment.channel, ByteBuffer.wrap(data), dataStart);
+                if (crc(cidBuf.array(), data) != crc)
+                    return recordStart;
+            }
+            Location previous = length == TOMBSTONE ?
+                    index.remove(cid) :
+                    index.put(cid, new Location(segment.id, recordStart, dataStart, length));
+            if (previous != null)
+                segments.get(previous.segment).deadBytes.addAndGet(previous.recordSize());
+            if (length == TOMBSTONE)
+                segment.deadBytes.addAndGet(dataStart - recordStart);
+            pos = dataStart + dataLength;
+        }
+        return pos;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        int total = 0;
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position + total);
+            if (read < 0)
+                break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static int crc(byte[] cid, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(cid);
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private Path segmentPath(int id) {
+        return root.resolve(String.format("segment-%08d.pack", id));
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Path path = segmentPath(id);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel, 0);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /** Append a record to the active segment. Must be called holding the write lock.
+     *
+     * @return the location of the written record
+     */
+    private Location append(Cid cid, byte[] data, boolean tombstone) throws IOException {
+        if (active.size >= maxSegmentSize) {
+            active.channel.force(false);
+            active = createSegment(active.id + 1);
+        }
+        byte[] cidBytes = cid.toBytes();
+        byte[] body = tombstone ? new byte[0] : data;
+        ByteBuffer record = ByteBuffer.allocate(4 + cidBytes.length + 8 + body.length);
+        record.putInt(cidBytes.length);
+        record.put(cidBytes);
+        record.putInt(tombstone ? TOMBSTONE : body.length);
+        record.putInt(crc(cidBytes, body));
+        record.put(body);
+        record.flip();
+        long recordStart = active.size;
+        while (record.hasRemaining())
+            active.channel.write(record, recordStart + record.position());
+        active.size = recordStart + record.limit();
+        return new Location(active.id, recordStart, recordStart + 4 + cidBytes.length + 8, body.length);
+    }
+
+    private Optional<byte[]> read(Cid cid) throws IOException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location loc = index.get(cid);
+            if (loc == null)
+                return Optional.empty();
+            Segment segment = segments.get(loc.segment);
+            if (segment == null)
+                continue; // compacted concurrently, the index has already been updated
+            byte[] res = new byte[loc.length];
+            try {
+                if (segment == active || loc.dataStart + loc.length > segment.size) {
+                    readFully(segment.channel, ByteBuffer.wrap(res), loc.dataStart);
+                } else {
+                    ByteBuffer mapped = segment.map().duplicate();
+                    mapped.position((int) loc.dataStart);
+                    mapped.get(res);
+                }
+            } catch (ClosedChannelException e) {
+                continue; // compacted concurrently
+            }
+            return Optional.of(res);
+        }
+        return Optional.empty();
+    }
+
+    /** Open a new channel on the segment holding a block, so the region stays readable even if the segment is
+     *  compacted and deleted while it is being sent.
+     */
+    private Optional<FileRegion> openRegion(Cid cid) throws IOException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Location loc = index.get(cid);
+            if (loc == null)
+                return Optional.empty();
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(segmentPath(loc.segment), StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                continue; // compacted concurrently
+            }
+            if (index.get(cid) != loc) {
+                channel.close();
+                continue; // moved by compaction before we opened the segment
+            }
+            return Optional.of(new FileRegion(channel, loc.dataStart, loc.length));
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return this;
+    }
+
+    @Override
+    public CompletableFuture<Cid> id() {
+        return CompletableFuture.completedFuture(new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.sha2_256, RAMStorage.hash("PackFileStorage".getBytes())));
+    }
+
+    @Override
+    public CompletableFuture<TransactionId> startTransaction(PublicKeyHash owner) {
+        return CompletableFuture.completedFuture(transactions.startTransaction(owner));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        transactions.closeTransaction(owner, tid);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    @Override
+    public CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, byte[] champKey, Optional<BatWithId> bat) {
+        if (! hasBlock(root))
+            return Futures.errored(new IllegalStateException("Champ root not present locally: " + root));
+        return getChampLookup(root, champKey, bat, hasher);
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        return transactions.getOpenTransactionBlocks();
+    }
+
+    @Override
+    public void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        transactions.getOpenTransactionBlocks(receiver);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
+                                            PublicKeyHash writer,
+                                            List<byte[]> signedHashes,
+                                            List<byte[]> blocks,
+                                            TransactionId tid) {
+        return CompletableFuture.completedFuture(put(blocks, false, tid, owner));
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> putRaw(PublicKeyHash owner,
+                                               PublicKeyHash writer,
+                                               List<byte[]> signatures,
+                                               List<byte[]> blocks,
+                                               TransactionId tid,
+                                               ProgressConsumer<Long> progressConsumer) {
+        return CompletableFuture.completedFuture(put(blocks, true, tid, owner));
+    }
+
+    /** Write blocks which aren't already present, and sync them to disk before returning.
+     */
+    public List<Cid> put(List<byte[]> blocks, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
+        List<Cid> cids = blocks.stream()
+                .map(data -> new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor,
+                        Multihash.Type.sha2_256, RAMStorage.hash(data)))
+                .collect(Collectors.toList());
+        for (Cid cid : cids)
+            transactions.addBlock(cid, tid, owner);
+        try {
+            synchronized (writeLock) {
+                boolean written = false;
+                for (int i = 0; i < blocks.size(); i++) {
+                    Cid cid = cids.get(i);
+                    if (index.containsKey(cid))
+                        continue;
+                    index.put(cid, append(cid, blocks.get(i), false));
+                    written = true;
+                }
+                if (written)
+                    active.channel.force(false);
+            }
+            return cids;
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Cid hash, String auth) {
+        if (hash.codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash, auth).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Cid hash, Optional<BatWithId> bat) {
+        return get(hash, bat, id().join(), hasher);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, Optional<BatWithId> bat) {
+        return getRaw(hash, bat, id().join(), hasher);
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Cid hash, String auth) {
+        return getRaw(hash, auth, true);
+    }
+
+    private CompletableFuture<Optional<byte[]>> getRaw(Cid hash, String auth, boolean doAuth) {
+        try {
+            if (hash.isIdentity())
+                return Futures.of(Optional.of(hash.getHash()));
+            Optional<byte[]> block = read(hash);
+            if (block.isPresent() && doAuth && ! authoriser.allowRead(hash, block.get(), id().join(), auth).join())
+                return Futures.errored(new IllegalStateException("Unauthorised!"));
+            return CompletableFuture.completedFuture(block);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Optional<FileRegion>> getRawRegion(Cid hash, Optional<BatWithId> bat) {
+        return getRawRegion(hash, bat, id().join(), hasher);
+    }
+
+    @Override
+    public CompletableFuture<Optional<FileRegion>> getRawRegion(Cid hash, String auth) {
+        if (hash.codec != Cid.Codec.Raw || hash.isIdentity())
+            return Futures.of(Optional.empty());
+        try {
+            return Futures.of(openRegion(hash)
+                    .map(region -> FileRegionStorage.authorise(hash, region, auth, id().join(), authoriser)));
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean hasBlock(Cid hash) {
+        return index.containsKey(hash);
+    }
+
+    @Override
+    public CompletableFuture<List<Cid>> getLinks(Cid root, String auth) {
+        if (root.codec == Cid.Codec.Raw)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return getRaw(root, auth, false)
+                .thenApply(opt -> opt.map(CborObject::fromByteArray))
+                .thenApply(opt -> opt
+                        .map(cbor -> cbor.links().stream().map(c -> (Cid) c).collect(Collectors.toList()))
+                        .orElse(Collections.emptyList())
+                );
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash h) {
+        Location loc = index.get((Cid) h);
+        return CompletableFuture.completedFuture(loc == null ? Optional.empty() : Optional.of(loc.length));
+    }
+
+    @Override
+    public Stream<Cid> getAllBlockHashes() {
+        return new ArrayList<>(index.keySet()).stream();
+    }
+
+    @Override
+    public void delete(Multihash h) {
+        bulkDelete(Collections.singletonList(h));
+    }
+
+    @Override
+    public void bulkDelete(List<Multihash> blocks) {
+        try {
+            synchronized (writeLock) {
+                boolean written = false;
+                for (Multihash block : blocks) {
+                    Cid cid = (Cid) block;
+                    Location existing = index.get(cid);
+                    if (existing == null)
+                        continue;
+                    Location tombstone = append(cid, null, true);
+                    index.remove(cid);
+                    segments.get(existing.segment).deadBytes.addAndGet(existing.recordSize());
+                    segments.get(tombstone.segment).deadBytes.addAndGet(tombstone.recordSize());
+                    written = true;
+                }
+                if (written)
+                    active.channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+        compact(compactionThreshold);
+    }
+
+    /** Rewrite every full segment whose fraction of dead bytes is at least the given threshold.
+     *
+     * @return the number of bytes reclaimed
+     */
+    public long compact(double minDeadFraction) {
+        List<Segment> candidates = segments.values().stream()
+                .filter(s -> s != active)
+                .filter(s -> s.size == 0 || (double) s.deadBytes.get() / s.size >= minDeadFraction)
+                .sorted(Comparator.comparingInt(s -> s.id))
+                .collect(Collectors.toList());
+        long reclaimed = 0;
+        for (Segment segment : candidates) {
+            try {
+                reclaimed += compact(segment);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Error compacting " + segment.path, e);
+            }
+        }
+        return reclaimed;
+    }
+
+    private long compact(Segment segment) throws IOException {
+        synchronized (writeLock) {
+            long before = segment.size, copied = 0;
+            boolean hasOlderSegments = segments.keySet().stream().anyMatch(id -> id < segment.id);
+            long pos = 0;
+            ByteBuffer intBuf = ByteBuffer.allocate(4);
+            ByteBuffer header = ByteBuffer.allocate(8);
+            while (pos < segment.size) {
+                intBuf.clear();
+                readFully(segment.channel, intBuf, pos);
+                int cidLength = intBuf.getInt(0);
+                byte[] cidBytes = new byte[cidLength];
+                readFully(segment.channel, ByteBuffer.wrap(cidBytes), pos + 4);
+                header.clear();
+                readFully(segment.channel, header, pos + 4 + cidLength);
+                int length = header.getInt(0);
+                long dataStart = pos + 4 + cidLength + 8;
+                Cid cid = Cid.cast(cidBytes);
+                Location current = index.get(cid);
+                if (length == TOMBSTONE) {
+                    // A tombstone must be kept while an older segment might still contain the block
+                    if (current == null && hasOlderSegments) {
+                        Location tombstone = append(cid, null, true);
+                        active.deadBytes.addAndGet(tombstone.recordSize());
+                        copied += tombstone.recordSize();
+                    }
+                } else if (current != null && current.segment == segment.id && current.recordStart == pos) {
+                    byte[] data = new byte[length];
+                    readFully(segment.channel, ByteBuffer.wrap(data), dataStart);
+                    Location moved = append(cid, data, false);
+                    index.put(cid, moved);
+                    copied += moved.recordSize();
+                }
+                pos = dataStart + Math.max(0, length);
+            }
+            active.channel.force(false);
+            segments.remove(segment.id);
+            segment.channel.close();
+            Files.delete(segment.path);
+            LOG.info("Compacted " + segment.path + ", copied " + copied + " of " + before + " bytes");
+            return before - copied;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PackFileBlockStorage " + root;
+    }
+}
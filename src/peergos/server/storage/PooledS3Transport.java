@@ -0,0 +1,145 @@
+package peergos.server.storage;
+
+import peergos.shared.storage.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** An asynchronous S3 transport which reuses connections. Connections are kept alive between requests, and over
+ *  https HTTP/2 is negotiated where the server supports it, which multiplexes concurrent requests on one connection.
+ *
+ *  The number of requests in flight, and thus the number of open connections, is bounded. Requests beyond the bound
+ *  are queued without blocking the caller.
+ */
+public class PooledS3Transport implements S3Transport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    // These are set by the client itself and can't be overridden
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("host", "content-length", "connection", "expect", "upgrade");
+
+    private final HttpClient client, http1Client;
+    private final Semaphore slots;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    public PooledS3Transport(int maxConnections) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        // avoid h2c upgrade requests over plain http
+        this.http1Client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        this.slots = new Semaphore(maxConnections);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> get(PresignedUrl url) {
+        return send(request(url).GET(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(PooledS3Transport::successBody);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, List<String>>> head(PresignedUrl url) {
+        return send(request(url).method("HEAD", HttpRequest.BodyPublishers.noBody()), HttpResponse.BodyHandlers.discarding())
+                .thenApply(resp -> {
+                    int code = resp.statusCode();
+                    if (code == 200)
+                        return headers(resp);
+                    if (code == 503)
+                        throw new RateLimitException();
+                    throw new CompletionException(new IOException("HTTP " + code));
+                });
+    }
+
+    @Override
+    public CompletableFuture<byte[]> put(PresignedUrl url, byte[] body) {
+        return send(request(url).PUT(HttpRequest.BodyPublishers.ofByteArray(body)), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(PooledS3Transport::successBody);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> post(PresignedUrl url, byte[] body) {
+        return send(request(url).POST(HttpRequest.BodyPublishers.ofByteArray(body)), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(PooledS3Transport::successBody);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(PresignedUrl url) {
+        return send(request(url).DELETE(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(resp -> {
+                    if (resp.statusCode() == 204)
+                        return true;
+                    throw new IllegalStateException("HTTP " + resp.statusCode() + "-" + new String(resp.body()));
+                });
+    }
+
+    private static HttpRequest.Builder request(PresignedUrl url) {
+        HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(url.base))
+                .timeout(Duration.ofSeconds(60));
+        for (Map.Entry<String, String> e : url.fields.entrySet()) {
+            if (! RESTRICTED_HEADERS.contains(e.getKey().toLowerCase()))
+                req.header(e.getKey(), e.getValue());
+        }
+        return req;
+    }
+
+    private static byte[] successBody(HttpResponse<byte[]> resp) {
+        int code = resp.statusCode();
+        if (code >= 200 && code < 300)
+            return resp.body();
+        throw new CompletionException(new IOException(new String(resp.body())));
+    }
+
+    private static Map<String, List<String>> headers(HttpResponse<?> resp) {
+        // Match the capitalisation returned by HttpURLConnection
+        Map<String, List<String>> res = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        res.putAll(resp.headers().map());
+        return res;
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> send(HttpRequest.Builder builder, HttpResponse.BodyHandler<T> handler) {
+        HttpRequest req = builder.build();
+        HttpClient target = "https".equals(req.uri().getScheme()) ? client : http1Client;
+        return submit(() -> target.sendAsync(req, handler));
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> request) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        waiting.add(() -> {
+            CompletableFuture<T> sent;
+            try {
+                sent = request.get();
+            } catch (Throwable t) {
+                sent = CompletableFuture.failedFuture(t);
+            }
+            sent.whenComplete((r, t) -> {
+                slots.release();
+                dispatch();
+                if (t != null)
+                    res.completeExceptionally(t);
+                else
+                    res.complete(r);
+            });
+        });
+        dispatch();
+        return res;
+    }
+
+    private void dispatch() {
+        while (! waiting.isEmpty() && slots.tryAcquire()) {
+            Runnable next = waiting.poll();
+            if (next == null) {
+                slots.release();
+                continue;
+            }
+            next.run();
+        }
+    }
+}
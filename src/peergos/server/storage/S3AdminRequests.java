@@ -101,12 +101,32 @@ public class S3AdminRequests {
                                                               String s3SecretKey,
                                                               boolean useHttps,
                                                               Hasher h) {
+        return preSignList(prefix, maxKeys, continuationToken, Optional.empty(), now, host, region, accessKeyId,
+                s3SecretKey, useHttps, h);
+    }
+
+    /**
+     *
+     * @param startAfter If present, only keys which sort strictly after this are listed
+     */
+    public static CompletableFuture<PresignedUrl> preSignList(String prefix,
+                                                              int maxKeys,
+                                                              Optional<String> continuationToken,
+                                                              Optional<String> startAfter,
+                                                              ZonedDateTime now,
+                                                              String host,
+                                                              String region,
+                                                              String accessKeyId,
+                                                              String s3SecretKey,
+                                                              boolean useHttps,
+                                                              Hasher h) {
         Map<String, String> extraQueryParameters = new LinkedHashMap<>();
         extraQueryParameters.put("list-type", "2");
         extraQueryParameters.put("max-keys", "" + maxKeys);
         extraQueryParameters.put("fetch-owner", "false");
         extraQueryParameters.put("prefix", prefix);
         continuationToken.ifPresent(t -> extraQueryParameters.put("continuation-token", t));
+        startAfter.ifPresent(k -> extraQueryParameters.put("start-after", k));
 
         Instant normalised = normaliseDate(now);
         S3Request policy = new S3Request("GET", host, "", S3Request.UNSIGNED, Optional.empty(), false, true,
@@ -126,7 +146,24 @@ public class S3AdminRequests {
                                                Supplier<DocumentBuilder> builder,
                                                boolean useHttps,
                                                Hasher h) {
-        PresignedUrl listReq = preSignList(prefix, maxKeys, continuationToken, now, host, region, accessKeyId, s3SecretKey, useHttps, h).join();
+        return listObjects(prefix, maxKeys, continuationToken, Optional.empty(), now, host, region, accessKeyId,
+                s3SecretKey, getter, builder, useHttps, h);
+    }
+
+    public static ListObjectsReply listObjects(String prefix,
+                                               int maxKeys,
+                                               Optional<String> continuationToken,
+                                               Optional<String> startAfter,
+                                               ZonedDateTime now,
+                                               String host,
+                                               String region,
+                                               String accessKeyId,
+                                               String s3SecretKey,
+                                               Function<PresignedUrl, byte[]> getter,
+                                               Supplier<DocumentBuilder> builder,
+                                               boolean useHttps,
+                                               Hasher h) {
+        PresignedUrl listReq = preSignList(prefix, maxKeys, continuationToken, startAfter, now, host, region, accessKeyId, s3SecretKey, useHttps, h).join();
         try {
             Document xml = builder.get().parse(new ByteArrayInputStream(getter.apply(listReq)));
             List<ObjectMetadata> res = new ArrayList<>();
@@ -24,6 +24,7 @@ import java.sql.*;
 import java.time.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -50,6 +51,16 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
             .help("Number of block gets which fell back to p2p retrieval")
             .register();
 
+    private static final int LIST_PAGE_SIZE = 1_000;
+    private static final int MAX_BUFFERED_PAGES = 10;
+    // per put call, the transport bounds the total across calls
+    private static final int MAX_CONCURRENT_PUTS = 16;
+    private static final int MAX_CONCURRENT_HEADS = 32;
+    private static final int MAX_IN_FLIGHT_GETS = 10_000;
+    // The base32 key prefixes of sha256 raw and dag-cbor CIDv1s, and of CIDv0s, after which the key is uniform
+    private static final List<String> BLOCK_KEY_PREFIXES = Arrays.asList("AFKREI", "AFYREI", "CIQ");
+    private static final String BASE32_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+
     private final Cid id, p2pGetId;
     private final String region, bucket, folder, regionEndpoint, host;
     private final boolean useHttps;
@@ -59,6 +70,11 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
     private final BlockRequestAuthoriser authoriser;
     private final Hasher hasher;
     private final DeletableContentAddressedStorage p2pFallback;
+    private final int listingParallelism;
+    private final S3Transport transport;
+    // auth is checked per caller, so concurrent reads of a block can share the fetch from S3
+    private final SingleFlight<Cid, byte[]> inFlightGets = new SingleFlight<>("s3_get", MAX_IN_FLIGHT_GETS);
+    private final S3Signer signer;
 
     public S3BlockStorage(S3Config config,
                           Cid id,
@@ -67,6 +83,18 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                           BlockRequestAuthoriser authoriser,
                           Hasher hasher,
                           DeletableContentAddressedStorage p2pFallback) {
+        this(config, id, props, transactions, authoriser, hasher, p2pFallback,
+                new PooledS3Transport(PooledS3Transport.DEFAULT_MAX_CONNECTIONS));
+    }
+
+    public S3BlockStorage(S3Config config,
+                          Cid id,
+                          BlockStoreProperties props,
+                          TransactionStore transactions,
+                          BlockRequestAuthoriser authoriser,
+                          Hasher hasher,
+                          DeletableContentAddressedStorage p2pFallback,
+                          S3Transport transport) {
         this.id = id;
         this.p2pGetId = p2pFallback.id().join();
         this.region = config.region;
@@ -83,6 +111,9 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         this.authoriser = authoriser;
         this.hasher = hasher;
         this.p2pFallback = p2pFallback;
+        this.listingParallelism = config.listingParallelism;
+        this.transport = transport;
+        this.signer = new S3Signer(host, region, accessKeyId, secretKey, useHttps);
     }
 
     @Override
@@ -109,7 +140,8 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
             throw new IllegalStateException("Too many reads to auth!");
         List<PresignedUrl> res = new ArrayList<>();
 
-        if (! blocks.stream().allMatch(c -> hasBlock(c.hash)))
+        // getRaw falls back to p2p, so check presence in S3 first
+        if (! hasBlocks(blocks.stream().map(b -> b.hash).collect(Collectors.toList())).join().stream().allMatch(x -> x))
             return Futures.errored(new IllegalStateException("Blocks not present locally"));
 
         // retrieve all blocks and verify BATs in parallel
@@ -120,7 +152,7 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
 
         for (MirrorCap block : blocks) {
             String s3Key = hashToKey(block.hash);
-            res.add(S3Request.preSignGet(folder + s3Key, Optional.of(600), S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join());
+            res.add(signer.preSignGet(folder + s3Key, Optional.of(600)));
         }
         for (CompletableFuture<Optional<byte[]>> fut : data) {
             fut.join(); // Any invalids BATs will cause this to throw
@@ -156,8 +188,7 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                 String contentSha256 = ArrayOps.bytesToHex(props.left.getHash());
                 Map<String, String> extraHeaders = new LinkedHashMap<>();
                 extraHeaders.put("Content-Type", "application/octet-stream");
-                res.add(S3Request.preSignPut(folder + s3Key, props.right, contentSha256, false,
-                        S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, extraHeaders, region, accessKeyId, secretKey, useHttps, hasher).join());
+                res.add(signer.preSignPut(folder + s3Key, props.right, contentSha256, false, extraHeaders));
             }
             return Futures.of(res);
         } catch (Exception e) {
@@ -198,39 +229,43 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
     }
 
     private CompletableFuture<Optional<byte[]>> getRaw(Cid hash, String auth, boolean enforceAuth, Optional<BatWithId> bat) {
-        return getWithBackoff(() -> getRawWithoutBackoff(hash, auth, enforceAuth, bat));
+        return getAsyncWithBackoff(() -> getRawWithoutBackoff(hash, auth, enforceAuth, bat));
     }
 
     private CompletableFuture<Optional<byte[]>> getRawWithoutBackoff(Cid hash, String auth, boolean enforceAuth, Optional<BatWithId> bat) {
         String path = folder + hashToKey(hash);
-        PresignedUrl getUrl = S3Request.preSignGet(path, Optional.of(600),
-                S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
+        PresignedUrl getUrl = signer.preSignGet(path, Optional.of(600));
         Histogram.Timer readTimer = readTimerLog.labels("read").startTimer();
-        try {
-            byte[] block = HttpUtil.get(getUrl);
-            // validate auth, unless this is an internal query
-            if (enforceAuth && ! authoriser.allowRead(hash, block, id, auth).join())
-                throw new IllegalStateException("Unauthorised!");
-            return Futures.of(Optional.of(block));
-        } catch (IOException e) {
-            String msg = e.getMessage();
-            boolean rateLimited = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>SlowDown</Code>");
-            if (rateLimited) {
-                throw new RateLimitException();
-            }
-            boolean notFound = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>");
-            if (! notFound) {
-                LOG.warning("S3 error reading " + path);
-                LOG.log(Level.WARNING, msg, e);
-            }
+        return inFlightGets.get(hash, () -> transport.get(getUrl))
+                .thenCompose(block -> {
+                    // validate auth, unless this is an internal query
+                    if (! enforceAuth)
+                        return Futures.of(Optional.of(block));
+                    return authoriser.allowRead(hash, block, id, auth).thenApply(allowed -> {
+                        if (! allowed)
+                            throw new IllegalStateException("Unauthorised!");
+                        return Optional.of(block);
+                    });
+                }).handle((res, t) -> {
+                    readTimer.observeDuration();
+                    if (t == null)
+                        return Futures.of(res);
+                    Throwable cause = unwrap(t);
+                    if (! (cause instanceof IOException))
+                        return Futures.<Optional<byte[]>>errored(cause);
+                    String msg = cause.getMessage();
+                    if (isRateLimited(msg))
+                        throw new RateLimitException();
+                    if (! isNotFound(msg)) {
+                        LOG.warning("S3 error reading " + path);
+                        LOG.log(Level.WARNING, msg, cause);
+                    }
 
-            nonLocalGets.inc();
-            if (p2pGetId.equals(id))
-                return p2pFallback.getRaw(hash, auth);
-            return p2pFallback.getRaw(hash, bat); // recalculate auth when the fallback node has a different node id
-        } finally {
-            readTimer.observeDuration();
-        }
+                    nonLocalGets.inc();
+                    if (p2pGetId.equals(id))
+                        return p2pFallback.getRaw(hash, auth);
+                    return p2pFallback.getRaw(hash, bat); // recalculate auth when the fallback node has a different node id
+                }).thenCompose(x -> x);
     }
 
     @Override
@@ -240,61 +275,50 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
 
     public boolean hasBlockWithoutBackoff(Cid hash) {
         try {
-            PresignedUrl headUrl = S3Request.preSignHead(folder + hashToKey(hash), Optional.of(60),
-                    S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
-            Map<String, List<String>> headRes = HttpUtil.head(headUrl);
+            PresignedUrl headUrl = signer.preSignHead(folder + hashToKey(hash), Optional.of(60));
+            Map<String, List<String>> headRes = transport.head(headUrl).join();
             return true;
-        } catch (IOException e) {
-            String msg = e.getMessage();
-            boolean rateLimited = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>SlowDown</Code>");
-            if (rateLimited) {
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof RateLimitException)
+                throw (RateLimitException) cause;
+            if (! (cause instanceof IOException))
+                throw e;
+            String msg = cause.getMessage();
+            if (isRateLimited(msg)) {
                 throw new RateLimitException();
             }
-            boolean notFound = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>");
-            if (! notFound) {
+            if (! isNotFound(msg)) {
                 LOG.warning("S3 error reading " + hash);
-                LOG.log(Level.WARNING, msg, e);
+                LOG.log(Level.WARNING, msg, cause);
             }
             return false;
         }
     }
 
     @Override
-    public CompletableFuture<List<Cid>> mirror(PublicKeyHash owner,
-                                               Optional<Cid> existing,
-                                               Optional<Cid> updated,
-                                               Optional<BatWithId> mirrorBat,
-                                               Cid ourNodeId,
-                                               TransactionId tid,
-                                               Hasher hasher) {
-        if (updated.isEmpty())
-            return Futures.of(Collections.emptyList());
-        Cid newRoot = updated.get();
-        if (existing.equals(updated))
-            return Futures.of(Collections.singletonList(newRoot));
-
-        if (contains(newRoot))
-            return Futures.of(Collections.singletonList(newRoot));
-        Optional<byte[]> newBlock = p2pFallback.getRaw(newRoot, mirrorBat, id, hasher).join();
-        if (newBlock.isEmpty())
-            throw new IllegalStateException("Couldn't retrieve block: " + newRoot);
-        put(newBlock.get(), false, tid, owner);
-        if (newRoot.isRaw())
-            return Futures.of(Collections.singletonList(newRoot));
-
-        List<Multihash> newLinks = CborObject.fromByteArray(newBlock.get()).links();
-        List<Multihash> existingLinks = existing.map(h -> get(h, mirrorBat, id, hasher).join())
-                .flatMap(copt -> copt.map(CborObject::links))
-                .orElse(Collections.emptyList());
+    public CompletableFuture<List<Optional<Integer>>> getSizes(List<Cid> blocks) {
+        return inLanes(blocks.size(), MAX_CONCURRENT_HEADS, i -> getSize(blocks.get(i)));
+    }
 
-        for (int i=0; i < newLinks.size(); i++) {
-            Optional<Cid> existingLink = i < existingLinks.size() ?
-                    Optional.of((Cid)existingLinks.get(i)) :
-                    Optional.empty();
-            Optional<Cid> updatedLink = Optional.of((Cid)newLinks.get(i));
-            mirror(owner, existingLink, updatedLink, mirrorBat, ourNodeId, tid, hasher).join();
-        }
-        return Futures.of(Collections.singletonList(newRoot));
+    @Override
+    public CompletableFuture<List<Boolean>> hasBlocks(List<Cid> hashes) {
+        return getSizes(hashes).thenApply(sizes -> sizes.stream()
+                .map(Optional::isPresent)
+                .collect(Collectors.toList()));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> mirrorBlock(PublicKeyHash owner,
+                                                           Cid hash,
+                                                           Optional<BatWithId> mirrorBat,
+                                                           Cid ourNodeId,
+                                                           TransactionId tid,
+                                                           Hasher hasher) {
+        return p2pFallback.getRaw(hash, mirrorBat, id, hasher).thenApply(block -> {
+            block.ifPresent(data -> put(data, hash.isRaw(), tid, owner));
+            return block;
+        });
     }
 
     @Override
@@ -309,8 +333,16 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         return transactions.getOpenTransactionBlocks();
     }
 
-    private void collectGarbage(JdbcIpnsAndSocial pointers, UsageStore usage) {
-        GarbageCollector.collect(this, pointers, usage, this::savePointerSnapshot);
+    @Override
+    public void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        transactions.getOpenTransactionBlocks(receiver);
+    }
+
+    private void collectGarbage(JdbcIpnsAndSocial pointers, UsageStore usage, boolean streaming, long expectedReachableBlocks) {
+        if (streaming)
+            GarbageCollector.collectStreaming(this, pointers, usage, expectedReachableBlocks, this::savePointerSnapshot);
+        else
+            GarbageCollector.collect(this, pointers, usage, this::savePointerSnapshot);
     }
 
     private CompletableFuture<Boolean> savePointerSnapshot(Stream<Map.Entry<PublicKeyHash, byte[]>> pointers) {
@@ -327,6 +359,49 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         return Futures.of(true);
     }
 
+    private static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null)
+            t = t.getCause();
+        return t;
+    }
+
+    private static boolean isRateLimited(String s3ErrorMessage) {
+        return s3ErrorMessage != null &&
+                s3ErrorMessage.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>SlowDown</Code>");
+    }
+
+    private static boolean isNotFound(String s3ErrorMessage) {
+        return s3ErrorMessage != null &&
+                (s3ErrorMessage.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>") ||
+                        s3ErrorMessage.equals("HTTP 404"));
+    }
+
+    /** Retry a request which fails with a RateLimitException, with exponential backoff, without blocking a thread.
+     */
+    private static <V> CompletableFuture<V> getAsyncWithBackoff(Supplier<CompletableFuture<V>> req) {
+        return getAsyncWithBackoff(req, 100, 20);
+    }
+
+    private static <V> CompletableFuture<V> getAsyncWithBackoff(Supplier<CompletableFuture<V>> req, long sleep, int retries) {
+        CompletableFuture<V> attempt;
+        try {
+            attempt = req.get();
+        } catch (RateLimitException e) {
+            attempt = Futures.errored(e);
+        }
+        return attempt.handle((res, t) -> {
+            if (t == null)
+                return Futures.of(res);
+            if (! (unwrap(t) instanceof RateLimitException))
+                return Futures.<V>errored(unwrap(t));
+            if (retries <= 1)
+                return Futures.<V>errored(new IllegalStateException("Couldn't process request because of rate limit!"));
+            Executor delayed = CompletableFuture.delayedExecutor(sleep, TimeUnit.MILLISECONDS);
+            return CompletableFuture.supplyAsync(() -> getAsyncWithBackoff(req, sleep * 2, retries - 1), delayed)
+                    .thenCompose(x -> x);
+        }).thenCompose(x -> x);
+    }
+
     private static <V> V getWithBackoff(Supplier<V> req) {
         long sleep = 100;
         for (int i=0; i < 20; i++) {
@@ -344,41 +419,41 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<Integer>> getSize(Multihash hash) {
-        return getWithBackoff(() -> getSizeWithoutRetry(hash));
+        return getAsyncWithBackoff(() -> getSizeWithoutRetry(hash));
     }
 
     private CompletableFuture<Optional<Integer>> getSizeWithoutRetry(Multihash hash) {
         if (hash.isIdentity()) // Identity hashes are not actually stored explicitly
             return Futures.of(Optional.of(0));
         Histogram.Timer readTimer = readTimerLog.labels("size").startTimer();
-        try {
-            PresignedUrl headUrl = S3Request.preSignHead(folder + hashToKey(hash), Optional.of(60),
-                    S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
-            Map<String, List<String>> headRes = HttpUtil.head(headUrl);
-            long size = Long.parseLong(headRes.get("Content-Length").get(0));
-            return Futures.of(Optional.of((int)size));
-        } catch (IOException e) {
-            String msg = e.getMessage();
-            boolean rateLimited = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>SlowDown</Code>");
-            if (rateLimited) {
+        PresignedUrl headUrl = signer.preSignHead(folder + hashToKey(hash), Optional.of(60));
+        return transport.head(headUrl).handle((headRes, t) -> {
+            readTimer.observeDuration();
+            if (t == null) {
+                long size = Long.parseLong(headRes.get("Content-Length").get(0));
+                return Optional.of((int) size);
+            }
+            Throwable cause = unwrap(t);
+            if (cause instanceof RateLimitException)
+                throw (RateLimitException) cause;
+            if (! (cause instanceof IOException))
+                throw new CompletionException(cause);
+            String msg = cause.getMessage();
+            if (isRateLimited(msg)) {
                 throw new RateLimitException();
             }
-            boolean notFound = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>NoSuchKey</Code>");
-            if (! notFound) {
+            if (! isNotFound(msg)) {
                 LOG.warning("S3 error reading " + hash);
-                LOG.log(Level.WARNING, msg, e);
+                LOG.log(Level.WARNING, msg, cause);
             }
-            return Futures.of(Optional.empty());
-        } finally {
-            readTimer.observeDuration();
-        }
+            return Optional.empty();
+        });
     }
 
     public boolean contains(Multihash hash) {
         try {
-            PresignedUrl headUrl = S3Request.preSignHead(folder + hashToKey(hash), Optional.of(60),
-                    S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, region, accessKeyId, secretKey, useHttps, hasher).join();
-            Map<String, List<String>> headRes = HttpUtil.head(headUrl);
+            PresignedUrl headUrl = signer.preSignHead(folder + hashToKey(hash), Optional.of(60));
+            Map<String, List<String>> headRes = transport.head(headUrl).join();
             return true;
         } catch (Exception e) {
             return false;
@@ -424,9 +499,32 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                                              List<byte[]> blocks,
                                              boolean isRaw,
                                              TransactionId tid) {
-        return CompletableFuture.completedFuture(blocks.stream()
-                .map(b -> put(b, isRaw, tid, owner))
-                .collect(Collectors.toList()));
+        List<Cid> cids = blocks.parallelStream()
+                .map(b -> new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, Multihash.Type.sha2_256, Hash.sha256(b)))
+                .collect(Collectors.toList());
+        transactions.addBlocks(cids, tid, owner);
+        return inLanes(blocks.size(), MAX_CONCURRENT_PUTS, i -> putAsync(cids.get(i), blocks.get(i)));
+    }
+
+    /** Run a request for each index, with at most maxInFlight running at once. Each lane runs its share of the
+     *  requests one after another.
+     *
+     * @return the results in index order
+     */
+    private static <T> CompletableFuture<List<T>> inLanes(int count, int maxInFlight, IntFunction<CompletableFuture<T>> request) {
+        List<T> results = new ArrayList<>(Collections.nCopies(count, null));
+        int lanes = Math.min(maxInFlight, count);
+        List<CompletableFuture<Void>> laneResults = new ArrayList<>();
+        for (int lane = 0; lane < lanes; lane++) {
+            CompletableFuture<Void> last = Futures.of(null);
+            for (int i = lane; i < count; i += lanes) {
+                int index = i;
+                last = last.thenCompose(x -> request.apply(index).thenAccept(res -> results.set(index, res)));
+            }
+            laneResults.add(last);
+        }
+        return Futures.combineAll(laneResults)
+                .thenApply(x -> results);
     }
 
     /** Must be atomic relative to reads of the same key
@@ -434,27 +532,41 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
      * @param data
      */
     public Cid put(byte[] data, boolean isRaw, TransactionId tid, PublicKeyHash owner) {
-        Histogram.Timer writeTimer = writeTimerLog.labels("write").startTimer();
         Multihash hash = new Multihash(Multihash.Type.sha2_256, Hash.sha256(data));
         Cid cid = new Cid(1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, hash.type, hash.getHash());
-        String key = hashToKey(cid);
+        transactions.addBlock(cid, tid, owner);
         try {
-            transactions.addBlock(cid, tid, owner);
-            String s3Key = folder + key;
+            return putAsync(cid, data).join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            throw new RuntimeException(cause.getMessage(), cause);
+        }
+    }
+
+    private CompletableFuture<Cid> putAsync(Cid cid, byte[] data) {
+        Histogram.Timer writeTimer = writeTimerLog.labels("write").startTimer();
+        String s3Key = folder + hashToKey(cid);
+        return getAsyncWithBackoff(() -> {
             Map<String, String> extraHeaders = new TreeMap<>();
             extraHeaders.put("Content-Type", "application/octet-stream");
             boolean hashContent = true;
-            String contentHash = hashContent ? ArrayOps.bytesToHex(hash.getHash()) : "UNSIGNED-PAYLOAD";
-            PresignedUrl putUrl = S3Request.preSignPut(s3Key, data.length, contentHash, false,
-                    S3AdminRequests.asAwsDate(ZonedDateTime.now()), host, extraHeaders, region, accessKeyId, secretKey, useHttps, hasher).join();
-            HttpUtil.put(putUrl, data);
-            return cid;
-        } catch (IOException e) {
-            LOG.log(Level.SEVERE, e.getMessage(), e);
-            throw new RuntimeException(e.getMessage(), e);
-        } finally {
+            String contentHash = hashContent ? ArrayOps.bytesToHex(cid.getHash()) : "UNSIGNED-PAYLOAD";
+            PresignedUrl putUrl = signer.preSignPut(s3Key, data.length, contentHash, false, extraHeaders);
+            return transport.put(putUrl, data).handle((res, t) -> {
+                if (t == null)
+                    return cid;
+                Throwable cause = unwrap(t);
+                if (cause instanceof IOException && isRateLimited(cause.getMessage()))
+                    throw new RateLimitException();
+                throw new CompletionException(cause);
+            });
+        }).whenComplete((res, t) -> {
             writeTimer.observeDuration();
-        }
+            if (t != null) {
+                Throwable cause = unwrap(t);
+                LOG.log(Level.SEVERE, cause.getMessage(), cause);
+            }
+        });
     }
 
     @Override
@@ -483,20 +595,158 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
     }
 
     public Stream<Cid> getAllBlockHashes() {
-        // todo make this actually streaming
-        return getFiles(Long.MAX_VALUE).stream();
+        return getAllBlockHashes(listingParallelism);
     }
 
-    private List<Cid> getFiles(long maxReturned) {
-        List<Cid> results = new ArrayList<>();
-        applyToAll(obj -> {
+    /** Lazily list all the blocks. Pages are fetched in the background while earlier pages are consumed. With a
+     *  parallelism above one, the key space is split into ranges which are listed concurrently, and the order of the
+     *  result is not defined.
+     *
+     * @param parallelism The maximum number of concurrent list requests
+     * @return
+     */
+    public Stream<Cid> getAllBlockHashes(int parallelism) {
+        List<Pair<Optional<String>, Optional<String>>> ranges = parallelism > 1 ?
+                getListingRanges() :
+                Collections.singletonList(new Pair<>(Optional.empty(), Optional.empty()));
+        BlockListing listing = new BlockListing(ranges, parallelism);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(listing, Spliterator.NONNULL), false)
+                .onClose(listing::cancel);
+    }
+
+    /**
+     *
+     * @return contiguous ranges of (exclusive start, inclusive end) keys which cover all possible keys
+     */
+    private List<Pair<Optional<String>, Optional<String>>> getListingRanges() {
+        List<String> boundaries = BLOCK_KEY_PREFIXES.stream()
+                .flatMap(p -> BASE32_ALPHABET.chars().mapToObj(c -> folder + p + (char) c))
+                .sorted()
+                .collect(Collectors.toList());
+        List<Pair<Optional<String>, Optional<String>>> ranges = new ArrayList<>();
+        Optional<String> start = Optional.empty();
+        for (String boundary : boundaries) {
+            ranges.add(new Pair<>(start, Optional.of(boundary)));
+            start = Optional.of(boundary);
+        }
+        ranges.add(new Pair<>(start, Optional.empty()));
+        return ranges;
+    }
+
+    /** Lists key ranges in background threads into a bounded buffer of pages, which this iterates over.
+     */
+    private class BlockListing implements Iterator<Cid> {
+        private final List<Cid> END = new ArrayList<>();
+        private final BlockingQueue<List<Cid>> pages = new ArrayBlockingQueue<>(MAX_BUFFERED_PAGES);
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private volatile boolean cancelled = false;
+        private final ExecutorService listers;
+        private int remainingRanges;
+        private Iterator<Cid> current = Collections.emptyIterator();
+
+        BlockListing(List<Pair<Optional<String>, Optional<String>>> ranges, int parallelism) {
+            this.remainingRanges = ranges.size();
+            this.listers = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, ranges.size())), r -> {
+                Thread t = new Thread(r, "S3 block listing");
+                t.setDaemon(true);
+                return t;
+            });
+            for (Pair<Optional<String>, Optional<String>> range : ranges)
+                listers.submit(() -> listRange(range.left, range.right));
+            listers.shutdown();
+        }
+
+        private void listRange(Optional<String> startAfter, Optional<String> end) {
             try {
-                results.add(keyToHash(obj.key));
-            } catch (Exception e) {
-                LOG.warning("Couldn't parse S3 key to Cid: " + obj.key);
+                Optional<String> continuationToken = Optional.empty();
+                S3AdminRequests.ListObjectsReply result;
+                do {
+                    if (cancelled)
+                        return;
+                    result = S3AdminRequests.listObjects(folder, LIST_PAGE_SIZE, continuationToken, startAfter,
+                            ZonedDateTime.now(), host, region, accessKeyId, secretKey, S3BlockStorage.this::getListing, S3AdminRequests.builder::get, useHttps, hasher);
+
+                    List<Cid> page = new ArrayList<>();
+                    boolean reachedEnd = false;
+                    for (S3AdminRequests.ObjectMetadata objectSummary : result.objects) {
+                        if (end.isPresent() && objectSummary.key.compareTo(end.get()) > 0) {
+                            reachedEnd = true;
+                            break;
+                        }
+                        if (objectSummary.key.endsWith("/")) {
+                            LOG.fine(" - " + objectSummary.key + "  " + "(directory)");
+                            continue;
+                        }
+                        try {
+                            page.add(keyToHash(objectSummary.key));
+                        } catch (Exception e) {
+                            LOG.warning("Couldn't parse S3 key to Cid: " + objectSummary.key);
+                        }
+                    }
+                    if (! page.isEmpty() && ! put(page))
+                        return;
+                    if (reachedEnd)
+                        return;
+                    LOG.log(Level.FINE, "Next Continuation Token : " + result.continuationToken);
+                    continuationToken = result.continuationToken;
+                } while (result.isTruncated);
+            } catch (Throwable t) {
+                LOG.log(Level.SEVERE, t.getMessage(), t);
+                failure.compareAndSet(null, t);
+            } finally {
+                // the consumer waits for an END from every range, so this can't be dropped
+                if (! cancelled)
+                    put(END);
             }
-        }, maxReturned);
-        return results;
+        }
+
+        /** Block until there is room in the buffer, or the listing is cancelled
+         *
+         * @return whether the page was added
+         */
+        private boolean put(List<Cid> page) {
+            try {
+                pages.put(page);
+                return true;
+            } catch (InterruptedException e) {
+                cancelled = true;
+                return false;
+            }
+        }
+
+        public void cancel() {
+            cancelled = true;
+            listers.shutdownNow();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (! current.hasNext()) {
+                if (remainingRanges == 0) {
+                    Throwable t = failure.get();
+                    if (t != null)
+                        throw new RuntimeException("Error listing blocks", t);
+                    return false;
+                }
+                try {
+                    List<Cid> page = pages.take();
+                    if (page == END)
+                        remainingRanges--;
+                    else
+                        current = page.iterator();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Cid next() {
+            if (! hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
     }
 
     private List<String> getFilenames(long maxReturned) {
@@ -512,13 +762,7 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
             long processedObjects = 0;
             do {
                 result = S3AdminRequests.listObjects(folder, 1_000, continuationToken,
-                        ZonedDateTime.now(), host, region, accessKeyId, secretKey, url -> {
-                            try {
-                                return HttpUtil.get(url);
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        }, S3AdminRequests.builder::get, useHttps, hasher);
+                        ZonedDateTime.now(), host, region, accessKeyId, secretKey, this::getListing, S3AdminRequests.builder::get, useHttps, hasher);
 
                 for (S3AdminRequests.ObjectMetadata objectSummary : result.objects) {
                     if (objectSummary.key.endsWith("/")) {
@@ -541,11 +785,10 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
 
     public void delete(Multihash hash) {
         try {
-            PresignedUrl delUrl = S3Request.preSignDelete(folder + hashToKey(hash), S3AdminRequests.asAwsDate(ZonedDateTime.now()), host,
-                    region, accessKeyId, secretKey, useHttps, hasher).join();
-            HttpUtil.delete(delUrl);
+            PresignedUrl delUrl = signer.preSignDelete(folder + hashToKey(hash));
+            transport.delete(delUrl).join();
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            throw new RuntimeException(unwrap(e));
         }
     }
 
@@ -557,18 +800,25 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
                 b -> ArrayOps.bytesToHex(Hash.sha256(b)),
                 (url, body) -> {
                     try {
-                        return HttpUtil.post(url, body);
-                    } catch (IOException e) {
-                        String msg = e.getMessage();
-                        boolean rateLimited = msg.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>SlowDown</Code>");
-                        if (rateLimited) {
+                        return transport.post(url, body).join();
+                    } catch (CompletionException e) {
+                        Throwable cause = unwrap(e);
+                        if (cause instanceof RateLimitException || isRateLimited(cause.getMessage())) {
                             throw new RateLimitException();
                         }
-                        throw new RuntimeException(e);
+                        throw new RuntimeException(cause);
                     }
                 }, S3AdminRequests.builder::get, useHttps, hasher);
     }
 
+    private byte[] getListing(PresignedUrl url) {
+        try {
+            return transport.get(url).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException(unwrap(e));
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         System.out.println("Performing GC on S3 block store...");
         Args a = Args.parse(args);
@@ -584,11 +834,12 @@ public class S3BlockStorage implements DeletableContentAddressedStorage {
         TransactionStore transactions = JdbcTransactionStore.build(transactionsDb, sqlCommands);
         BlockRequestAuthoriser authoriser = (c, b, s, auth) -> Futures.of(true);
         S3BlockStorage s3 = new S3BlockStorage(config, Cid.decode(a.getArg("ipfs.id")),
-                BlockStoreProperties.empty(), transactions, authoriser, hasher, new RAMStorage(hasher));
+                BlockStoreProperties.empty(), transactions, authoriser, hasher, new RAMStorage(hasher), S3Transport.build(a));
         JdbcIpnsAndSocial rawPointers = new JdbcIpnsAndSocial(database, sqlCommands);
         Supplier<Connection> usageDb = Main.getDBConnector(a, "space-usage-sql-file");
         UsageStore usageStore = new JdbcUsageStore(usageDb, sqlCommands);
-        s3.collectGarbage(rawPointers, usageStore);
+        s3.collectGarbage(rawPointers, usageStore, a.getBoolean("gc.streaming", false),
+                a.getLong("gc.expected-blocks", GarbageCollector.DEFAULT_EXPECTED_REACHABLE_BLOCKS));
     }
 
     @Override
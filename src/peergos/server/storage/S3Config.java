@@ -6,6 +6,7 @@ import java.util.*;
 
 public class S3Config {
     public final String path, bucket, region, accessKey, secretKey, regionEndpoint;
+    public final int listingParallelism;
 
     /**
      *
@@ -15,14 +16,20 @@ public class S3Config {
      * @param accessKey The S3 access key
      * @param secretKey The S3 secret key
      * @param regionEndpoint The location of the S3 endpoint e.g. us-east-1.linodeobjects.com
+     * @param listingParallelism The number of key ranges to list concurrently when listing all blocks
      */
-    public S3Config(String path, String bucket, String region, String accessKey, String secretKey, String regionEndpoint) {
+    public S3Config(String path, String bucket, String region, String accessKey, String secretKey, String regionEndpoint, int listingParallelism) {
         this.path = path;
         this.bucket = bucket;
         this.region = region;
         this.accessKey = accessKey;
         this.secretKey = secretKey;
         this.regionEndpoint = regionEndpoint;
+        this.listingParallelism = listingParallelism;
+    }
+
+    public S3Config(String path, String bucket, String region, String accessKey, String secretKey, String regionEndpoint) {
+        this(path, bucket, region, accessKey, secretKey, regionEndpoint, 1);
     }
 
     public String getHost() {
@@ -40,7 +47,8 @@ public class S3Config {
         String accessKey = a.getArg("s3.accessKey", "");
         String secretKey = a.getArg("s3.secretKey", "");
         String regionEndpoint = a.getArg("s3.region.endpoint", bucket + ".amazonaws.com");
-        return new S3Config(path, bucket, region, accessKey, secretKey, regionEndpoint);
+        int listingParallelism = a.getInt("s3.listing-parallelism", 1);
+        return new S3Config(path, bucket, region, accessKey, secretKey, regionEndpoint, listingParallelism);
     }
 
     public static Optional<String> getPublicReadUrl(Args a) {
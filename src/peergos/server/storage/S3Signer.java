@@ -0,0 +1,128 @@
+package peergos.server.storage;
+
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.util.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+import java.security.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+
+/** A reusable presigner of S3 requests for a single host and set of credentials.
+ *
+ *  Unlike the static methods in S3Request, which recompute the whole SigV4 key derivation for every request, this
+ *  caches the derived signing key for the current day, formats the request date at most once per second, and signs
+ *  synchronously with a per thread Mac.
+ */
+public class S3Signer {
+    private static final String HMAC = "HmacSHA256";
+    private static final DateTimeFormatter AWS_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private final String host, region, accessKeyId, secretKey;
+    private final boolean useHttps;
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(S3Signer::newMac);
+    private volatile Pair<String, byte[]> signingKey = new Pair<>("", new byte[0]);
+    private volatile Pair<Long, String> datetime = new Pair<>(-1L, "");
+
+    public S3Signer(String host, String region, String accessKeyId, String secretKey, boolean useHttps) {
+        this.host = host;
+        this.region = region;
+        this.accessKeyId = accessKeyId;
+        this.secretKey = secretKey;
+        this.useHttps = useHttps;
+    }
+
+    /**
+     *
+     * @return The current time in the format used by S3 e.g. 20200425T204156Z
+     */
+    public String currentDatetime() {
+        long second = System.currentTimeMillis() / 1000;
+        Pair<Long, String> cached = datetime;
+        if (cached.left == second)
+            return cached.right;
+        String formatted = AWS_DATE.format(Instant.ofEpochSecond(second));
+        datetime = new Pair<>(second, formatted);
+        return formatted;
+    }
+
+    public PresignedUrl preSignGet(String key, Optional<Integer> expirySeconds) {
+        return preSignNulliPotent("GET", key, expirySeconds);
+    }
+
+    public PresignedUrl preSignHead(String key, Optional<Integer> expirySeconds) {
+        return preSignNulliPotent("HEAD", key, expirySeconds);
+    }
+
+    public PresignedUrl preSignDelete(String key) {
+        return preSignNulliPotent("DELETE", key, Optional.empty());
+    }
+
+    private PresignedUrl preSignNulliPotent(String verb, String key, Optional<Integer> expirySeconds) {
+        S3Request req = new S3Request(verb, host, key, S3Request.UNSIGNED, expirySeconds, false, true,
+                Collections.emptyMap(), Collections.emptyMap(), accessKeyId, region, currentDatetime());
+        return preSign(req);
+    }
+
+    public PresignedUrl preSignPut(String key,
+                                   int size,
+                                   String contentSha256,
+                                   boolean allowPublicReads,
+                                   Map<String, String> extraHeaders) {
+        extraHeaders.put("Content-Length", "" + size);
+        S3Request req = new S3Request("PUT", host, key, contentSha256, Optional.empty(), allowPublicReads, true,
+                Collections.emptyMap(), extraHeaders, accessKeyId, region, currentDatetime());
+        return preSign(req);
+    }
+
+    public PresignedUrl preSign(S3Request req) {
+        return S3Request.buildPresignedUrl(req, req.key, host, computeSignature(req), useHttps);
+    }
+
+    /** Equivalent to S3Request.computeSignature with this signer's secret key.
+     */
+    public String computeSignature(S3Request req) {
+        Mac mac = macs.get();
+        try {
+            mac.init(new SecretKeySpec(getSigningKey(req.shortDate, req.region), HMAC));
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+        return ArrayOps.bytesToHex(mac.doFinal(req.stringToSign().getBytes()));
+    }
+
+    private byte[] getSigningKey(String shortDate, String region) {
+        String scope = shortDate + "/" + region;
+        Pair<String, byte[]> cached = signingKey;
+        if (cached.left.equals(scope))
+            return cached.right;
+        byte[] dateKey = hmac(("AWS4" + secretKey).getBytes(), shortDate.getBytes());
+        byte[] dateRegionKey = hmac(dateKey, region.getBytes());
+        byte[] dateRegionServiceKey = hmac(dateRegionKey, "s3".getBytes());
+        byte[] derived = hmac(dateRegionServiceKey, "aws4_request".getBytes());
+        signingKey = new Pair<>(scope, derived);
+        return derived;
+    }
+
+    private byte[] hmac(byte[] key, byte[] message) {
+        Mac mac = macs.get();
+        try {
+            mac.init(new SecretKeySpec(key, HMAC));
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+        return mac.doFinal(message);
+    }
+
+    private static Mac newMac() {
+        try {
+            return Mac.getInstance(HMAC);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
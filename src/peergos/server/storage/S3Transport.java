@@ -0,0 +1,82 @@
+package peergos.server.storage;
+
+import peergos.server.util.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** The HTTP client used to execute presigned S3 requests.
+ *
+ *  Unsuccessful requests complete exceptionally with an IOException whose message is the S3 error body (or
+ *  "HTTP " + status for responses without a body), or a RateLimitException.
+ */
+public interface S3Transport {
+
+    CompletableFuture<byte[]> get(PresignedUrl url);
+
+    CompletableFuture<Map<String, List<String>>> head(PresignedUrl url);
+
+    CompletableFuture<byte[]> put(PresignedUrl url, byte[] body);
+
+    CompletableFuture<byte[]> post(PresignedUrl url, byte[] body);
+
+    CompletableFuture<Boolean> delete(PresignedUrl url);
+
+    static S3Transport build(Args a) {
+        if ("urlconnection".equals(a.getArg("s3.transport", "pooled")))
+            return new UrlConnection();
+        return new PooledS3Transport(a.getInt("s3.max-connections", PooledS3Transport.DEFAULT_MAX_CONNECTIONS));
+    }
+
+    /** A synchronous transport which opens a new connection per request using HttpUtil.
+     */
+    class UrlConnection implements S3Transport {
+
+        @Override
+        public CompletableFuture<byte[]> get(PresignedUrl url) {
+            try {
+                return CompletableFuture.completedFuture(HttpUtil.get(url));
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        @Override
+        public CompletableFuture<Map<String, List<String>>> head(PresignedUrl url) {
+            try {
+                return CompletableFuture.completedFuture(HttpUtil.head(url));
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        @Override
+        public CompletableFuture<byte[]> put(PresignedUrl url, byte[] body) {
+            try {
+                return CompletableFuture.completedFuture(HttpUtil.put(url, body));
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        @Override
+        public CompletableFuture<byte[]> post(PresignedUrl url, byte[] body) {
+            try {
+                return CompletableFuture.completedFuture(HttpUtil.post(url, body));
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        @Override
+        public CompletableFuture<Boolean> delete(PresignedUrl url) {
+            try {
+                HttpUtil.delete(url);
+                return CompletableFuture.completedFuture(true);
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+    }
+}
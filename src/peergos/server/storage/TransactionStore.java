@@ -5,6 +5,7 @@ import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 
 import java.util.*;
+import java.util.function.*;
 
 public interface TransactionStore {
 
@@ -12,8 +13,24 @@ public interface TransactionStore {
 
     void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner);
 
+    default void addBlocks(List<? extends Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        for (Multihash hash : hashes)
+            addBlock(hash, tid, owner);
+    }
+
     void closeTransaction(PublicKeyHash owner, TransactionId tid);
 
     List<Multihash> getOpenTransactionBlocks();
 
+    default void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        getOpenTransactionBlocks().forEach(receiver);
+    }
+
+    /** Remove transactions which haven't had a block added for maxIdleMillis.
+     *
+     * @param maxIdleMillis
+     * @return the number of transactions removed
+     */
+    int removeIdleTransactions(long maxIdleMillis);
+
 }
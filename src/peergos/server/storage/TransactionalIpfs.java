@@ -11,6 +11,7 @@ import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 public class TransactionalIpfs extends DelegatingStorage implements DeletableContentAddressedStorage {
@@ -86,6 +87,11 @@ public class TransactionalIpfs extends DelegatingStorage implements DeletableCon
         return target.hasBlock(hash);
     }
 
+    @Override
+    public CompletableFuture<List<Boolean>> hasBlocks(List<Cid> hashes) {
+        return target.hasBlocks(hashes);
+    }
+
     @Override
     public CompletableFuture<List<Cid>> getLinks(Cid root, String auth) {
         if (root.isRaw())
@@ -151,4 +157,9 @@ public class TransactionalIpfs extends DelegatingStorage implements DeletableCon
     public List<Multihash> getOpenTransactionBlocks() {
         return transactions.getOpenTransactionBlocks();
     }
+
+    @Override
+    public void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        transactions.getOpenTransactionBlocks(receiver);
+    }
 }
@@ -0,0 +1,61 @@
+package peergos.server.storage;
+
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.function.*;
+
+/** Records every block added to a transaction with the incremental garbage collector, so it can find new garbage
+ *  without listing the block store. Blocks are added to a transaction before they are written, so a block is always
+ *  recorded before it is stored.
+ */
+public class WriteTrackingTransactionStore implements TransactionStore {
+
+    private final TransactionStore target;
+    private final JdbcReferenceCounts refs;
+
+    public WriteTrackingTransactionStore(TransactionStore target, JdbcReferenceCounts refs) {
+        this.target = target;
+        this.refs = refs;
+    }
+
+    @Override
+    public TransactionId startTransaction(PublicKeyHash owner) {
+        return target.startTransaction(owner);
+    }
+
+    @Override
+    public void addBlock(Multihash hash, TransactionId tid, PublicKeyHash owner) {
+        addBlocks(Collections.singletonList(hash), tid, owner);
+    }
+
+    @Override
+    public void addBlocks(List<? extends Multihash> hashes, TransactionId tid, PublicKeyHash owner) {
+        if (hashes.isEmpty())
+            return;
+        refs.addWritten(hashes);
+        target.addBlocks(hashes, tid, owner);
+    }
+
+    @Override
+    public void closeTransaction(PublicKeyHash owner, TransactionId tid) {
+        target.closeTransaction(owner, tid);
+    }
+
+    @Override
+    public List<Multihash> getOpenTransactionBlocks() {
+        return target.getOpenTransactionBlocks();
+    }
+
+    @Override
+    public void getOpenTransactionBlocks(Consumer<Multihash> receiver) {
+        target.getOpenTransactionBlocks(receiver);
+    }
+
+    @Override
+    public int removeIdleTransactions(long maxIdleMillis) {
+        return target.removeIdleTransactions(maxIdleMillis);
+    }
+}
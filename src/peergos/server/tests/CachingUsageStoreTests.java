@@ -0,0 +1,67 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.space.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class CachingUsageStoreTests {
+
+    private static PublicKeyHash writer(int i) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) i;
+        return new PublicKeyHash(new Cid(1, Cid.Codec.DagCbor, Multihash.Type.sha2_256, hash));
+    }
+
+    private static RamUsageStore ramStore() {
+        return new RamUsageStore(new RamUsageStore.State(new ConcurrentHashMap<>(), new ConcurrentHashMap<>()),
+                Paths.get("unused"));
+    }
+
+    @Test
+    public void pendingUsageIsWrittenBack() {
+        RamUsageStore target = ramStore();
+        CachingUsageStore store = new CachingUsageStore(target, Long.MAX_VALUE);
+        store.addUserIfAbsent("alice");
+        store.addWriter("alice", writer(1));
+        store.addWriter("alice", writer(2));
+        store.confirmUsage("alice", writer(1), 1000, false);
+
+        store.addPendingUsage("alice", writer(1), 100);
+        store.addPendingUsage("alice", writer(2), 50);
+        Assert.assertEquals(1150, store.getUsage("alice").expectedUsage());
+        Assert.assertEquals(1000, target.getUsage("alice").expectedUsage());
+
+        store.flush();
+        Assert.assertEquals(1150, target.getUsage("alice").expectedUsage());
+
+        // confirming a writer resets its pending usage, flushed or not
+        store.addPendingUsage("alice", writer(1), 200);
+        store.confirmUsage("alice", writer(1), 300, false);
+        store.flush();
+        Assert.assertEquals(1350, store.getUsage("alice").expectedUsage());
+        Assert.assertEquals(1350, target.getUsage("alice").expectedUsage());
+    }
+
+    @Test
+    public void writerUpdatesAreWrittenThrough() {
+        RamUsageStore target = ramStore();
+        CachingUsageStore store = new CachingUsageStore(target, Long.MAX_VALUE);
+        store.addUserIfAbsent("bob");
+        store.addWriter("bob", writer(3));
+        WriterUsage cached = store.getUsage(writer(3));
+        Assert.assertEquals("bob", cached.owner);
+
+        MaybeMultihash root = MaybeMultihash.of(writer(4).target);
+        store.updateWriterUsage(writer(3), root, Collections.emptySet(), Set.of(writer(5)), 4096);
+        Assert.assertEquals(root, store.getUsage(writer(3)).target());
+        Assert.assertEquals(4096, store.getUsage(writer(3)).directRetainedStorage());
+        Assert.assertEquals(Set.of(writer(5)), target.getUsage(writer(3)).ownedKeys());
+    }
+}
@@ -5,6 +5,7 @@ import peergos.shared.cbor.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.util.*;
 
+import java.io.*;
 import java.util.*;
 
 public class CborObjects {
@@ -106,9 +107,43 @@ public class CborObjects {
         compatibleAndIdempotentSerialization(cborList);
     }
 
+    @Test
+    public void truncatedCbor() {
+        List<CborObject> list = new ArrayList<>();
+        list.add(new CborObject.CborString("A value"));
+        list.add(new CborObject.CborLong(Long.MAX_VALUE));
+        byte[] raw = new CborObject.CborList(list).toByteArray();
+        for (int len = 0; len < raw.length; len++) {
+            try {
+                ByteArrayCborDecoder.decode(raw, 0, len);
+                Assert.fail("Should have failed!");
+            } catch (RuntimeException e) {}
+        }
+    }
+
+    @Test
+    public void emptyMerkleLink() {
+        // tag 42 wrapping an empty byte string
+        byte[] raw = new byte[]{(byte) 0xd8, 0x2a, 0x40};
+        try {
+            ByteArrayCborDecoder.decode(raw);
+            Assert.fail("Should have failed!");
+        } catch (IllegalStateException e) {}
+    }
+
+    @Test
+    public void decodeSlice() {
+        CborObject value = new CborObject.CborString("G'day mate!");
+        byte[] raw = value.toByteArray();
+        byte[] padded = new byte[raw.length + 10];
+        System.arraycopy(raw, 0, padded, 5, raw.length);
+        Assert.assertEquals(value, ByteArrayCborDecoder.decode(padded, 5, raw.length));
+    }
+
     public void compatibleAndIdempotentSerialization(CborObject value) {
         byte[] raw = value.toByteArray();
         CborObject deserialized = CborObject.fromByteArray(raw);
+        Assert.assertEquals("Same as stream decoder", CborObject.read(new ByteArrayInputStream(raw), raw.length), deserialized);
 
         boolean equals = deserialized.equals(value);
         Assert.assertTrue("Equal objects", equals);
@@ -0,0 +1,60 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+
+public class ChampNodeCacheTests {
+    private static final Hasher hasher = Main.initCrypto().hasher;
+    private static final PublicKeyHash owner = new PublicKeyHash(new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.id, new byte[32]));
+
+    @Test
+    public void nodesAreFetchedOnce() {
+        RequestCountingStorage storage = new RequestCountingStorage(new RAMStorage(hasher));
+        Champ<CborObject.CborMerkleLink> empty = Champ.empty(CborObject.CborMerkleLink.FROM_CBOR);
+        TransactionId tid = storage.startTransaction(owner).join();
+        Cid root = storage.put(owner, owner, Collections.singletonList(new byte[0]),
+                Collections.singletonList(empty.serialize()), tid).join().get(0);
+
+        ChampNodeCache cache = new ChampNodeCache(10);
+        int before = storage.requestTotal();
+        Champ<CborObject.CborMerkleLink> first = cache.get(root, storage, CborObject.CborMerkleLink.FROM_CBOR).join().get();
+        Champ<CborObject.CborMerkleLink> second = cache.get(root, storage, CborObject.CborMerkleLink.FROM_CBOR).join().get();
+        Assert.assertSame("Decoded node is cached", first, second);
+        Assert.assertEquals(1, storage.requestTotal() - before);
+
+        // a different value decoder gets its own node
+        Champ<CborObject> other = cache.get(root, storage, c -> (CborObject) c).join().get();
+        Assert.assertArrayEquals(first.serialize(), other.serialize());
+        Assert.assertEquals(2, storage.requestTotal() - before);
+
+        Assert.assertFalse(ChampNodeCache.NONE.get(root, storage, CborObject.CborMerkleLink.FROM_CBOR).join().isEmpty());
+        Assert.assertEquals(3, storage.requestTotal() - before);
+    }
+
+    @Test
+    public void champLookupIncludesCachedNodes() {
+        RAMStorage ram = new RAMStorage(hasher);
+        ContentAddressedStorage storage = new ChampCachingStorage(ram, new ChampNodeCache(10));
+        Champ<CborObject.CborMerkleLink> empty = Champ.empty(CborObject.CborMerkleLink.FROM_CBOR);
+        byte[] raw = empty.serialize();
+        TransactionId tid = ram.startTransaction(owner).join();
+        Cid root = ram.put(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(raw), tid).join().get(0);
+
+        // warm the cache
+        ChampWrapper.create(root, x -> Futures.of(x.data), storage, hasher, CborObject.CborMerkleLink.FROM_CBOR).join();
+        Assert.assertEquals(1, storage.champNodeCache().nodes().size());
+
+        List<byte[]> proof = storage.getChampLookup(root, new byte[32], Optional.empty(), hasher).join();
+        Assert.assertTrue(proof.stream().anyMatch(b -> Arrays.equals(b, raw)));
+    }
+}
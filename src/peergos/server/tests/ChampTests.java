@@ -13,6 +13,7 @@ import peergos.shared.cbor.*;
 import peergos.shared.crypto.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 import peergos.shared.util.*;
@@ -21,6 +22,7 @@ import java.nio.file.*;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -282,6 +284,127 @@ public class ChampTests {
             }
     }
 
+    @Test
+    public void bulkMatchesSequential() throws Exception {
+        AtomicLong writes = new AtomicLong(0);
+        RAMStorage storage = new RAMStorage(crypto.hasher) {
+            @Override
+            public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
+                                                    PublicKeyHash writer,
+                                                    List<byte[]> signedHashes,
+                                                    List<byte[]> blocks,
+                                                    TransactionId tid) {
+                writes.addAndGet(blocks.size());
+                return super.put(owner, writer, signedHashes, blocks, tid);
+            }
+        };
+        int bitWidth = 3;
+        int maxCollisions = 2;
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(42);
+        Supplier<CborObject.CborMerkleLink> randomValue = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, hash));
+        };
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).get();
+        Champ<CborObject.CborMerkleLink> empty = Champ.empty(c -> (CborObject.CborMerkleLink)c);
+        Multihash emptyHash = storage.put(user.publicKeyHash, user, empty.serialize(), writeHasher, tid).get();
+
+        for (int prefixLen = 0; prefixLen < 3; prefixLen++)
+            for (int i = 0; i < 20; i++) {
+                byte[] prefix = new byte[prefixLen];
+                r.nextBytes(prefix);
+                Map<ByteArrayWrapper, CborObject.CborMerkleLink> state = new HashMap<>();
+                Pair<Champ<CborObject.CborMerkleLink>, Multihash> base = new Pair<>(empty, emptyHash);
+                int nKeys = r.nextInt(50);
+                for (int k = 0; k < nKeys; k++) {
+                    ByteArrayWrapper key = new ByteArrayWrapper(randomKey(prefix, 3, r));
+                    CborObject.CborMerkleLink value = randomValue.get();
+                    base = base.left.put(user.publicKeyHash, user, key, hasher.apply(key).join(), 0,
+                            Optional.ofNullable(state.get(key)), Optional.of(value), bitWidth, maxCollisions, hasher,
+                            tid, storage, writeHasher, base.right).get();
+                    state.put(key, value);
+                }
+
+                // new keys and updates to existing keys
+                Map<ByteArrayWrapper, Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> puts = new LinkedHashMap<>();
+                for (int k = 0; k < r.nextInt(50); k++) {
+                    ByteArrayWrapper key = new ByteArrayWrapper(randomKey(prefix, 3, r));
+                    puts.put(key, new Triple<>(key, Optional.ofNullable(state.get(key)), Optional.of(randomValue.get())));
+                }
+                for (ByteArrayWrapper key : state.keySet())
+                    if (r.nextInt(4) == 0)
+                        puts.put(key, new Triple<>(key, Optional.of(state.get(key)), Optional.of(randomValue.get())));
+                List<Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>>> batch = new ArrayList<>(puts.values());
+
+                writes.set(0);
+                Pair<Champ<CborObject.CborMerkleLink>, Multihash> sequential = base;
+                for (Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>> put : batch)
+                    sequential = sequential.left.put(user.publicKeyHash, user, put.left, hasher.apply(put.left).join(), 0,
+                            put.middle, put.right, bitWidth, maxCollisions, hasher, tid, storage, writeHasher, sequential.right).get();
+                long sequentialWrites = writes.getAndSet(0);
+                Pair<Champ<CborObject.CborMerkleLink>, Multihash> bulk = base.left.putAll(user.publicKeyHash, user, batch,
+                        bitWidth, maxCollisions, hasher, tid, storage, writeHasher, base.right).get();
+                long bulkWrites = writes.getAndSet(0);
+                Assert.assertEquals("Bulk put differs from sequential puts", sequential.right, bulk.right);
+                Assert.assertTrue("Bulk put wrote more blocks than sequential puts", bulkWrites <= sequentialWrites);
+                for (Triple<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>, Optional<CborObject.CborMerkleLink>> put : batch)
+                    state.put(put.left, put.right.get());
+
+                // remove a random subset
+                List<Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>>> removals = state.entrySet().stream()
+                        .filter(e -> r.nextBoolean())
+                        .map(e -> new Pair<>(e.getKey(), Optional.of(e.getValue())))
+                        .collect(Collectors.toList());
+                Pair<Champ<CborObject.CborMerkleLink>, Multihash> sequentialRemoved = bulk;
+                for (Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>> removal : removals)
+                    sequentialRemoved = sequentialRemoved.left.remove(user.publicKeyHash, user, removal.left,
+                            hasher.apply(removal.left).join(), 0, removal.right, bitWidth, maxCollisions, tid, storage,
+                            writeHasher, sequentialRemoved.right).get();
+                sequentialWrites = writes.getAndSet(0);
+                Pair<Champ<CborObject.CborMerkleLink>, Multihash> bulkRemoved = bulk.left.removeAll(user.publicKeyHash, user,
+                        removals, bitWidth, maxCollisions, hasher, tid, storage, writeHasher, bulk.right).get();
+                bulkWrites = writes.getAndSet(0);
+                Assert.assertEquals("Bulk remove differs from sequential removes", sequentialRemoved.right, bulkRemoved.right);
+                Assert.assertTrue("Bulk remove wrote more blocks than sequential removes", bulkWrites <= sequentialWrites);
+            }
+    }
+
+    @Test
+    public void parallelTraversal() throws Exception {
+        RAMStorage storage = new RAMStorage(crypto.hasher);
+        SigningPrivateKeyAndPublicHash user = createUser(storage, crypto);
+        Random r = new Random(7);
+        Supplier<Multihash> randomHash = () -> {
+            byte[] hash = new byte[32];
+            r.nextBytes(hash);
+            return new Multihash(Multihash.Type.sha2_256, hash);
+        };
+        for (int nKeys : Arrays.asList(0, 1, 50, 2000)) {
+            Pair<Champ<CborObject.CborMerkleLink>, Multihash> root = randomTree(user, r, 0, 32, nKeys,
+                    ChampWrapper.BIT_WIDTH, ChampWrapper.MAX_HASH_COLLISIONS_PER_LEVEL, hasher, randomHash, storage);
+
+            List<Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>>> sequential = root.left.applyToAllMappings(
+                    new ArrayList<Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>>>(), (acc, p) -> {
+                        acc.add(p);
+                        return Futures.of(acc);
+                    }, storage).join();
+            Assert.assertEquals(nKeys, sequential.size());
+
+            for (int parallelism : Arrays.asList(1, 4, 64)) {
+                List<Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>>> ordered =
+                        root.left.getAllMappings(parallelism, storage).join();
+                Assert.assertEquals("Parallel collection is in order", sequential, ordered);
+
+                Queue<Pair<ByteArrayWrapper, Optional<CborObject.CborMerkleLink>>> consumed = new ConcurrentLinkedQueue<>();
+                root.left.applyToAllMappings(consumed::add, parallelism, storage).join();
+                Assert.assertEquals(new HashSet<>(sequential), new HashSet<>(consumed));
+                Assert.assertEquals(sequential.size(), consumed.size());
+            }
+        }
+    }
+
     @Test
     public void correctDelete() throws Exception {
         ContentAddressedStorage storage = new FileContentAddressedStorage(Files.createTempDirectory("peergos-tmp"),
@@ -0,0 +1,168 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.space.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class IncrementalGarbageCollectorTests {
+    private static final Crypto crypto = Main.initCrypto();
+
+    private final AtomicInteger listings = new AtomicInteger();
+    private final RAMStorage storage = new RAMStorage(crypto.hasher) {
+        @Override
+        public Stream<Cid> getAllBlockHashes() {
+            listings.incrementAndGet();
+            return super.getAllBlockHashes();
+        }
+    };
+    private final JdbcIpnsAndSocial pointers = new JdbcIpnsAndSocial(Main.buildEphemeralSqlite(), new SqliteCommands());
+    private final UsageStore usage = new JdbcUsageStore(Main.buildEphemeralSqlite(), new SqliteCommands());
+    private final JdbcReferenceCounts refs = JdbcReferenceCounts.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+    private final Random r = new Random(42);
+
+    private static class Writer {
+        public final SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        public final PublicKeyHash hash = ContentAddressedStorage.hashKey(pair.publicSigningKey);
+        public Optional<byte[]> cas = Optional.empty();
+        public MaybeMultihash root = MaybeMultihash.empty();
+    }
+
+    private void collect() {
+        IncrementalGarbageCollector.collect(storage, pointers, usage, refs, s -> Futures.of(true));
+    }
+
+    private void setRoot(Writer w, Cid root) {
+        HashCasPair cas = new HashCasPair(w.root, MaybeMultihash.of(root));
+        byte[] signed = w.pair.signMessage(cas.serialize());
+        Assert.assertTrue(pointers.setPointer(w.hash, w.cas, signed).join());
+        w.cas = Optional.of(signed);
+        w.root = MaybeMultihash.of(root);
+    }
+
+    private Cid leaf(Writer w, TransactionId tid) {
+        byte[] data = new byte[100];
+        r.nextBytes(data);
+        return written(storage.putRaw(w.hash, w.hash, Collections.singletonList(new byte[0]), Collections.singletonList(data), tid, x -> {})
+                .join().get(0));
+    }
+
+    /** Record a write, as WriteTrackingTransactionStore does.
+     */
+    private Cid written(Cid block) {
+        refs.addWritten(Collections.singletonList(block));
+        return block;
+    }
+
+    private Cid node(Writer w, List<Cid> children, TransactionId tid) {
+        byte[] block = new CborObject.CborList(children.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList())).serialize();
+        return written(storage.put(w.hash, w.hash, Collections.singletonList(new byte[0]), Collections.singletonList(block), tid)
+                .join().get(0));
+    }
+
+    private Cid tree(Writer w, List<Cid> shared) {
+        TransactionId tid = storage.startTransaction(w.hash).join();
+        List<Cid> children = new ArrayList<>(shared);
+        for (int i = 0; i < 4; i++)
+            children.add(node(w, Arrays.asList(leaf(w, tid), leaf(w, tid)), tid));
+        Cid root = node(w, children, tid);
+        setRoot(w, root);
+        storage.closeTransaction(w.hash, tid).join();
+        return root;
+    }
+
+    private List<Cid> subtree(Cid root) {
+        List<Cid> res = new ArrayList<>();
+        res.add(root);
+        if (! root.isRaw())
+            for (Cid link : storage.getLinks(root, "").join())
+                res.addAll(subtree(link));
+        return res;
+    }
+
+    @Test
+    public void deleteAfterLastReference() {
+        Writer w = new Writer();
+        Cid first = tree(w, Collections.emptyList());
+        List<Cid> firstBlocks = subtree(first);
+        collect();
+        firstBlocks.forEach(b -> Assert.assertTrue(storage.hasBlock(b)));
+
+        Cid second = tree(w, Collections.emptyList());
+        collect();
+        firstBlocks.forEach(b -> Assert.assertFalse(storage.hasBlock(b)));
+        subtree(second).forEach(b -> Assert.assertTrue(storage.hasBlock(b)));
+    }
+
+    @Test
+    public void keepSharedBlocks() {
+        Writer a = new Writer(), b = new Writer();
+        TransactionId tid = storage.startTransaction(a.hash).join();
+        Cid shared = node(a, Arrays.asList(leaf(a, tid), leaf(a, tid)), tid);
+        storage.closeTransaction(a.hash, tid).join();
+        tree(a, Collections.singletonList(shared));
+        tree(b, Collections.singletonList(shared));
+        collect();
+
+        tree(a, Collections.emptyList());
+        collect();
+        subtree(shared).forEach(c -> Assert.assertTrue(storage.hasBlock(c)));
+
+        tree(b, Collections.emptyList());
+        collect();
+        subtree(shared).forEach(c -> Assert.assertFalse(storage.hasBlock(c)));
+    }
+
+    @Test
+    public void collectGarbageCreatedBetweenRuns() {
+        Writer w = new Writer();
+        tree(w, Collections.emptyList());
+        collect();
+
+        // never the root at the time of a run
+        List<Cid> replaced = subtree(tree(w, Collections.emptyList()));
+        Cid current = tree(w, Collections.emptyList());
+        collect();
+        replaced.forEach(b -> Assert.assertFalse(storage.hasBlock(b)));
+        subtree(current).forEach(b -> Assert.assertTrue(storage.hasBlock(b)));
+    }
+
+    @Test
+    public void onlyListTheStoreOnTheFirstRun() {
+        Writer w = new Writer();
+        // garbage from before the first run, which wasn't recorded
+        TransactionId tid = storage.startTransaction(w.hash).join();
+        byte[] data = new byte[100];
+        r.nextBytes(data);
+        Cid old = storage.putRaw(w.hash, w.hash, Collections.singletonList(new byte[0]), Collections.singletonList(data), tid, x -> {})
+                .join().get(0);
+        storage.closeTransaction(w.hash, tid).join();
+
+        tree(w, Collections.emptyList());
+        collect();
+        Assert.assertFalse(storage.hasBlock(old));
+
+        List<Cid> replaced = subtree(tree(w, Collections.emptyList()));
+        tree(w, Collections.emptyList());
+        collect();
+        replaced.forEach(b -> Assert.assertFalse(storage.hasBlock(b)));
+        Assert.assertEquals(1, listings.get());
+        Assert.assertTrue(refs.getWritten().isEmpty());
+    }
+}
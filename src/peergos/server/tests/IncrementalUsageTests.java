@@ -0,0 +1,110 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.space.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class IncrementalUsageTests {
+    private static final Hasher hasher = Main.initCrypto().hasher;
+    private static final PublicKeyHash owner = new PublicKeyHash(new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.id, new byte[32]));
+
+    private static class CountingStorage extends RAMStorage {
+        public final AtomicInteger sizeCalls = new AtomicInteger();
+
+        public CountingStorage() {
+            super(hasher);
+        }
+
+        @Override
+        public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+            sizeCalls.incrementAndGet();
+            return super.getSize(block);
+        }
+    }
+
+    private static Cid leaf(RAMStorage dht, TransactionId tid, Random r) {
+        byte[] leaf = new byte[100 + r.nextInt(500)];
+        r.nextBytes(leaf);
+        return dht.putRaw(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(leaf), tid, x -> {})
+                .join().get(0);
+    }
+
+    private static Cid node(RAMStorage dht, TransactionId tid, List<Cid> children) {
+        byte[] node = new CborObject.CborList(children.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList())).serialize();
+        return dht.put(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(node), tid).join().get(0);
+    }
+
+    private static Cid buildTree(RAMStorage dht, TransactionId tid, Random r, int depth, int fanout) {
+        if (depth == 0)
+            return leaf(dht, tid, r);
+        return node(dht, tid, IntStream.range(0, fanout)
+                .mapToObj(i -> buildTree(dht, tid, r, depth - 1, fanout))
+                .collect(Collectors.toList()));
+    }
+
+    /** Replace the first leaf in the tree with a new random leaf, and add an extra leaf to the root
+     */
+    private static Cid modify(RAMStorage dht, TransactionId tid, Random r, Cid root, boolean isRoot) {
+        if (root.isRaw())
+            return leaf(dht, tid, r);
+        List<Cid> children = new ArrayList<>(dht.getLinks(root, "").join());
+        children.set(0, modify(dht, tid, r, children.get(0), false));
+        if (isRoot)
+            children.add(leaf(dht, tid, r));
+        return node(dht, tid, children);
+    }
+
+    @Test
+    public void changeMatchesFullCalculation() {
+        CountingStorage dht = new CountingStorage();
+        TransactionId tid = dht.startTransaction(owner).join();
+        Random r = new Random(17);
+        Cid v1 = buildTree(dht, tid, r, 3, 6);
+        Cid v2 = modify(dht, tid, r, v1, true);
+        Cid v3 = modify(dht, tid, r, v2, true);
+
+        long size1 = dht.getRecursiveBlockSize(v1).join();
+        long size2 = dht.getRecursiveBlockSize(v2).join();
+        long size3 = dht.getRecursiveBlockSize(v3).join();
+
+        IncrementalUsage usage = new IncrementalUsage(dht, 1000);
+        Assert.assertEquals(size1, (long) usage.getRecursiveSize(v1).join());
+        dht.sizeCalls.set(0);
+        Assert.assertEquals(size2 - size1, (long) usage.getChangeInSize(v1, v2).join());
+        // only the changed path and the new leaves are visited, not the shared subtrees
+        int visited = dht.sizeCalls.get();
+        Assert.assertTrue("Visited " + visited + " blocks", visited <= 2 * 3 + 2 + 1);
+
+        // the size of v2 is now cached, so the next change is incremental too
+        Assert.assertEquals(size3 - size2, (long) usage.getChangeInSize(v2, v3).join());
+        Assert.assertEquals(size3, (long) usage.getRecursiveSize(v3).join());
+        Assert.assertEquals(size1 - size3, (long) new IncrementalUsage(dht, 1000).getChangeInSize(v3, v1).join());
+    }
+
+    @Test
+    public void missingBlocksAreAnError() {
+        RAMStorage dht = new RAMStorage(hasher);
+        TransactionId tid = dht.startTransaction(owner).join();
+        Random r = new Random(18);
+        Cid v1 = buildTree(dht, tid, r, 2, 4);
+        Cid v2 = modify(dht, tid, r, v1, true);
+        dht.delete(v1);
+        try {
+            new IncrementalUsage(dht, 1000).getChangeInSize(v1, v2).join();
+            Assert.fail("Missing block should be an error");
+        } catch (CompletionException expected) {}
+    }
+}
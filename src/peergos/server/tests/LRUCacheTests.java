@@ -0,0 +1,54 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class LRUCacheTests {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        LRUCache<Integer, String> cache = new LRUCache<>(3);
+        cache.put(1, "a");
+        cache.put(2, "b");
+        cache.put(3, "c");
+        Assert.assertEquals("a", cache.get(1));
+        cache.put(4, "d");
+        Assert.assertFalse(cache.containsKey(2));
+        Assert.assertTrue(cache.containsKey(1));
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(1, cache.evictionCount());
+
+        Assert.assertNull(cache.get(2));
+        Assert.assertEquals(1, cache.hitCount());
+        Assert.assertEquals(1, cache.missCount());
+
+        cache.entrySet().removeIf(e -> e.getKey() > 2);
+        Assert.assertEquals(Set.of(1), cache.keySet());
+        cache.clear();
+        Assert.assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void concurrentAccess() throws Exception {
+        int maxSize = 100;
+        LRUCache<Integer, Integer> cache = new LRUCache<>(maxSize);
+        ForkJoinPool pool = new ForkJoinPool(8);
+        pool.submit(() -> IntStream.range(0, 200_000).parallel().forEach(i -> {
+            int key = i % 500;
+            Integer value = cache.get(key);
+            if (value == null)
+                cache.put(key, key);
+            else
+                Assert.assertEquals(key, value.intValue());
+            if (i % 1000 == 0)
+                cache.remove(key);
+        })).get();
+        Assert.assertTrue(cache.size() <= maxSize);
+        Assert.assertEquals(cache.size(), cache.entrySet().size());
+        Assert.assertEquals(200_000, cache.hitCount() + cache.missCount());
+    }
+}
@@ -0,0 +1,117 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class LogTransactionStoreTests {
+    private static final PublicKeyHash owner = new PublicKeyHash(new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.id, new byte[32]));
+
+    private static List<Multihash> blocks(int start, int count) {
+        return IntStream.range(start, start + count)
+                .mapToObj(i -> TransactionsStoreTests.hashToCid(new byte[]{(byte) i, (byte) (i >> 8)}, true))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void recoverOpenTransactions() throws Exception {
+        Path log = Files.createTempDirectory("peergos-transactions").resolve("transactions.log");
+        LogTransactionStore store = new LogTransactionStore(log, 1024 * 1024);
+        TransactionId open = store.startTransaction(owner);
+        TransactionId closed = store.startTransaction(owner);
+        List<Multihash> openBlocks = blocks(0, 50);
+        store.addBlocks(openBlocks, open, owner);
+        store.addBlocks(blocks(50, 50), closed, owner);
+        store.closeTransaction(owner, closed);
+        store.close();
+
+        // simulate a torn write at the end of the log
+        long size = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 1, 0, 7, 7}), size);
+        }
+
+        LogTransactionStore reloaded = new LogTransactionStore(log, 1024 * 1024);
+        Assert.assertEquals(new HashSet<>(openBlocks), new HashSet<>(reloaded.getOpenTransactionBlocks()));
+        reloaded.closeTransaction(owner, open);
+        Assert.assertTrue(reloaded.getOpenTransactionBlocks().isEmpty());
+        reloaded.close();
+    }
+
+    @Test
+    public void concurrentWritersAndCompaction() throws Exception {
+        Path log = Files.createTempDirectory("peergos-transactions").resolve("transactions.log");
+        LogTransactionStore store = new LogTransactionStore(log, 16 * 1024);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        TransactionId kept = store.startTransaction(owner);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    TransactionId tid = store.startTransaction(owner);
+                    for (Multihash block : blocks(thread * 1000 + i, 5))
+                        store.addBlock(block, tid, owner);
+                    store.closeTransaction(owner, tid);
+                }
+                store.addBlocks(blocks(20_000 + thread, 1), kept, owner);
+            }));
+        }
+        for (Future<?> f : done)
+            f.get();
+        pool.shutdown();
+        Assert.assertTrue("Log was compacted", Files.size(log) < 16 * 1024 * 2);
+        store.close();
+
+        LogTransactionStore reloaded = new LogTransactionStore(log, 16 * 1024);
+        Assert.assertEquals(new HashSet<>(blocks(20_000, 8)), new HashSet<>(reloaded.getOpenTransactionBlocks()));
+        reloaded.close();
+    }
+
+    @Test
+    public void replayMatchesRacingAddsAndCloses() throws Exception {
+        Path log = Files.createTempDirectory("peergos-transactions").resolve("transactions.log");
+        LogTransactionStore store = new LogTransactionStore(log, 1024 * 1024);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        for (int i = 0; i < 200; i++) {
+            TransactionId tid = store.startTransaction(owner);
+            int start = i;
+            Future<?> add = pool.submit(() -> store.addBlocks(blocks(start, 1), tid, owner));
+            Future<?> close = pool.submit(() -> store.closeTransaction(owner, tid));
+            add.get();
+            close.get();
+        }
+        pool.shutdown();
+        Set<Multihash> open = new HashSet<>(store.getOpenTransactionBlocks());
+        store.close();
+
+        LogTransactionStore reloaded = new LogTransactionStore(log, 1024 * 1024);
+        Assert.assertEquals(open, new HashSet<>(reloaded.getOpenTransactionBlocks()));
+        reloaded.close();
+    }
+
+    @Test
+    public void idleTransactionsAreRemoved() throws Exception {
+        Path log = Files.createTempDirectory("peergos-transactions").resolve("transactions.log");
+        LogTransactionStore store = new LogTransactionStore(log, 1024 * 1024);
+        TransactionId idle = store.startTransaction(owner);
+        store.addBlocks(blocks(0, 1), idle, owner);
+        Thread.sleep(50);
+        TransactionId active = store.startTransaction(owner);
+        store.addBlocks(blocks(1, 1), active, owner);
+
+        Assert.assertEquals(1, store.removeIdleTransactions(25));
+        Assert.assertEquals(blocks(1, 1), store.getOpenTransactionBlocks());
+        store.close();
+    }
+}
@@ -0,0 +1,66 @@
+package peergos.server.tests;
+
+import io.prometheus.client.*;
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class MetricsStorageTests {
+    private static final Hasher hasher = Main.initCrypto().hasher;
+    private static final PublicKeyHash owner = new PublicKeyHash(new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.id, new byte[32]));
+
+    private static double sample(String name, String... labels) {
+        String[] names = labels.length == 1 ? new String[]{"backend"} : new String[]{"backend", "op"};
+        Double value = CollectorRegistry.defaultRegistry.getSampleValue(name, names, labels);
+        return value == null ? 0 : value;
+    }
+
+    @Test
+    public void recordsOperations() {
+        DeletableMetricsStorage storage = new DeletableMetricsStorage(new RAMStorage(hasher), "test");
+        TransactionId tid = storage.startTransaction(owner).join();
+        byte[] block = new byte[1000];
+        new Random(1).nextBytes(block);
+        Cid cid = storage.putRaw(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(block), tid, x -> {})
+                .join().get(0);
+        Assert.assertArrayEquals(block, storage.getRaw(cid, "").join().get());
+        Assert.assertTrue(storage.hasBlock(cid));
+
+        Assert.assertEquals(1000, sample("storage_bytes_written_total", "test"), 0);
+        Assert.assertEquals(1000, sample("storage_bytes_read_total", "test"), 0);
+        Assert.assertEquals(1, sample("storage_request_seconds_count", "test", "get_raw"), 0);
+        Assert.assertEquals(1, sample("storage_request_seconds_count", "test", "has"), 0);
+        Assert.assertEquals(0, sample("storage_requests_in_flight", "test", "get_raw"), 0);
+        Assert.assertEquals(0, sample("storage_request_errors_total", "test", "get_raw"), 0);
+    }
+
+    @Test
+    public void delegatesOverriddenDefaults() {
+        AtomicInteger linksAndSize = new AtomicInteger();
+        RAMStorage target = new RAMStorage(hasher) {
+            @Override
+            public CompletableFuture<Pair<Integer, List<Cid>>> getLinksAndSize(Cid block, String auth) {
+                linksAndSize.incrementAndGet();
+                return super.getLinksAndSize(block, auth);
+            }
+        };
+        DeletableMetricsStorage storage = new DeletableMetricsStorage(target, "test-delegation");
+        TransactionId tid = storage.startTransaction(owner).join();
+        byte[] block = new byte[100];
+        Cid cid = storage.putRaw(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(block), tid, x -> {})
+                .join().get(0);
+
+        Assert.assertEquals(100, (int) storage.getLinksAndSize(cid, "").join().left);
+        Assert.assertEquals(1, linksAndSize.get());
+        Assert.assertEquals(1, sample("storage_request_seconds_count", "test-delegation", "links_and_size"), 0);
+    }
+}
@@ -0,0 +1,165 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+public class MirrorEngineTests {
+    private static final Hasher hasher = Main.initCrypto().hasher;
+    private static final PublicKeyHash owner = new PublicKeyHash(new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.id, new byte[32]));
+
+    /** A local store which mirrors blocks from source, and fails once after a given number of blocks.
+     */
+    private static class MirrorTarget extends RAMStorage {
+        private final RAMStorage source;
+        public final AtomicInteger fetched = new AtomicInteger();
+        public final AtomicInteger localReads = new AtomicInteger();
+        private volatile int failAfter;
+
+        public MirrorTarget(RAMStorage source, int failAfter) {
+            super(hasher);
+            this.source = source;
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> mirrorBlock(PublicKeyHash owner,
+                                                               Cid hash,
+                                                               Optional<BatWithId> mirrorBat,
+                                                               Cid ourNodeId,
+                                                               TransactionId tid,
+                                                               Hasher hasher) {
+            if (fetched.incrementAndGet() > failAfter && failAfter > 0) {
+                failAfter = 0;
+                throw new IllegalStateException("Connection lost");
+            }
+            Optional<byte[]> block = source.getRaw(hash, "").join();
+            block.ifPresent(data -> {
+                if (hash.isRaw())
+                    putRaw(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(data), tid, x -> {}).join();
+                else
+                    put(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(data), tid).join();
+            });
+            return CompletableFuture.completedFuture(block);
+        }
+
+        @Override
+        public CompletableFuture<List<Cid>> getLinks(Cid root, String auth) {
+            localReads.incrementAndGet();
+            return super.getLinks(root, auth);
+        }
+    }
+
+    private static Cid buildTree(RAMStorage source, TransactionId tid, Random r, int depth, int fanout) {
+        if (depth == 0) {
+            byte[] leaf = new byte[100 + r.nextInt(500)];
+            r.nextBytes(leaf);
+            return source.putRaw(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(leaf), tid, x -> {})
+                    .join().get(0);
+        }
+        List<CborObject.CborMerkleLink> children = IntStream.range(0, fanout)
+                .mapToObj(i -> new CborObject.CborMerkleLink(buildTree(source, tid, r, depth - 1, fanout)))
+                .collect(Collectors.toList());
+        byte[] node = new CborObject.CborList(children).serialize();
+        return source.put(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(node), tid).join().get(0);
+    }
+
+    /** Replace the first leaf of the tree with a new one.
+     *
+     * @return the new root
+     */
+    private static Cid changeFirstLeaf(RAMStorage source, TransactionId tid, Cid root) {
+        if (root.isRaw()) {
+            byte[] leaf = new byte[100];
+            new Random(5).nextBytes(leaf);
+            return source.putRaw(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(leaf), tid, x -> {})
+                    .join().get(0);
+        }
+        List<Cid> links = source.getLinks(root, "").join();
+        List<CborObject.CborMerkleLink> children = new ArrayList<>();
+        children.add(new CborObject.CborMerkleLink(changeFirstLeaf(source, tid, links.get(0))));
+        links.stream().skip(1).forEach(c -> children.add(new CborObject.CborMerkleLink(c)));
+        byte[] node = new CborObject.CborList(children).serialize();
+        return source.put(owner, owner, Collections.singletonList(new byte[0]), Collections.singletonList(node), tid).join().get(0);
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws Exception {
+        RAMStorage source = new RAMStorage(hasher);
+        Cid root = buildTree(source, source.startTransaction(owner).join(), new Random(3), 3, 8);
+        int total = source.size();
+
+        MirrorTarget target = new MirrorTarget(source, 200);
+        TransactionId tid = target.startTransaction(owner).join();
+        Path checkpoint = Files.createTempDirectory("peergos-mirror").resolve("writer.cbor");
+        MirrorEngine engine = new MirrorEngine(target, 4, Optional.of(checkpoint));
+        try {
+            engine.mirror(owner, Optional.empty(), Optional.of(root), Optional.empty(), target.id().join(), tid, hasher);
+            Assert.fail("Mirror should have been interrupted");
+        } catch (RuntimeException expected) {}
+        Assert.assertTrue("Checkpoint written", Files.exists(checkpoint));
+        Assert.assertTrue(target.size() < total);
+
+        int fetchedBefore = target.fetched.get();
+        engine.mirror(owner, Optional.empty(), Optional.of(root), Optional.empty(), target.id().join(), tid, hasher);
+        Assert.assertFalse("Checkpoint removed", Files.exists(checkpoint));
+        Assert.assertEquals(total, target.size());
+        Assert.assertTrue("Resumed rather than restarted", target.fetched.get() - fetchedBefore < total);
+        source.getAllBlockHashes().forEach(c -> Assert.assertTrue(target.hasBlock(c)));
+    }
+
+    @Test
+    public void completePresentSubtrees() {
+        RAMStorage source = new RAMStorage(hasher);
+        Cid root = buildTree(source, source.startTransaction(owner).join(), new Random(4), 3, 8);
+        int total = source.size();
+
+        // an interrupted mirror without a checkpoint leaves present blocks with missing sub-trees
+        MirrorTarget target = new MirrorTarget(source, 200);
+        TransactionId tid = target.startTransaction(owner).join();
+        MirrorEngine engine = new MirrorEngine(target, 4, Optional.empty());
+        try {
+            engine.mirror(owner, Optional.empty(), Optional.of(root), Optional.empty(), target.id().join(), tid, hasher);
+            Assert.fail("Mirror should have been interrupted");
+        } catch (RuntimeException expected) {}
+        Assert.assertTrue(target.hasBlock(root));
+        Assert.assertTrue(target.size() < total);
+
+        engine.mirror(owner, Optional.empty(), Optional.of(root), Optional.empty(), target.id().join(), tid, hasher);
+        Assert.assertEquals(total, target.size());
+        source.getAllBlockHashes().forEach(c -> Assert.assertTrue(target.hasBlock(c)));
+    }
+
+    @Test
+    public void onlyReadChangedPaths() {
+        RAMStorage source = new RAMStorage(hasher);
+        TransactionId sourceTid = source.startTransaction(owner).join();
+        int depth = 3;
+        Cid root = buildTree(source, sourceTid, new Random(6), depth, 8);
+
+        MirrorTarget target = new MirrorTarget(source, 0);
+        TransactionId tid = target.startTransaction(owner).join();
+        MirrorEngine engine = new MirrorEngine(target, 4, Optional.empty());
+        engine.mirror(owner, Optional.empty(), Optional.of(root), Optional.empty(), target.id().join(), tid, hasher);
+
+        Cid updated = changeFirstLeaf(source, sourceTid, root);
+        target.fetched.set(0);
+        target.localReads.set(0);
+        engine.mirror(owner, Optional.of(root), Optional.of(updated), Optional.empty(), target.id().join(), tid, hasher);
+        Assert.assertEquals("Only the changed path is fetched", depth + 1, target.fetched.get());
+        Assert.assertTrue("Only the existing path is read", target.localReads.get() <= depth);
+        source.getAllBlockHashes().forEach(c -> Assert.assertTrue(target.hasBlock(c)));
+    }
+}
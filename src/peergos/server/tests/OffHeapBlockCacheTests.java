@@ -0,0 +1,68 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+
+public class OffHeapBlockCacheTests {
+
+    private static Cid cid(int i) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) i;
+        hash[1] = (byte) (i >> 8);
+        return new Cid(1, Cid.Codec.Raw, Multihash.Type.sha2_256, hash);
+    }
+
+    @Test
+    public void roundTripAndSizeBound() {
+        long maxBytes = 64 * 1024;
+        OffHeapBlockCache cache = new OffHeapBlockCache(maxBytes, 2);
+        Random r = new Random(7);
+        Map<Cid, byte[]> blocks = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            byte[] block = new byte[1 + r.nextInt(3000)];
+            r.nextBytes(block);
+            blocks.put(cid(i), block);
+            cache.put(cid(i), block);
+            Assert.assertTrue(cache.size() <= maxBytes);
+        }
+        int present = 0;
+        for (Map.Entry<Cid, byte[]> e : blocks.entrySet()) {
+            Optional<byte[]> cached = cache.get(e.getKey());
+            if (cached.isPresent()) {
+                present++;
+                Assert.assertArrayEquals(e.getValue(), cached.get());
+            }
+        }
+        Assert.assertTrue(present > 0 && present < blocks.size());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertTrue(cache.get(cid(499)).isEmpty());
+    }
+
+    @Test
+    public void frequentlyReadBlocksSurviveScan() {
+        OffHeapBlockCache cache = new OffHeapBlockCache(100 * 1024, 1);
+        byte[] hot = new byte[1024];
+        for (int i = 0; i < 10; i++) {
+            cache.put(cid(i), hot);
+            cache.get(cid(i));
+        }
+        for (int i = 10; i < 1000; i++)
+            cache.put(cid(i), new byte[1024]);
+        for (int i = 0; i < 10; i++)
+            Assert.assertTrue(cache.containsKey(cid(i)));
+    }
+
+    @Test
+    public void oversizeBlocksAreIgnored() {
+        OffHeapBlockCache cache = new OffHeapBlockCache(4 * 1024, 1);
+        cache.put(cid(1), new byte[8 * 1024]);
+        Assert.assertTrue(cache.get(cid(1)).isEmpty());
+        Assert.assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,98 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class PackFileBlockStorageTests {
+    private static final PublicKeyHash owner = new PublicKeyHash(new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.id, new byte[32]));
+
+    private static PackFileBlockStorage build(Path dir, long segmentSize) {
+        return new PackFileBlockStorage(dir, segmentSize, 0.5,
+                JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands()),
+                (a, b, c, d) -> Futures.of(true), Main.initCrypto().hasher);
+    }
+
+    private static List<byte[]> randomBlocks(Random r, int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> {
+                    byte[] block = new byte[100 + r.nextInt(1000)];
+                    r.nextBytes(block);
+                    return block;
+                }).collect(Collectors.toList());
+    }
+
+    @Test
+    public void putGetDeleteAndReload() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packs");
+        PackFileBlockStorage store = build(dir, 64 * 1024);
+        TransactionId tid = store.startTransaction(owner).join();
+        Random r = new Random(42);
+        List<byte[]> blocks = randomBlocks(r, 500);
+        List<Cid> cids = store.putRaw(owner, owner, null, blocks, tid, x -> {}).join();
+        store.closeTransaction(owner, tid).join();
+
+        for (int i = 0; i < cids.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), store.getRaw(cids.get(i), "").join().get());
+        Assert.assertEquals(500, store.getAllBlockHashes().count());
+
+        List<Multihash> toDelete = new ArrayList<>(cids.subList(0, 400));
+        store.bulkDelete(toDelete);
+        for (int i = 0; i < cids.size(); i++)
+            Assert.assertEquals(i >= 400, store.hasBlock(cids.get(i)));
+        List<Boolean> present = store.hasBlocks(cids).join();
+        List<Optional<Integer>> sizes = store.getSizes(cids).join();
+        for (int i = 0; i < cids.size(); i++) {
+            Assert.assertEquals(i >= 400, present.get(i));
+            Assert.assertEquals(i >= 400 ? Optional.of(blocks.get(i).length) : Optional.empty(), sizes.get(i));
+        }
+
+        // Reload from disk, after compaction has rewritten the early segments
+        PackFileBlockStorage reloaded = build(dir, 64 * 1024);
+        Assert.assertEquals(100, reloaded.getAllBlockHashes().count());
+        for (int i = 400; i < cids.size(); i++)
+            Assert.assertArrayEquals(blocks.get(i), reloaded.getRaw(cids.get(i), "").join().get());
+        for (int i = 0; i < 400; i++)
+            Assert.assertFalse(reloaded.hasBlock(cids.get(i)));
+    }
+
+    @Test
+    public void truncateTornWrite() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packs");
+        PackFileBlockStorage store = build(dir, 1024 * 1024);
+        TransactionId tid = store.startTransaction(owner).join();
+        List<byte[]> blocks = randomBlocks(new Random(7), 10);
+        List<Cid> cids = store.putRaw(owner, owner, null, blocks, tid, x -> {}).join();
+
+        Path segment = Files.list(dir).findFirst().get();
+        long size = Files.size(segment);
+        try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 10);
+        }
+        PackFileBlockStorage reloaded = build(dir, 1024 * 1024);
+        Assert.assertEquals(9, reloaded.getAllBlockHashes().count());
+        Assert.assertFalse(reloaded.hasBlock(cids.get(9)));
+        Assert.assertArrayEquals(blocks.get(8), reloaded.getRaw(cids.get(8), "").join().get());
+    }
+
+    @Test
+    public void rejectSegmentsTooLargeToMap() throws Exception {
+        Path dir = Files.createTempDirectory("peergos-packs");
+        for (long size : Arrays.asList(0L, (long) Integer.MAX_VALUE, PackFileBlockStorage.MAX_SEGMENT_SIZE + 1)) {
+            try {
+                new PackFileBlockStorage(dir, size, 0.5, null, (a, b, c, d) -> Futures.of(true), Main.initCrypto().hasher);
+                Assert.fail("Accepted segment size " + size);
+            } catch (IllegalArgumentException expected) {}
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.util.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class SingleFlightTests {
+
+    @Test
+    public void concurrentRequestsShareOneFetch() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<>("test", 100);
+        AtomicInteger fetches = new AtomicInteger();
+        CompletableFuture<Integer> backend = new CompletableFuture<>();
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            results.add(flight.get("a", () -> {
+                fetches.incrementAndGet();
+                return backend;
+            }));
+        Assert.assertEquals(1, fetches.get());
+        Assert.assertEquals(1, flight.inFlight());
+
+        backend.complete(42);
+        for (CompletableFuture<Integer> result : results)
+            Assert.assertEquals(42, (int) result.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Completed requests aren't retained", 0, flight.inFlight());
+
+        flight.get("a", () -> {
+            fetches.incrementAndGet();
+            return Futures.of(7);
+        }).join();
+        Assert.assertEquals(2, fetches.get());
+    }
+
+    @Test
+    public void failuresAreSharedAndNotRetained() {
+        SingleFlight<String, Integer> flight = new SingleFlight<>("test", 100);
+        CompletableFuture<Integer> backend = new CompletableFuture<>();
+        CompletableFuture<Integer> first = flight.get("a", () -> backend);
+        CompletableFuture<Integer> joined = flight.get("a", () -> Futures.of(1));
+        CompletableFuture<Integer> retried = flight.get("a", () -> Futures.of(1),
+                (res, t) -> t == null ? Futures.of(res) : Futures.of(2));
+        backend.completeExceptionally(new IllegalStateException("Failed!"));
+
+        Assert.assertTrue(first.isCompletedExceptionally());
+        Assert.assertTrue(joined.isCompletedExceptionally());
+        Assert.assertEquals(2, (int) retried.join());
+        Assert.assertEquals(0, flight.inFlight());
+    }
+
+    @Test
+    public void requestsBeyondLimitAreNotCoalesced() {
+        SingleFlight<String, Integer> flight = new SingleFlight<>("test", 1);
+        CompletableFuture<Integer> backend = new CompletableFuture<>();
+        flight.get("a", () -> backend);
+        Assert.assertEquals(2, (int) flight.get("b", () -> Futures.of(2)).join());
+        Assert.assertEquals(1, flight.inFlight());
+    }
+}
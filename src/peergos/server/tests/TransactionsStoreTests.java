@@ -12,6 +12,7 @@ import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.*;
 
+import java.nio.file.*;
 import java.security.*;
 import java.sql.*;
 import java.util.*;
@@ -28,8 +29,10 @@ public class TransactionsStoreTests {
     @Parameterized.Parameters()
     public static Collection<Object[]> parameters() throws Exception {
         TransactionStore ram = JdbcTransactionStore.build(Main.buildEphemeralSqlite(), new SqliteCommands());
+        TransactionStore log = LogTransactionStore.build(Files.createTempDirectory("peergos-transactions").resolve("transactions.log"));
         return Arrays.asList(new Object[][] {
-                {ram}
+                {ram},
+                {log}
         });
     }
 
@@ -66,4 +69,38 @@ public class TransactionsStoreTests {
         List<Multihash> empty = store.getOpenTransactionBlocks();
         Assert.assertTrue("All blocks removed", empty.isEmpty());
     }
+
+    @Test
+    public void batchedTransaction() {
+        PublicKeyHash owner = new PublicKeyHash(hashToCid(new byte[3], true));
+        TransactionId tid = store.startTransaction(owner);
+        List<Multihash> pending = new ArrayList<>();
+        // more than fit in a single insert statement
+        for (int i=0; i < 450; i++)
+            pending.add(hashToCid(new byte[]{(byte) i, (byte) (i >> 8)}, true));
+        store.addBlocks(pending, tid, owner);
+        store.addBlocks(pending.subList(0, 10), tid, owner);
+
+        List<Multihash> streamed = new ArrayList<>();
+        store.getOpenTransactionBlocks(streamed::add);
+        Assert.assertTrue("All blocks present", streamed.containsAll(pending));
+
+        store.closeTransaction(owner, tid);
+        Assert.assertTrue("All blocks removed", store.getOpenTransactionBlocks().isEmpty());
+    }
+
+    @Test
+    public void idleTransactionsAreRemoved() throws Exception {
+        PublicKeyHash owner = new PublicKeyHash(hashToCid(new byte[4], true));
+        TransactionId idle = store.startTransaction(owner);
+        store.addBlock(hashToCid(new byte[]{1}, true), idle, owner);
+        Thread.sleep(50);
+        TransactionId active = store.startTransaction(owner);
+        Cid activeBlock = hashToCid(new byte[]{2}, true);
+        store.addBlock(activeBlock, active, owner);
+
+        Assert.assertEquals(1, store.removeIdleTransactions(25));
+        Assert.assertEquals(Collections.singletonList(activeBlock), store.getOpenTransactionBlocks());
+        store.closeTransaction(owner, active);
+    }
 }
@@ -0,0 +1,41 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.space.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class UsageScannerTests {
+
+    @Test
+    public void prioritisedUserIsScannedNext() throws Exception {
+        List<String> usernames = IntStream.range(0, 100)
+                .mapToObj(i -> "user" + i)
+                .collect(Collectors.toList());
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        UsageScanner scanner = new UsageScanner(usernames, username -> {
+            started.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {}
+            order.add(username);
+            return ! username.equals("user7");
+        }, 1, 0);
+
+        started.await();
+        CompletableFuture<Boolean> user90 = scanner.prioritise("user90");
+        Assert.assertFalse(scanner.isScanned("user90"));
+        Assert.assertTrue("Users outside the scan don't wait", scanner.prioritise("carol").isDone());
+        proceed.countDown();
+
+        Assert.assertTrue(user90.get(10, TimeUnit.SECONDS));
+        Assert.assertFalse("A failed user doesn't stop the scan", scanner.completion().get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(usernames.size(), order.size());
+        Assert.assertEquals("user90", order.get(1));
+        Assert.assertEquals(new HashSet<>(usernames), new HashSet<>(order));
+    }
+}
@@ -0,0 +1,117 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.server.tests.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.storage.auth.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.cryptree.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.lang.management.*;
+import java.time.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Throughput and allocation of decoding real champ, cryptree and writer data blocks, with the stream based
+ *  CborDecoder and the ByteArrayCborDecoder.
+ */
+public class CborBenchmark {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final int WARMUP = 20_000;
+    private static final int DECODES = 200_000;
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void run(String name, byte[] block, String decoder, Function<byte[], CborObject> decode) {
+        for (int i = 0; i < WARMUP; i++)
+            decode.apply(block);
+        long t0 = System.nanoTime(), b0 = allocatedBytes();
+        for (int i = 0; i < DECODES; i++)
+            decode.apply(block);
+        long nanos = System.nanoTime() - t0;
+        long bytes = allocatedBytes() - b0;
+        System.out.printf("%-10s %,6d bytes %-7s: %,12d ops/s %,8d bytes/op%n", name, block.length, decoder,
+                DECODES * 1_000_000_000L / Math.max(1, nanos), bytes / DECODES);
+    }
+
+    private static byte[] champBlock(RAMStorage storage, SigningPrivateKeyAndPublicHash user) {
+        Random r = new Random(1);
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).join();
+        Champ<CborObject.CborMerkleLink> empty = Champ.empty(CborObject.CborMerkleLink.FROM_CBOR);
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> root = new Pair<>(empty,
+                storage.put(user.publicKeyHash, user, empty.serialize(), crypto.hasher, tid).join());
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            ByteArrayWrapper wrapped = new ByteArrayWrapper(key);
+            root = root.left.put(user.publicKeyHash, user, wrapped, IpfsCoreNode.keyHash(wrapped).join(), 0,
+                    Optional.empty(), Optional.of(new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, key))),
+                    ChampWrapper.BIT_WIDTH, ChampWrapper.MAX_HASH_COLLISIONS_PER_LEVEL, IpfsCoreNode::keyHash, tid,
+                    storage, crypto.hasher, root.right).join();
+        }
+        return root.left.serialize();
+    }
+
+    private static byte[] cryptreeBlock(SigningPrivateKeyAndPublicHash user) {
+        SymmetricKey rBase = SymmetricKey.random();
+        SymmetricKey wBase = SymmetricKey.random();
+        SymmetricKey parent = SymmetricKey.random();
+        SymmetricKey parentParent = SymmetricKey.random();
+        Optional<BatId> mirrorBatId = Optional.of(BatId.sha256(Bat.random(crypto.random), crypto.hasher).join());
+        FileProperties props = new FileProperties("a-directory", true, false, "", 0, 0,
+                LocalDateTime.now(), false, Optional.empty(), Optional.empty());
+        Optional<RelativeCapability> parentCap = Optional.of(new RelativeCapability(Optional.empty(),
+                crypto.random.randomBytes(32), Optional.of(Bat.random(crypto.random)), parentParent, Optional.empty()));
+        RelativeCapability nextChunk = new RelativeCapability(Optional.empty(), crypto.random.randomBytes(32),
+                Optional.of(Bat.random(crypto.random)), parentParent, Optional.empty());
+        List<NamedRelativeCapability> children = IntStream.range(0, 20)
+                .mapToObj(i -> new NamedRelativeCapability("child-" + i, nextChunk))
+                .collect(Collectors.toList());
+        return CryptreeNode.createDir(MaybeMultihash.empty(), rBase, wBase, Optional.of(user), props, parentCap, parent,
+                nextChunk, new CryptreeNode.ChildrenLinks(children), Optional.of(Bat.random(crypto.random)), mirrorBatId,
+                crypto.random, crypto.hasher).join().dir.serialize();
+    }
+
+    private static byte[] writerDataBlock(RAMStorage storage, SigningPrivateKeyAndPublicHash user, byte[] champ) {
+        TransactionId tid = storage.startTransaction(user.publicKeyHash).join();
+        Multihash tree = storage.put(user.publicKeyHash, user, champ, crypto.hasher, tid).join();
+        return WriterData.createEmpty(user.publicKeyHash, user, storage, crypto.hasher, tid).join()
+                .withChamp(tree)
+                .serialize();
+    }
+
+    @Test
+    public void benchmark() {
+        RAMStorage storage = new RAMStorage(crypto.hasher);
+        SigningPrivateKeyAndPublicHash user = ChampTests.createUser(storage, crypto);
+        byte[] champ = champBlock(storage, user);
+        Map<String, byte[]> blocks = new LinkedHashMap<>();
+        blocks.put("champ", champ);
+        blocks.put("cryptree", cryptreeBlock(user));
+        blocks.put("writerdata", writerDataBlock(storage, user, champ));
+
+        for (Map.Entry<String, byte[]> e : blocks.entrySet()) {
+            byte[] block = e.getValue();
+            Assert.assertEquals(CborObject.read(new ByteArrayInputStream(block), block.length),
+                    ByteArrayCborDecoder.decode(block));
+            run(e.getKey(), block, "stream", b -> CborObject.read(new ByteArrayInputStream(b), b.length));
+            run(e.getKey(), block, "cursor", ByteArrayCborDecoder::decode);
+        }
+    }
+}
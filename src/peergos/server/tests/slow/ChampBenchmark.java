@@ -0,0 +1,144 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.hamt.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Throughput and allocation of champ lookups, puts, removes and diffs, for trees of different sizes.
+ *
+ *  Blocks are kept in RAM, and every intermediate node of every put is retained, so 10^6 keys or more needs a heap of
+ *  tens of GiB. Run with -Dchamp.benchmark.sizes=1000,...,10000000 to choose the sizes.
+ */
+public class ChampBenchmark {
+    private static final Crypto crypto = Main.initCrypto();
+    private static final Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher = IpfsCoreNode::keyHash;
+    private static final PublicKeyHash owner = new PublicKeyHash(new Cid(1, Cid.Codec.LibP2pKey, Multihash.Type.id, new byte[32]));
+    private static final SigningPrivateKeyAndPublicHash writer = new SigningPrivateKeyAndPublicHash(owner, null);
+    private static final int BIT_WIDTH = ChampWrapper.BIT_WIDTH;
+    private static final int MAX_COLLISIONS = ChampWrapper.MAX_HASH_COLLISIONS_PER_LEVEL;
+    private static final int LOOKUPS = 100_000;
+    private static final int CHANGES = 1_000;
+
+    /** Writes blocks without signing them, which would otherwise dominate put and remove.
+     */
+    private static class UnsignedRAMStorage extends RAMStorage {
+        public UnsignedRAMStorage() {
+            super(crypto.hasher);
+        }
+
+        @Override
+        public CompletableFuture<Cid> put(PublicKeyHash owner,
+                                          SigningPrivateKeyAndPublicHash writer,
+                                          byte[] block,
+                                          Hasher hasher,
+                                          TransactionId tid) {
+            return put(owner, writer.publicKeyHash, new byte[0], block, tid);
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void report(String op, int size, int count, long startNanos, long startBytes) {
+        long nanos = System.nanoTime() - startNanos;
+        long bytes = allocatedBytes() - startBytes;
+        System.out.printf("%-16s %,10d keys: %,12d ops/s %,10d bytes/op%n", op, size,
+                count * 1_000_000_000L / Math.max(1, nanos), bytes / count);
+    }
+
+    private static List<ByteArrayWrapper> keys(int count, Random r) {
+        List<ByteArrayWrapper> res = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            res.add(new ByteArrayWrapper(key));
+        }
+        return res;
+    }
+
+    private static Optional<CborObject.CborMerkleLink> value(ByteArrayWrapper key) {
+        return Optional.of(new CborObject.CborMerkleLink(new Multihash(Multihash.Type.sha2_256, key.data)));
+    }
+
+    private static Pair<Champ<CborObject.CborMerkleLink>, Multihash> put(Pair<Champ<CborObject.CborMerkleLink>, Multihash> root,
+                                                                         ByteArrayWrapper key,
+                                                                         TransactionId tid,
+                                                                         ContentAddressedStorage storage) {
+        return root.left.put(owner, writer, key, hasher.apply(key).join(), 0, Optional.empty(), value(key),
+                BIT_WIDTH, MAX_COLLISIONS, hasher, tid, storage, crypto.hasher, root.right).join();
+    }
+
+    private static void run(int size) {
+        ContentAddressedStorage storage = new UnsignedRAMStorage();
+        Random r = new Random(size);
+        List<ByteArrayWrapper> keys = keys(size, r);
+        TransactionId tid = storage.startTransaction(owner).join();
+        Champ<CborObject.CborMerkleLink> empty = Champ.empty(CborObject.CborMerkleLink.FROM_CBOR);
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> root = new Pair<>(empty,
+                storage.put(owner, writer, empty.serialize(), crypto.hasher, tid).join());
+
+        long t0 = System.nanoTime(), b0 = allocatedBytes();
+        for (ByteArrayWrapper key : keys)
+            root = put(root, key, tid, storage);
+        report("put", size, size, t0, b0);
+
+        List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < LOOKUPS; i++)
+            hashes.add(hasher.apply(keys.get(i % size)).join());
+        for (ChampNodeCache cache : Arrays.asList(ChampNodeCache.NONE, new ChampNodeCache(ChampNodeCache.DEFAULT_SIZE))) {
+            ContentAddressedStorage lookupStorage = new ChampCachingStorage(storage, cache);
+            Champ<CborObject.CborMerkleLink> lookupRoot = root.left;
+            for (int i = 0; i < LOOKUPS; i++) // warmup
+                lookupRoot.get(keys.get(i % size), hashes.get(i), 0, BIT_WIDTH, lookupStorage).join();
+            t0 = System.nanoTime();
+            b0 = allocatedBytes();
+            for (int i = 0; i < LOOKUPS; i++)
+                lookupRoot.get(keys.get(i % size), hashes.get(i), 0, BIT_WIDTH, lookupStorage).join();
+            report(cache == ChampNodeCache.NONE ? "get" : "get (cached)", size, LOOKUPS, t0, b0);
+        }
+
+        Pair<Champ<CborObject.CborMerkleLink>, Multihash> original = root;
+        int changes = Math.min(CHANGES, size);
+        t0 = System.nanoTime();
+        b0 = allocatedBytes();
+        for (int i = 0; i < changes; i++) {
+            ByteArrayWrapper key = keys.get(i);
+            root = root.left.remove(owner, writer, key, hasher.apply(key).join(), 0, value(key),
+                    BIT_WIDTH, MAX_COLLISIONS, tid, storage, crypto.hasher, root.right).join();
+        }
+        report("remove", size, changes, t0, b0);
+
+        int[] diffs = new int[1];
+        t0 = System.nanoTime();
+        b0 = allocatedBytes();
+        Champ.applyToDiff(MaybeMultihash.of(original.right), MaybeMultihash.of(root.right), 0, hasher,
+                Collections.emptyList(), Collections.emptyList(), t -> diffs[0]++, BIT_WIDTH, storage,
+                CborObject.CborMerkleLink.FROM_CBOR).join();
+        report("diff", size, changes, t0, b0);
+        Assert.assertEquals(changes, diffs[0]);
+    }
+
+    @Test
+    public void benchmark() {
+        String sizes = System.getProperty("champ.benchmark.sizes", "1000,10000,100000");
+        for (String size : sizes.split(","))
+            run(Integer.parseInt(size.trim()));
+    }
+}
@@ -0,0 +1,69 @@
+package peergos.server.tests.slow;
+
+import org.junit.*;
+import peergos.server.*;
+import peergos.server.sql.*;
+import peergos.server.storage.*;
+import peergos.server.tests.*;
+import peergos.server.util.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.function.*;
+
+/** Compare adding the blocks of a large upload to the transaction store one row at a time and in batches.
+ *
+ *  The postgres benchmark needs a local postgres set up as described in PostgresUserTests.
+ */
+public class TransactionStoreBenchmark {
+    private static final int BLOCKS = 20_000;
+
+    private static List<Cid> blocks() {
+        List<Cid> res = new ArrayList<>();
+        for (int i = 0; i < BLOCKS; i++)
+            res.add(TransactionsStoreTests.hashToCid(new byte[]{(byte) i, (byte) (i >> 8), (byte) (i >> 16)}, true));
+        return res;
+    }
+
+    private static void run(String name, Supplier<Connection> db, SqlSupplier commands) {
+        JdbcTransactionStore store = JdbcTransactionStore.build(db, commands);
+        PublicKeyHash owner = new PublicKeyHash(TransactionsStoreTests.hashToCid(new byte[1], true));
+        List<Cid> blocks = blocks();
+
+        TransactionId single = store.startTransaction(owner);
+        long t0 = System.currentTimeMillis();
+        for (Cid block : blocks)
+            store.addBlock(block, single, owner);
+        long t1 = System.currentTimeMillis();
+        store.closeTransaction(owner, single);
+
+        TransactionId batched = store.startTransaction(owner);
+        long t2 = System.currentTimeMillis();
+        store.addBlocks(blocks, batched, owner);
+        long t3 = System.currentTimeMillis();
+        store.closeTransaction(owner, batched);
+
+        System.out.println(name + " addBlock: " + BLOCKS * 1000L / Math.max(1, t1 - t0) + " blocks/s, addBlocks: "
+                + BLOCKS * 1000L / Math.max(1, t3 - t2) + " blocks/s");
+    }
+
+    @Test
+    public void sqlite() {
+        run("sqlite", Builder.buildEphemeralSqlite(), new SqliteCommands());
+    }
+
+    @Ignore
+    @Test
+    public void postgres() {
+        Args a = Args.parse(new String[]{
+                "-use-postgres", "true",
+                "-postgres.host", "localhost",
+                "-postgres.database", "peergostest",
+                "-postgres.username", "testuser",
+                "-postgres.password", "testpassword"});
+        run("postgres", Builder.getDBConnector(a, "transactions-sql-file"), new PostgresCommands());
+    }
+}
@@ -0,0 +1,65 @@
+package peergos.server.util;
+
+import java.util.concurrent.atomic.*;
+
+/** A fixed size bit set which can be safely updated from many threads without locking.
+ *
+ */
+public class AtomicBitSet {
+
+    private final AtomicLongArray words;
+    private final int nBits;
+
+    public AtomicBitSet(int nBits) {
+        this.nBits = nBits;
+        this.words = new AtomicLongArray(Math.max(1, (nBits + 63) / 64));
+    }
+
+    /**
+     *
+     * @param index
+     * @return true if the bit was previously clear
+     */
+    public boolean set(int index) {
+        int word = index >>> 6;
+        long mask = 1L << (index & 63);
+        while (true) {
+            long current = words.get(word);
+            if ((current & mask) != 0)
+                return false;
+            if (words.compareAndSet(word, current, current | mask))
+                return true;
+        }
+    }
+
+    public boolean get(int index) {
+        return (words.get(index >>> 6) & (1L << (index & 63))) != 0;
+    }
+
+    /**
+     *
+     * @param fromIndex
+     * @return the index of the first clear bit at or after fromIndex, or the size of this set if there are none
+     */
+    public int nextClearBit(int fromIndex) {
+        if (fromIndex >= nBits)
+            return nBits;
+        int word = fromIndex >>> 6;
+        long inverted = ~words.get(word) & (-1L << (fromIndex & 63));
+        while (true) {
+            if (inverted != 0)
+                return Math.min(nBits, word * 64 + Long.numberOfTrailingZeros(inverted));
+            word++;
+            if (word >= words.length())
+                return nBits;
+            inverted = ~words.get(word);
+        }
+    }
+
+    public int cardinality() {
+        int res = 0;
+        for (int i = 0; i < words.length(); i++)
+            res += Long.bitCount(words.get(i));
+        return res;
+    }
+}
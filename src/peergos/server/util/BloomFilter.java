@@ -0,0 +1,80 @@
+package peergos.server.util;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.concurrent.atomic.*;
+
+/** A thread safe bloom filter over multihashes. There are no false negatives, but there can be false positives at
+ *  approximately the rate given at construction (assuming no more than the expected number of elements are added).
+ *
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long nBits;
+    private final int nHashes;
+
+    public BloomFilter(long expectedElements, double falsePositiveRate) {
+        if (expectedElements <= 0)
+            expectedElements = 1;
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("Invalid false positive rate: " + falsePositiveRate);
+        long optimalBits = (long) Math.ceil(-expectedElements * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (optimalBits + 63) / 64);
+        this.bits = new AtomicLongArray(Math.max(1, words));
+        this.nBits = (long) bits.length() * 64;
+        this.nHashes = Math.max(1, (int) Math.round((double) nBits / expectedElements * Math.log(2)));
+    }
+
+    public long sizeInBytes() {
+        return nBits / 8;
+    }
+
+    public void add(Multihash h) {
+        long[] hashes = baseHashes(h.getHash());
+        for (int i = 0; i < nHashes; i++) {
+            long bit = index(hashes, i);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << (bit & 63);
+            long current = bits.get(word);
+            while ((current & mask) == 0 && ! bits.compareAndSet(word, current, current | mask))
+                current = bits.get(word);
+        }
+    }
+
+    public boolean mightContain(Multihash h) {
+        long[] hashes = baseHashes(h.getHash());
+        for (int i = 0; i < nHashes; i++) {
+            long bit = index(hashes, i);
+            if ((bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private long index(long[] hashes, int i) {
+        // Kirsch-Mitzenmacher double hashing
+        long combined = hashes[0] + i * hashes[1];
+        return (combined & Long.MAX_VALUE) % nBits;
+    }
+
+    /** Cryptographic hashes are already uniformly distributed, but identity hashes are not, so mix everything.
+     */
+    private static long[] baseHashes(byte[] hash) {
+        long h1 = 0x9E3779B97F4A7C15L, h2 = 0xC2B2AE3D27D4EB4FL;
+        for (int i = 0; i < hash.length; i++) {
+            h1 = (h1 ^ (hash[i] & 0xff)) * 0x100000001B3L;
+            h2 = (h2 ^ (hash[hash.length - 1 - i] & 0xff)) * 0xFF51AFD7ED558CCDL;
+        }
+        return new long[]{fmix(h1), fmix(h2) | 1};
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
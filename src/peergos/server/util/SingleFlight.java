@@ -0,0 +1,74 @@
+package peergos.server.util;
+
+import peergos.server.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Coalesces concurrent requests for the same key, so that at most one fetch per key is in flight at a time.
+ *
+ *  Only keys with a fetch in flight are held, and a request is removed as soon as it completes, so a later request
+ *  fetches again. If maxInFlight keys are already in flight, further requests are fetched without being coalesced,
+ *  rather than evicting a request which others may be waiting on.
+ */
+public class SingleFlight<K, V> {
+
+    private final String name;
+    private final int maxInFlight;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    public SingleFlight(String name, int maxInFlight) {
+        this.name = name;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    /** Callers which join an in flight request get its result, or its failure.
+     */
+    public CompletableFuture<V> get(K key, Supplier<CompletableFuture<V>> fetch) {
+        return get(key, fetch, (res, t) -> t == null ? Futures.of(res) : Futures.errored(t));
+    }
+
+    /**
+     *
+     * @param fetch called if there isn't already a request in flight for key
+     * @param onJoin called with the result, or failure, of the in flight request by callers which joined it
+     */
+    public CompletableFuture<V> get(K key,
+                                    Supplier<CompletableFuture<V>> fetch,
+                                    BiFunction<V, Throwable, CompletableFuture<V>> onJoin) {
+        CompletableFuture<V> existing = inFlight.get(key);
+        if (existing == null && inFlight.size() >= maxInFlight) {
+            AggregatedMetrics.SINGLE_FLIGHT_BYPASSED.labels(name).inc();
+            return fetch.get();
+        }
+        CompletableFuture<V> ours = new CompletableFuture<>();
+        if (existing == null)
+            existing = inFlight.putIfAbsent(key, ours);
+        if (existing != null) {
+            AggregatedMetrics.SINGLE_FLIGHT_COALESCED.labels(name).inc();
+            return existing.handle(onJoin).thenCompose(x -> x);
+        }
+
+        CompletableFuture<V> result;
+        try {
+            result = fetch.get();
+        } catch (RuntimeException e) {
+            result = Futures.errored(e);
+        }
+        result.whenComplete((res, t) -> {
+            // remove first, so anyone who arrives after completion fetches again
+            inFlight.remove(key, ours);
+            if (t != null)
+                ours.completeExceptionally(t);
+            else
+                ours.complete(res);
+        });
+        return ours.thenApply(x -> x);
+    }
+}
@@ -0,0 +1,182 @@
+package peergos.shared.cbor;
+
+import peergos.shared.io.ipfs.cid.*;
+
+import java.io.*;
+import java.util.*;
+
+import static peergos.shared.cbor.CborConstants.*;
+
+/** Decodes cbor directly from a byte[], using a cursor rather than a chain of input streams.
+ *
+ *  This produces the same CborObjects, and accepts the same inputs, as CborObject.deserialize over a CborDecoder.
+ */
+public class ByteArrayCborDecoder {
+
+    private final byte[] raw;
+    private final int end;
+    private final int maxGroupSize;
+    private int pos;
+
+    private ByteArrayCborDecoder(byte[] raw, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > raw.length)
+            throw new IllegalArgumentException("Invalid cbor slice: " + offset + " + " + length + " > " + raw.length);
+        this.raw = raw;
+        this.pos = offset;
+        this.end = offset + length;
+        this.maxGroupSize = length;
+    }
+
+    public static CborObject decode(byte[] raw) {
+        return decode(raw, 0, raw.length);
+    }
+
+    /** Decode the first cbor object in raw[offset, offset + length). Any trailing bytes are ignored.
+     */
+    public static CborObject decode(byte[] raw, int offset, int length) {
+        try {
+            return new ByteArrayCborDecoder(raw, offset, length).readObject();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void fail(String msg) throws IOException {
+        throw new IOException(msg);
+    }
+
+    private int readByte() throws IOException {
+        if (pos >= end)
+            throw new EOFException();
+        return raw[pos++] & 0xFF;
+    }
+
+    private void require(long len) throws IOException {
+        if (len > end - pos)
+            throw new EOFException();
+    }
+
+    /**
+     *
+     * @return the unsigned integer, or -1 for an indefinite length if breakAllowed
+     */
+    private long readUInt(int length, boolean breakAllowed) throws IOException {
+        long result = -1;
+        if (length < ONE_BYTE) {
+            result = length;
+        } else if (length == ONE_BYTE) {
+            result = readByte();
+        } else if (length == TWO_BYTES) {
+            require(2);
+            result = (raw[pos] & 0xFF) << 8 | (raw[pos + 1] & 0xFF);
+            pos += 2;
+        } else if (length == FOUR_BYTES) {
+            require(4);
+            result = ((raw[pos] & 0xFFL) << 24) | ((raw[pos + 1] & 0xFF) << 16) | ((raw[pos + 2] & 0xFF) << 8) | (raw[pos + 3] & 0xFF);
+            pos += 4;
+        } else if (length == EIGHT_BYTES) {
+            require(8);
+            result = 0;
+            for (int i = 0; i < 8; i++)
+                result = (result << 8) | (raw[pos + i] & 0xFFL);
+            pos += 8;
+        } else if (breakAllowed && length == BREAK) {
+            return -1;
+        }
+        if (result < 0)
+            fail("Not well-formed CBOR integer found, invalid length: " + result);
+        return result;
+    }
+
+    private int readStringLength(int info, String type) throws IOException {
+        long len = readUInt(info, true);
+        if (len < 0)
+            fail("Infinite-length " + type + " strings not supported!");
+        if (len > Integer.MAX_VALUE)
+            fail("String length too long!");
+        if (len > maxGroupSize)
+            fail("Invalid cbor: " + type + " string longer than original bytes!");
+        require(len);
+        return (int) len;
+    }
+
+    private byte[] readByteString(int info) throws IOException {
+        int len = readStringLength(info, "byte");
+        byte[] res = Arrays.copyOfRange(raw, pos, pos + len);
+        pos += len;
+        return res;
+    }
+
+    private String readTextString(int info) throws IOException {
+        int len = readStringLength(info, "text");
+        String res = new String(raw, pos, len, "UTF-8");
+        pos += len;
+        return res;
+    }
+
+    private CborObject readObject() throws IOException {
+        int ib = readByte();
+        int majorType = ib >>> 5;
+        int info = ib & 0x1F;
+        switch (majorType) {
+            case TYPE_TEXT_STRING:
+                return new CborObject.CborString(readTextString(info));
+            case TYPE_BYTE_STRING:
+                return new CborObject.CborByteArray(readByteString(info));
+            case TYPE_UNSIGNED_INTEGER:
+                return new CborObject.CborLong(readUInt(info, false));
+            case TYPE_NEGATIVE_INTEGER:
+                // ones complement
+                return new CborObject.CborLong(-1L ^ readUInt(info, false));
+            case TYPE_FLOAT_SIMPLE:
+                if (info == NULL)
+                    return new CborObject.CborNull();
+                if (info == TRUE)
+                    return new CborObject.CborBoolean(true);
+                if (info == FALSE)
+                    return new CborObject.CborBoolean(false);
+                throw new IllegalStateException("Unimplemented simple type! " + info);
+            case TYPE_MAP: {
+                long nValues = readUInt(info, true);
+                if (nValues > maxGroupSize)
+                    throw new IllegalStateException("Invalid cbor: more map elements than original bytes!");
+                SortedMap<CborObject.CborString, CborObject> result = new TreeMap<>();
+                for (long i=0; i < nValues; i++) {
+                    CborObject.CborString key = (CborObject.CborString) readObject();
+                    CborObject value = readObject();
+                    result.put(key, value);
+                }
+                return CborObject.CborMap.fromSorted(result);
+            }
+            case TYPE_ARRAY: {
+                long nItems = readUInt(info, true);
+                if (nItems > maxGroupSize)
+                    throw new IllegalStateException("Invalid cbor: more array elements than original bytes!");
+                List<CborObject> res = new ArrayList<>((int) nItems);
+                for (long i=0; i < nItems; i++)
+                    res.add(readObject());
+                return new CborObject.CborList(res);
+            }
+            case TYPE_TAG: {
+                long tag = readUInt(info, false);
+                if (tag == CborObject.LINK_TAG) {
+                    CborObject value = readObject();
+                    if (value instanceof CborObject.CborString)
+                        return new CborObject.CborMerkleLink(Cid.decode(((CborObject.CborString) value).value));
+                    if (value instanceof CborObject.CborByteArray) {
+                        byte[] bytes = ((CborObject.CborByteArray) value).value;
+                        if (bytes.length == 0)
+                            throw new IllegalStateException("Invalid cbor: empty merkle link");
+                        if (bytes[0] == 0) // multibase for binary
+                            return new CborObject.CborMerkleLink(Cid.cast(Arrays.copyOfRange(bytes, 1, bytes.length)));
+                        throw new IllegalStateException("Unknown Multibase decoding Merkle link: " + bytes[0]);
+                    }
+                    throw new IllegalStateException("Invalid type for merkle link: " + value);
+                }
+                throw new IllegalStateException("Unknown TAG in CBOR: " + tag);
+            }
+            default:
+                throw new IllegalStateException("Unimplemented cbor type: " + CborType.valueOf(ib));
+        }
+    }
+}
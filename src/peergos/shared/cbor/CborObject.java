@@ -31,7 +31,7 @@ public interface CborObject extends Cborable {
     int LINK_TAG = 42;
 
     static CborObject fromByteArray(byte[] cbor) {
-        return deserialize(new CborDecoder(new ByteArrayInputStream(cbor)), cbor.length);
+        return ByteArrayCborDecoder.decode(cbor);
     }
 
     static CborObject read(InputStream in, int maxBytes) {
@@ -115,6 +115,10 @@ public interface CborObject extends Cborable {
             this.values = values;
         }
 
+        static CborMap fromSorted(SortedMap<CborString, CborObject> values) {
+            return new CborMap(values);
+        }
+
         public static CborMap build(Map<String, Cborable> values) {
             SortedMap<CborString, CborObject> transformed = values.entrySet()
                     .stream()
@@ -279,6 +283,9 @@ public interface CborObject extends Cborable {
     }
 
     final class CborMerkleLink implements CborObject, Comparable<CborMerkleLink> {
+        // a single instance, so that decoded champ nodes with link values can be shared between trees
+        public static final Function<Cborable, CborMerkleLink> FROM_CBOR = c -> (CborMerkleLink) c;
+
         public final Multihash target;
 
         public CborMerkleLink(Multihash target) {
@@ -21,6 +21,10 @@ import java.util.stream.*;
 public class Champ<V extends Cborable> implements Cborable {
 
     private static final int HASH_CODE_LENGTH = 32;
+    // the bitmaps are ints, so a node can have at most 32 entries
+    public static final int MAX_BIT_WIDTH = 5;
+    // the number of nodes to fetch concurrently in whole tree traversals
+    public static final int DEFAULT_TRAVERSAL_PARALLELISM = 16;
 
     private static class KeyElement<V extends Cborable> {
         public final ByteArrayWrapper key;
@@ -46,87 +50,46 @@ public class Champ<V extends Cborable> implements Cborable {
         }
     }
 
-    private static class HashPrefixPayload<V extends Cborable> {
-        public final KeyElement<V>[] mappings;
-        public final MaybeMultihash link;
-
-        public HashPrefixPayload(KeyElement<V>[] mappings, MaybeMultihash link) {
-            this.mappings = mappings;
-            this.link = link;
-            if ((mappings == null) ^ (link != null))
-                throw new IllegalStateException("Payload can either be mappings or a link, not both!");
-        }
-
-        public HashPrefixPayload(KeyElement<V>[] mappings) {
-            this(mappings, null);
-        }
-
-        public HashPrefixPayload(MaybeMultihash link) {
-            this(null, link);
-        }
-
-        public boolean isShard() {
-            return link != null;
-        }
-
-        public int keyCount() {
-            return mappings.length;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            HashPrefixPayload<?> that = (HashPrefixPayload<?>) o;
-            return Arrays.equals(mappings, that.mappings) &&
-                    Objects.equals(link, that.link);
-        }
-
-        @Override
-        public int hashCode() {
-            int result = Objects.hash(link);
-            result = 31 * result + Arrays.hashCode(mappings);
-            return result;
-        }
-    }
-
+    @SuppressWarnings("unchecked")
     public static <V extends Cborable> Champ<V> empty(Function<Cborable, V> fromCbor) {
-        return new Champ<>(new BitSet(), new BitSet(), new HashPrefixPayload[0], fromCbor);
+        return new Champ<>(0, 0, new KeyElement[0][], new Multihash[0], fromCbor);
     }
 
-    private final BitSet dataMap, nodeMap;
-    private final HashPrefixPayload<V>[] contents;
+    private final int dataMap, nodeMap;
+    // the mappings with each hash prefix in dataMap, in bit order
+    private final KeyElement<V>[][] data;
+    // the child node for each hash prefix in nodeMap, in bit order
+    private final Multihash[] links;
     private final Function<Cborable, V> fromCbor;
 
-    public Champ(BitSet dataMap, BitSet nodeMap, HashPrefixPayload<V>[] contents, Function<Cborable, V> fromCbor) {
+    private Champ(int dataMap, int nodeMap, KeyElement<V>[][] data, Multihash[] links, Function<Cborable, V> fromCbor) {
         this.dataMap = dataMap;
         this.nodeMap = nodeMap;
-        this.contents = contents;
+        this.data = data;
+        this.links = links;
         this.fromCbor = fromCbor;
-        for (int i=0; i< contents.length; i++)
-            if (contents[i] == null)
+        for (int i=0; i < data.length; i++)
+            if (data[i] == null)
+                throw new IllegalStateException();
+        for (int i=0; i < links.length; i++)
+            if (links[i] == null)
                 throw new IllegalStateException();
     }
 
     private int keyCount() {
         int count = 0;
-        for (HashPrefixPayload<V> payload : contents) {
-            if (! payload.isShard())
-                    count += payload.keyCount();
-        }
+        for (KeyElement<V>[] bucket : data)
+            count += bucket.length;
         return count;
     }
 
     private int nodeCount() {
-        int count = 0;
-        for (HashPrefixPayload<V> payload : contents)
-            if (payload.isShard())
-                count++;
-
-        return count;
+        return links.length;
     }
 
     private static int mask(byte[] hash, int depth, int nbits) {
+        if (nbits > MAX_BIT_WIDTH)
+            throw new IllegalArgumentException("Champ bit width must be at most " + MAX_BIT_WIDTH);
         int index = (depth * nbits) / 8;
         int shift = (depth * nbits) % 8;
         int lowBits = Math.min(nbits, 8 - shift);
@@ -137,24 +100,45 @@ public class Champ<V extends Cborable> implements Cborable {
                 ((val2 & ((1 << hiBits) - 1)) << lowBits);
     }
 
-    private static int getIndex(BitSet bitmap, int bitpos) {
-        int total = 0;
-        for (int i = 0; i < bitpos;) {
-            int next = bitmap.nextSetBit(i);
-            if (next == -1 || next >= bitpos)
-                return total;
-            total++;
-            i = next + 1;
+    private static boolean isSet(int bitmap, int bitpos) {
+        return (bitmap & (1 << bitpos)) != 0;
+    }
+
+    /**
+     *
+     * @return the number of bits set below bitpos
+     */
+    private static int getIndex(int bitmap, int bitpos) {
+        return Integer.bitCount(bitmap & ((1 << bitpos) - 1));
+    }
+
+    /** The same bytes as BitSet.toByteArray, i.e. little endian, without trailing zero bytes.
+     */
+    private static byte[] bitmapToBytes(int bitmap) {
+        byte[] res = new byte[(32 - Integer.numberOfLeadingZeros(bitmap) + 7) / 8];
+        for (int i=0; i < res.length; i++)
+            res[i] = (byte) (bitmap >>> (8 * i));
+        return res;
+    }
+
+    private static int bitmapFromBytes(byte[] raw) {
+        int bitmap = 0;
+        for (int i=0; i < raw.length; i++) {
+            if (i >= 4) {
+                if (raw[i] != 0)
+                    throw new IllegalStateException("Champ bitmap too large!");
+                continue;
+            }
+            bitmap |= (raw[i] & 0xFF) << (8 * i);
         }
-        return total;
+        return bitmap;
     }
 
     CompletableFuture<Pair<Multihash, Optional<Champ<V>>>> getChild(byte[] hash, int depth, int bitWidth, ContentAddressedStorage storage) {
         int bitpos = mask(hash, depth, bitWidth);
-        int index = contents.length - 1 - getIndex(this.nodeMap, bitpos);
-        Multihash childHash = contents[index].link.get();
-        return storage.get((Cid) childHash, Optional.empty())
-                .thenApply(x -> new Pair<>(childHash, x.map(y -> Champ.fromCbor(y, fromCbor))));
+        Multihash childHash = links[getIndex(this.nodeMap, bitpos)];
+        return storage.champNodeCache().get((Cid) childHash, storage, fromCbor)
+                .thenApply(x -> new Pair<>(childHash, x));
     }
 
     public CompletableFuture<Long> size(int depth, ContentAddressedStorage storage) {
@@ -163,13 +147,9 @@ public class Champ<V extends Cborable> implements Cborable {
             return CompletableFuture.completedFuture(keys);
 
         List<CompletableFuture<Long>> childCounts = new ArrayList<>();
-        for (int i = contents.length - 1; i >= 0; i--) {
-            HashPrefixPayload<V> pointer = contents[i];
-            if (! pointer.isShard())
-                break; // we reach the key section
-            childCounts.add(storage.get((Cid) pointer.link.get(), Optional.empty())
-                    .thenApply(x -> new Pair<>(pointer.link.get(), x.map(y -> Champ.fromCbor(y, fromCbor))))
-                    .thenCompose(child -> child.right.map(c -> c.size(depth + 1, storage))
+        for (int i = links.length - 1; i >= 0; i--) {
+            childCounts.add(storage.champNodeCache().get((Cid) links[i], storage, fromCbor)
+                    .thenCompose(child -> child.map(c -> c.size(depth + 1, storage))
                             .orElse(CompletableFuture.completedFuture(0L)))
             );
         }
@@ -195,10 +175,9 @@ public class Champ<V extends Cborable> implements Cborable {
     public CompletableFuture<Optional<V>> get(ByteArrayWrapper key, byte[] hash, int depth, int bitWidth, ContentAddressedStorage storage) {
         final int bitpos = mask(hash, depth, bitWidth);
 
-        if (dataMap.get(bitpos)) { // local value
+        if (isSet(dataMap, bitpos)) { // local value
             int index = getIndex(this.dataMap, bitpos);
-            HashPrefixPayload<V> payload = contents[index];
-            for (KeyElement<V> candidate : payload.mappings) {
+            for (KeyElement<V> candidate : data[index]) {
                 if (candidate.key.equals(key)) {
                     return CompletableFuture.completedFuture(candidate.valueHash);
                 }
@@ -207,7 +186,7 @@ public class Champ<V extends Cborable> implements Cborable {
             return CompletableFuture.completedFuture(Optional.empty());
         }
 
-        if (nodeMap.get(bitpos)) { // child node
+        if (isSet(nodeMap, bitpos)) { // child node
             return getChild(hash, depth, bitWidth, storage)
                     .thenCompose(child -> child.right.map(c -> c.get(key, hash, depth + 1, bitWidth, storage))
                             .orElse(CompletableFuture.completedFuture(Optional.empty())));
@@ -248,10 +227,9 @@ public class Champ<V extends Cborable> implements Cborable {
                                                             Multihash ourHash) {
         int bitpos = mask(hash, depth, bitWidth);
 
-        if (dataMap.get(bitpos)) { // local value
+        if (isSet(dataMap, bitpos)) { // local value
             int index = getIndex(this.dataMap, bitpos);
-            HashPrefixPayload<V> payload = contents[index];
-            KeyElement<V>[] mappings = payload.mappings;
+            KeyElement<V>[] mappings = data[index];
             for (int payloadIndex = 0; payloadIndex < mappings.length; payloadIndex++) {
                 KeyElement<V> mapping = mappings[payloadIndex];
                 final ByteArrayWrapper currentKey = mapping.key;
@@ -279,7 +257,7 @@ public class Champ<V extends Cborable> implements Cborable {
                         Champ<V> champ = copyAndMigrateFromInlineToNode(bitpos, p);
                         return storage.put(owner, writer, champ.serialize(), writeHasher, tid).thenApply(h -> new Pair<>(champ, h));
                     });
-        } else if (nodeMap.get(bitpos)) { // child node
+        } else if (isSet(nodeMap, bitpos)) { // child node
             return getChild(hash, depth, bitWidth, storage)
                     .thenCompose(child -> child.right.get().put(owner, writer, key, hash, depth + 1, expected, value,
                             bitWidth, maxCollisions, hasher, tid, storage, writeHasher, child.left)
@@ -329,80 +307,57 @@ public class Champ<V extends Cborable> implements Cborable {
     }
 
     private Champ<V> copyAndSetValue(final int setIndex, final int payloadIndex, final Optional<V> val) {
-        final HashPrefixPayload<V>[] src = this.contents;
-        final HashPrefixPayload<V>[] dst = Arrays.copyOf(src, src.length);
+        final KeyElement<V>[][] dst = Arrays.copyOf(data, data.length);
 
-        HashPrefixPayload<V> existing = dst[setIndex];
-        KeyElement<V>[] updated = new KeyElement[existing.mappings.length];
-        System.arraycopy(existing.mappings, 0, updated, 0, existing.mappings.length);
-        updated[payloadIndex] = new KeyElement<>(existing.mappings[payloadIndex].key, val);
-        dst[setIndex] = new HashPrefixPayload<>(updated);
+        KeyElement<V>[] updated = Arrays.copyOf(data[setIndex], data[setIndex].length);
+        updated[payloadIndex] = new KeyElement<>(updated[payloadIndex].key, val);
+        dst[setIndex] = updated;
 
-        return new Champ<>(dataMap, nodeMap, dst, fromCbor);
+        return new Champ<>(dataMap, nodeMap, dst, links, fromCbor);
     }
 
     private Champ<V> insertIntoPrefix(final int index, final ByteArrayWrapper key, final Optional<V> val) {
-        final HashPrefixPayload<V>[] src = this.contents;
-        final HashPrefixPayload<V>[] result = Arrays.copyOf(src, src.length);
+        final KeyElement<V>[][] result = Arrays.copyOf(data, data.length);
 
-        KeyElement<V>[] prefix = new KeyElement[src[index].mappings.length + 1];
-        System.arraycopy(src[index].mappings, 0, prefix, 0, src[index].mappings.length);
+        KeyElement<V>[] prefix = Arrays.copyOf(data[index], data[index].length + 1);
         prefix[prefix.length - 1] = new KeyElement<>(key, val);
         // ensure canonical structure
         Arrays.sort(prefix, Comparator.comparing(m -> m.key));
-        result[index] = new HashPrefixPayload<>(prefix);
+        result[index] = prefix;
 
-        return new Champ<>(dataMap, nodeMap, result, fromCbor);
+        return new Champ<>(dataMap, nodeMap, result, links, fromCbor);
     }
 
+    @SuppressWarnings("unchecked")
     private Champ<V> addNewPrefix(final int bitpos, final ByteArrayWrapper key, final Optional<V> val) {
         final int insertIndex = getIndex(dataMap, bitpos);
-
-        final HashPrefixPayload<V>[] src = this.contents;
-        final HashPrefixPayload<V>[] result = new HashPrefixPayload[src.length + 1];
-
-        System.arraycopy(src, 0, result, 0, insertIndex);
-        System.arraycopy(src, insertIndex, result, insertIndex + 1, src.length - insertIndex);
-        result[insertIndex] = new HashPrefixPayload<>(new KeyElement[]{new KeyElement<>(key, val)});
-
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        newDataMap.set(bitpos);
-        return new Champ<>(newDataMap, nodeMap, result, fromCbor);
+        final KeyElement<V>[][] result = insert(data, insertIndex, new KeyElement[]{new KeyElement<>(key, val)});
+        return new Champ<>(dataMap | (1 << bitpos), nodeMap, result, links, fromCbor);
     }
 
     private Champ<V> copyAndMigrateFromInlineToNode(final int bitpos, final Pair<Champ<V>, Multihash> node) {
-
-        final int oldIndex = getIndex(dataMap, bitpos);
-        final int newIndex = this.contents.length - 1 - getIndex(nodeMap, bitpos);
-
-        final HashPrefixPayload<V>[] src = this.contents;
-        final HashPrefixPayload<V>[] dst = new HashPrefixPayload[src.length];
-
-        // copy 'src' and remove 1 element at position oldIndex and insert 1 element at position newIndex
-        if (oldIndex > newIndex)
-            throw new IllegalStateException("Invalid champ!");
-        System.arraycopy(src, 0, dst, 0, oldIndex);
-        System.arraycopy(src, oldIndex + 1, dst, oldIndex, newIndex - oldIndex);
-        dst[newIndex] = new HashPrefixPayload<>(MaybeMultihash.of(node.right));
-        System.arraycopy(src, newIndex + 1, dst, newIndex + 1, src.length - newIndex - 1);
-
-        BitSet newNodeMap = BitSet.valueOf(nodeMap.toByteArray());
-        newNodeMap.set(bitpos);
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        newDataMap.set(bitpos, false);
-        return new Champ<>(newDataMap, newNodeMap, dst, fromCbor);
+        final KeyElement<V>[][] newData = remove(data, getIndex(dataMap, bitpos));
+        final Multihash[] newLinks = insert(links, getIndex(nodeMap, bitpos), node.right);
+        return new Champ<>(dataMap & ~(1 << bitpos), nodeMap | (1 << bitpos), newData, newLinks, fromCbor);
     }
 
     private Champ<V> overwriteChildLink(final int bitpos, final Pair<Champ<V>, Multihash> node) {
+        final Multihash[] dst = Arrays.copyOf(links, links.length);
+        dst[getIndex(nodeMap, bitpos)] = node.right;
+        return new Champ<>(dataMap, nodeMap, data, dst, fromCbor);
+    }
 
-        final int setIndex = this.contents.length - 1 - getIndex(nodeMap, bitpos);
-
-        final HashPrefixPayload<V>[] src = this.contents;
-        final HashPrefixPayload<V>[] dst = Arrays.copyOf(src, src.length);
-
-        dst[setIndex] = new HashPrefixPayload<>(MaybeMultihash.of(node.right));
+    private static <T> T[] insert(T[] src, int index, T value) {
+        T[] dst = Arrays.copyOf(src, src.length + 1);
+        System.arraycopy(src, index, dst, index + 1, src.length - index);
+        dst[index] = value;
+        return dst;
+    }
 
-        return new Champ<>(dataMap, nodeMap, dst, fromCbor);
+    private static <T> T[] remove(T[] src, int index) {
+        T[] dst = Arrays.copyOf(src, src.length - 1);
+        System.arraycopy(src, index + 1, dst, index, src.length - index - 1);
+        return dst;
     }
 
     /**
@@ -432,11 +387,10 @@ public class Champ<V extends Cborable> implements Cborable {
                                                                Multihash ourHash) {
         int bitpos = mask(hash, depth, bitWidth);
 
-        if (dataMap.get(bitpos)) { // in place value
+        if (isSet(dataMap, bitpos)) { // in place value
             final int dataIndex = getIndex(dataMap, bitpos);
 
-            HashPrefixPayload<V> payload = contents[dataIndex];
-            KeyElement<V>[] mappings = payload.mappings;
+            KeyElement<V>[] mappings = data[dataIndex];
             for (int payloadIndex = 0; payloadIndex < mappings.length; payloadIndex++) {
                 KeyElement<V> mapping = mappings[payloadIndex];
                 final ByteArrayWrapper currentKey = mapping.key;
@@ -459,41 +413,35 @@ public class Champ<V extends Cborable> implements Cborable {
                         if (depth > 0) {
                             // inline all mappings into a single node because at a higher level, all mappings have the
                             // same hash prefix
-                            final BitSet newDataMap = new BitSet();
-                            newDataMap.set(mask(hash, 0, bitWidth));
+                            final int newDataMap = 1 << mask(hash, 0, bitWidth);
 
                             KeyElement<V>[] remainingMappings = new KeyElement[maxCollisions];
                             int nextIndex = 0;
-                            for (HashPrefixPayload<V> grouped : contents) {
-                                for (KeyElement<V> pair : grouped.mappings) {
+                            for (KeyElement<V>[] grouped : data) {
+                                for (KeyElement<V> pair : grouped) {
                                     if (!pair.key.equals(key))
                                         remainingMappings[nextIndex++] = pair;
                                 }
                             }
                             Arrays.sort(remainingMappings, Comparator.comparing(x -> x.key));
-                            HashPrefixPayload<V>[] oneBucket = new HashPrefixPayload[]{new HashPrefixPayload(remainingMappings)};
+                            KeyElement<V>[][] oneBucket = new KeyElement[][]{remainingMappings};
 
-                            champ = new Champ<>(newDataMap, new BitSet(), oneBucket, fromCbor);
+                            champ = new Champ<>(newDataMap, 0, oneBucket, links, fromCbor);
                         } else {
-                            final BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
                             boolean lastInPrefix = mappings.length == 1;
+                            final int newDataMap = lastInPrefix ?
+                                    dataMap & ~(1 << bitpos) :
+                                    dataMap | (1 << mask(hash, 0, bitWidth));
+
+                            KeyElement<V>[][] dst;
                             if (lastInPrefix)
-                                newDataMap.clear(bitpos);
-                            else
-                                newDataMap.set(mask(hash, 0, bitWidth));
-
-                            HashPrefixPayload<V>[] src = this.contents;
-                            HashPrefixPayload<V>[] dst = new HashPrefixPayload[src.length - (lastInPrefix ? 1 : 0)];
-                            System.arraycopy(src, 0, dst, 0, dataIndex);
-                            System.arraycopy(src, dataIndex + 1, dst, dataIndex + (lastInPrefix ? 0 : 1), src.length - dataIndex - 1);
-                            if (! lastInPrefix) {
-                                KeyElement<V>[] remaining = new KeyElement[mappings.length - 1];
-                                System.arraycopy(mappings, 0, remaining, 0, payloadIndex);
-                                System.arraycopy(mappings, payloadIndex + 1, remaining, payloadIndex, mappings.length - payloadIndex - 1);
-                                dst[dataIndex] = new HashPrefixPayload<>(remaining);
+                                dst = remove(data, dataIndex);
+                            else {
+                                dst = Arrays.copyOf(data, data.length);
+                                dst[dataIndex] = remove(mappings, payloadIndex);
                             }
 
-                            champ = new Champ(newDataMap, new BitSet(), dst, fromCbor);
+                            champ = new Champ<>(newDataMap, 0, dst, links, fromCbor);
                         }
                         return storage.put(owner, writer, champ.serialize(), writeHasher, tid).thenApply(h -> new Pair<>(champ, h));
                     } else {
@@ -503,7 +451,7 @@ public class Champ<V extends Cborable> implements Cborable {
                 }
             }
             return CompletableFuture.completedFuture(new Pair<>(this, ourHash));
-        } else if (nodeMap.get(bitpos)) { // node (not value)
+        } else if (isSet(nodeMap, bitpos)) { // node (not value)
             return getChild(hash, depth, bitWidth, storage)
                     .thenCompose(child -> child.right.get().remove(owner, writer, key, hash, depth + 1, expected,
                             bitWidth, maxCollisions, tid, storage, writeHasher, child.left)
@@ -511,7 +459,7 @@ public class Champ<V extends Cborable> implements Cborable {
                                 if (child.left.equals(newChild.right))
                                     return CompletableFuture.completedFuture(new Pair<>(this, ourHash));
 
-                                if (newChild.left.contents.length == 0) {
+                                if (newChild.left.data.length == 0 && newChild.left.links.length == 0) {
                                     throw new IllegalStateException("Sub-node must have at least one element.");
                                 } else if (newChild.left.nodeCount() == 0 && newChild.left.keyCount() == maxCollisions) {
                                     if (this.keyCount() == 0 && this.nodeCount() == 1) {
@@ -534,103 +482,378 @@ public class Champ<V extends Cborable> implements Cborable {
     }
 
     private Champ<V> copyAndMigrateFromNodeToInline(final int bitpos, final Champ<V> node) {
-
-        final int oldIndex = this.contents.length - 1 - getIndex(nodeMap, bitpos);
-        final int newIndex = getIndex(dataMap, bitpos);
-
-        final HashPrefixPayload<V>[] src = this.contents;
-        final HashPrefixPayload<V>[] dst = new HashPrefixPayload[src.length];
-
-        // copy src and remove element at position oldIndex and insert element at position newIndex
-        if (oldIndex < newIndex)
-            throw new IllegalStateException("Invalid champ!");
-        System.arraycopy(src, 0, dst, 0, newIndex);
         KeyElement<V>[] merged = new KeyElement[node.keyCount()];
         int count = 0;
-        for (int i=0; i < node.contents.length; i++) {
-            KeyElement<V>[] toAdd = node.contents[i].mappings;
+        for (KeyElement<V>[] toAdd : node.data) {
             System.arraycopy(toAdd, 0, merged, count, toAdd.length);
             count += toAdd.length;
         }
         Arrays.sort(merged, Comparator.comparing(x -> x.key));
-        dst[newIndex] = new HashPrefixPayload<>(merged);
-        System.arraycopy(src, newIndex, dst, newIndex + 1, oldIndex - newIndex);
-        System.arraycopy(src, oldIndex + 1, dst, oldIndex + 1, src.length - oldIndex - 1);
 
-        BitSet newNodeMap = BitSet.valueOf(nodeMap.toByteArray());
-        newNodeMap.set(bitpos, false);
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        newDataMap.set(bitpos, true);
-        return new Champ<>(newDataMap, newNodeMap, dst, fromCbor);
+        final KeyElement<V>[][] newData = insert(data, getIndex(dataMap, bitpos), merged);
+        final Multihash[] newLinks = remove(links, getIndex(nodeMap, bitpos));
+        return new Champ<>(dataMap | (1 << bitpos), nodeMap & ~(1 << bitpos), newData, newLinks, fromCbor);
     }
 
     private Champ<V> removeMapping(final int bitpos, final int payloadIndex) {
         final int index = getIndex(dataMap, bitpos);
-        final HashPrefixPayload<V>[] src = this.contents;
-        KeyElement<V>[] existing = src[index].mappings;
-        boolean lastInPrefix = existing.length == 1;
-        final HashPrefixPayload<V>[] dst = new HashPrefixPayload[src.length - (lastInPrefix ? 1 : 0)];
-
-        // copy src and remove element at position index
-        System.arraycopy(src, 0, dst, 0, index);
-        System.arraycopy(src, index + 1, dst, lastInPrefix ? index : index + 1, src.length - index - 1);
-        if (! lastInPrefix) {
-            KeyElement<V>[] remaining = new KeyElement[existing.length - 1];
-            System.arraycopy(existing, 0, remaining, 0, payloadIndex);
-            System.arraycopy(existing, payloadIndex + 1, remaining, payloadIndex, existing.length - payloadIndex - 1);
-            dst[index] = new HashPrefixPayload<>(remaining);
+        KeyElement<V>[] existing = data[index];
+        if (existing.length == 1)
+            return new Champ<>(dataMap & ~(1 << bitpos), nodeMap, remove(data, index), links, fromCbor);
+
+        final KeyElement<V>[][] dst = Arrays.copyOf(data, data.length);
+        dst[index] = remove(existing, payloadIndex);
+        return new Champ<>(dataMap, nodeMap, dst, links, fromCbor);
+    }
+
+    private static class Change<V extends Cborable> {
+        public final ByteArrayWrapper key;
+        public final byte[] hash;
+        public final Optional<V> expected;
+        // empty for a removal
+        public final Optional<Optional<V>> value;
+
+        public Change(ByteArrayWrapper key, byte[] hash, Optional<V> expected, Optional<Optional<V>> value) {
+            this.key = key;
+            this.hash = hash;
+            this.expected = expected;
+            this.value = value;
+        }
+    }
+
+    /** The new contents of a single hash prefix of a node, either a bucket of mappings, a link to a child, or neither.
+     */
+    private static class Slot<V extends Cborable> {
+        public final KeyElement<V>[] bucket;
+        public final Multihash link;
+
+        public Slot(KeyElement<V>[] bucket, Multihash link) {
+            this.bucket = bucket;
+            this.link = link;
+        }
+    }
+
+    /** Apply many puts in a single pass. The result is the same as applying them one at a time, but each changed node
+     * is only written once.
+     *
+     * @param mappings The key, the expected current value, if any, and the new value of each mapping
+     * @param ourHash The hash of the current champ node
+     * @return A new champ and its hash after the puts
+     */
+    public CompletableFuture<Pair<Champ<V>, Multihash>> putAll(PublicKeyHash owner,
+                                                               SigningPrivateKeyAndPublicHash writer,
+                                                               List<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> mappings,
+                                                               int bitWidth,
+                                                               int maxCollisions,
+                                                               Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                               TransactionId tid,
+                                                               ContentAddressedStorage storage,
+                                                               Hasher writeHasher,
+                                                               Multihash ourHash) {
+        return Futures.combineAllInOrder(mappings.stream()
+                        .map(m -> hasher.apply(m.left)
+                                .thenApply(hash -> new Change<>(m.left, hash, m.middle, Optional.of(m.right))))
+                        .collect(Collectors.toList()))
+                .thenCompose(changes -> applyAllAndCommit(owner, writer, changes, bitWidth, maxCollisions, hasher, tid,
+                        storage, writeHasher, ourHash));
+    }
+
+    /** Apply many removals in a single pass. The result is the same as applying them one at a time, but each changed
+     * node is only written once.
+     *
+     * @param keys The key and the expected current value, if any, of each mapping to remove
+     * @param ourHash The hash of the current champ node
+     * @return A new champ and its hash after the removals
+     */
+    public CompletableFuture<Pair<Champ<V>, Multihash>> removeAll(PublicKeyHash owner,
+                                                                  SigningPrivateKeyAndPublicHash writer,
+                                                                  List<Pair<ByteArrayWrapper, Optional<V>>> keys,
+                                                                  int bitWidth,
+                                                                  int maxCollisions,
+                                                                  Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                                  TransactionId tid,
+                                                                  ContentAddressedStorage storage,
+                                                                  Hasher writeHasher,
+                                                                  Multihash ourHash) {
+        return Futures.combineAllInOrder(keys.stream()
+                        .map(k -> hasher.apply(k.left)
+                                .thenApply(hash -> new Change<V>(k.left, hash, k.right, Optional.empty())))
+                        .collect(Collectors.toList()))
+                .thenCompose(changes -> applyAllAndCommit(owner, writer, changes, bitWidth, maxCollisions, hasher, tid,
+                        storage, writeHasher, ourHash));
+    }
+
+    private CompletableFuture<Pair<Champ<V>, Multihash>> applyAllAndCommit(PublicKeyHash owner,
+                                                                           SigningPrivateKeyAndPublicHash writer,
+                                                                           List<Change<V>> changes,
+                                                                           int bitWidth,
+                                                                           int maxCollisions,
+                                                                           Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                                           TransactionId tid,
+                                                                           ContentAddressedStorage storage,
+                                                                           Hasher writeHasher,
+                                                                           Multihash ourHash) {
+        Set<ByteArrayWrapper> keys = new HashSet<>();
+        for (Change<V> change : changes)
+            if (! keys.add(change.key))
+                throw new IllegalArgumentException("Duplicate key in champ batch!");
+        return applyAll(owner, writer, changes, 0, bitWidth, maxCollisions, hasher, tid, storage, writeHasher)
+                .thenCompose(champ -> champ.equals(this) ?
+                        Futures.of(new Pair<>(this, ourHash)) :
+                        storage.put(owner, writer, champ.serialize(), writeHasher, tid).thenApply(h -> new Pair<>(champ, h)));
+    }
+
+    /** Apply changes to the subtree rooted at this node, writing any new descendant nodes, but not the new version of
+     * this node, which the caller may inline into its parent.
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Champ<V>> applyAll(PublicKeyHash owner,
+                                                 SigningPrivateKeyAndPublicHash writer,
+                                                 List<Change<V>> changes,
+                                                 int depth,
+                                                 int bitWidth,
+                                                 int maxCollisions,
+                                                 Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                 TransactionId tid,
+                                                 ContentAddressedStorage storage,
+                                                 Hasher writeHasher) {
+        SortedMap<Integer, List<Change<V>>> byPrefix = new TreeMap<>();
+        for (Change<V> change : changes)
+            byPrefix.computeIfAbsent(mask(change.hash, depth, bitWidth), b -> new ArrayList<>()).add(change);
+
+        Map<Integer, Slot<V>> updated = new HashMap<>();
+        return Futures.reduceAll(byPrefix.entrySet(), true,
+                (b, e) -> applyToPrefix(owner, writer, e.getKey(), e.getValue(), depth, bitWidth, maxCollisions,
+                        hasher, tid, storage, writeHasher)
+                        .thenApply(slot -> {
+                            updated.put(e.getKey(), slot);
+                            return true;
+                        }),
+                (a, b) -> a)
+                .thenApply(done -> {
+                    int newDataMap = 0, newNodeMap = 0;
+                    List<KeyElement<V>[]> newData = new ArrayList<>();
+                    List<Multihash> newLinks = new ArrayList<>();
+                    int maxBit = 1 << bitWidth;
+                    for (int bitpos = 0, dataIndex = 0, nodeIndex = 0; bitpos < maxBit; bitpos++) {
+                        KeyElement<V>[] bucket = isSet(dataMap, bitpos) ? data[dataIndex++] : null;
+                        Multihash link = isSet(nodeMap, bitpos) ? links[nodeIndex++] : null;
+                        Slot<V> slot = updated.get(bitpos);
+                        if (slot != null) {
+                            bucket = slot.bucket;
+                            link = slot.link;
+                        }
+                        if (bucket != null) {
+                            newDataMap |= 1 << bitpos;
+                            newData.add(bucket);
+                        } else if (link != null) {
+                            newNodeMap |= 1 << bitpos;
+                            newLinks.add(link);
+                        }
+                    }
+                    return new Champ<>(newDataMap, newNodeMap, newData.toArray(new KeyElement[0][]),
+                            newLinks.toArray(new Multihash[0]), fromCbor);
+                });
+    }
+
+    private CompletableFuture<Slot<V>> applyToPrefix(PublicKeyHash owner,
+                                                     SigningPrivateKeyAndPublicHash writer,
+                                                     int bitpos,
+                                                     List<Change<V>> changes,
+                                                     int depth,
+                                                     int bitWidth,
+                                                     int maxCollisions,
+                                                     Function<ByteArrayWrapper, CompletableFuture<byte[]>> hasher,
+                                                     TransactionId tid,
+                                                     ContentAddressedStorage storage,
+                                                     Hasher writeHasher) {
+        if (isSet(nodeMap, bitpos)) {
+            Multihash link = links[getIndex(nodeMap, bitpos)];
+            return storage.champNodeCache().get((Cid) link, storage, fromCbor)
+                    .thenApply(opt -> opt.orElseThrow(() -> new IllegalStateException("Hash not present! " + link)))
+                    .thenCompose(child -> child.applyAll(owner, writer, changes, depth + 1, bitWidth, maxCollisions,
+                                    hasher, tid, storage, writeHasher)
+                            .thenCompose(newChild -> {
+                                if (newChild.equals(child))
+                                    return Futures.of(new Slot<>(null, link));
+                                // a subtree with few enough mappings is inlined into its parent
+                                if (newChild.nodeCount() == 0 && newChild.keyCount() <= maxCollisions) {
+                                    if (newChild.keyCount() == 0)
+                                        return Futures.of(new Slot<>(null, null));
+                                    List<KeyElement<V>> merged = newChild.getMappings();
+                                    merged.sort(Comparator.comparing(x -> x.key));
+                                    return Futures.of(new Slot<>(merged.toArray(new KeyElement[0]), null));
+                                }
+                                return storage.put(owner, writer, newChild.serialize(), writeHasher, tid)
+                                        .thenApply(h -> new Slot<>(null, h));
+                            }));
+        }
+
+        List<KeyElement<V>> mappings = new ArrayList<>(isSet(dataMap, bitpos) ?
+                Arrays.asList(data[getIndex(dataMap, bitpos)]) :
+                Collections.emptyList());
+        Map<ByteArrayWrapper, byte[]> hashes = new HashMap<>();
+        for (Change<V> change : changes) {
+            hashes.put(change.key, change.hash);
+            int index = -1;
+            for (int i = 0; i < mappings.size(); i++)
+                if (mappings.get(i).key.equals(change.key))
+                    index = i;
+            if (index >= 0) {
+                Optional<V> currentVal = mappings.get(index).valueHash;
+                if (! currentVal.equals(change.expected))
+                    return Futures.errored(new MutableTree.CasException(currentVal, change.expected));
+                if (change.value.isPresent())
+                    mappings.set(index, new KeyElement<>(change.key, change.value.get()));
+                else
+                    mappings.remove(index);
+            } else if (change.value.isPresent())
+                mappings.add(new KeyElement<>(change.key, change.value.get()));
+        }
+        if (mappings.isEmpty())
+            return Futures.of(new Slot<>(null, null));
+        if (mappings.size() <= maxCollisions) {
+            mappings.sort(Comparator.comparing(m -> m.key));
+            return Futures.of(new Slot<>(mappings.toArray(new KeyElement[0]), null));
         }
 
-        BitSet newDataMap = BitSet.valueOf(dataMap.toByteArray());
-        if (lastInPrefix)
-            newDataMap.clear(bitpos);
-        return new Champ<>(newDataMap, nodeMap, dst, fromCbor);
+        // too many mappings with this prefix, push them all down into a new child
+        if (depth + 1 >= HASH_CODE_LENGTH)
+            throw new IllegalStateException("Hash collision!");
+        return Futures.combineAllInOrder(mappings.stream()
+                        .map(m -> (hashes.containsKey(m.key) ? Futures.of(hashes.get(m.key)) : hasher.apply(m.key))
+                                .thenApply(hash -> new Change<>(m.key, hash, Optional.<V>empty(), Optional.of(m.valueHash))))
+                        .collect(Collectors.toList()))
+                .thenCompose(puts -> empty(fromCbor).applyAll(owner, writer, puts, depth + 1, bitWidth, maxCollisions,
+                        hasher, tid, storage, writeHasher))
+                .thenCompose(child -> storage.put(owner, writer, child.serialize(), writeHasher, tid))
+                .thenApply(h -> new Slot<>(null, h));
     }
 
     public <T> CompletableFuture<T> applyToAllMappings(T identity,
                                                        BiFunction<T, Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<T>> consumer,
                                                        ContentAddressedStorage storage) {
-        return Futures.reduceAll(Arrays.stream(contents).collect(Collectors.toList()), identity, (res, payload) ->
-                (! payload.isShard() ?
-                        Futures.reduceAll(
-                                Arrays.stream(payload.mappings).collect(Collectors.toList()),
-                                res,
-                                (x, mapping) -> consumer.apply(x, new Pair<>(mapping.key, mapping.valueHash)),
-                                (a, b) ->  a) :
-                        CompletableFuture.completedFuture(res)
-                ).thenCompose(newRes ->
-                        payload.isShard() && payload.link.isPresent() ?
-                                storage.get((Cid)payload.link.get(), Optional.empty())
-                                        .thenApply(rawOpt -> Champ.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + payload.link)), fromCbor))
-                                        .thenCompose(child -> child.applyToAllMappings(newRes, consumer, storage)) :
-                                CompletableFuture.completedFuture(newRes)
-                ), (a, b) -> a);
+        return Futures.reduceAll(getMappings(), identity,
+                (x, mapping) -> consumer.apply(x, new Pair<>(mapping.key, mapping.valueHash)),
+                (a, b) -> a)
+                .thenCompose(res -> Futures.reduceAll(getLinks(), res,
+                        (x, link) -> storage.champNodeCache().get((Cid) link, storage, fromCbor)
+                                .thenApply(opt -> opt.orElseThrow(() -> new IllegalStateException("Hash not present! " + link)))
+                                .thenCompose(child -> child.applyToAllMappings(x, consumer, storage)),
+                        (a, b) -> a));
+    }
+
+    /** Apply a consumer to every mapping, loading the tree a level at a time with up to parallelism nodes being
+     * fetched at once. Mappings are not visited in order, and the consumer may be called from multiple threads.
+     *
+     * @param consumer A thread safe consumer
+     * @param parallelism The maximum number of nodes to fetch concurrently
+     * @return true when every mapping has been consumed
+     */
+    public CompletableFuture<Boolean> applyToAllMappings(Consumer<Pair<ByteArrayWrapper, Optional<V>>> consumer,
+                                                         int parallelism,
+                                                         ContentAddressedStorage storage) {
+        return applyToLevel(Collections.singletonList(this), node -> {
+            for (KeyElement<V> mapping : node.getMappings())
+                consumer.accept(new Pair<>(mapping.key, mapping.valueHash));
+        }, parallelism, storage, fromCbor);
+    }
+
+    /** Collect every mapping, in the same order as applyToAllMappings, loading the tree a level at a time with up to
+     * parallelism nodes being fetched at once.
+     *
+     * @param parallelism The maximum number of nodes to fetch concurrently
+     * @return all the mappings in this subtree
+     */
+    public CompletableFuture<List<Pair<ByteArrayWrapper, Optional<V>>>> getAllMappings(int parallelism,
+                                                                                      ContentAddressedStorage storage) {
+        Map<Multihash, Champ<V>> loaded = new HashMap<>();
+        return loadLevels(Collections.singletonList(this), loaded, parallelism, storage, fromCbor)
+                .thenApply(x -> {
+                    List<Pair<ByteArrayWrapper, Optional<V>>> res = new ArrayList<>();
+                    collectMappings(this, loaded, res);
+                    return res;
+                });
+    }
+
+    private static <V extends Cborable> void collectMappings(Champ<V> node,
+                                                             Map<Multihash, Champ<V>> loaded,
+                                                             List<Pair<ByteArrayWrapper, Optional<V>>> res) {
+        for (KeyElement<V> mapping : node.getMappings())
+            res.add(new Pair<>(mapping.key, mapping.valueHash));
+        for (Multihash link : node.getLinks())
+            collectMappings(loaded.get(link), loaded, res);
+    }
+
+    private static <V extends Cborable> CompletableFuture<Boolean> loadLevels(List<Champ<V>> level,
+                                                                              Map<Multihash, Champ<V>> loaded,
+                                                                              int parallelism,
+                                                                              ContentAddressedStorage storage,
+                                                                              Function<Cborable, V> fromCbor) {
+        List<Multihash> links = new ArrayList<>();
+        for (Champ<V> node : level)
+            links.addAll(node.getLinks());
+        if (links.isEmpty())
+            return Futures.of(true);
+        return getNodes(links, parallelism, storage, fromCbor)
+                .thenCompose(next -> {
+                    for (int i = 0; i < links.size(); i++)
+                        loaded.put(links.get(i), next.get(i));
+                    return loadLevels(next, loaded, parallelism, storage, fromCbor);
+                });
+    }
+
+    private static <V extends Cborable> CompletableFuture<Boolean> applyToLevel(List<Champ<V>> level,
+                                                                                Consumer<Champ<V>> onNode,
+                                                                                int parallelism,
+                                                                                ContentAddressedStorage storage,
+                                                                                Function<Cborable, V> fromCbor) {
+        if (level.isEmpty())
+            return Futures.of(true);
+        List<Multihash> links = new ArrayList<>();
+        for (Champ<V> node : level) {
+            onNode.accept(node);
+            links.addAll(node.getLinks());
+        }
+        return getNodes(links, parallelism, storage, fromCbor)
+                .thenCompose(next -> applyToLevel(next, onNode, parallelism, storage, fromCbor));
+    }
+
+    private static <V extends Cborable> CompletableFuture<List<Champ<V>>> getNodes(List<Multihash> links,
+                                                                                   int parallelism,
+                                                                                   ContentAddressedStorage storage,
+                                                                                   Function<Cborable, V> fromCbor) {
+        return Futures.mapWithConcurrency(links, parallelism, link -> storage.champNodeCache().get((Cid) link, storage, fromCbor)
+                .thenApply(opt -> opt.orElseThrow(() -> new IllegalStateException("Hash not present! " + link))));
     }
 
     private List<KeyElement<V>> getMappings() {
-        return Arrays.stream(contents)
-                .filter(p -> !p.isShard())
-                .flatMap(p -> Arrays.stream(p.mappings))
-                .collect(Collectors.toList());
+        List<KeyElement<V>> res = new ArrayList<>(data.length);
+        for (KeyElement<V>[] bucket : data)
+            res.addAll(Arrays.asList(bucket));
+        return res;
     }
 
-    private List<HashPrefixPayload<V>> getLinks() {
-        return Arrays.stream(contents)
-                .filter(p -> p.isShard())
-                .collect(Collectors.toList());
+    /**
+     *
+     * @return the child links in serialization order
+     */
+    private List<Multihash> getLinks() {
+        List<Multihash> res = new ArrayList<>(links.length);
+        for (int i = links.length - 1; i >= 0; i--)
+            res.add(links[i]);
+        return res;
     }
 
-    private static <V extends Cborable> Optional<HashPrefixPayload<V>> getElement(int bitIndex,
-                                                                                  int dataIndex,
-                                                                                  int nodeIndex,
-                                                                                  Optional<Champ<V>> c) {
-        if (! c.isPresent())
-            return Optional.empty();
-        Champ<V> champ = c.get();
-        if (champ.dataMap.get(bitIndex))
-            return Optional.of(champ.contents[dataIndex]);
-        if (champ.nodeMap.get(bitIndex))
-            return Optional.of(champ.contents[champ.contents.length - 1 - nodeIndex]);
+    private static <V extends Cborable> Optional<KeyElement<V>[]> getBucket(int bitIndex, int dataIndex, Optional<Champ<V>> c) {
+        if (c.isPresent() && isSet(c.get().dataMap, bitIndex))
+            return Optional.of(c.get().data[dataIndex]);
+        return Optional.empty();
+    }
+
+    private static <V extends Cborable> Optional<Multihash> getLink(int bitIndex, int nodeIndex, Optional<Champ<V>> c) {
+        if (c.isPresent() && isSet(c.get().nodeMap, bitIndex))
+            return Optional.of(c.get().links[nodeIndex]);
         return Optional.empty();
     }
 
@@ -666,16 +889,19 @@ public class Champ<V extends Cborable> implements Cborable {
 
         if (updated.equals(original))
             return CompletableFuture.completedFuture(true);
-        return original.map(h -> storage.get((Cid)h, Optional.empty())).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                .thenApply(rawOpt -> rawOpt.map(y -> Champ.fromCbor(y, fromCbor)))
-                .thenCompose(left -> updated.map(h -> storage.get((Cid)h, Optional.empty())).orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()))
-                        .thenApply(rawOpt -> rawOpt.map(y -> Champ.fromCbor(y, fromCbor)))
+        // fetch both sides at once
+        CompletableFuture<Optional<Champ<V>>> leftFut = original.map(h -> storage.champNodeCache().get((Cid)h, storage, fromCbor))
+                .orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()));
+        CompletableFuture<Optional<Champ<V>>> rightFut = updated.map(h -> storage.champNodeCache().get((Cid)h, storage, fromCbor))
+                .orElseGet(() -> CompletableFuture.completedFuture(Optional.empty()));
+        return leftFut
+                .thenCompose(left -> rightFut
                         .thenCompose(right -> hashAndMaskKeys(higherLeftMappings, depth, bitWidth, hasher)
                                 .thenCompose(leftHigherMappingsByBit -> hashAndMaskKeys(higherRightMappings, depth, bitWidth, hasher)
                                         .thenCompose(rightHigherMappingsByBit -> {
 
-                            int leftMax = left.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
-                            int rightMax = right.map(c -> Math.max(c.dataMap.length(), c.nodeMap.length())).orElse(0);
+                            int leftMax = left.map(c -> 32 - Integer.numberOfLeadingZeros(c.dataMap | c.nodeMap)).orElse(0);
+                            int rightMax = right.map(c -> 32 - Integer.numberOfLeadingZeros(c.dataMap | c.nodeMap)).orElse(0);
                             int maxBit = Math.max(leftMax, rightMax);
                             int leftDataIndex = 0, rightDataIndex = 0, leftNodeCount = 0, rightNodeCount = 0;
 
@@ -683,27 +909,20 @@ public class Champ<V extends Cborable> implements Cborable {
 
                             for (int i = 0; i < maxBit; i++) {
                                 // either the payload is present OR higher mappings are non empty OR the champ is absent
-                                Optional<HashPrefixPayload<V>> leftPayload = getElement(i, leftDataIndex, leftNodeCount, left);
-                                Optional<HashPrefixPayload<V>> rightPayload = getElement(i, rightDataIndex, rightNodeCount, right);
+                                Optional<KeyElement<V>[]> leftBucket = getBucket(i, leftDataIndex, left);
+                                Optional<KeyElement<V>[]> rightBucket = getBucket(i, rightDataIndex, right);
 
                                 List<KeyElement<V>> leftHigherMappings = leftHigherMappingsByBit.getOrDefault(i, Collections.emptyList());
-                                List<KeyElement<V>> leftMappings = leftPayload
-                                        .filter(p -> !p.isShard())
-                                        .map(p -> Arrays.asList(p.mappings))
+                                List<KeyElement<V>> leftMappings = leftBucket
+                                        .map(b -> Arrays.asList(b))
                                         .orElse(leftHigherMappings);
                                 List<KeyElement<V>> rightHigherMappings = rightHigherMappingsByBit.getOrDefault(i, Collections.emptyList());
-                                List<KeyElement<V>> rightMappings = rightPayload
-                                        .filter(p -> !p.isShard())
-                                        .map(p -> Arrays.asList(p.mappings))
+                                List<KeyElement<V>> rightMappings = rightBucket
+                                        .map(b -> Arrays.asList(b))
                                         .orElse(rightHigherMappings);
 
-                                Optional<MaybeMultihash> leftShard = leftPayload
-                                        .filter(p -> p.isShard())
-                                        .map(p -> p.link);
-
-                                Optional<MaybeMultihash> rightShard = rightPayload
-                                        .filter(p -> p.isShard())
-                                        .map(p -> p.link);
+                                Optional<MaybeMultihash> leftShard = getLink(i, leftNodeCount, left).map(MaybeMultihash::of);
+                                Optional<MaybeMultihash> rightShard = getLink(i, rightNodeCount, right).map(MaybeMultihash::of);
 
                                 if (leftShard.isPresent() || rightShard.isPresent()) {
                                     deeperLayers.add(applyToDiff(
@@ -731,18 +950,14 @@ public class Champ<V extends Cborable> implements Cborable {
                                     }
                                 }
 
-                                if (leftPayload.isPresent()) {
-                                    if (leftPayload.get().isShard())
-                                        leftNodeCount++;
-                                    else
-                                        leftDataIndex++;
-                                }
-                                if (rightPayload.isPresent()) {
-                                    if (rightPayload.get().isShard())
-                                        rightNodeCount++;
-                                    else
-                                        rightDataIndex++;
-                                }
+                                if (leftShard.isPresent())
+                                    leftNodeCount++;
+                                else if (leftBucket.isPresent())
+                                    leftDataIndex++;
+                                if (rightShard.isPresent())
+                                    rightNodeCount++;
+                                else if (rightBucket.isPresent())
+                                    rightDataIndex++;
                             }
 
                             return Futures.combineAll(deeperLayers).thenApply(x -> true);
@@ -755,38 +970,51 @@ public class Champ<V extends Cborable> implements Cborable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Champ<?> champ = (Champ<?>) o;
-        return dataMap.equals(champ.dataMap) &&
-                nodeMap.equals(champ.nodeMap) &&
-                Arrays.equals(contents, champ.contents);
+        return dataMap == champ.dataMap &&
+                nodeMap == champ.nodeMap &&
+                Arrays.deepEquals(data, champ.data) &&
+                Arrays.equals(links, champ.links);
     }
 
     @Override
     public int hashCode() {
         int result = Objects.hash(dataMap, nodeMap);
-        result = 31 * result + Arrays.hashCode(contents);
+        result = 31 * result + Arrays.deepHashCode(data);
+        result = 31 * result + Arrays.hashCode(links);
         return result;
     }
 
     @Override
     public CborObject toCbor() {
+        List<CborObject> contents = new ArrayList<>(data.length + links.length);
+        for (KeyElement<V>[] bucket : data) {
+            List<CborObject> mappings = new ArrayList<>(2 * bucket.length);
+            for (KeyElement<V> m : bucket) {
+                mappings.add(new CborObject.CborByteArray(m.key.data));
+                mappings.add(m.valueHash.isPresent() ?
+                        m.valueHash.get().toCbor() :
+                        new CborObject.CborNull());
+            }
+            contents.add(new CborObject.CborList(mappings));
+        }
+        // links are serialized in reverse bit order
+        for (int i = links.length - 1; i >= 0; i--)
+            contents.add(new CborObject.CborMerkleLink(links[i]));
         return new CborObject.CborList(Arrays.asList(
-                new CborObject.CborByteArray(dataMap.toByteArray()),
-                new CborObject.CborByteArray(nodeMap.toByteArray()),
-                new CborObject.CborList(Arrays.stream(contents)
-                        .flatMap(e -> e.link != null ?
-                                Stream.of(new CborObject.CborMerkleLink(e.link.get())) :
-                                Stream.of(new CborObject.CborList(Arrays.stream(e.mappings)
-                                        .flatMap(m -> Stream.of(
-                                                new CborObject.CborByteArray(m.key.data),
-                                                m.valueHash.isPresent() ?
-                                                        m.valueHash.get().toCbor() :
-                                                        new CborObject.CborNull()
-                                        ))
-                                        .collect(Collectors.toList()))))
-                        .collect(Collectors.toList()))
+                new CborObject.CborByteArray(bitmapToBytes(dataMap)),
+                new CborObject.CborByteArray(bitmapToBytes(nodeMap)),
+                new CborObject.CborList(contents)
         ));
     }
 
+    /**
+     *
+     * @return the decoder of this node's values, which ChampNodeCache keys nodes by
+     */
+    Function<Cborable, V> valueDecoder() {
+        return fromCbor;
+    }
+
     public static <V extends Cborable> Champ<V> fromCbor(Cborable cbor, Function<Cborable, V> fromCbor) {
         if (! (cbor instanceof CborObject.CborList))
             throw new IllegalStateException("Invalid cbor for CHAMP! " + cbor);
@@ -794,11 +1022,12 @@ public class Champ<V extends Cborable> implements Cborable {
 
         if (! (list.get(0) instanceof CborObject.CborByteArray))
             throw new IllegalStateException("Invalid cbor for a champ, is this a btree?");
-        BitSet dataMap = BitSet.valueOf(((CborObject.CborByteArray)list.get(0)).value);
-        BitSet nodeMap = BitSet.valueOf(((CborObject.CborByteArray)list.get(1)).value);
+        int dataMap = bitmapFromBytes(((CborObject.CborByteArray)list.get(0)).value);
+        int nodeMap = bitmapFromBytes(((CborObject.CborByteArray)list.get(1)).value);
         List<? extends Cborable> contentsCbor = ((CborObject.CborList) list.get(2)).value;
 
-        List<HashPrefixPayload<V>> contents = new ArrayList<>();
+        List<KeyElement<V>[]> data = new ArrayList<>();
+        List<Multihash> links = new ArrayList<>();
         for (int i=0; i < contentsCbor.size(); i++) {
             Cborable keyOrHash = contentsCbor.get(i);
             if (keyOrHash instanceof CborObject.CborList) {
@@ -812,11 +1041,12 @@ public class Champ<V extends Cborable> implements Cborable {
                                 Optional.empty() :
                                 Optional.of(fromCbor.apply(value))));
                 }
-                contents.add(new HashPrefixPayload<>(mappings.toArray(new KeyElement[0])));
+                data.add(mappings.toArray(new KeyElement[0]));
             } else {
-                contents.add(new HashPrefixPayload<>(MaybeMultihash.of(((CborObject.CborMerkleLink)keyOrHash).target)));
+                links.add(((CborObject.CborMerkleLink)keyOrHash).target);
             }
         }
-        return new Champ<>(dataMap, nodeMap, contents.toArray(new HashPrefixPayload[contents.size()]), fromCbor);
+        Collections.reverse(links);
+        return new Champ<>(dataMap, nodeMap, data.toArray(new KeyElement[0][]), links.toArray(new Multihash[0]), fromCbor);
     }
 }
@@ -0,0 +1,65 @@
+package peergos.shared.hamt;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** A bounded cache of decoded champ nodes, so that hot nodes, like the root of the pki, aren't fetched and decoded
+ *  again on every lookup. Nodes are immutable, so a cached node can be shared.
+ *
+ *  A cache belongs to a single storage, see ContentAddressedStorage.champNodeCache. The same block decodes to
+ *  different nodes with different value decoders, so nodes are keyed by cid and decoder. Decoders should be shared
+ *  instances, like CborMerkleLink.FROM_CBOR, for lookups to hit.
+ */
+public class ChampNodeCache {
+    public static final int DEFAULT_SIZE = 10_000;
+    public static final ChampNodeCache NONE = new ChampNodeCache(0);
+
+    private final int maxSize;
+    private final LRUCache<Pair<Cid, Function<Cborable, ?>>, Champ<?>> nodes;
+
+    public ChampNodeCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.nodes = new LRUCache<>(Math.max(1, maxSize));
+    }
+
+    /**
+     *
+     * @return the underlying cache, to export its hit rate
+     */
+    public LRUCache<?, ?> nodes() {
+        return nodes;
+    }
+
+    public <V extends Cborable> CompletableFuture<Optional<Champ<V>>> get(Cid hash,
+                                                                          ContentAddressedStorage storage,
+                                                                          Function<Cborable, V> fromCbor) {
+        if (maxSize == 0)
+            return storage.get(hash, Optional.empty())
+                    .thenApply(rawOpt -> rawOpt.map(y -> Champ.fromCbor(y, fromCbor)));
+        Pair<Cid, Function<Cborable, ?>> key = new Pair<>(hash, fromCbor);
+        @SuppressWarnings("unchecked")
+        Champ<V> cached = (Champ<V>) nodes.get(key);
+        if (cached != null)
+            return Futures.of(Optional.of(cached));
+        return storage.get(hash, Optional.empty())
+                .thenApply(rawOpt -> rawOpt.map(y -> {
+                    Champ<V> node = Champ.fromCbor(y, fromCbor);
+                    nodes.put(key, node);
+                    return node;
+                }));
+    }
+
+    /** Cache a node we have just written, e.g. a new root.
+     */
+    public <V extends Cborable> void add(Cid hash, Champ<V> node) {
+        if (maxSize == 0)
+            return;
+        nodes.put(new Pair<>(hash, node.valueDecoder()), node);
+    }
+}
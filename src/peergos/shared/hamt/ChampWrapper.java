@@ -47,10 +47,10 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
                                                                                  ContentAddressedStorage dht,
                                                                                  Hasher writeHasher,
                                                                                  Function<Cborable, V> fromCbor) {
-        return dht.get(rootHash, Optional.empty()).thenApply(rawOpt -> {
-            if (! rawOpt.isPresent())
+        return dht.champNodeCache().get(rootHash, dht, fromCbor).thenApply(rootOpt -> {
+            if (! rootOpt.isPresent())
                 throw new IllegalStateException("Champ root not present: " + rootHash);
-            return new ChampWrapper<>(Champ.fromCbor(rawOpt.get(), fromCbor), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
+            return new ChampWrapper<>(rootOpt.get(), rootHash, hasher, dht, writeHasher, BIT_WIDTH);
         });
     }
 
@@ -121,8 +121,43 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
+    /** Put many mappings, writing each changed node only once
+     *
+     * @param mappings The raw key, expected existing value and new value of each mapping
+     * @return hash of new tree root
+     */
+    public CompletableFuture<Multihash> putAll(PublicKeyHash owner,
+                                               SigningPrivateKeyAndPublicHash writer,
+                                               List<Triple<byte[], Optional<V>, V>> mappings,
+                                               TransactionId tid) {
+        List<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> changes = new ArrayList<>();
+        for (Triple<byte[], Optional<V>, V> mapping : mappings)
+            changes.add(new Triple<>(new ByteArrayWrapper(mapping.left), mapping.middle, Optional.of(mapping.right)));
+        return root.left.putAll(owner, writer, changes, BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, keyHasher, tid,
+                        storage, writeHasher, root.right)
+                .thenCompose(newRoot -> commit(writer, newRoot));
+    }
+
+    /** Remove many mappings, writing each changed node only once
+     *
+     * @param keys The raw key and expected existing value of each mapping
+     * @return hash of new tree root
+     */
+    public CompletableFuture<Multihash> removeAll(PublicKeyHash owner,
+                                                  SigningPrivateKeyAndPublicHash writer,
+                                                  List<Pair<byte[], Optional<V>>> keys,
+                                                  TransactionId tid) {
+        List<Triple<ByteArrayWrapper, Optional<V>, Optional<V>>> changes = new ArrayList<>();
+        for (Pair<byte[], Optional<V>> key : keys)
+            changes.add(new Triple<>(new ByteArrayWrapper(key.left), key.right, Optional.empty()));
+        return root.left.putAll(owner, writer, changes, BIT_WIDTH, MAX_HASH_COLLISIONS_PER_LEVEL, keyHasher, tid,
+                        storage, writeHasher, root.right)
+                .thenCompose(newRoot -> commit(writer, newRoot));
+    }
+
     private CompletableFuture<Multihash> commit(SigningPrivateKeyAndPublicHash writer, Pair<Champ<V>, Multihash> newRoot) {
         root = newRoot;
+        storage.champNodeCache().add((Cid) newRoot.right, newRoot.left);
         return CompletableFuture.completedFuture(newRoot.right);
     }
 
@@ -144,4 +179,13 @@ public class ChampWrapper<V extends Cborable> implements ImmutableTree<V>
                                                        BiFunction<T, Pair<ByteArrayWrapper, Optional<V>>, CompletableFuture<T>> consumer) {
         return root.left.applyToAllMappings(identity, consumer, storage);
     }
+
+    /**
+     *
+     * @param parallelism the maximum number of nodes to fetch concurrently
+     * @return every mapping, in the same order as applyToAllMappings
+     */
+    public CompletableFuture<List<Pair<ByteArrayWrapper, Optional<V>>>> getAllMappings(int parallelism) {
+        return root.left.getAllMappings(parallelism, storage);
+    }
 }
@@ -66,10 +66,10 @@ public class DirectoryInode implements Cborable {
     public CompletableFuture<List<InodeCap>> getChildren() {
         if (children.isA())
             return Futures.of(children.a());
-        return children.b().applyToAllMappings(new ArrayList<>(), (acc, p) -> {
-            p.right.ifPresent(acc::add);
-            return Futures.of(acc);
-        }, storage);
+        return children.b().getAllMappings(Champ.DEFAULT_TRAVERSAL_PARALLELISM, storage)
+                .thenApply(mappings -> mappings.stream()
+                        .flatMap(p -> p.right.map(Stream::of).orElse(Stream.empty()))
+                        .collect(Collectors.toList()));
     }
 
     public CompletableFuture<DirectoryInode> addChild(InodeCap child,
@@ -205,6 +205,14 @@ public class BufferedStorage extends DelegatingStorage {
         return CompletableFuture.completedFuture(Optional.of(storage.get(block).block.length));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<Integer>>> getSizes(List<Cid> blocks) {
+        // buffered blocks aren't in the target yet
+        return Futures.combineAllInOrder(blocks.stream()
+                .map(this::getSize)
+                .collect(Collectors.toList()));
+    }
+
     public CompletableFuture<Cid> hashToCid(byte[] input, boolean isRaw) {
         return hasher.hash(input, isRaw);
     }
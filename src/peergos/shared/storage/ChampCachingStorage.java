@@ -0,0 +1,26 @@
+package peergos.shared.storage;
+
+import peergos.shared.hamt.*;
+
+/** Caches the parsed champ nodes read through this storage, like the root of the pki.
+ */
+public class ChampCachingStorage extends DelegatingStorage {
+    private final ContentAddressedStorage target;
+    private final ChampNodeCache cache;
+
+    public ChampCachingStorage(ContentAddressedStorage target, ChampNodeCache cache) {
+        super(target);
+        this.target = target;
+        this.cache = cache;
+    }
+
+    @Override
+    public ChampNodeCache champNodeCache() {
+        return cache;
+    }
+
+    @Override
+    public ContentAddressedStorage directToOrigin() {
+        return new ChampCachingStorage(target.directToOrigin(), cache);
+    }
+}
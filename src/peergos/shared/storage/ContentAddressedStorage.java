@@ -38,6 +38,13 @@ public interface ContentAddressedStorage {
      */
     default void clearBlockCache() {}
 
+    /** Parsed champ nodes cached by this storage. Wrappers don't inherit the cache of their target, so that e.g. the
+     *  CachingStorage used to build a champ lookup proof sees every node of the lookup.
+     */
+    default ChampNodeCache champNodeCache() {
+        return ChampNodeCache.NONE;
+    }
+
     /**
      *
      * @return an instance of the same type that doesn't do any cross domain requests
@@ -163,7 +170,7 @@ public interface ContentAddressedStorage {
 
     default CompletableFuture<List<byte[]>> getChampLookup(Cid root, byte[] champKey, Optional<BatWithId> bat, Hasher hasher) {
         CachingStorage cache = new CachingStorage(this, 100, 100 * 1024);
-        return ChampWrapper.create((Cid)root, x -> Futures.of(x.data), cache, hasher, c -> (CborObject.CborMerkleLink) c)
+        return ChampWrapper.create((Cid)root, x -> Futures.of(x.data), cache, hasher, CborObject.CborMerkleLink.FROM_CBOR)
                 .thenCompose(tree -> tree.get(champKey))
                 .thenApply(c -> c.map(x -> x.target).map(MaybeMultihash::of).orElse(MaybeMultihash.empty()))
                 .thenApply(btreeValue -> {
@@ -180,6 +187,28 @@ public interface ContentAddressedStorage {
      */
     CompletableFuture<Optional<Integer>> getSize(Multihash block);
 
+    /**
+     * Get the sizes of many objects in a single call
+     * @param blocks The hashes of the objects
+     * @return The size in bytes of each object, in the same order, or Optional.empty() for those that cannot be found
+     */
+    default CompletableFuture<List<Optional<Integer>>> getSizes(List<Cid> blocks) {
+        return Futures.combineAllInOrder(blocks.stream()
+                .map(this::getSize)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     *
+     * @param blocks
+     * @return Whether each object is present, in the same order as blocks
+     */
+    default CompletableFuture<List<Boolean>> hasBlocks(List<Cid> blocks) {
+        return getSizes(blocks).thenApply(sizes -> sizes.stream()
+                .map(Optional::isPresent)
+                .collect(Collectors.toList()));
+    }
+
     default CompletableFuture<Cid> hashToCid(byte[] input, boolean isRaw, Hasher hasher) {
         return hasher.sha256(input)
                 .thenApply(hash -> buildCid(hash, isRaw));
@@ -258,6 +287,8 @@ public interface ContentAddressedStorage {
         public static final String BLOCK_RM = "block/rm";
         public static final String BLOCK_PRESENT = "block/has";
         public static final String BLOCK_STAT = "block/stat";
+        public static final String BLOCK_SIZES = "block/sizes";
+        public static final int MAX_BLOCK_SIZES = 1000;
         public static final String REFS_LOCAL = "refs/local";
 
         private final boolean isPeergosServer;
@@ -501,6 +532,31 @@ public interface ContentAddressedStorage {
             return poster.get(apiPrefix + BLOCK_STAT + "?stream-channels=true&arg=" + block.toString() + "&auth=letmein")
                     .thenApply(raw -> Optional.of((Integer)((Map)JSONParser.parse(new String(raw))).get("Size")));
         }
+
+        @Override
+        public CompletableFuture<List<Optional<Integer>>> getSizes(List<Cid> blocks) {
+            if (! isPeergosServer)
+                return ContentAddressedStorage.super.getSizes(blocks);
+            List<CompletableFuture<List<Optional<Integer>>>> batches = new ArrayList<>();
+            for (int i = 0; i < blocks.size(); i += MAX_BLOCK_SIZES)
+                batches.add(getSizesBatch(blocks.subList(i, Math.min(blocks.size(), i + MAX_BLOCK_SIZES))));
+            return Futures.combineAllInOrder(batches)
+                    .thenApply(res -> res.stream()
+                            .flatMap(List::stream)
+                            .collect(Collectors.toList()));
+        }
+
+        private CompletableFuture<List<Optional<Integer>>> getSizesBatch(List<Cid> blocks) {
+            byte[] body = new CborObject.CborList(blocks.stream()
+                    .map(CborObject.CborMerkleLink::new)
+                    .collect(Collectors.toList())).serialize();
+            return poster.postUnzip(apiPrefix + BLOCK_SIZES, body)
+                    .thenApply(raw -> ((CborObject.CborList)CborObject.fromByteArray(raw)).value
+                            .stream()
+                            .map(c -> ((CborObject.CborLong) c).value)
+                            .map(size -> size < 0 ? Optional.<Integer>empty() : Optional.of((int) (long) size))
+                            .collect(Collectors.toList()));
+        }
     }
 
     class Proxying implements ContentAddressedStorage {
@@ -588,6 +644,11 @@ public interface ContentAddressedStorage {
             return local.getSize(block);
         }
 
+        @Override
+        public CompletableFuture<List<Optional<Integer>>> getSizes(List<Cid> blocks) {
+            return local.getSizes(blocks);
+        }
+
         @Override
         public CompletableFuture<List<Cid>> put(PublicKeyHash owner,
                                                 PublicKeyHash writer,
@@ -84,6 +84,11 @@ public abstract class DelegatingStorage implements ContentAddressedStorage {
         return target.getSize(block);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<Integer>>> getSizes(List<Cid> blocks) {
+        return target.getSizes(blocks);
+    }
+
     @Override
     public CompletableFuture<List<FragmentWithHash>> downloadFragments(PublicKeyHash owner,
                                                                        List<Cid> hashes,
@@ -313,6 +313,11 @@ public class DirectS3BlockStore implements ContentAddressedStorage {
         return fallback.getSize(block);
     }
 
+    @Override
+    public CompletableFuture<List<Optional<Integer>>> getSizes(List<Cid> blocks) {
+        return fallback.getSizes(blocks);
+    }
+
     @Override
     public CompletableFuture<List<byte[]>> getChampLookup(PublicKeyHash owner, Cid root, byte[] champKey, Optional<BatWithId> bat) {
         return Futures.asyncExceptionally(
@@ -127,6 +127,11 @@ public class RetryStorage implements ContentAddressedStorage {
         return runWithRetry(() -> target.getSize(block));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<Integer>>> getSizes(List<Cid> blocks) {
+        return runWithRetry(() -> target.getSizes(blocks));
+    }
+
     @Override
     public CompletableFuture<List<FragmentWithHash>> downloadFragments(PublicKeyHash owner,
                                                                        List<Cid> hashes,
@@ -162,11 +162,18 @@ public class S3Request {
                                                                  String s3SecretKey,
                                                                  boolean useHttps,
                                                                  Hasher h) {
-        return computeSignature(req, s3SecretKey, h).thenApply(signature -> {
-            String query = req.getQueryString(signature);
-            String protocol =  useHttps ? "https" : "http";
-            return new PresignedUrl(protocol + "://" + host + "/" + key + query, req.getHeaders(signature));
-        });
+        return computeSignature(req, s3SecretKey, h)
+                .thenApply(signature -> buildPresignedUrl(req, key, host, signature, useHttps));
+    }
+
+    public static PresignedUrl buildPresignedUrl(S3Request req,
+                                                 String key,
+                                                 String host,
+                                                 String signature,
+                                                 boolean useHttps) {
+        String query = req.getQueryString(signature);
+        String protocol =  useHttps ? "https" : "http";
+        return new PresignedUrl(protocol + "://" + host + "/" + key + query, req.getHeaders(signature));
     }
 
     /**
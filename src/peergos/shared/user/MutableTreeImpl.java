@@ -49,8 +49,8 @@ public class MutableTreeImpl implements MutableTree {
                                              Multihash value,
                                              TransactionId tid) {
         return (base.tree.isPresent() ?
-                ChampWrapper.create((Cid)base.tree.get(), hasher, dht, writeHasher, c -> (CborObject.CborMerkleLink)c) :
-                ChampWrapper.create(owner, writer, hasher, tid, dht, writeHasher, c -> (CborObject.CborMerkleLink)c)
+                ChampWrapper.create((Cid)base.tree.get(), hasher, dht, writeHasher, CborObject.CborMerkleLink.FROM_CBOR) :
+                ChampWrapper.create(owner, writer, hasher, tid, dht, writeHasher, CborObject.CborMerkleLink.FROM_CBOR)
         ).thenCompose(tree -> tree.put(owner, writer, mapKey, existing.map(CborObject.CborMerkleLink::new), new CborObject.CborMerkleLink(value), tid))
                 .thenApply(newRoot -> LOGGING ? log(newRoot, "TREE.put (" + ArrayOps.bytesToHex(mapKey)
                         + ", " + value + ") => CAS(" + base.tree + ", " + newRoot + ")") : newRoot)
@@ -61,7 +61,7 @@ public class MutableTreeImpl implements MutableTree {
     public CompletableFuture<MaybeMultihash> get(WriterData base, PublicKeyHash owner, PublicKeyHash writer, byte[] mapKey) {
         if (! base.tree.isPresent())
             throw new IllegalStateException("Tree root not present for " + writer);
-        return ChampWrapper.create((Cid)base.tree.get(), hasher, dht, writeHasher, c -> (CborObject.CborMerkleLink)c).thenCompose(tree -> tree.get(mapKey))
+        return ChampWrapper.create((Cid)base.tree.get(), hasher, dht, writeHasher, CborObject.CborMerkleLink.FROM_CBOR).thenCompose(tree -> tree.get(mapKey))
                 .thenApply(c -> c.map(x -> x.target).map(MaybeMultihash::of).orElse(MaybeMultihash.empty()))
                 .thenApply(maybe -> LOGGING ?
                         log(maybe, "TREE.get (" + ArrayOps.bytesToHex(mapKey)
@@ -77,7 +77,7 @@ public class MutableTreeImpl implements MutableTree {
                                                 TransactionId tid) {
         if (! base.tree.isPresent())
             throw new IllegalStateException("Tree root not present!");
-        return ChampWrapper.create((Cid)base.tree.get(), hasher, dht, writeHasher, c -> (CborObject.CborMerkleLink)c)
+        return ChampWrapper.create((Cid)base.tree.get(), hasher, dht, writeHasher, CborObject.CborMerkleLink.FROM_CBOR)
                 .thenCompose(tree -> tree.remove(owner, writer, mapKey, existing.map(CborObject.CborMerkleLink::new), tid))
                 .thenApply(pair -> LOGGING ? log(pair, "TREE.rm ("
                         + ArrayOps.bytesToHex(mapKey) + "  => " + pair) : pair)
@@ -13,6 +13,7 @@ import peergos.shared.util.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.stream.*;
 
 public class OwnedKeyChamp {
 
@@ -31,14 +32,14 @@ public class OwnedKeyChamp {
                                                      ContentAddressedStorage ipfs,
                                                      Hasher hasher,
                                                      TransactionId tid) {
-        Champ<CborObject.CborMerkleLink> newRoot = Champ.empty(c -> (CborObject.CborMerkleLink)c);
+        Champ<CborObject.CborMerkleLink> newRoot = Champ.empty(CborObject.CborMerkleLink.FROM_CBOR);
         byte[] raw = newRoot.serialize();
         return hasher.sha256(raw)
                 .thenCompose(hash -> ipfs.put(owner, writer.publicKeyHash, writer.secret.signMessage(hash), raw, tid));
     }
 
     public static CompletableFuture<OwnedKeyChamp> build(Cid root, ContentAddressedStorage ipfs, Hasher hasher) {
-        return ChampWrapper.create(root, b -> Futures.of(b.data), ipfs, hasher, c -> (CborObject.CborMerkleLink)c)
+        return ChampWrapper.create(root, b -> Futures.of(b.data), ipfs, hasher, CborObject.CborMerkleLink.FROM_CBOR)
                 .thenApply(c -> new OwnedKeyChamp(root, c, ipfs));
     }
 
@@ -94,4 +95,19 @@ public class OwnedKeyChamp {
                                 .thenCompose(proof -> consumer.apply(acc,
                                         new Pair<>(PublicKeyHash.fromCbor(CborObject.fromByteArray(reverse(pair.left.data))), proof))));
     }
+
+    /**
+     *
+     * @param parallelism the maximum number of champ nodes, or proofs, to fetch concurrently
+     * @return every owned key and its proof
+     */
+    public CompletableFuture<List<Pair<PublicKeyHash, OwnerProof>>> getAllMappings(int parallelism) {
+        return champ.getAllMappings(parallelism)
+                .thenCompose(mappings -> Futures.mapWithConcurrency(mappings.stream()
+                                .filter(pair -> pair.right.isPresent())
+                                .collect(Collectors.toList()), parallelism,
+                        pair -> ipfs.get((Cid)pair.right.get().target, Optional.empty())
+                                .thenApply(raw -> new Pair<>(PublicKeyHash.fromCbor(CborObject.fromByteArray(reverse(pair.left.data))),
+                                        OwnerProof.fromCbor(raw.get())))));
+    }
 }
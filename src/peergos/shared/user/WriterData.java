@@ -7,6 +7,7 @@ import peergos.shared.crypto.*;
 import peergos.shared.crypto.asymmetric.*;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.symmetric.*;
+import peergos.shared.hamt.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.mutable.*;
@@ -451,10 +452,6 @@ public class WriterData implements Cborable {
         if (! root.isPresent())
             return CompletableFuture.completedFuture(Collections.emptySet());
 
-        BiFunction<Set<OwnerProof>, Pair<PublicKeyHash, OwnerProof>, CompletableFuture<Set<OwnerProof>>>
-                composer = (acc, pair) -> CompletableFuture.completedFuture(Stream.concat(acc.stream(), Stream.of(pair.right))
-                .collect(Collectors.toSet()));
-
         BiFunction<Set<PublicKeyHash>, OwnerProof, CompletableFuture<Set<PublicKeyHash>>> proofComposer =
                 (acc, proof) -> proof.getOwner(ipfs)
                         .thenApply(claimedWriter -> Stream.concat(acc.stream(), claimedWriter.equals(writer) ?
@@ -463,7 +460,10 @@ public class WriterData implements Cborable {
 
         return getWriterData((Cid)root.get(), ipfs)
                 .thenCompose(wd -> wd.props.applyToOwnedKeys(owned ->
-                        owned.applyToAllMappings(Collections.emptySet(), composer, ipfs), ipfs, hasher)
+                        owned.getAllMappings(Champ.DEFAULT_TRAVERSAL_PARALLELISM)
+                                .thenApply(mappings -> mappings.stream()
+                                        .map(pair -> pair.right)
+                                        .collect(Collectors.toSet())), ipfs, hasher)
                         .thenApply(owned -> Stream.concat(owned.stream(),
                                 wd.props.namedOwnedKeys.values().stream()).collect(Collectors.toSet())))
                 .thenCompose(all -> Futures.reduceAll(all, Collections.emptySet(),
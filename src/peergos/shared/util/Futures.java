@@ -4,6 +4,7 @@ import jsinterop.annotations.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 
@@ -104,6 +105,54 @@ public class Futures {
                 .collect(Collectors.toList()));
     }
 
+    /** Apply an async function to an entire list, with at most maxConcurrency calls in flight at once
+     *
+     * @param input
+     * @param maxConcurrency
+     * @param producer
+     * @param <X>
+     * @param <V>
+     * @return the results in the order of the input
+     */
+    @SuppressWarnings("unchecked")
+    public static <X, V> CompletableFuture<List<V>> mapWithConcurrency(List<X> input,
+                                                                       int maxConcurrency,
+                                                                       Function<X, CompletableFuture<V>> producer) {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("maxConcurrency must be positive!");
+        Object[] results = new Object[input.size()];
+        AtomicInteger next = new AtomicInteger(0);
+        List<CompletableFuture<Boolean>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(maxConcurrency, input.size()); i++)
+            workers.add(mapRemaining(input, results, next, producer));
+        return combineAll(workers).thenApply(x -> (List<V>) Arrays.asList(results));
+    }
+
+    private static <X, V> CompletableFuture<Boolean> mapRemaining(List<X> input,
+                                                                  Object[] results,
+                                                                  AtomicInteger next,
+                                                                  Function<X, CompletableFuture<V>> producer) {
+        while (true) {
+            int index = next.getAndIncrement();
+            if (index >= input.size())
+                return of(true);
+            CompletableFuture<V> result = producer.apply(input.get(index));
+            // loop rather than recurse through results which are already available, e.g. from a cache
+            if (result.isDone()) {
+                try {
+                    results[index] = result.join();
+                } catch (RuntimeException e) {
+                    return result.thenApply(x -> true);
+                }
+                continue;
+            }
+            return result.thenCompose(v -> {
+                results[index] = v;
+                return mapRemaining(input, results, next, producer);
+            });
+        }
+    }
+
     /*** Asynchronously map a set of input values to output values until one matches a predicate
      *
      * @param input the values to reduce
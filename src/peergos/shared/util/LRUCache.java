@@ -1,16 +1,251 @@
 package peergos.shared.util;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/** A thread safe map which holds at most cacheSize entries, evicting the least recently used.
+ *
+ *  Reads don't take a lock. A hit is recorded in one of several small buffers, and the buffered hits are replayed
+ *  against the LRU order by whichever thread next holds the eviction lock, so concurrent hits don't serialise. If a
+ *  buffer is full the hit is dropped, which only makes the eviction order approximate. Writes take the lock.
+ *
+ *  The GWT build uses the simpler, single threaded, version in peergos/gwt/emu.
+ */
+public class LRUCache<K, V> extends AbstractMap<K, V> {
+    private static final int READ_BUFFERS = 16;
+    private static final int READ_BUFFER_SIZE = 32;
+    private static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+    private static final class Node<K, V> {
+        public final K key;
+        public volatile V value;
+        // guarded by the eviction lock
+        Node<K, V> prev, next;
+        boolean linked;
+
+        public Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class ReadBuffer<K, V> {
+        private final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        private volatile long reads;
+
+        /**
+         *
+         * @return the number of buffered hits waiting to be applied
+         */
+        public long record(Node<K, V> node) {
+            long w = writes.get();
+            if (w - reads >= READ_BUFFER_SIZE)
+                return READ_BUFFER_SIZE;
+            if (writes.compareAndSet(w, w + 1))
+                slots.lazySet((int) (w & (READ_BUFFER_SIZE - 1)), node);
+            return w + 1 - reads;
+        }
+    }
 
-public class LRUCache<K, V> extends LinkedHashMap<K, V> {
     private final int cacheSize;
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // head.next is the least recently used, head.prev the most recently used
+    private final Node<K, V> head = new Node<>(null, null);
+    private final List<ReadBuffer<K, V>> readBuffers = new ArrayList<>(READ_BUFFERS);
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
 
     public LRUCache(int cacheSize) {
-        super(16, 0.75f, true);
         this.cacheSize = cacheSize;
+        head.prev = head;
+        head.next = head;
+        for (int i = 0; i < READ_BUFFERS; i++)
+            readBuffers.add(new ReadBuffer<>());
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public long evictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public V get(Object key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        recordRead(node);
+        return node.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return data.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (value == null)
+            return remove(key);
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            Node<K, V> existing = data.get(key);
+            if (existing != null) {
+                V old = existing.value;
+                existing.value = value;
+                moveToTail(existing);
+                return old;
+            }
+            Node<K, V> node = new Node<>(key, value);
+            data.put(key, node);
+            linkTail(node);
+            while (data.size() > cacheSize && head.next != head) {
+                Node<K, V> lru = head.next;
+                unlink(lru);
+                data.remove(lru.key, lru);
+                evictions.increment();
+            }
+            return null;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        evictionLock.lock();
+        try {
+            Node<K, V> node = data.remove(key);
+            if (node == null)
+                return null;
+            unlink(node);
+            return node.value;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            for (Node<K, V> n = head.next; n != head; n = n.next)
+                n.linked = false;
+            head.next = head;
+            head.prev = head;
+            data.clear();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                Iterator<Node<K, V>> nodes = data.values().iterator();
+                return new Iterator<>() {
+                    private Node<K, V> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return nodes.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        current = nodes.next();
+                        return new SimpleImmutableEntry<>(current.key, current.value);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (current == null)
+                            throw new IllegalStateException();
+                        LRUCache.this.remove(current.key);
+                        current = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return data.size();
+            }
+        };
+    }
+
+    private void recordRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = readBuffers.get((int) Thread.currentThread().getId() & (READ_BUFFERS - 1));
+        if (buffer.record(node) >= DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /** Must be called holding the eviction lock
+     */
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            long w = buffer.writes.get();
+            long r = buffer.reads;
+            for (; r < w; r++) {
+                int index = (int) (r & (READ_BUFFER_SIZE - 1));
+                Node<K, V> node = buffer.slots.getAndSet(index, null);
+                if (node == null)
+                    break; // the write of this slot hasn't landed yet
+                if (node.linked)
+                    moveToTail(node);
+            }
+            buffer.reads = r;
+        }
+    }
+
+    private void linkTail(Node<K, V> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        node.linked = true;
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (! node.linked)
+            return;
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        node.linked = false;
     }
 
-    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-        return size() >= cacheSize;
+    private void moveToTail(Node<K, V> node) {
+        if (! node.linked || head.prev == node)
+            return;
+        unlink(node);
+        linkTail(node);
     }
 }